@@ -0,0 +1,247 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects acknowledgements from HTTP callbacks and applies them to the sample store in batches.
+ *
+ * An acknowledgement is a per-key watermark: every record of the key up to and including the
+ * timestamp was delivered. Watermarks of the same key are merged to the highest one, so a
+ * flush issues one acknowledgement per key in a single store transaction, however many
+ * responses arrived since the last flush. A flush runs on the queue's own thread shortly
+ * after the first pending acknowledgement, or at once when many keys are pending.
+ */
+public class AckQueue implements Handler.Callback {
+    private static final String TAG = "AckQueue";
+
+    // How long acknowledgements are collected before they are applied
+    private static final long FLUSH_DELAY_MS = 200;
+
+    // Flush at once when this many keys are pending
+    private static final int FLUSH_KEY_COUNT = 64;
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final int MSG_FLUSH = 1;
+
+    private final SampleStore sampleStore;
+    private final LogManager logManager;
+
+    private HandlerThread thread;
+    private Handler handler;
+
+    // Highest acknowledged timestamp by key id and the keys that have one; guarded by this
+    private long[] watermarks = newWatermarks(64);
+    private int[] pendingKeys = new int[64];
+    private int pendingCount;
+
+    // Serialises flushes from the queue thread and from stop()
+    private final Object flushLock = new Object();
+
+    // Counters
+    private final AtomicLong offeredCount = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedKeyCount = new AtomicLong();
+    private final AtomicLong acknowledgedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    public AckQueue(SampleStore sampleStore, LogManager logManager) {
+        this.sampleStore = sampleStore;
+        this.logManager = logManager;
+    }
+
+    /**
+     * Start the flush thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new HandlerThread("HA-AckQueue", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * Stop the flush thread and apply everything still pending
+     */
+    public void stop() {
+        synchronized (this) {
+            if (thread == null) {
+                return;
+            }
+            handler.removeCallbacksAndMessages(null);
+            thread.quit();
+            thread = null;
+            handler = null;
+        }
+        flush();
+        logManager.logInfo("Ack queue stopped - " + getStats());
+    }
+
+    /**
+     * Queue acknowledgement of every record of a key up to and including a timestamp.
+     * Never touches storage; safe to call from any thread.
+     */
+    public void acknowledge(int keyId, long timestamp) {
+        offeredCount.incrementAndGet();
+        synchronized (this) {
+            ensureCapacity(keyId);
+            if (watermarks[keyId] == NONE) {
+                if (pendingCount == pendingKeys.length) {
+                    pendingKeys = Arrays.copyOf(pendingKeys, pendingCount * 2);
+                }
+                pendingKeys[pendingCount++] = keyId;
+                watermarks[keyId] = timestamp;
+            } else if (timestamp > watermarks[keyId]) {
+                watermarks[keyId] = timestamp;
+            }
+
+            if (handler == null) {
+                return;
+            }
+            if (pendingCount >= FLUSH_KEY_COUNT) {
+                handler.removeMessages(MSG_FLUSH);
+                handler.sendEmptyMessage(MSG_FLUSH);
+            } else if (!handler.hasMessages(MSG_FLUSH)) {
+                handler.sendEmptyMessageDelayed(MSG_FLUSH, FLUSH_DELAY_MS);
+            }
+        }
+    }
+
+    /**
+     * Queue acknowledgement of a key by name, for records that may have been read from another
+     * store before the storage backend was switched. Ignored once the queue is stopped.
+     */
+    public void acknowledge(String key, long timestamp) {
+        int keyId;
+        synchronized (this) {
+            // The store is closed after the queue is stopped
+            if (handler == null) {
+                return;
+            }
+            keyId = sampleStore.getKeyId(key);
+        }
+        acknowledge(keyId, timestamp);
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what != MSG_FLUSH) {
+            return false;
+        }
+        flush();
+        return true;
+    }
+
+    /**
+     * Apply all pending acknowledgements in one store call
+     *
+     * @return number of records acknowledged
+     */
+    public int flush() {
+        synchronized (flushLock) {
+            int[] keyIds;
+            long[] timestamps;
+            int count;
+            synchronized (this) {
+                count = pendingCount;
+                if (count == 0) {
+                    return 0;
+                }
+                keyIds = Arrays.copyOf(pendingKeys, count);
+                timestamps = new long[count];
+                for (int i = 0; i < count; i++) {
+                    timestamps[i] = watermarks[keyIds[i]];
+                    watermarks[keyIds[i]] = NONE;
+                }
+                pendingCount = 0;
+            }
+
+            try {
+                int acknowledged = sampleStore.markAsSentUpTo(keyIds, timestamps, count);
+                flushCount.incrementAndGet();
+                flushedKeyCount.addAndGet(count);
+                acknowledgedCount.addAndGet(acknowledged);
+                logManager.logDebug("Acknowledged " + acknowledged + " records of " + count + " keys");
+                return acknowledged;
+            } catch (Exception e) {
+                // Records stay unsent and are sent again in a later cycle
+                failedCount.addAndGet(count);
+                Log.e(TAG, "Failed to apply acknowledgements of " + count + " keys", e);
+                logManager.logError("Failed to apply acknowledgements of " + count + " keys", e);
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Keys with an acknowledgement waiting to be applied
+     */
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Acknowledgements received from callbacks
+     */
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+
+    /**
+     * Store transactions issued for acknowledgements
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * Records marked as sent
+     */
+    public long getAcknowledgedCount() {
+        return acknowledgedCount.get();
+    }
+
+    /**
+     * Per-key acknowledgements lost because their flush failed
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Get a one-line summary of the queue counters for logging
+     */
+    public String getStats() {
+        return "offered=" + getOfferedCount() +
+                ", flushes=" + getFlushCount() +
+                ", keys=" + flushedKeyCount.get() +
+                ", acknowledged=" + getAcknowledgedCount() +
+                ", failed=" + getFailedCount() +
+                ", pending=" + getPendingCount();
+    }
+
+    private void ensureCapacity(int keyId) {
+        if (keyId < watermarks.length) {
+            return;
+        }
+        int length = Math.max(watermarks.length * 2, keyId + 1);
+        long[] grown = newWatermarks(length);
+        System.arraycopy(watermarks, 0, grown, 0, watermarks.length);
+        watermarks = grown;
+    }
+
+    private static long[] newWatermarks(int length) {
+        long[] watermarks = new long[length];
+        Arrays.fill(watermarks, NONE);
+        return watermarks;
+    }
+}
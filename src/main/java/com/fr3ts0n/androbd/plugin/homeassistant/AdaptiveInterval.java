@@ -0,0 +1,194 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Send interval that follows the link to Home Assistant, within user-set bounds.
+ *
+ * The round-trip time of each record, from handing it to the transport until it is reported
+ * delivered or failed, and the share of failures are collected between send cycles. At each
+ * cycle the interval is adjusted AIMD-style: while data is waiting and the link is healthy
+ * (no failures, round trips well below the interval) it shrinks by a fixed step; under
+ * congestion (failures, round trips near the interval, or records outstanding longer than an
+ * interval) it doubles. Anything in between keeps it. Disabled, the interval is the configured
+ * update interval.
+ */
+public class AdaptiveInterval {
+
+    public static final long DEFAULT_MIN_MS = 1000;
+    public static final long DEFAULT_MAX_MS = 30 * 1000;
+
+    // Additive decrease per healthy cycle
+    private static final long STEP_MS = 500;
+
+    // Share of failed records that counts as congestion
+    private static final double CONGESTION_ERROR_RATE = 0.2;
+
+    // Healthy round trips are below a quarter of the interval, congested ones above half
+    private static final int HEALTHY_RTT_DIVISOR = 4;
+    private static final int CONGESTED_RTT_DIVISOR = 2;
+
+    // Weight of a new round trip in the smoothed one
+    private static final double RTT_WEIGHT = 0.125;
+
+    // Send time of the oldest record outstanding, by key
+    private final ConcurrentHashMap<String, Long> sentAt = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private boolean enabled;
+    private long minMs = DEFAULT_MIN_MS;
+    private long maxMs = DEFAULT_MAX_MS;
+    private long intervalMs = 5000;
+
+    // Outcomes since the last decision; guarded by this
+    private int windowDelivered;
+    private int windowFailed;
+    private long windowRttTotal;
+
+    // Metrics; guarded by this
+    private double smoothedRtt = -1;
+    private long decreaseCount;
+    private long increaseCount;
+    private long holdCount;
+    private String lastDecision = "none";
+
+    /**
+     * Set the configured update interval and the bounds of the adaptive one
+     */
+    public synchronized void configure(boolean enabled, long baseMs, long minMs, long maxMs) {
+        this.enabled = enabled;
+        this.minMs = Math.max(100, Math.min(minMs, maxMs));
+        this.maxMs = Math.max(this.minMs, maxMs);
+        intervalMs = enabled ? clamp(baseMs) : baseMs;
+    }
+
+    /**
+     * Records were handed to the transport
+     */
+    public void onSent(Iterable<DataRecord> records, long now) {
+        for (DataRecord record : records) {
+            // A key sent again before its outcome keeps the earlier time
+            sentAt.putIfAbsent(record.getKey(), now);
+        }
+    }
+
+    public void onDelivered(DataRecord record) {
+        onOutcome(record, true);
+    }
+
+    public void onFailed(DataRecord record) {
+        onOutcome(record, false);
+    }
+
+    private void onOutcome(DataRecord record, boolean delivered) {
+        Long sent = sentAt.remove(record.getKey());
+        if (sent == null) {
+            return;
+        }
+        long rtt = System.currentTimeMillis() - sent;
+        synchronized (this) {
+            if (delivered) {
+                windowDelivered++;
+                windowRttTotal += rtt;
+                smoothedRtt = smoothedRtt < 0 ? rtt : smoothedRtt + RTT_WEIGHT * (rtt - smoothedRtt);
+            } else {
+                windowFailed++;
+            }
+        }
+    }
+
+    /**
+     * Adjust the interval from the outcomes since the last call
+     *
+     * @param backlog whether records are waiting to be sent
+     * @return the interval until the next send cycle
+     */
+    public long nextInterval(boolean backlog, long now) {
+        long oldestSent = now;
+        int lost = 0;
+        synchronized (this) {
+            for (Iterator<Long> it = sentAt.values().iterator(); it.hasNext(); ) {
+                long sent = it.next();
+                if (now - sent > 2 * maxMs) {
+                    // Never reported, e.g. dropped with a closed connection
+                    it.remove();
+                    lost++;
+                } else {
+                    oldestSent = Math.min(oldestSent, sent);
+                }
+            }
+            windowFailed += lost;
+            if (!enabled) {
+                resetWindow();
+                return intervalMs;
+            }
+            int outcomes = windowDelivered + windowFailed;
+            double errorRate = outcomes > 0 ? (double) windowFailed / outcomes : 0;
+            long averageRtt = windowDelivered > 0 ? windowRttTotal / windowDelivered : 0;
+            boolean stalled = now - oldestSent > intervalMs;
+            long previous = intervalMs;
+
+            if (errorRate >= CONGESTION_ERROR_RATE || averageRtt > intervalMs / CONGESTED_RTT_DIVISOR || stalled) {
+                intervalMs = clamp(intervalMs * 2);
+                increaseCount++;
+                lastDecision = "back off (" + (stalled ? "stalled" : errorRate >= CONGESTION_ERROR_RATE ?
+                        "errors " + Math.round(errorRate * 100) + "%" : "rtt " + averageRtt + "ms") + ")";
+            } else if (backlog && windowFailed == 0 && outcomes > 0 &&
+                    averageRtt < intervalMs / HEALTHY_RTT_DIVISOR) {
+                intervalMs = clamp(intervalMs - STEP_MS);
+                decreaseCount++;
+                lastDecision = "speed up (rtt " + averageRtt + "ms)";
+            } else {
+                holdCount++;
+                lastDecision = "hold";
+            }
+            if (intervalMs == previous && !"hold".equals(lastDecision)) {
+                lastDecision += " at bound";
+            }
+
+            resetWindow();
+            return intervalMs;
+        }
+    }
+
+    private void resetWindow() {
+        windowDelivered = 0;
+        windowFailed = 0;
+        windowRttTotal = 0;
+    }
+
+    /**
+     * Current interval between send cycles
+     */
+    public synchronized long getInterval() {
+        return intervalMs;
+    }
+
+    /**
+     * Forget records outstanding, e.g. when the transport was replaced and will not report them
+     */
+    public void clearOutstanding() {
+        sentAt.clear();
+    }
+
+    private long clamp(long interval) {
+        return Math.max(minMs, Math.min(maxMs, interval));
+    }
+
+    /**
+     * Get a one-line summary of the interval decisions for logging
+     */
+    public synchronized String getStats() {
+        if (!enabled) {
+            return "disabled, interval=" + intervalMs + "ms";
+        }
+        return "interval=" + intervalMs + "ms (" + minMs + "-" + maxMs + "ms)" +
+                ", srtt=" + (smoothedRtt < 0 ? "-" : Math.round(smoothedRtt) + "ms") +
+                ", outstanding=" + sentAt.size() +
+                ", speedUps=" + decreaseCount +
+                ", backOffs=" + increaseCount +
+                ", holds=" + holdCount +
+                ", last=" + lastDecision;
+    }
+}
@@ -0,0 +1,361 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Imports the buffered history into the long-term statistics of Home Assistant.
+ *
+ * Send cycles only deliver the latest value of each key, so a trip buffered offline shows up
+ * as a single step. Backfill reads hourly aggregates of every key from the sample store (built
+ * from the stored rollups, or from the samples without them) and imports their mean, minimum
+ * and maximum as the external statistic androbd:&lt;key&gt; with recorder/import_statistics over
+ * the WebSocket API, one command per key and day.
+ *
+ * Home Assistant keeps long-term statistics per hour, so only complete hours are imported;
+ * importing an hour again replaces it. Progress is the end of the last day imported for all
+ * keys, kept in the preferences, so a pass interrupted by a failed command, a lost connection
+ * or a restart resumes there. A pass runs on its own thread after a send cycle asks for one.
+ */
+public class BackfillEngine implements Handler.Callback {
+    private static final String TAG = "BackfillEngine";
+
+    // End of the imported history (exclusive, start of an hour)
+    static final String PREF_PROGRESS = "backfill_done_until";
+
+    static final String SOURCE = "androbd";
+
+    private static final long HOUR_MS = 60 * 60 * 1000;
+
+    // Time range imported per command
+    private static final long CHUNK_MS = 24 * HOUR_MS;
+
+    // How far back a first pass looks
+    private static final long MAX_HISTORY_MS = 7 * 24 * HOUR_MS;
+
+    // Commands waiting for a result at a time; below the WebSocket queue limit
+    private static final int COMMANDS_PER_ROUND = 16;
+
+    private static final long RESULT_TIMEOUT_MS = 60 * 1000;
+
+    // Pause after a failed pass
+    private static final long RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    private static final int MSG_RUN_PASS = 1;
+
+    private final Transport.ClientProvider clientProvider;
+    private final LogManager logManager;
+    private final SharedPreferences prefs;
+    private final Map<String, String[]> itemInfo;
+    private final SimpleDateFormat isoFormat;
+
+    private HandlerThread thread;
+    private Handler handler;
+    private WebSocketTransport transport;
+
+    private volatile SampleStore sampleStore;
+    private volatile Transport.Endpoint endpoint;
+
+    // No pass before this time after a failed one
+    private volatile long retryAt;
+
+    // Counters
+    private volatile long importedHours;
+    private volatile long importedSamples;
+    private volatile long commandCount;
+    private volatile long failedCount;
+    private volatile long lastSamplesPerSecond;
+
+    /**
+     * @param itemInfo description and units by key from the data list; read only
+     */
+    public BackfillEngine(Transport.ClientProvider clientProvider, LogManager logManager,
+                          SharedPreferences prefs, Map<String, String[]> itemInfo) {
+        this.clientProvider = clientProvider;
+        this.logManager = logManager;
+        this.prefs = prefs;
+        this.itemInfo = itemInfo;
+        isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'+00:00'", Locale.US);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Start the engine thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new HandlerThread("HA-Backfill", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper(), this);
+        // Statistics go over a connection of their own, whichever transport sends the states
+        transport = new WebSocketTransport(clientProvider, logManager, new Transport.Listener() {
+            @Override
+            public void onDelivered(DataRecord record) {
+            }
+
+            @Override
+            public void onFailed(DataRecord record, String error) {
+            }
+        });
+    }
+
+    /**
+     * Stop the engine thread. A pass in progress gives up waiting for its results and
+     * resumes from the last completed day next time.
+     */
+    public void stop() {
+        WebSocketTransport closing;
+        synchronized (this) {
+            if (thread == null) {
+                return;
+            }
+            handler.removeCallbacksAndMessages(null);
+            thread.quit();
+            thread = null;
+            handler = null;
+            closing = transport;
+            transport = null;
+        }
+        closing.close();
+    }
+
+    /**
+     * Set the store to import from; pass null before closing a store
+     */
+    public void setSampleStore(SampleStore store) {
+        sampleStore = store;
+    }
+
+    /**
+     * Import complete hours not imported yet, unless a pass is already queued
+     */
+    public synchronized void requestPass(Transport.Endpoint endpoint) {
+        this.endpoint = endpoint;
+        if (handler != null && !handler.hasMessages(MSG_RUN_PASS)) {
+            handler.sendEmptyMessage(MSG_RUN_PASS);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what != MSG_RUN_PASS) {
+            return false;
+        }
+        runPass();
+        return true;
+    }
+
+    private void runPass() {
+        SampleStore store = sampleStore;
+        Transport.Endpoint target = endpoint;
+        WebSocketTransport connection;
+        synchronized (this) {
+            connection = transport;
+        }
+        long now = System.currentTimeMillis();
+        if (store == null || target == null || connection == null || now < retryAt) {
+            return;
+        }
+
+        long end = Rollup.intervalStart(now, HOUR_MS);
+        long from = Math.max(prefs.getLong(PREF_PROGRESS, 0), end - MAX_HISTORY_MS);
+        if (from >= end) {
+            return;
+        }
+
+        long passStart = System.currentTimeMillis();
+        long hoursBefore = importedHours;
+        long samplesBefore = importedSamples;
+        while (from < end) {
+            long chunkEnd = Math.min(from + CHUNK_MS, end);
+            if (!importRange(store, connection, target, from, chunkEnd)) {
+                failedCount++;
+                retryAt = System.currentTimeMillis() + RETRY_DELAY_MS;
+                logManager.logWarning("Backfill stopped at " + formatHour(from) + ", retrying in " +
+                        (RETRY_DELAY_MS / 1000) + "s");
+                return;
+            }
+            from = chunkEnd;
+            prefs.edit().putLong(PREF_PROGRESS, from).apply();
+        }
+
+        long durationMs = Math.max(1, System.currentTimeMillis() - passStart);
+        long samples = importedSamples - samplesBefore;
+        lastSamplesPerSecond = samples * 1000 / durationMs;
+        if (samples > 0) {
+            logManager.logInfo("Backfill imported " + (importedHours - hoursBefore) + " hourly statistics from " +
+                    samples + " samples up to " + formatHour(end) + " in " + durationMs + "ms (" +
+                    lastSamplesPerSecond + " samples/s)");
+        }
+    }
+
+    /**
+     * Import the hours of one time range, one command per key
+     *
+     * @return true when Home Assistant accepted all commands
+     */
+    private boolean importRange(SampleStore store, WebSocketTransport connection, Transport.Endpoint target,
+                                final long from, final long to) {
+        // Hourly rows by key, in time order
+        final Map<String, JSONArray> rows = new LinkedHashMap<>();
+        final long[] counts = new long[2];
+        try {
+            store.forEachRollupInTimeRange(from, to - 1, HOUR_MS, new SampleStore.RollupVisitor() {
+                @Override
+                public boolean visit(Rollup rollup) {
+                    // Intervals overlapping the range edges are left to the neighbouring range
+                    if (rollup.getCount() == 0 || rollup.getStartTime() < from || rollup.getStartTime() >= to) {
+                        return true;
+                    }
+                    JSONArray keyRows = rows.get(rollup.getKey());
+                    if (keyRows == null) {
+                        keyRows = new JSONArray();
+                        rows.put(rollup.getKey(), keyRows);
+                    }
+                    try {
+                        JSONObject row = new JSONObject();
+                        row.put("start", formatHour(rollup.getStartTime()));
+                        row.put("mean", rollup.getAverage());
+                        row.put("min", rollup.getMin());
+                        row.put("max", rollup.getMax());
+                        keyRows.put(row);
+                    } catch (JSONException e) {
+                        Log.w(TAG, "Skipping rollup " + rollup, e);
+                        return true;
+                    }
+                    counts[0]++;
+                    counts[1] += rollup.getCount();
+                    return true;
+                }
+            });
+        } catch (Exception e) {
+            logManager.logError("Backfill could not read " + formatHour(from) + " - " + formatHour(to), e);
+            return false;
+        }
+
+        List<JSONObject> commands = new ArrayList<>(rows.size());
+        try {
+            for (Map.Entry<String, JSONArray> entry : rows.entrySet()) {
+                if (toStatisticId(entry.getKey()).endsWith(":")) {
+                    // No valid statistic id for a key without letters or digits
+                    continue;
+                }
+                commands.add(createImportCommand(entry.getKey(), entry.getValue()));
+            }
+        } catch (JSONException e) {
+            logManager.logError("Error creating statistics JSON", e);
+            return false;
+        }
+        if (commands.isEmpty()) {
+            return true;
+        }
+
+        // Pipeline the commands in rounds and wait for all results of a round
+        for (int start = 0; start < commands.size(); start += COMMANDS_PER_ROUND) {
+            int end = Math.min(start + COMMANDS_PER_ROUND, commands.size());
+            final CountDownLatch done = new CountDownLatch(end - start);
+            final AtomicInteger failures = new AtomicInteger();
+            final AtomicReference<String> lastError = new AtomicReference<>();
+            for (int i = start; i < end; i++) {
+                connection.call(target, commands.get(i), new WebSocketTransport.ResultCallback() {
+                    @Override
+                    public void onResult(boolean success, String error) {
+                        if (!success) {
+                            failures.incrementAndGet();
+                            lastError.set(error);
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            commandCount += end - start;
+            try {
+                if (!done.await(RESULT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    logManager.logError("Backfill timed out waiting for Home Assistant");
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (failures.get() > 0) {
+                logManager.logError("Home Assistant rejected " + failures.get() + " statistics imports: " +
+                        lastError.get());
+                return false;
+            }
+        }
+
+        importedHours += counts[0];
+        importedSamples += counts[1];
+        return true;
+    }
+
+    private JSONObject createImportCommand(String key, JSONArray stats) throws JSONException {
+        String[] info = itemInfo.get(key);
+        String name = info != null && !info[0].isEmpty() ? info[0] : key;
+        String unit = info != null && !info[1].isEmpty() ? info[1] : null;
+
+        JSONObject metadata = new JSONObject();
+        metadata.put("source", SOURCE);
+        metadata.put("statistic_id", toStatisticId(key));
+        metadata.put("name", "AndrOBD " + name);
+        metadata.put("unit_of_measurement", unit != null ? unit : JSONObject.NULL);
+        metadata.put("has_mean", true);
+        metadata.put("has_sum", false);
+
+        JSONObject command = new JSONObject();
+        command.put("type", "recorder/import_statistics");
+        command.put("metadata", metadata);
+        command.put("stats", stats);
+        return command;
+    }
+
+    /**
+     * External statistic id of a key, e.g. androbd:engine_rpm
+     */
+    static String toStatisticId(String key) {
+        String objectId = RestTransport.toEntityId("", key).replaceAll("^_+|_+$", "");
+        return SOURCE + ":" + objectId;
+    }
+
+    private String formatHour(long timestamp) {
+        synchronized (isoFormat) {
+            return isoFormat.format(new Date(timestamp));
+        }
+    }
+
+    /**
+     * Get a one-line summary of the backfill counters for logging
+     */
+    public String getStats() {
+        return "hours=" + importedHours +
+                ", samples=" + importedSamples +
+                ", commands=" + commandCount +
+                ", failedPasses=" + failedCount +
+                ", lastRate=" + lastSamplesPerSecond + " samples/s" +
+                ", doneUntil=" + formatHour(prefs.getLong(PREF_PROGRESS, 0));
+    }
+}
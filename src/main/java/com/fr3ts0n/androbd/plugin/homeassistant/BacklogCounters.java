@@ -0,0 +1,169 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory record counters of a sample store: total and unsent records overall and per key,
+ * and the oldest unsent timestamp per key.
+ *
+ * Stores update the counters with every insert, acknowledgement and removal and rebuild them
+ * from storage when they open, so status checks never query storage.
+ * The oldest unsent timestamp is exact after a rebuild; acknowledgements and removals only
+ * move it forward to a lower bound of the true value, until the key has no unsent records.
+ */
+class BacklogCounters {
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong unsent = new AtomicLong();
+
+    // Per key, indexed by key id; guarded by this
+    private long[] keyTotals = new long[64];
+    private long[] keyUnsent = new long[64];
+    private long[] keyOldestUnsent = newOldest(64);
+
+    // Minimum of keyOldestUnsent, recomputed on read when dirty; guarded by this
+    private long oldestUnsent = NONE;
+    private boolean oldestDirty = false;
+
+    /**
+     * Forget all counts before a rebuild
+     */
+    synchronized void reset() {
+        total.set(0);
+        unsent.set(0);
+        Arrays.fill(keyTotals, 0);
+        Arrays.fill(keyUnsent, 0);
+        Arrays.fill(keyOldestUnsent, NONE);
+        oldestUnsent = NONE;
+        oldestDirty = false;
+    }
+
+    /**
+     * Count one stored record
+     */
+    void inserted(int keyId, long timestamp, boolean sent) {
+        added(keyId, 1, sent ? 0 : 1, sent ? NONE : timestamp);
+    }
+
+    /**
+     * Count stored records of a key
+     *
+     * @param oldestUnsentTimestamp timestamp of the oldest unsent one, or Long.MAX_VALUE
+     */
+    synchronized void added(int keyId, long records, long unsentRecords, long oldestUnsentTimestamp) {
+        ensureCapacity(keyId);
+        total.addAndGet(records);
+        unsent.addAndGet(unsentRecords);
+        keyTotals[keyId] += records;
+        keyUnsent[keyId] += unsentRecords;
+        if (unsentRecords > 0 && oldestUnsentTimestamp < keyOldestUnsent[keyId]) {
+            keyOldestUnsent[keyId] = oldestUnsentTimestamp;
+            if (oldestUnsentTimestamp < oldestUnsent) {
+                oldestUnsent = oldestUnsentTimestamp;
+            }
+        }
+    }
+
+    /**
+     * Count acknowledged records of a key up to and including a timestamp
+     */
+    synchronized void acknowledged(int keyId, long records, long upToTimestamp) {
+        if (records <= 0 || keyId >= keyUnsent.length) {
+            return;
+        }
+        unsent.addAndGet(-records);
+        keyUnsent[keyId] -= records;
+        raiseOldest(keyId, upToTimestamp == Long.MAX_VALUE ? NONE : upToTimestamp + 1);
+    }
+
+    /**
+     * Count removed records of a key
+     *
+     * @param remainingNotBefore lower bound for the timestamps of the remaining unsent records,
+     *                           or Long.MIN_VALUE if unknown
+     */
+    synchronized void removed(int keyId, long records, long unsentRecords, long remainingNotBefore) {
+        if (records <= 0 || keyId >= keyTotals.length) {
+            return;
+        }
+        total.addAndGet(-records);
+        unsent.addAndGet(-unsentRecords);
+        keyTotals[keyId] -= records;
+        keyUnsent[keyId] -= unsentRecords;
+        raiseOldest(keyId, remainingNotBefore);
+    }
+
+    private void raiseOldest(int keyId, long notBefore) {
+        long previous = keyOldestUnsent[keyId];
+        long oldest = keyUnsent[keyId] <= 0 ? NONE : Math.max(previous, notBefore);
+        if (oldest != previous) {
+            keyOldestUnsent[keyId] = oldest;
+            if (previous == oldestUnsent) {
+                oldestDirty = true;
+            }
+        }
+    }
+
+    /**
+     * Total stored records
+     */
+    long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * Unsent records
+     */
+    long getUnsent() {
+        return unsent.get();
+    }
+
+    /**
+     * Unsent records of a key
+     */
+    synchronized long getUnsent(int keyId) {
+        return keyId >= 0 && keyId < keyUnsent.length ? keyUnsent[keyId] : 0;
+    }
+
+    /**
+     * Timestamp of the oldest unsent record (or a lower bound of it), or 0 if nothing is unsent
+     */
+    synchronized long getOldestUnsentTimestamp() {
+        if (oldestDirty) {
+            long oldest = NONE;
+            for (long timestamp : keyOldestUnsent) {
+                oldest = Math.min(oldest, timestamp);
+            }
+            oldestUnsent = oldest;
+            oldestDirty = false;
+        }
+        return oldestUnsent == NONE ? 0 : oldestUnsent;
+    }
+
+    /**
+     * Copy of the total record counts, indexed by key id
+     */
+    synchronized long[] getTotalsByKey() {
+        return Arrays.copyOf(keyTotals, keyTotals.length);
+    }
+
+    private void ensureCapacity(int keyId) {
+        if (keyId < keyTotals.length) {
+            return;
+        }
+        int length = Math.max(keyTotals.length * 2, keyId + 1);
+        keyTotals = Arrays.copyOf(keyTotals, length);
+        keyUnsent = Arrays.copyOf(keyUnsent, length);
+        long[] oldest = newOldest(length);
+        System.arraycopy(keyOldestUnsent, 0, oldest, 0, keyOldestUnsent.length);
+        keyOldestUnsent = oldest;
+    }
+
+    private static long[] newOldest(int length) {
+        long[] oldest = new long[length];
+        Arrays.fill(oldest, NONE);
+        return oldest;
+    }
+}
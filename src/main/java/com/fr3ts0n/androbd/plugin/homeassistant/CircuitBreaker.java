@@ -0,0 +1,260 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Stops sending to a Home Assistant endpoint that is down, and finds out when it is back.
+ *
+ * Each endpoint (base URL) starts closed: requests go out and consecutive outage failures are
+ * counted. After {@link #FAILURE_THRESHOLD} of them the circuit opens and no requests are
+ * sent; records stay unsent. Once the retry delay has passed, the sender makes one light probe
+ * request with the circuit half-open. A reachable endpoint closes the circuit, a failed probe
+ * opens it again with a longer delay. Delays grow exponentially with a random part, so
+ * several devices do not retry in step.
+ *
+ * The listener hears when a probe is due and when the circuit closed, so the sender can
+ * probe without waiting for new data and drain the buffered backlog right away.
+ */
+public class CircuitBreaker {
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    // Consecutive failures that open the circuit
+    public static final int FAILURE_THRESHOLD = 5;
+
+    private static final long MIN_RETRY_DELAY_MS = 5 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    /**
+     * Hears when the sender should try again. Called on the main thread.
+     */
+    public interface Listener {
+        /**
+         * A probe is due, or the circuit of the endpoint closed
+         */
+        void onRetryDue(String endpoint);
+    }
+
+    private static final class Circuit {
+        int state = CLOSED;
+        int consecutiveFailures;
+        // Openings since the circuit was last closed; sets the retry delay
+        int openings;
+        // Uptime of the next probe, on the clock of the handler
+        long retryAt;
+        String lastError;
+
+        long openedCount;
+        long probeCount;
+        long probeFailedCount;
+    }
+
+    private final LogManager logManager;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Random random = new Random();
+
+    // Circuits by endpoint; guarded by this
+    private final Map<String, Circuit> circuits = new HashMap<>();
+
+    public CircuitBreaker(LogManager logManager, Listener listener) {
+        this.logManager = logManager;
+        this.listener = listener;
+    }
+
+    private Circuit circuit(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            circuit = new Circuit();
+            circuits.put(endpoint, circuit);
+        }
+        return circuit;
+    }
+
+    /**
+     * State of an endpoint: {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}
+     */
+    public synchronized int getState(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        return circuit != null ? circuit.state : CLOSED;
+    }
+
+    /**
+     * Whether requests may be sent to the endpoint
+     */
+    public synchronized boolean allowsRequests(String endpoint) {
+        return getState(endpoint) == CLOSED;
+    }
+
+    /**
+     * Claim the probe of an open endpoint whose retry delay has passed
+     *
+     * @return true when the caller is to send the probe and report it with
+     * {@link #onProbeResult(String, boolean, String)}
+     */
+    public synchronized boolean startProbe(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null || circuit.state != OPEN || SystemClock.uptimeMillis() < circuit.retryAt) {
+            return false;
+        }
+        circuit.state = HALF_OPEN;
+        circuit.probeCount++;
+        return true;
+    }
+
+    /**
+     * A request reached the endpoint; closes the circuit in any state
+     */
+    public void onSuccess(String endpoint) {
+        boolean recovered;
+        synchronized (this) {
+            Circuit circuit = circuit(endpoint);
+            circuit.consecutiveFailures = 0;
+            recovered = circuit.state != CLOSED;
+            if (recovered) {
+                close(circuit);
+            }
+        }
+        if (recovered) {
+            logManager.logInfo("Home Assistant reachable again at " + endpoint);
+            notifyRetryDue(endpoint, 0);
+        }
+    }
+
+    /**
+     * A request failed because the endpoint is unreachable or overloaded. Only counts while the
+     * circuit is closed; late failures of requests started before it opened are ignored.
+     *
+     * @return true when this failure opened the circuit
+     */
+    public boolean onFailure(String endpoint, String error) {
+        long delay;
+        synchronized (this) {
+            Circuit circuit = circuit(endpoint);
+            if (circuit.state != CLOSED) {
+                return false;
+            }
+            circuit.lastError = error;
+            if (++circuit.consecutiveFailures < FAILURE_THRESHOLD) {
+                return false;
+            }
+            delay = open(circuit);
+        }
+        logManager.logWarning("Home Assistant unreachable at " + endpoint + " after " + FAILURE_THRESHOLD +
+                " failures (" + error + "), holding records for " + (delay / 1000) + "s");
+        notifyRetryDue(endpoint, delay);
+        return true;
+    }
+
+    /**
+     * Report the outcome of a probe claimed with {@link #startProbe(String)}
+     */
+    public void onProbeResult(String endpoint, boolean reachable, String error) {
+        if (reachable) {
+            onSuccess(endpoint);
+            return;
+        }
+        long delay;
+        synchronized (this) {
+            Circuit circuit = circuit(endpoint);
+            if (circuit.state != HALF_OPEN) {
+                return;
+            }
+            circuit.probeFailedCount++;
+            circuit.lastError = error;
+            delay = open(circuit);
+        }
+        logManager.logWarning("Home Assistant still unreachable at " + endpoint + " (" + error +
+                "), next probe in " + (delay / 1000) + "s");
+        notifyRetryDue(endpoint, delay);
+    }
+
+    private long open(Circuit circuit) {
+        circuit.state = OPEN;
+        circuit.openings++;
+        circuit.openedCount++;
+        long delay = retryDelay(circuit.openings);
+        circuit.retryAt = SystemClock.uptimeMillis() + delay;
+        return delay;
+    }
+
+    private void close(Circuit circuit) {
+        circuit.state = CLOSED;
+        circuit.openings = 0;
+        circuit.retryAt = 0;
+    }
+
+    /**
+     * Exponential delay for the given opening, half of it random
+     */
+    private long retryDelay(int openings) {
+        long delay = MIN_RETRY_DELAY_MS << Math.min(openings - 1, 16);
+        delay = Math.min(delay, MAX_RETRY_DELAY_MS);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private void notifyRetryDue(final String endpoint, long delayMs) {
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                listener.onRetryDue(endpoint);
+            }
+        }, delayMs);
+    }
+
+    /**
+     * Cancel pending retry notifications
+     */
+    public void stop() {
+        handler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Get a one-line summary of the circuits for logging
+     */
+    public synchronized String getStats() {
+        if (circuits.isEmpty()) {
+            return "no endpoints";
+        }
+        long now = SystemClock.uptimeMillis();
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<String, Circuit> entry : circuits.entrySet()) {
+            Circuit circuit = entry.getValue();
+            if (stats.length() > 0) {
+                stats.append("; ");
+            }
+            stats.append(entry.getKey())
+                    .append(": state=").append(stateName(circuit.state))
+                    .append(", failures=").append(circuit.consecutiveFailures)
+                    .append(", opened=").append(circuit.openedCount)
+                    .append(", probes=").append(circuit.probeCount)
+                    .append(", probesFailed=").append(circuit.probeFailedCount);
+            if (circuit.state == OPEN) {
+                stats.append(", nextProbe=").append(Math.max(0, circuit.retryAt - now) / 1000).append("s");
+            }
+            if (circuit.state != CLOSED && circuit.lastError != null) {
+                stats.append(", lastError=").append(circuit.lastError);
+            }
+        }
+        return stats.toString();
+    }
+
+    static String stateName(int state) {
+        switch (state) {
+            case OPEN:
+                return "open";
+            case HALF_OPEN:
+                return "half-open";
+            default:
+                return "closed";
+        }
+    }
+}
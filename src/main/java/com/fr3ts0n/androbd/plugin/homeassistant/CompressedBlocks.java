@@ -0,0 +1,618 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compressed history of numeric samples, stored as one row per key and block
+ * of up to {@link #MAX_SAMPLES} samples in {@link GorillaCodec} format.
+ *
+ * Numeric samples are fed to an open block per key as they are inserted. When a block is
+ * sealed, the helper replaces the raw rows it covers with the block row. A sample in a
+ * block counts as sent if its timestamp is at or below the block's acked_to column.
+ * Samples read from blocks have no record id (0).
+ */
+class CompressedBlocks {
+    static final String TABLE_BLOCKS = "data_blocks";
+
+    static final String CREATE_TABLE_BLOCKS =
+            "CREATE TABLE " + TABLE_BLOCKS + " (" +
+            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "key_id INTEGER NOT NULL, " +
+            "start_ts INTEGER NOT NULL, " +
+            "end_ts INTEGER NOT NULL, " +
+            "sample_count INTEGER NOT NULL, " +
+            "unsent_count INTEGER NOT NULL, " +
+            "acked_to INTEGER NOT NULL, " +
+            "data BLOB NOT NULL)";
+
+    // Per-key acknowledgement and latest-unsent lookups only visit blocks with unsent samples
+    static final String CREATE_INDEX_KEY_UNSENT =
+            "CREATE INDEX idx_blocks_key_unsent ON " + TABLE_BLOCKS + "(key_id, unsent_count, end_ts)";
+    // Time range reads and retention
+    static final String CREATE_INDEX_END =
+            "CREATE INDEX idx_blocks_end ON " + TABLE_BLOCKS + "(end_ts)";
+
+    // A block is sealed after this many samples or once it spans this much time
+    static final int MAX_SAMPLES = 1024;
+    static final long MAX_SPAN_MS = 10 * 60 * 1000;
+
+    // Blocks fetched per query when streaming
+    private static final int STREAM_PAGE_SIZE = 50;
+
+    private static final String BLOCK_COLUMNS = "id, key_id, sample_count, acked_to, data";
+
+    /**
+     * A block being filled, or sealed and waiting to be stored
+     */
+    static final class Block {
+        final int keyId;
+        final GorillaCodec.Encoder encoder = new GorillaCodec.Encoder();
+        long firstId;
+        long lastId;
+
+        Block(int keyId) {
+            this.keyId = keyId;
+        }
+    }
+
+    private final KeyDictionary keyDictionary;
+    private final BacklogCounters counters;
+
+    // Open blocks by key id; only used by the inserting thread
+    private final SparseArray<Block> openBlocks = new SparseArray<>();
+
+    private final AtomicLong recordCount = new AtomicLong();
+    private final AtomicLong unsentCount = new AtomicLong();
+
+    CompressedBlocks(KeyDictionary keyDictionary, BacklogCounters counters) {
+        this.keyDictionary = keyDictionary;
+        this.counters = counters;
+    }
+
+    /**
+     * Load the stored sample counters
+     */
+    void load(SQLiteDatabase db) {
+        recordCount.set(DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(SUM(sample_count), 0) FROM " + TABLE_BLOCKS, null));
+        unsentCount.set(DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(SUM(unsent_count), 0) FROM " + TABLE_BLOCKS, null));
+    }
+
+    /**
+     * Add the stored samples per key to the backlog counters after a reset.
+     * Samples up to acked_to are sent, so the oldest unsent one is bounded by the later of
+     * start_ts and acked_to + 1.
+     */
+    void reconcile(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT key_id, SUM(sample_count), SUM(unsent_count)," +
+                " MIN(CASE WHEN unsent_count > 0 THEN MAX(start_ts, acked_to + 1) END)" +
+                " FROM " + TABLE_BLOCKS + " GROUP BY key_id", null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                counters.added(cursor.getInt(0), cursor.getLong(1), cursor.getLong(2),
+                        cursor.isNull(3) ? Long.MAX_VALUE : cursor.getLong(3));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Add a numeric sample that was just inserted as a raw row
+     *
+     * @return the previous block of this key if it had to be sealed first, otherwise null
+     */
+    Block append(DataRecord record) {
+        int keyId = record.getKeyId();
+        long timestamp = record.getTimestamp();
+        Block sealed = null;
+
+        Block block = openBlocks.get(keyId);
+        if (block != null) {
+            GorillaCodec.Encoder encoder = block.encoder;
+            // Out-of-order samples start a new block so blocks stay sorted by time
+            if (encoder.getCount() >= MAX_SAMPLES ||
+                    timestamp - encoder.getStartTimestamp() >= MAX_SPAN_MS ||
+                    timestamp < encoder.getEndTimestamp()) {
+                sealed = block;
+                block = null;
+            }
+        }
+        if (block == null) {
+            block = new Block(keyId);
+            block.firstId = record.getId();
+            openBlocks.put(keyId, block);
+        }
+
+        block.encoder.append(timestamp, record.getNumericValue());
+        block.lastId = record.getId();
+        return sealed;
+    }
+
+    /**
+     * Remove and return all open blocks, e.g. before the database is closed
+     */
+    List<Block> sealAll() {
+        List<Block> blocks = new ArrayList<>(openBlocks.size());
+        for (int i = 0; i < openBlocks.size(); i++) {
+            blocks.add(openBlocks.valueAt(i));
+        }
+        openBlocks.clear();
+        return blocks;
+    }
+
+    /**
+     * Whether any block is being filled
+     */
+    boolean hasOpenBlocks() {
+        return openBlocks.size() > 0;
+    }
+
+    /**
+     * Forget open blocks whose raw rows were rolled back
+     */
+    void discardOpenBlocks() {
+        openBlocks.clear();
+    }
+
+    /**
+     * Forget open blocks that started before the given timestamp, because some of their
+     * raw rows were removed. The remaining rows stay raw.
+     */
+    void discardOpenBlocksBefore(long timestamp) {
+        for (int i = openBlocks.size() - 1; i >= 0; i--) {
+            if (openBlocks.valueAt(i).encoder.getStartTimestamp() < timestamp) {
+                openBlocks.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Forget the open block of a key, because some of its raw rows were removed
+     */
+    void discardOpenBlock(int keyId) {
+        openBlocks.remove(keyId);
+    }
+
+    /**
+     * Store a sealed block
+     *
+     * @param ackedTo highest acknowledged timestamp among the raw rows the block replaces
+     */
+    void insert(SQLiteDatabase db, Block block, long ackedTo) {
+        GorillaCodec.Encoder encoder = block.encoder;
+        byte[] data = encoder.toByteArray();
+        int unsent = countAfter(data, encoder.getCount(), ackedTo);
+
+        db.execSQL("INSERT INTO " + TABLE_BLOCKS +
+                " (key_id, start_ts, end_ts, sample_count, unsent_count, acked_to, data)" +
+                " VALUES (?, ?, ?, ?, ?, ?, ?)",
+                new Object[]{block.keyId, encoder.getStartTimestamp(), encoder.getEndTimestamp(),
+                        encoder.getCount(), unsent, ackedTo, data});
+
+        recordCount.addAndGet(encoder.getCount());
+        unsentCount.addAndGet(unsent);
+        counters.added(block.keyId, encoder.getCount(), unsent, firstAfter(data, encoder.getCount(), ackedTo));
+    }
+
+    /**
+     * Mark the samples of a key up to and including the timestamp as sent
+     *
+     * @return number of samples acknowledged
+     */
+    int acknowledge(SQLiteDatabase db, int keyId, long timestamp) {
+        if (unsentCount.get() <= 0) {
+            return 0;
+        }
+
+        List<long[]> updates = new ArrayList<>();
+        Cursor cursor = db.rawQuery(
+                "SELECT id, end_ts, sample_count, unsent_count, acked_to, data FROM " + TABLE_BLOCKS +
+                " WHERE key_id = ? AND unsent_count > 0 AND start_ts <= ? AND acked_to < ?",
+                new String[]{String.valueOf(keyId), String.valueOf(timestamp), String.valueOf(timestamp)});
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                int unsent = cursor.getInt(3);
+                int remaining = cursor.getLong(1) <= timestamp ? 0 :
+                        countAfter(cursor.getBlob(5), cursor.getInt(2), timestamp);
+                updates.add(new long[]{cursor.getLong(0), unsent - remaining, remaining});
+            }
+        } finally {
+            cursor.close();
+        }
+
+        int acknowledged = 0;
+        for (long[] update : updates) {
+            db.execSQL("UPDATE " + TABLE_BLOCKS + " SET unsent_count = ?, acked_to = ? WHERE id = ?",
+                    new Object[]{update[2], timestamp, update[0]});
+            acknowledged += (int) update[1];
+        }
+        unsentCount.addAndGet(-acknowledged);
+        return acknowledged;
+    }
+
+    /**
+     * Replace or add the newest unsent sample per key where a block holds a newer one than
+     * the raw rows (e.g. after the open blocks were sealed on close)
+     */
+    void mergeLatestUnsent(SQLiteDatabase db, List<DataRecord> records) {
+        if (unsentCount.get() <= 0) {
+            return;
+        }
+
+        SparseArray<DataRecord> byKey = new SparseArray<>();
+        for (DataRecord record : records) {
+            byKey.put(record.getKeyId(), record);
+        }
+
+        Cursor cursor = db.rawQuery(
+                "SELECT key_id, MAX(end_ts) FROM " + TABLE_BLOCKS + " WHERE unsent_count > 0 GROUP BY key_id",
+                null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                int keyId = cursor.getInt(0);
+                long endTimestamp = cursor.getLong(1);
+                DataRecord raw = byKey.get(keyId);
+                if (raw != null && raw.getTimestamp() >= endTimestamp) {
+                    continue;
+                }
+                DataRecord latest = readLastSample(db, keyId, endTimestamp);
+                if (latest == null) {
+                    continue;
+                }
+                if (raw != null) {
+                    raw.copyFrom(latest);
+                } else {
+                    records.add(latest);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private DataRecord readLastSample(SQLiteDatabase db, int keyId, long endTimestamp) {
+        Cursor cursor = db.rawQuery(
+                "SELECT sample_count, data FROM " + TABLE_BLOCKS +
+                " WHERE key_id = ? AND unsent_count > 0 AND end_ts = ? LIMIT 1",
+                new String[]{String.valueOf(keyId), String.valueOf(endTimestamp)});
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(cursor.getBlob(1), cursor.getInt(0));
+            DataRecord record = new DataRecord();
+            while (decoder.next()) {
+                // Decode through to the last sample
+            }
+            record.setKeyId(keyId);
+            record.setKey(keyDictionary.getName(keyId));
+            record.setNumericValue(decoder.getValue());
+            record.setTimestamp(decoder.getTimestamp());
+            return record;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Stream the unsent samples of all blocks, block by block
+     *
+     * @return number of samples visited, or -(visited + 1) if the visitor asked to stop
+     */
+    long forEachUnsent(SQLiteDatabase db, SampleStore.RecordVisitor visitor) {
+        if (unsentCount.get() <= 0) {
+            return 0;
+        }
+        return stream(db, "unsent_count > 0", new String[0], Long.MIN_VALUE, Long.MAX_VALUE, true, visitor);
+    }
+
+    /**
+     * Stream the samples of all blocks within a time range, block by block
+     *
+     * @return number of samples visited, or -(visited + 1) if the visitor asked to stop
+     */
+    long forEachInTimeRange(SQLiteDatabase db, long startTime, long endTime, SampleStore.RecordVisitor visitor) {
+        if (recordCount.get() <= 0) {
+            return 0;
+        }
+        return stream(db, "end_ts >= ? AND start_ts <= ?",
+                new String[]{String.valueOf(startTime), String.valueOf(endTime)},
+                startTime, endTime, false, visitor);
+    }
+
+    /**
+     * Walk matching blocks in id-ordered pages and decode each one sample at a time
+     */
+    private long stream(SQLiteDatabase db, String selection, String[] selectionArgs,
+                        long startTime, long endTime, boolean unsentOnly,
+                        SampleStore.RecordVisitor visitor) {
+        String sql = "SELECT " + BLOCK_COLUMNS + " FROM " + TABLE_BLOCKS +
+                " WHERE id > ? AND (" + selection + ") ORDER BY id LIMIT " + STREAM_PAGE_SIZE;
+        String[] pagedArgs = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, pagedArgs, 1, selectionArgs.length);
+        DataRecord holder = new DataRecord();
+
+        long lastId = 0;
+        long visited = 0;
+
+        while (true) {
+            pagedArgs[0] = String.valueOf(lastId);
+            Cursor cursor = db.rawQuery(sql, pagedArgs);
+            if (cursor == null) {
+                return visited;
+            }
+
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    lastId = cursor.getLong(0);
+                    rows++;
+                    int keyId = cursor.getInt(1);
+                    long ackedTo = cursor.getLong(3);
+                    String key = keyDictionary.getName(keyId);
+                    GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(cursor.getBlob(4), cursor.getInt(2));
+
+                    while (decoder.next()) {
+                        long timestamp = decoder.getTimestamp();
+                        boolean sent = timestamp <= ackedTo;
+                        if ((unsentOnly && sent) || timestamp < startTime || timestamp > endTime) {
+                            continue;
+                        }
+                        holder.setId(0);
+                        holder.setKeyId(keyId);
+                        holder.setKey(key);
+                        holder.setNumericValue(decoder.getValue());
+                        holder.setTimestamp(timestamp);
+                        holder.setSent(sent);
+                        visited++;
+                        if (!visitor.visit(holder)) {
+                            return -visited - 1;
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (rows < STREAM_PAGE_SIZE) {
+                return visited;
+            }
+        }
+    }
+
+    /**
+     * Delete fully acknowledged blocks that ended before the given timestamp
+     *
+     * @return number of blocks deleted
+     */
+    int deleteExpired(SQLiteDatabase db, long olderThan) {
+        return (int) delete(db, "unsent_count = 0 AND end_ts < ?", new String[]{String.valueOf(olderThan)})[0];
+    }
+
+    /**
+     * Delete all blocks that started before the given timestamp, including unsent samples
+     *
+     * @return number of samples deleted
+     */
+    long deleteStartedBefore(SQLiteDatabase db, long timestamp) {
+        return delete(db, "start_ts < ?", new String[]{String.valueOf(timestamp)})[1];
+    }
+
+    /**
+     * Delete the oldest block of a key, including unsent samples
+     *
+     * @return number of samples deleted, 0 if the key has no blocks
+     */
+    long deleteOldestOfKey(SQLiteDatabase db, int keyId) {
+        return delete(db, "id = (SELECT id FROM " + TABLE_BLOCKS + " WHERE key_id = ? ORDER BY start_ts LIMIT 1)",
+                new String[]{String.valueOf(keyId)})[1];
+    }
+
+    /**
+     * Delete matching blocks and update the counters
+     *
+     * @return number of blocks and number of samples deleted
+     */
+    private long[] delete(SQLiteDatabase db, String where, String[] args) {
+        db.beginTransactionNonExclusive();
+        try {
+            long samples = 0;
+            long unsent = 0;
+            List<long[]> byKey = new ArrayList<>();
+            Cursor cursor = db.rawQuery("SELECT key_id, SUM(sample_count), SUM(unsent_count) FROM " +
+                    TABLE_BLOCKS + " WHERE " + where + " GROUP BY key_id", args);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    byKey.add(new long[]{cursor.getInt(0), cursor.getLong(1), cursor.getLong(2)});
+                    samples += cursor.getLong(1);
+                    unsent += cursor.getLong(2);
+                }
+                cursor.close();
+            }
+            int deleted = db.delete(TABLE_BLOCKS, where, args);
+            db.setTransactionSuccessful();
+            recordCount.addAndGet(-samples);
+            unsentCount.addAndGet(-unsent);
+            for (long[] key : byKey) {
+                counters.removed((int) key[0], key[1], key[2], Long.MIN_VALUE);
+            }
+            return new long[]{deleted, samples};
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Thin the blocks starting within a time window to the last sample per key and interval
+     *
+     * @return number of samples removed
+     */
+    long downsample(SQLiteDatabase db, long windowStart, long windowEnd, long intervalMs) {
+        if (recordCount.get() <= 0) {
+            return 0;
+        }
+
+        db.beginTransactionNonExclusive();
+        try {
+            long removed = 0;
+            long unsentRemoved = 0;
+            List<long[]> byBlock = new ArrayList<>();
+            Cursor cursor = db.rawQuery(
+                    "SELECT id, sample_count, unsent_count, acked_to, data, key_id FROM " + TABLE_BLOCKS +
+                    " WHERE start_ts >= ? AND start_ts < ?",
+                    new String[]{String.valueOf(windowStart), String.valueOf(windowEnd)});
+            if (cursor == null) {
+                return 0;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    int count = cursor.getInt(1);
+                    long ackedTo = cursor.getLong(3);
+                    GorillaCodec.Encoder thinned = thin(cursor.getBlob(4), count, intervalMs);
+                    if (thinned.getCount() == count) {
+                        continue;
+                    }
+                    byte[] data = thinned.toByteArray();
+                    int unsent = countAfter(data, thinned.getCount(), ackedTo);
+                    db.execSQL("UPDATE " + TABLE_BLOCKS + " SET start_ts = ?, end_ts = ?, sample_count = ?," +
+                            " unsent_count = ?, data = ? WHERE id = ?",
+                            new Object[]{thinned.getStartTimestamp(), thinned.getEndTimestamp(),
+                                    thinned.getCount(), unsent, data, cursor.getLong(0)});
+                    removed += count - thinned.getCount();
+                    unsentRemoved += cursor.getInt(2) - unsent;
+                    byBlock.add(new long[]{cursor.getInt(5), count - thinned.getCount(), cursor.getInt(2) - unsent});
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+            recordCount.addAndGet(-removed);
+            unsentCount.addAndGet(-unsentRemoved);
+            for (long[] block : byBlock) {
+                counters.removed((int) block[0], block[1], block[2], Long.MIN_VALUE);
+            }
+            return removed;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Re-encode a block keeping the last sample of each interval
+     */
+    private static GorillaCodec.Encoder thin(byte[] data, int count, long intervalMs) {
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(data, count);
+        GorillaCodec.Encoder encoder = new GorillaCodec.Encoder();
+        boolean pending = decoder.next();
+        while (pending) {
+            long timestamp = decoder.getTimestamp();
+            double value = decoder.getValue();
+            pending = decoder.next();
+            if (!pending || decoder.getTimestamp() / intervalMs != timestamp / intervalMs) {
+                encoder.append(timestamp, value);
+            }
+        }
+        return encoder;
+    }
+
+    /**
+     * Start of the oldest block, or Long.MAX_VALUE if there are none
+     */
+    long getOldestTimestamp(SQLiteDatabase db) {
+        return getOldestTimestamp(db, Long.MIN_VALUE);
+    }
+
+    /**
+     * Start of the oldest block starting at or after the given timestamp, or Long.MAX_VALUE if there is none
+     */
+    long getOldestTimestamp(SQLiteDatabase db, long notBefore) {
+        if (recordCount.get() <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(start_ts), " + Long.MAX_VALUE + ") FROM " +
+                TABLE_BLOCKS + " WHERE start_ts >= ?", new String[]{String.valueOf(notBefore)});
+    }
+
+    /**
+     * Start of the oldest block of a key, or Long.MAX_VALUE if it has none
+     */
+    long getOldestTimestampOfKey(SQLiteDatabase db, int keyId) {
+        if (recordCount.get() <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(start_ts), " + Long.MAX_VALUE + ") FROM " +
+                TABLE_BLOCKS + " WHERE key_id = ?", new String[]{String.valueOf(keyId)});
+    }
+
+    /**
+     * Delete all blocks, including the open ones
+     */
+    void clear(SQLiteDatabase db) {
+        openBlocks.clear();
+        db.delete(TABLE_BLOCKS, null, null);
+        recordCount.set(0);
+        unsentCount.set(0);
+    }
+
+    /**
+     * Samples stored in blocks
+     */
+    long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * Unsent samples stored in blocks
+     */
+    long getUnsentCount() {
+        return unsentCount.get();
+    }
+
+    /**
+     * Timestamp of the first sample of an encoded block after the given one, or Long.MAX_VALUE
+     */
+    private static long firstAfter(byte[] data, int count, long timestamp) {
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(data, count);
+        while (decoder.next()) {
+            if (decoder.getTimestamp() > timestamp) {
+                return decoder.getTimestamp();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Count the samples of an encoded block with a timestamp after the given one
+     */
+    private static int countAfter(byte[] data, int count, long timestamp) {
+        GorillaCodec.Decoder decoder = new GorillaCodec.Decoder(data, count);
+        int after = 0;
+        while (decoder.next()) {
+            if (decoder.getTimestamp() > timestamp) {
+                after++;
+            }
+        }
+        return after;
+    }
+}
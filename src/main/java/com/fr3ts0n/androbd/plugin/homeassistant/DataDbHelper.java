@@ -1,253 +1,1415 @@
 package com.fr3ts0n.androbd.plugin.homeassistant;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Database helper for storing OBD data records with timestamps and sent status
+ * 
+ * The database runs in write-ahead logging mode so the sender and status queries can read
+ * while the ingest writer commits. Hot write paths use precompiled statements, which are
+ * not thread safe themselves and are therefore used under their own lock.
+ * 
+ * Records are partitioned by timestamp into hourly segment tables (data_seg_&lt;hour&gt;).
+ * Readers walk the segments in time order, and retention drops a whole segment once all
+ * of its records are acknowledged instead of deleting rows one by one.
+ * 
+ * Numeric samples are additionally collected per key into compressed blocks
+ * (see {@link CompressedBlocks}). Once a block is sealed its raw rows are deleted,
+ * so long offline trips take a fraction of the space of one row per sample.
+ * 
+ * Numeric samples are also aggregated per key into rollups at a few resolutions
+ * (see {@link RollupTables}), so history can be read at minute granularity without
+ * decoding every sample.
+ * 
+ * Record counts are kept in memory (see {@link BacklogCounters}) and rebuilt when the
+ * database opens, so status checks never run COUNT queries.
  */
-public class DataDbHelper extends SQLiteOpenHelper {
+public class DataDbHelper extends SQLiteOpenHelper implements SampleStore {
     private static final String TAG = "DataDbHelper";
     
     private static final String DATABASE_NAME = "androbd_ha_data.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 7;
     
-    // Table name
-    private static final String TABLE_DATA = "data_records";
+    // Segment tables are named SEGMENT_PREFIX + (timestamp / SEGMENT_DURATION_MS)
+    private static final String SEGMENT_PREFIX = "data_seg_";
+    private static final long SEGMENT_DURATION_MS = 60 * 60 * 1000;
     
     // Column names
     private static final String COLUMN_ID = "id";
-    private static final String COLUMN_KEY = "key";
-    private static final String COLUMN_VALUE = "value";
+    private static final String COLUMN_KEY_ID = "key_id";
+    private static final String COLUMN_VALUE_NUM = "value_num";
+    private static final String COLUMN_VALUE_TEXT = "value_text";
     private static final String COLUMN_TIMESTAMP = "timestamp";
     private static final String COLUMN_SENT = "sent";
     
-    // Create table SQL
-    private static final String CREATE_TABLE = 
-            "CREATE TABLE " + TABLE_DATA + " (" +
-            COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-            COLUMN_KEY + " TEXT NOT NULL, " +
-            COLUMN_VALUE + " TEXT NOT NULL, " +
-            COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
-            COLUMN_SENT + " INTEGER DEFAULT 0)";
+    // Fixed projection so cursor columns can be read by position
+    private static final String RECORD_COLUMNS =
+            COLUMN_ID + ", " + COLUMN_KEY_ID + ", " + COLUMN_VALUE_NUM + ", " +
+            COLUMN_VALUE_TEXT + ", " + COLUMN_TIMESTAMP + ", " + COLUMN_SENT;
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_KEY_ID = 1;
+    private static final int INDEX_VALUE_NUM = 2;
+    private static final int INDEX_VALUE_TEXT = 3;
+    private static final int INDEX_TIMESTAMP = 4;
+    private static final int INDEX_SENT = 5;
     
-    // Create index on timestamp for efficient queries
-    private static final String CREATE_INDEX = 
-            "CREATE INDEX idx_timestamp ON " + TABLE_DATA + "(" + COLUMN_TIMESTAMP + ")";
+    // Rows copied per statement when migrating records to a new table layout
+    private static final int MIGRATION_CHUNK_SIZE = 5000;
     
-    // Create index on sent status for efficient queries
-    private static final String CREATE_INDEX_SENT = 
-            "CREATE INDEX idx_sent ON " + TABLE_DATA + "(" + COLUMN_SENT + ")";
+    // Rows fetched per query when streaming records
+    private static final int STREAM_PAGE_SIZE = 500;
+    
+    /**
+     * One hourly segment table and its in-memory bookkeeping.
+     * Ids are assigned by the helper and increase across segments, so each segment
+     * covers a contiguous id range in insertion order.
+     */
+    private static class Segment {
+        final long bucket;
+        final String table;
+        final AtomicLong unsentCount = new AtomicLong();
+        volatile long minId = Long.MAX_VALUE;
+        volatile long maxId = 0;
+        volatile boolean dropped = false;
+        
+        // Compiled lazily; used under insertLock and ackLock respectively
+        SQLiteStatement insertStatement;
+        SQLiteStatement ackIdRangeStatement;
+        SQLiteStatement ackUpToStatement;
+        
+        Segment(long bucket) {
+            this.bucket = bucket;
+            this.table = SEGMENT_PREFIX + bucket;
+        }
+        
+        long getStartTime() {
+            return bucket * SEGMENT_DURATION_MS;
+        }
+        
+        long getEndTime() {
+            return getStartTime() + SEGMENT_DURATION_MS;
+        }
+        
+        SQLiteStatement getInsertStatement(SQLiteDatabase db) {
+            if (insertStatement == null) {
+                insertStatement = db.compileStatement(
+                        "INSERT INTO " + table + " (" + COLUMN_ID + ", " + COLUMN_KEY_ID + ", " +
+                        COLUMN_VALUE_NUM + ", " + COLUMN_VALUE_TEXT + ", " + COLUMN_TIMESTAMP + ", " +
+                        COLUMN_SENT + ") VALUES (?, ?, ?, ?, ?, ?)");
+            }
+            return insertStatement;
+        }
+        
+        SQLiteStatement getAckIdRangeStatement(SQLiteDatabase db) {
+            if (ackIdRangeStatement == null) {
+                ackIdRangeStatement = db.compileStatement(
+                        "UPDATE " + table + " SET " + COLUMN_SENT + " = 1 WHERE " +
+                        COLUMN_ID + " BETWEEN ? AND ? AND " + COLUMN_SENT + " = 0");
+            }
+            return ackIdRangeStatement;
+        }
+        
+        SQLiteStatement getAckUpToStatement(SQLiteDatabase db) {
+            if (ackUpToStatement == null) {
+                ackUpToStatement = db.compileStatement(
+                        "UPDATE " + table + " SET " + COLUMN_SENT + " = 1 WHERE " + COLUMN_SENT + " = 0 AND " +
+                        COLUMN_KEY_ID + " = ? AND " + COLUMN_TIMESTAMP + " <= ?");
+            }
+            return ackUpToStatement;
+        }
+        
+        void closeStatements() {
+            if (insertStatement != null) {
+                insertStatement.close();
+                insertStatement = null;
+            }
+            if (ackIdRangeStatement != null) {
+                ackIdRangeStatement.close();
+                ackIdRangeStatement = null;
+            }
+            if (ackUpToStatement != null) {
+                ackUpToStatement.close();
+                ackUpToStatement = null;
+            }
+        }
+    }
+    
+    // Segments by bucket, oldest first; guarded by itself
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    
+    // Serialise use of the per-segment compiled statements
+    private final Object insertLock = new Object();
+    private final Object ackLock = new Object();
+    
+    private final AtomicLong nextId = new AtomicLong(1);
+    
+    // Time up to which records have been thinned by downsampleOldestSegment()
+    private volatile long downsampledUpTo = Long.MIN_VALUE;
+    
+    private final KeyDictionary keyDictionary = new KeyDictionary();
+    
+    private final BacklogCounters counters = new BacklogCounters();
+    
+    // Open blocks are used under insertLock
+    private final CompressedBlocks compressedBlocks = new CompressedBlocks(keyDictionary, counters);
+    
+    // Per-interval aggregates maintained while inserting
+    private final RollupTables rollups = new RollupTables(keyDictionary);
     
     public DataDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+    
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // Lets dropped segments give their pages back to the file system.
+        // Only takes effect for a database created with it; existing files keep their mode.
+        db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+    }
+    
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // setWriteAheadLoggingEnabled() is not available before API 16
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+        keyDictionary.load(db);
+        loadSegments(db);
+        compressedBlocks.load(db);
+        reconcileCounters(db);
+    }
+    
+    @Override
+    public synchronized void close() {
+        synchronized (insertLock) {
+            sealOpenBlocks();
+            synchronized (ackLock) {
+                closeStatements();
+            }
+        }
+        super.close();
+    }
+    
+    /**
+     * Open the database for writing
+     */
+    private SQLiteDatabase openForWrite() {
+        return getWritableDatabase();
+    }
+    
+    /**
+     * Release compiled statements before the database is closed
+     */
+    private void closeStatements() {
+        for (Segment segment : snapshotSegments()) {
+            segment.closeStatements();
+        }
+        rollups.closeStatements();
     }
     
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(CREATE_TABLE);
-        db.execSQL(CREATE_INDEX);
-        db.execSQL(CREATE_INDEX_SENT);
+        db.execSQL(KeyDictionary.CREATE_TABLE_KEYS);
+        db.execSQL(CompressedBlocks.CREATE_TABLE_BLOCKS);
+        db.execSQL(CompressedBlocks.CREATE_INDEX_KEY_UNSENT);
+        db.execSQL(CompressedBlocks.CREATE_INDEX_END);
+        db.execSQL(RollupTables.CREATE_TABLE_ROLLUPS);
+        db.execSQL(RollupTables.CREATE_INDEX_START);
         Log.d(TAG, "Database created");
     }
     
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // For now, just drop and recreate
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_DATA);
-        onCreate(db);
+        // Upgrade step by step so buffered records survive schema changes.
+        // Steps use literal SQL for the schema of their version, not the current constants.
+        if (oldVersion < 2) {
+            // Replace single-column indexes with one composite covering index
+            db.execSQL("DROP INDEX IF EXISTS idx_timestamp");
+            db.execSQL("DROP INDEX IF EXISTS idx_sent");
+            db.execSQL("CREATE INDEX idx_sent_key_timestamp ON data_records(sent, key, timestamp)");
+        }
+        if (oldVersion < 3) {
+            // Move key names into the key dictionary and store integer key ids in records
+            db.execSQL("CREATE TABLE data_keys (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL UNIQUE)");
+            db.execSQL("INSERT INTO data_keys (name) SELECT DISTINCT key FROM data_records");
+            db.execSQL("ALTER TABLE data_records RENAME TO data_records_v2");
+            db.execSQL("CREATE TABLE data_records (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "key_id INTEGER NOT NULL, value TEXT NOT NULL, timestamp INTEGER NOT NULL, " +
+                    "sent INTEGER DEFAULT 0)");
+            db.execSQL("INSERT INTO data_records (id, key_id, value, timestamp, sent) " +
+                    "SELECT r.id, k.id, r.value, r.timestamp, r.sent FROM data_records_v2 r " +
+                    "INNER JOIN data_keys k ON k.name = r.key");
+            db.execSQL("DROP TABLE data_records_v2");
+            db.execSQL("CREATE INDEX idx_sent_key_timestamp ON data_records(sent, key_id, timestamp)");
+        }
+        if (oldVersion < 4) {
+            upgradeToTypedValues(db);
+        }
+        if (oldVersion < 5) {
+            upgradeToSegments(db);
+        }
+        if (oldVersion < 6) {
+            // Compressed sample blocks; existing rows stay raw
+            db.execSQL("CREATE TABLE data_blocks (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "key_id INTEGER NOT NULL, start_ts INTEGER NOT NULL, end_ts INTEGER NOT NULL, " +
+                    "sample_count INTEGER NOT NULL, unsent_count INTEGER NOT NULL, " +
+                    "acked_to INTEGER NOT NULL, data BLOB NOT NULL)");
+            db.execSQL("CREATE INDEX idx_blocks_key_unsent ON data_blocks(key_id, unsent_count, end_ts)");
+            db.execSQL("CREATE INDEX idx_blocks_end ON data_blocks(end_ts)");
+        }
+        if (oldVersion < 7) {
+            // Rollups start with the records inserted after the upgrade
+            db.execSQL("CREATE TABLE data_rollups (resolution INTEGER NOT NULL, " +
+                    "key_id INTEGER NOT NULL, start_ts INTEGER NOT NULL, sample_count INTEGER NOT NULL, " +
+                    "min_value REAL NOT NULL, max_value REAL NOT NULL, sum_value REAL NOT NULL, " +
+                    "last_value REAL NOT NULL, last_ts INTEGER NOT NULL, " +
+                    "PRIMARY KEY (resolution, key_id, start_ts))");
+            db.execSQL("CREATE INDEX idx_rollups_start ON data_rollups(start_ts)");
+        }
         Log.d(TAG, "Database upgraded from version " + oldVersion + " to " + newVersion);
     }
     
     /**
-     * Insert a new data record
+     * Version 4: split the TEXT value column into value_num REAL and value_text TEXT.
+     * Rows are copied in id-range chunks; a value is stored as REAL only if
+     * {@link DataRecord#formatNumber(double)} gives back the identical text, the rule used
+     * at ingest, so no value changes in the migration.
      */
-    public long insertRecord(DataRecord record) {
-        SQLiteDatabase db = getWritableDatabase();
+    private void upgradeToTypedValues(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE data_records_v4 (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "key_id INTEGER NOT NULL, value_num REAL, value_text TEXT, " +
+                "timestamp INTEGER NOT NULL, sent INTEGER DEFAULT 0)");
         
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_KEY, record.getKey());
-        values.put(COLUMN_VALUE, record.getValue());
-        values.put(COLUMN_TIMESTAMP, record.getTimestamp());
-        values.put(COLUMN_SENT, record.isSent() ? 1 : 0);
+        long minId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN(id), 0) FROM data_records", null);
+        long maxId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(id), 0) FROM data_records", null);
         
-        long id = db.insert(TABLE_DATA, null, values);
-        record.setId(id);
+        SQLiteStatement insert = db.compileStatement(
+                "INSERT INTO data_records_v4 (id, key_id, value_num, value_text, timestamp, sent) " +
+                "VALUES (?, ?, ?, ?, ?, ?)");
+        // Parses each value the way ingest does
+        DataRecord parsed = new DataRecord();
+        long numeric = 0;
+        try {
+            for (long from = minId - 1; from < maxId; from += MIGRATION_CHUNK_SIZE) {
+                Cursor cursor = db.rawQuery("SELECT id, key_id, value, timestamp, sent FROM data_records " +
+                        "WHERE id > ? AND id <= ?",
+                        new String[]{Long.toString(from), Long.toString(from + MIGRATION_CHUNK_SIZE)});
+                if (cursor == null) {
+                    continue;
+                }
+                try {
+                    while (cursor.moveToNext()) {
+                        String value = cursor.getString(2);
+                        parsed.setValue(value);
+                        insert.bindLong(1, cursor.getLong(0));
+                        insert.bindLong(2, cursor.getLong(1));
+                        if (parsed.isNumeric()) {
+                            insert.bindDouble(3, parsed.getNumericValue());
+                            insert.bindNull(4);
+                            numeric++;
+                        } else {
+                            insert.bindNull(3);
+                            insert.bindString(4, value);
+                        }
+                        insert.bindLong(5, cursor.getLong(3));
+                        if (cursor.isNull(4)) {
+                            insert.bindNull(6);
+                        } else {
+                            insert.bindLong(6, cursor.getLong(4));
+                        }
+                        insert.executeInsert();
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        } finally {
+            insert.close();
+        }
         
-        return id;
+        db.execSQL("DROP TABLE data_records");
+        db.execSQL("ALTER TABLE data_records_v4 RENAME TO data_records");
+        db.execSQL("CREATE INDEX idx_sent_key_timestamp ON data_records(sent, key_id, timestamp)");
+        Log.d(TAG, "Migrated records " + minId + ".." + maxId + " to typed value columns (" +
+                numeric + " numeric)");
     }
     
     /**
-     * Get all unsent records
+     * Version 5: move records from the single data_records table into hourly segment tables.
+     * Ids are kept, so segments hold contiguous id ranges as new inserts expect.
      */
-    public List<DataRecord> getUnsentRecords() {
-        List<DataRecord> records = new ArrayList<>();
-        SQLiteDatabase db = getReadableDatabase();
-        
-        Cursor cursor = db.query(
-                TABLE_DATA,
-                null,
-                COLUMN_SENT + " = 0",
-                null,
-                null,
-                null,
-                COLUMN_TIMESTAMP + " ASC"
-        );
+    private void upgradeToSegments(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX idx_migration_timestamp ON data_records(timestamp)");
         
+        List<Long> buckets = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT DISTINCT timestamp / 3600000 FROM data_records ORDER BY 1", null);
         if (cursor != null) {
             while (cursor.moveToNext()) {
-                records.add(cursorToRecord(cursor));
+                buckets.add(cursor.getLong(0));
             }
             cursor.close();
         }
         
-        return records;
+        for (long bucket : buckets) {
+            String table = "data_seg_" + bucket;
+            db.execSQL("CREATE TABLE " + table + " (id INTEGER PRIMARY KEY, " +
+                    "key_id INTEGER NOT NULL, value_num REAL, value_text TEXT, " +
+                    "timestamp INTEGER NOT NULL, sent INTEGER DEFAULT 0)");
+            db.execSQL("INSERT INTO " + table + " (id, key_id, value_num, value_text, timestamp, sent) " +
+                    "SELECT id, key_id, value_num, value_text, timestamp, sent FROM data_records " +
+                    "WHERE timestamp >= ? AND timestamp < ?",
+                    new Object[]{bucket * 3600000, (bucket + 1) * 3600000});
+            db.execSQL("CREATE INDEX idx_" + table + " ON " + table + "(sent, key_id, timestamp)");
+        }
+        
+        db.execSQL("DROP TABLE data_records");
+        Log.d(TAG, "Migrated records into " + buckets.size() + " segment tables");
     }
     
     /**
-     * Get records within a time range
+     * Rebuild the segment registry and id counter from the segment tables in the database
      */
-    public List<DataRecord> getRecordsByTimeRange(long startTime, long endTime) {
-        List<DataRecord> records = new ArrayList<>();
-        SQLiteDatabase db = getReadableDatabase();
+    private void loadSegments(SQLiteDatabase db) {
+        List<String> tables = new ArrayList<>();
+        Cursor cursor = db.rawQuery(
+                "SELECT name FROM sqlite_master WHERE type = 'table' AND name LIKE ? ESCAPE '\\'",
+                new String[]{SEGMENT_PREFIX.replace("_", "\\_") + "%"});
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+            cursor.close();
+        }
         
-        Cursor cursor = db.query(
-                TABLE_DATA,
-                null,
-                COLUMN_TIMESTAMP + " >= ? AND " + COLUMN_TIMESTAMP + " <= ?",
-                new String[]{String.valueOf(startTime), String.valueOf(endTime)},
-                null,
-                null,
-                COLUMN_TIMESTAMP + " ASC"
-        );
+        TreeMap<Long, Segment> loaded = new TreeMap<>();
+        long maxId = 0;
+        for (String table : tables) {
+            long bucket;
+            try {
+                bucket = Long.parseLong(table.substring(SEGMENT_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            
+            Segment segment = new Segment(bucket);
+            // MIN/MAX on the primary key and the count on the index prefix are cheap lookups
+            segment.minId = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MIN(" + COLUMN_ID + "), " + Long.MAX_VALUE + ") FROM " + table, null);
+            segment.maxId = DatabaseUtils.longForQuery(db,
+                    "SELECT IFNULL(MAX(" + COLUMN_ID + "), 0) FROM " + table, null);
+            segment.unsentCount.set(DatabaseUtils.longForQuery(db,
+                    "SELECT COUNT(*) FROM " + table + " WHERE " + COLUMN_SENT + " = 0", null));
+            loaded.put(bucket, segment);
+            maxId = Math.max(maxId, segment.maxId);
+        }
         
+        synchronized (segments) {
+            for (Segment segment : segments.values()) {
+                segment.dropped = true;
+            }
+            segments.clear();
+            segments.putAll(loaded);
+        }
+        nextId.set(maxId + 1);
+    }
+    
+    /**
+     * Rebuild the in-memory record counters from the segment tables and compressed blocks.
+     * Uses the covering index of each segment, so no table rows are read.
+     */
+    private void reconcileCounters(SQLiteDatabase db) {
+        counters.reset();
+        for (Segment segment : snapshotSegments()) {
+            Cursor cursor = db.rawQuery("SELECT " + COLUMN_KEY_ID + ", COUNT(*), SUM(" + COLUMN_SENT + " = 0), " +
+                    "MIN(CASE WHEN " + COLUMN_SENT + " = 0 THEN " + COLUMN_TIMESTAMP + " END) FROM " +
+                    segment.table + " GROUP BY " + COLUMN_KEY_ID, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    counters.added(cursor.getInt(0), cursor.getLong(1), cursor.getLong(2),
+                            cursor.isNull(3) ? Long.MAX_VALUE : cursor.getLong(3));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        compressedBlocks.reconcile(db);
+    }
+    
+    /**
+     * Count the records of a segment table per key before rows are removed
+     *
+     * @return key id, record count and unsent count per key
+     */
+    private List<long[]> countByKey(SQLiteDatabase db, String table, String where) {
+        List<long[]> counts = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_KEY_ID + ", COUNT(*), SUM(" + COLUMN_SENT + " = 0) FROM " +
+                table + (where != null ? " WHERE " + where : "") + " GROUP BY " + COLUMN_KEY_ID, null);
         if (cursor != null) {
             while (cursor.moveToNext()) {
-                records.add(cursorToRecord(cursor));
+                counts.add(new long[]{cursor.getInt(0), cursor.getLong(1), cursor.getLong(2)});
             }
             cursor.close();
         }
-        
-        return records;
+        return counts;
     }
     
     /**
-     * Mark a record as sent
+     * Copy of the current segments, oldest first
      */
-    public void markAsSent(long recordId) {
-        SQLiteDatabase db = getWritableDatabase();
+    private List<Segment> snapshotSegments() {
+        synchronized (segments) {
+            return new ArrayList<>(segments.values());
+        }
+    }
+    
+    /**
+     * Get the segment for a timestamp, creating its table on first use.
+     * Must be called under insertLock.
+     */
+    private Segment getOrCreateSegment(SQLiteDatabase db, long timestamp) {
+        long bucket = timestamp / SEGMENT_DURATION_MS;
+        synchronized (segments) {
+            Segment segment = segments.get(bucket);
+            if (segment != null) {
+                return segment;
+            }
+        }
         
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_SENT, 1);
+        Segment segment = new Segment(bucket);
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + segment.table + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_KEY_ID + " INTEGER NOT NULL, " +
+                COLUMN_VALUE_NUM + " REAL, " +
+                COLUMN_VALUE_TEXT + " TEXT, " +
+                COLUMN_TIMESTAMP + " INTEGER NOT NULL, " +
+                COLUMN_SENT + " INTEGER DEFAULT 0)");
+        // Covering index for unsent lookups, latest-per-key queries and per-key acknowledgement
+        db.execSQL("CREATE INDEX IF NOT EXISTS idx_" + segment.table + " ON " + segment.table + "(" +
+                COLUMN_SENT + ", " + COLUMN_KEY_ID + ", " + COLUMN_TIMESTAMP + ")");
         
-        db.update(TABLE_DATA, values, COLUMN_ID + " = ?", new String[]{String.valueOf(recordId)});
+        synchronized (segments) {
+            segments.put(bucket, segment);
+        }
+        return segment;
     }
     
     /**
-     * Mark multiple records as sent
+     * Get the dictionary id for a key, adding the key on first sight.
+     * Known keys are resolved from memory without database access or allocation.
      */
-    public void markAsSent(List<Long> recordIds) {
-        if (recordIds == null || recordIds.isEmpty()) {
+    @Override
+    public int getKeyId(String key) {
+        int id = keyDictionary.lookup(key);
+        if (id != KeyDictionary.NO_ID) {
+            return id;
+        }
+        return keyDictionary.getOrCreate(getWritableDatabase(), key);
+    }
+    
+    /**
+     * Get the key name for a dictionary id
+     */
+    @Override
+    public String getKeyName(int keyId) {
+        return keyDictionary.getName(keyId);
+    }
+    
+    /**
+     * Insert a new data record
+     * The record's key id must be set (see {@link #getKeyId(String)}).
+     */
+    public long insertRecord(DataRecord record) {
+        insertRecords(new DataRecord[]{record}, 1);
+        return record.getId();
+    }
+
+    /**
+     * Insert the first count records of the array in a single transaction
+     */
+    @Override
+    public void insertRecords(DataRecord[] records, int count) {
+        if (records == null || count <= 0) {
+            return;
+        }
+
+        SQLiteDatabase db = openForWrite();
+
+        synchronized (insertLock) {
+            // Non-exclusive so WAL readers are not blocked while the batch commits
+            db.beginTransactionNonExclusive();
+            boolean committed = false;
+            try {
+                Segment segment = null;
+                for (int i = 0; i < count; i++) {
+                    DataRecord record = records[i];
+                    // Batches are in arrival order and rarely cross an hour boundary
+                    if (segment == null || record.getTimestamp() < segment.getStartTime() ||
+                            record.getTimestamp() >= segment.getEndTime()) {
+                        segment = getOrCreateSegment(db, record.getTimestamp());
+                    }
+                    bindAndInsert(segment, db, record);
+                    if (record.isNumeric()) {
+                        rollups.append(db, record);
+                        CompressedBlocks.Block sealed = compressedBlocks.append(record);
+                        if (sealed != null) {
+                            archiveBlock(db, sealed);
+                        }
+                    }
+                }
+                rollups.flush(db);
+                db.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                db.endTransaction();
+                if (!committed) {
+                    // Bookkeeping, new segment tables, sealed blocks and rollups were rolled back with the batch
+                    compressedBlocks.discardOpenBlocks();
+                    rollups.discard();
+                    synchronized (ackLock) {
+                        closeStatements();
+                        loadSegments(db);
+                        compressedBlocks.load(db);
+                        reconcileCounters(db);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Insert all records of the list in a single transaction
+     */
+    public void insertRecords(List<DataRecord> records) {
+        if (records == null || records.isEmpty()) {
             return;
         }
+        insertRecords(records.toArray(new DataRecord[0]), records.size());
+    }
+    
+    /**
+     * Insert one record into a segment and store the new row id in the record
+     */
+    private long bindAndInsert(Segment segment, SQLiteDatabase db, DataRecord record) {
+        long id = nextId.getAndIncrement();
+        SQLiteStatement statement = segment.getInsertStatement(db);
+        
+        statement.bindLong(1, id);
+        statement.bindLong(2, record.getKeyId());
+        if (record.isNumeric()) {
+            statement.bindDouble(3, record.getNumericValue());
+            statement.bindNull(4);
+        } else {
+            statement.bindNull(3);
+            statement.bindString(4, record.getValue());
+        }
+        statement.bindLong(5, record.getTimestamp());
+        statement.bindLong(6, record.isSent() ? 1 : 0);
+        statement.executeInsert();
+        
+        if (id < segment.minId) {
+            segment.minId = id;
+        }
+        segment.maxId = id;
+        if (!record.isSent()) {
+            segment.unsentCount.incrementAndGet();
+        }
+        counters.inserted(record.getKeyId(), record.getTimestamp(), record.isSent());
+        record.setId(id);
+        return id;
+    }
+    
+    /**
+     * Replace the raw rows of a sealed block with the compressed block row.
+     * The block covers exactly the numeric rows of its key within its id range.
+     * Must be called under insertLock within a transaction.
+     */
+    private void archiveBlock(SQLiteDatabase db, CompressedBlocks.Block block) {
+        String where = COLUMN_KEY_ID + " = ? AND " + COLUMN_ID + " BETWEEN ? AND ? AND " +
+                COLUMN_VALUE_NUM + " IS NOT NULL";
+        String[] args = {String.valueOf(block.keyId), String.valueOf(block.firstId), String.valueOf(block.lastId)};
+        long ackedTo = 0;
         
-        SQLiteDatabase db = getWritableDatabase();
-        db.beginTransaction();
+        for (Segment segment : snapshotSegments()) {
+            if (segment.maxId < block.firstId || segment.minId > block.lastId) {
+                continue;
+            }
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) - IFNULL(SUM(" + COLUMN_SENT + "), 0), " +
+                    "IFNULL(MAX(CASE WHEN " + COLUMN_SENT + " = 1 THEN " + COLUMN_TIMESTAMP + " END), 0), COUNT(*)" +
+                    " FROM " + segment.table + " WHERE " + where, args);
+            if (cursor != null) {
+                if (cursor.moveToFirst()) {
+                    segment.unsentCount.addAndGet(-cursor.getLong(0));
+                    ackedTo = Math.max(ackedTo, cursor.getLong(1));
+                    counters.removed(block.keyId, cursor.getLong(2), cursor.getLong(0), Long.MIN_VALUE);
+                }
+                cursor.close();
+            }
+            db.delete(segment.table, where, args);
+        }
         
+        compressedBlocks.insert(db, block, ackedTo);
+    }
+    
+    /**
+     * Store all open blocks, so their samples are compressed before the database is closed.
+     * Must be called under insertLock.
+     */
+    private void sealOpenBlocks() {
+        if (!compressedBlocks.hasOpenBlocks()) {
+            return;
+        }
+        
+        SQLiteDatabase db = openForWrite();
+        db.beginTransactionNonExclusive();
+        boolean committed = false;
         try {
-            ContentValues values = new ContentValues();
-            values.put(COLUMN_SENT, 1);
-            
-            for (Long id : recordIds) {
-                db.update(TABLE_DATA, values, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+            for (CompressedBlocks.Block block : compressedBlocks.sealAll()) {
+                archiveBlock(db, block);
             }
-            
             db.setTransactionSuccessful();
+            committed = true;
+        } catch (SQLiteException e) {
+            // Samples stay as raw rows
+            Log.e(TAG, "Failed to seal open blocks", e);
         } finally {
             db.endTransaction();
+            if (!committed) {
+                synchronized (ackLock) {
+                    closeStatements();
+                    loadSegments(db);
+                    compressedBlocks.load(db);
+                    reconcileCounters(db);
+                }
+            }
         }
     }
     
     /**
-     * Delete old sent records (older than specified timestamp)
+     * Get the newest unsent record for each key.
+     * Cost depends on the number of keys with unsent data, not on the total row count;
+     * segments without unsent records are not queried at all.
      */
-    public int deleteOldSentRecords(long olderThan) {
-        SQLiteDatabase db = getWritableDatabase();
+    @Override
+    public List<DataRecord> getLatestUnsentRecords() {
+        List<DataRecord> records = new ArrayList<>();
+        Set<Integer> seenKeys = new HashSet<>();
+        SQLiteDatabase db = getReadableDatabase();
+        List<Segment> snapshot = snapshotSegments();
         
-        return db.delete(
-                TABLE_DATA,
-                COLUMN_SENT + " = 1 AND " + COLUMN_TIMESTAMP + " < ?",
-                new String[]{String.valueOf(olderThan)}
-        );
+        // Newest segment first, so the first row found for a key is its latest
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            Segment segment = snapshot.get(i);
+            if (segment.unsentCount.get() <= 0) {
+                continue;
+            }
+            
+            Cursor cursor = querySegment(db, segment, latestUnsentQuery(segment.table), null);
+            if (cursor == null) {
+                continue;
+            }
+            
+            try {
+                int lastKeyId = KeyDictionary.NO_ID;
+                while (cursor.moveToNext()) {
+                    // Rows are ordered by key, highest id first; skip samples sharing the same timestamp
+                    int keyId = cursor.getInt(INDEX_KEY_ID);
+                    if (keyId == lastKeyId) {
+                        continue;
+                    }
+                    lastKeyId = keyId;
+                    if (seenKeys.add(keyId)) {
+                        records.add(cursorToRecord(cursor));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        compressedBlocks.mergeLatestUnsent(db, records);
+        return records;
     }
     
     /**
-     * Get total record count
+     * Newest unsent row per key within one segment. The aggregate is answered from the
+     * covering index and CROSS JOIN keeps it as the outer loop, so each key costs one index probe.
      */
-    public long getRecordCount() {
+    private static String latestUnsentQuery(String table) {
+        return "SELECT d." + COLUMN_ID + ", d." + COLUMN_KEY_ID + ", d." + COLUMN_VALUE_NUM + ", d." +
+                COLUMN_VALUE_TEXT + ", d." + COLUMN_TIMESTAMP + ", d." + COLUMN_SENT +
+                " FROM (SELECT " + COLUMN_KEY_ID + ", MAX(" + COLUMN_TIMESTAMP + ") AS max_ts FROM " +
+                table + " WHERE " + COLUMN_SENT + " = 0 GROUP BY " + COLUMN_KEY_ID + ") latest" +
+                " CROSS JOIN " + table + " d" +
+                " WHERE d." + COLUMN_SENT + " = 0" +
+                " AND d." + COLUMN_KEY_ID + " = latest." + COLUMN_KEY_ID +
+                " AND d." + COLUMN_TIMESTAMP + " = latest.max_ts" +
+                " ORDER BY d." + COLUMN_KEY_ID + ", d." + COLUMN_ID + " DESC";
+    }
+    
+    /**
+     * Run a query against a segment that may be dropped concurrently
+     *
+     * @return the cursor, or null if the segment no longer exists
+     */
+    private Cursor querySegment(SQLiteDatabase db, Segment segment, String sql, String[] args) {
+        try {
+            return db.rawQuery(sql, args);
+        } catch (SQLiteException e) {
+            if (segment.dropped) {
+                return null;
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Stream all unsent records without loading them into memory:
+     * compressed samples first, then raw rows in id order
+     *
+     * @return number of records visited
+     */
+    @Override
+    public long forEachUnsentRecord(RecordVisitor visitor) {
+        long visited = compressedBlocks.forEachUnsent(getReadableDatabase(), visitor);
+        if (visited < 0) {
+            return -visited - 1;
+        }
+        for (Segment segment : snapshotSegments()) {
+            if (segment.unsentCount.get() <= 0) {
+                continue;
+            }
+            long count = streamSegment(segment, COLUMN_SENT + " = 0", new String[0], visitor);
+            if (count < 0) {
+                return visited - count - 1;
+            }
+            visited += count;
+        }
+        return visited;
+    }
+    
+    /**
+     * Stream all records within a time range without loading them into memory:
+     * compressed samples first, then raw rows in id order
+     *
+     * @return number of records visited
+     */
+    @Override
+    public long forEachRecordInTimeRange(long startTime, long endTime, RecordVisitor visitor) {
+        String selection = COLUMN_TIMESTAMP + " >= ? AND " + COLUMN_TIMESTAMP + " <= ?";
+        String[] selectionArgs = {String.valueOf(startTime), String.valueOf(endTime)};
+        
+        long visited = compressedBlocks.forEachInTimeRange(getReadableDatabase(), startTime, endTime, visitor);
+        if (visited < 0) {
+            return -visited - 1;
+        }
+        for (Segment segment : snapshotSegments()) {
+            if (segment.getEndTime() <= startTime || segment.getStartTime() > endTime) {
+                continue;
+            }
+            long count = streamSegment(segment, selection, selectionArgs, visitor);
+            if (count < 0) {
+                return visited - count - 1;
+            }
+            visited += count;
+        }
+        return visited;
+    }
+    
+    /**
+     * Walk matching records of one segment in id-ordered pages (keyset pagination).
+     * Each page is a short query continuing after the last id seen, so no cursor is held
+     * open between pages and memory stays constant regardless of the result size.
+     * A single record holder is reused for every row; visitors must copy what they keep.
+     *
+     * @return number of records visited, or -(visited + 1) if the visitor asked to stop
+     */
+    private long streamSegment(Segment segment, String selection, String[] selectionArgs,
+                               RecordVisitor visitor) {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_DATA, null);
+        DataRecord holder = new DataRecord();
+        String sql = "SELECT " + RECORD_COLUMNS + " FROM " + segment.table +
+                " WHERE " + COLUMN_ID + " > ? AND (" + selection + ")" +
+                " ORDER BY " + COLUMN_ID + " ASC LIMIT " + STREAM_PAGE_SIZE;
+        String[] pagedArgs = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, pagedArgs, 1, selectionArgs.length);
         
-        long count = 0;
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                count = cursor.getLong(0);
+        long lastId = 0;
+        long visited = 0;
+        
+        while (true) {
+            pagedArgs[0] = String.valueOf(lastId);
+            Cursor cursor = querySegment(db, segment, sql, pagedArgs);
+            
+            if (cursor == null) {
+                return visited;
             }
-            cursor.close();
+            
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    readRecord(cursor, holder);
+                    lastId = holder.getId();
+                    rows++;
+                    visited++;
+                    if (!visitor.visit(holder)) {
+                        return -visited - 1;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            
+            if (rows < STREAM_PAGE_SIZE) {
+                return visited;
+            }
+        }
+    }
+    
+    /**
+     * Stream rollups from the coarsest stored resolution that divides the requested one,
+     * combined into intervals of the requested resolution
+     */
+    @Override
+    public long forEachRollupInTimeRange(long startTime, long endTime, long resolutionMs, RollupVisitor visitor) {
+        RollupTables.Aggregator aggregator = new RollupTables.Aggregator(resolutionMs, visitor);
+        long source = rollups.getSourceResolution(resolutionMs);
+        if (source > 0) {
+            rollups.forEachInTimeRange(getReadableDatabase(), source, startTime, endTime, aggregator);
+        } else {
+            forEachRecordInTimeRange(startTime, endTime, aggregator);
         }
+        return aggregator.finish();
+    }
+    
+    @Override
+    public void setRollupResolutions(long[] resolutionsMs) {
+        rollups.setResolutions(resolutionsMs);
+    }
+    
+    /**
+     * Mark a record as sent
+     */
+    public void markAsSent(long recordId) {
+        markAsSent(Collections.singletonList(recordId));
+    }
+    
+    /**
+     * Mark multiple records as sent.
+     * Ids are sorted and collapsed into contiguous ranges, and each range is acknowledged with
+     * one UPDATE per segment it overlaps, so the cost depends on the number of ranges rather
+     * than on the number of records. Prefer {@link #markAsSentUpTo(int[], long[], int)} where
+     * per-key watermarks are known.
+     */
+    public void markAsSent(List<Long> recordIds) {
+        if (recordIds == null || recordIds.isEmpty()) {
+            return;
+        }
+        
+        long[] ids = new long[recordIds.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = recordIds.get(i);
+        }
+        Arrays.sort(ids);
         
-        return count;
+        SQLiteDatabase db = openForWrite();
+        
+        synchronized (ackLock) {
+            List<Segment> snapshot = snapshotSegments();
+            db.beginTransactionNonExclusive();
+            try {
+                int first = 0;
+                while (first < ids.length) {
+                    int last = first;
+                    while (last + 1 < ids.length && ids[last + 1] <= ids[last] + 1) {
+                        last++;
+                    }
+                    ackIdRange(db, snapshot, ids[first], ids[last]);
+                    first = last + 1;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
     }
     
     /**
-     * Get unsent record count
+     * Acknowledge the unsent records of an id range in every segment it overlaps.
+     * Must be called under ackLock.
      */
-    public long getUnsentRecordCount() {
-        SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.rawQuery(
-                "SELECT COUNT(*) FROM " + TABLE_DATA + " WHERE " + COLUMN_SENT + " = 0",
-                null
-        );
+    private void ackIdRange(SQLiteDatabase db, List<Segment> snapshot, long firstId, long lastId) {
+        for (Segment segment : snapshot) {
+            if (segment.dropped || segment.maxId < firstId || segment.minId > lastId ||
+                    segment.unsentCount.get() <= 0) {
+                continue;
+            }
+            // Per-key counts for the backlog counters, read from the covering index
+            List<long[]> counts = countByKey(db, segment.table, COLUMN_ID + " BETWEEN " + firstId +
+                    " AND " + lastId + " AND " + COLUMN_SENT + " = 0");
+            if (counts.isEmpty()) {
+                continue;
+            }
+            
+            SQLiteStatement statement = segment.getAckIdRangeStatement(db);
+            statement.bindLong(1, firstId);
+            statement.bindLong(2, lastId);
+            int changed = statement.executeUpdateDelete();
+            segment.unsentCount.addAndGet(-changed);
+            for (long[] count : counts) {
+                counters.acknowledged((int) count[0], count[2], Long.MIN_VALUE);
+            }
+        }
+    }
+    
+    /**
+     * Mark every unsent record of a key up to and including the given timestamp as sent.
+     * A successful send of the newest value supersedes all older unsent samples of that key.
+     *
+     * @return number of records acknowledged
+     */
+    @Override
+    public int markAsSentUpTo(int keyId, long timestamp) {
+        return markAsSentUpTo(new int[]{keyId}, new long[]{timestamp}, 1);
+    }
+    
+    /**
+     * Apply several per-key acknowledgements (see {@link #markAsSentUpTo(int, long)})
+     * in a single transaction
+     *
+     * @return total number of records acknowledged
+     */
+    @Override
+    public int markAsSentUpTo(int[] keyIds, long[] timestamps, int count) {
+        if (keyIds == null || timestamps == null || count <= 0) {
+            return 0;
+        }
         
-        long count = 0;
+        SQLiteDatabase db = openForWrite();
+        int acknowledged = 0;
+        
+        synchronized (ackLock) {
+            List<Segment> snapshot = snapshotSegments();
+            db.beginTransactionNonExclusive();
+            try {
+                for (int i = 0; i < count; i++) {
+                    acknowledged += ackUpTo(db, snapshot, keyIds[i], timestamps[i]);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        
+        return acknowledged;
+    }
+    
+    /**
+     * Execute the per-key acknowledgement in every segment that can hold matching rows
+     */
+    private int ackUpTo(SQLiteDatabase db, List<Segment> snapshot, int keyId, long timestamp) {
+        int acknowledged = 0;
+        for (Segment segment : snapshot) {
+            if (segment.getStartTime() > timestamp) {
+                break;
+            }
+            if (segment.dropped || segment.unsentCount.get() <= 0) {
+                continue;
+            }
+            SQLiteStatement statement = segment.getAckUpToStatement(db);
+            statement.bindLong(1, keyId);
+            statement.bindLong(2, timestamp);
+            int changed = statement.executeUpdateDelete();
+            segment.unsentCount.addAndGet(-changed);
+            acknowledged += changed;
+        }
+        acknowledged += compressedBlocks.acknowledge(db, keyId, timestamp);
+        counters.acknowledged(keyId, acknowledged, timestamp);
+        return acknowledged;
+    }
+    
+    /**
+     * Drop segments that ended before the given timestamp and whose records are all sent.
+     * Each segment is removed with a single DROP TABLE, independent of its row count;
+     * segments still holding unsent records are kept until they are acknowledged.
+     * Fully acknowledged compressed blocks that ended before the timestamp are deleted as well.
+     *
+     * @return number of segments dropped
+     */
+    @Override
+    public int dropExpiredSegments(long olderThan) {
+        SQLiteDatabase db = openForWrite();
+        int dropped = 0;
+        
+        for (Segment segment : snapshotSegments()) {
+            if (segment.getEndTime() > olderThan) {
+                break;
+            }
+            if (segment.unsentCount.get() > 0) {
+                continue;
+            }
+            dropSegment(db, segment);
+            dropped++;
+        }
+        
+        int deletedBlocks = compressedBlocks.deleteExpired(db, olderThan);
+        
+        // Rollups outlive their records, but not data still waiting to be sent
+        long oldestUnsent = counters.getOldestUnsentTimestamp();
+        int deletedRollups = rollups.deleteEndedBefore(db,
+                oldestUnsent > 0 ? Math.min(olderThan, oldestUnsent) : olderThan);
+        
+        if (dropped > 0 || deletedBlocks > 0 || deletedRollups > 0) {
+            releaseFreePages(db);
+        }
+        return dropped;
+    }
+    
+    /**
+     * Remove a segment from the registry and drop its table
+     */
+    private long dropSegment(SQLiteDatabase db, Segment segment) {
+        synchronized (insertLock) {
+            synchronized (ackLock) {
+                if (segment.dropped) {
+                    return 0;
+                }
+                List<long[]> byKey = countByKey(db, segment.table, null);
+                synchronized (segments) {
+                    segments.remove(segment.bucket);
+                }
+                segment.dropped = true;
+                segment.closeStatements();
+                db.execSQL("DROP TABLE IF EXISTS " + segment.table);
+                // Open blocks may cover rows of the dropped table; their remaining rows stay raw
+                compressedBlocks.discardOpenBlocksBefore(segment.getEndTime());
+                
+                long removed = 0;
+                for (long[] key : byKey) {
+                    counters.removed((int) key[0], key[1], key[2], segment.getEndTime());
+                    removed += key[1];
+                }
+                return removed;
+            }
+        }
+    }
+    
+    /**
+     * Drop the oldest hourly window (segment table and compressed blocks starting in it),
+     * including unsent records, if the window ended before the given timestamp
+     *
+     * @return number of records removed
+     */
+    @Override
+    public long evictOldestSegment(long endedBefore) {
+        SQLiteDatabase db = openForWrite();
+        List<Segment> snapshot = snapshotSegments();
+        Segment first = snapshot.isEmpty() ? null : snapshot.get(0);
+        
+        long oldest = compressedBlocks.getOldestTimestamp(db);
+        if (first != null) {
+            oldest = Math.min(oldest, first.getStartTime());
+        }
+        if (oldest == Long.MAX_VALUE) {
+            return 0;
+        }
+        long windowEnd = (oldest / SEGMENT_DURATION_MS + 1) * SEGMENT_DURATION_MS;
+        if (windowEnd > endedBefore) {
+            return 0;
+        }
+        
+        long removed = 0;
+        if (first != null && first.getEndTime() == windowEnd) {
+            removed += dropSegment(db, first);
+        }
+        removed += compressedBlocks.deleteStartedBefore(db, windowEnd);
+        releaseFreePages(db);
+        return removed;
+    }
+    
+    /**
+     * Thin the oldest hourly window not thinned yet to the last record per key and interval,
+     * in its segment table as well as in compressed blocks starting in it.
+     * The window of the newest segment is left alone, as it is still being written.
+     *
+     * @return number of records removed, or -1 if no window is left to thin
+     */
+    @Override
+    public long downsampleOldestSegment(long intervalMs) {
+        SQLiteDatabase db = openForWrite();
+        
+        while (true) {
+            List<Segment> snapshot = snapshotSegments();
+            long newestStart = snapshot.isEmpty() ? Long.MAX_VALUE : snapshot.get(snapshot.size() - 1).getStartTime();
+            
+            // Next window holding data at or after the watermark
+            Segment segment = null;
+            for (Segment candidate : snapshot) {
+                if (candidate.getEndTime() > downsampledUpTo) {
+                    segment = candidate;
+                    break;
+                }
+            }
+            long windowStart = compressedBlocks.getOldestTimestamp(db, downsampledUpTo);
+            if (segment != null) {
+                windowStart = Math.min(windowStart, segment.getStartTime());
+            }
+            windowStart = Math.max(windowStart, downsampledUpTo);
+            if (windowStart == Long.MAX_VALUE || windowStart >= newestStart) {
+                return -1;
+            }
+            windowStart = windowStart / SEGMENT_DURATION_MS * SEGMENT_DURATION_MS;
+            long windowEnd = windowStart + SEGMENT_DURATION_MS;
+            
+            long removed = 0;
+            if (segment != null && segment.getStartTime() == windowStart) {
+                removed += downsampleSegment(db, segment, intervalMs);
+            }
+            removed += compressedBlocks.downsample(db, windowStart, windowEnd, intervalMs);
+            downsampledUpTo = windowEnd;
+            
+            if (removed > 0) {
+                releaseFreePages(db);
+                return removed;
+            }
+        }
+    }
+    
+    /**
+     * Delete all but the newest record per key and interval from one segment table
+     *
+     * @return number of records removed
+     */
+    private long downsampleSegment(SQLiteDatabase db, Segment segment, long intervalMs) {
+        synchronized (insertLock) {
+            synchronized (ackLock) {
+                if (segment.dropped) {
+                    return 0;
+                }
+                compressedBlocks.discardOpenBlocksBefore(segment.getEndTime());
+                String thinned = COLUMN_ID + " NOT IN (SELECT MAX(" + COLUMN_ID + ") FROM " + segment.table +
+                        " GROUP BY " + COLUMN_KEY_ID + ", " + COLUMN_TIMESTAMP + " / " + intervalMs + ")";
+                
+                db.beginTransactionNonExclusive();
+                try {
+                    List<long[]> byKey = countByKey(db, segment.table, thinned);
+                    int removed = db.delete(segment.table, thinned, null);
+                    db.setTransactionSuccessful();
+                    
+                    for (long[] key : byKey) {
+                        counters.removed((int) key[0], key[1], key[2], Long.MIN_VALUE);
+                        segment.unsentCount.addAndGet(-key[2]);
+                    }
+                    return removed;
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Delete the oldest records of a key, raw rows and compressed blocks in time order.
+     * Blocks are removed whole, so up to one block more than requested may go.
+     *
+     * @return number of records removed
+     */
+    @Override
+    public long evictOldestRecordsOfKey(int keyId, long count) {
+        SQLiteDatabase db = openForWrite();
+        String[] keyArgs = {String.valueOf(keyId)};
+        long removed = 0;
+        
+        synchronized (insertLock) {
+            synchronized (ackLock) {
+                compressedBlocks.discardOpenBlock(keyId);
+                
+                for (Segment segment : snapshotSegments()) {
+                    if (removed >= count) {
+                        break;
+                    }
+                    // Blocks holding older samples of the key go first
+                    while (removed < count &&
+                            compressedBlocks.getOldestTimestampOfKey(db, keyId) < segment.getStartTime()) {
+                        removed += compressedBlocks.deleteOldestOfKey(db, keyId);
+                    }
+                    if (removed >= count || segment.dropped) {
+                        continue;
+                    }
+                    
+                    String oldestRows = "SELECT " + COLUMN_ID + ", " + COLUMN_SENT + " FROM " + segment.table +
+                            " WHERE " + COLUMN_KEY_ID + " = ? ORDER BY " + COLUMN_ID + " LIMIT " + (count - removed);
+                    long unsent = DatabaseUtils.longForQuery(db,
+                            "SELECT COUNT(*) FROM (" + oldestRows + ") WHERE " + COLUMN_SENT + " = 0", keyArgs);
+                    int deleted = db.delete(segment.table, COLUMN_ID + " IN (SELECT " + COLUMN_ID + " FROM (" +
+                            oldestRows + "))", keyArgs);
+                    segment.unsentCount.addAndGet(-unsent);
+                    counters.removed(keyId, deleted, unsent, Long.MIN_VALUE);
+                    removed += deleted;
+                }
+                
+                while (removed < count) {
+                    long deleted = compressedBlocks.deleteOldestOfKey(db, keyId);
+                    if (deleted == 0) {
+                        break;
+                    }
+                    removed += deleted;
+                }
+            }
+        }
+        
+        if (removed > 0) {
+            releaseFreePages(db);
+        }
+        return removed;
+    }
+    
+    /**
+     * Get the number of stored records per key (kept in memory)
+     */
+    @Override
+    public long[] getRecordCountsByKey() {
+        return counters.getTotalsByKey();
+    }
+    
+    /**
+     * Return free pages to the file system (only effective with incremental auto-vacuum)
+     */
+    private void releaseFreePages(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
         if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                count = cursor.getLong(0);
+            while (cursor.moveToNext()) {
+                // Pages are freed while the pragma is stepped
             }
             cursor.close();
         }
-        
-        return count;
+    }
+    
+    /**
+     * Get the number of segment tables
+     */
+    @Override
+    public int getSegmentCount() {
+        synchronized (segments) {
+            return segments.size();
+        }
+    }
+    
+    /**
+     * Get total record count (kept in memory)
+     */
+    @Override
+    public long getRecordCount() {
+        return counters.getTotal();
+    }
+    
+    /**
+     * Get unsent record count (kept in memory)
+     */
+    @Override
+    public long getUnsentRecordCount() {
+        return counters.getUnsent();
+    }
+    
+    /**
+     * Get the unsent record count of a key (kept in memory)
+     */
+    @Override
+    public long getUnsentRecordCount(int keyId) {
+        return counters.getUnsent(keyId);
+    }
+    
+    /**
+     * Get the timestamp of the oldest unsent record (kept in memory)
+     */
+    @Override
+    public long getOldestUnsentTimestamp() {
+        return counters.getOldestUnsentTimestamp();
+    }
+    
+    /**
+     * Get the size of the database in bytes (tables and indexes).
+     * Free pages are not counted: they are reused by new records, and databases created
+     * without incremental auto-vacuum never return them to the file system.
+     */
+    @Override
+    public long getStorageSizeBytes() {
+        SQLiteDatabase db = getReadableDatabase();
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        return (pageCount - freePages) * pageSize;
     }
     
     /**
      * Clear all records
      */
+    @Override
     public void clearAllRecords() {
-        SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_DATA, null, null);
+        SQLiteDatabase db = openForWrite();
+        for (Segment segment : snapshotSegments()) {
+            dropSegment(db, segment);
+        }
+        synchronized (insertLock) {
+            synchronized (ackLock) {
+                compressedBlocks.clear(db);
+                rollups.clear(db);
+                counters.reset();
+            }
+        }
+        releaseFreePages(db);
         Log.d(TAG, "All records cleared");
     }
     
     /**
      * Convert cursor to DataRecord object
+     * Cursor must use the RECORD_COLUMNS column order.
      */
     private DataRecord cursorToRecord(Cursor cursor) {
         DataRecord record = new DataRecord();
-        
-        record.setId(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_ID)));
-        record.setKey(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_KEY)));
-        record.setValue(cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_VALUE)));
-        record.setTimestamp(cursor.getLong(cursor.getColumnIndexOrThrow(COLUMN_TIMESTAMP)));
-        record.setSent(cursor.getInt(cursor.getColumnIndexOrThrow(COLUMN_SENT)) == 1);
-        
+        readRecord(cursor, record);
         return record;
     }
+    
+    /**
+     * Fill an existing DataRecord from the current cursor row
+     * Cursor must use the RECORD_COLUMNS column order.
+     */
+    private void readRecord(Cursor cursor, DataRecord record) {
+        record.setId(cursor.getLong(INDEX_ID));
+        int keyId = cursor.getInt(INDEX_KEY_ID);
+        record.setKeyId(keyId);
+        record.setKey(keyDictionary.getName(keyId));
+        if (cursor.isNull(INDEX_VALUE_NUM)) {
+            record.setValue(cursor.getString(INDEX_VALUE_TEXT));
+        } else {
+            record.setNumericValue(cursor.getDouble(INDEX_VALUE_NUM));
+        }
+        record.setTimestamp(cursor.getLong(INDEX_TIMESTAMP));
+        record.setSent(cursor.getInt(INDEX_SENT) == 1);
+    }
 }
@@ -1,12 +1,21 @@
 package com.fr3ts0n.androbd.plugin.homeassistant;
 
+import java.math.BigDecimal;
+
 /**
  * Represents a single OBD data record with timestamp and sent status
+ * 
+ * Values are kept as text as received from AndrOBD and, when the text is a plain number,
+ * also as a double. Records read back from the database may only carry the number,
+ * in which case the text form is produced on first access.
  */
 public class DataRecord {
     private long id;
+    private int keyId;
     private String key;
     private String value;
+    private boolean numeric;
+    private double numericValue;
     private long timestamp;
     private boolean sent;
     
@@ -15,8 +24,8 @@ public class DataRecord {
     
     public DataRecord(String key, String value, long timestamp) {
         this.key = key;
-        this.value = value;
         this.timestamp = timestamp;
+        setValue(value);
         this.sent = false;
     }
     
@@ -28,6 +37,14 @@ public class DataRecord {
         this.id = id;
     }
     
+    public int getKeyId() {
+        return keyId;
+    }
+    
+    public void setKeyId(int keyId) {
+        this.keyId = keyId;
+    }
+    
     public String getKey() {
         return key;
     }
@@ -37,11 +54,39 @@ public class DataRecord {
     }
     
     public String getValue() {
+        if (value == null && numeric) {
+            value = formatNumber(numericValue);
+        }
         return value;
     }
     
+    /**
+     * Set a text value; parsed as a number if it is one
+     */
     public void setValue(String value) {
         this.value = value;
+        this.numeric = false;
+        parseValue();
+    }
+    
+    /**
+     * Set a numeric value; the text form is derived on demand
+     */
+    public void setNumericValue(double numericValue) {
+        this.value = null;
+        this.numeric = true;
+        this.numericValue = numericValue;
+    }
+    
+    /**
+     * Whether the value is stored as a number
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+    
+    public double getNumericValue() {
+        return numericValue;
     }
     
     public long getTimestamp() {
@@ -60,12 +105,67 @@ public class DataRecord {
         this.sent = sent;
     }
     
+    /**
+     * Copy all fields of another record into this one
+     */
+    public void copyFrom(DataRecord other) {
+        this.id = other.id;
+        this.keyId = other.keyId;
+        this.key = other.key;
+        this.value = other.value;
+        this.numeric = other.numeric;
+        this.numericValue = other.numericValue;
+        this.timestamp = other.timestamp;
+        this.sent = other.sent;
+    }
+    
+    /**
+     * Parse the text value once so it can be stored as REAL.
+     * Only numbers whose text is given back unchanged by {@link #formatNumber(double)} qualify,
+     * so the stored value reads as AndrOBD reported it; anything else ("90.0", "1e5", states,
+     * units, NaN) stays text.
+     */
+    private void parseValue() {
+        String text = value;
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        char first = text.charAt(0);
+        if (!(first >= '0' && first <= '9') && first != '-' && first != '+' && first != '.') {
+            return;
+        }
+        try {
+            double parsed = Double.parseDouble(text);
+            if (!Double.isNaN(parsed) && !Double.isInfinite(parsed) && formatNumber(parsed).equals(text)) {
+                numeric = true;
+                numericValue = parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Not a number - keep as text only
+        }
+    }
+    
+    /**
+     * Format a stored number as a state string, without exponent or trailing ".0"
+     */
+    static String formatNumber(double number) {
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        String text = Double.toString(number);
+        if (text.indexOf('E') >= 0) {
+            text = BigDecimal.valueOf(number).stripTrailingZeros().toPlainString();
+        }
+        return text;
+    }
+    
     @Override
     public String toString() {
         return "DataRecord{" +
                 "id=" + id +
+                ", keyId=" + keyId +
                 ", key='" + key + '\'' +
-                ", value='" + value + '\'' +
+                ", value='" + getValue() + '\'' +
                 ", timestamp=" + timestamp +
                 ", sent=" + sent +
                 '}';
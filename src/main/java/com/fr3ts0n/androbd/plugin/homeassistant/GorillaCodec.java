@@ -0,0 +1,263 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.Arrays;
+
+/**
+ * Compressed encoding for a block of (timestamp, double) samples of one key,
+ * following the Gorilla time series format.
+ *
+ * Timestamps are stored as delta-of-delta in variable-width buckets, so samples at a steady
+ * rate cost a single bit. Values are XORed with the previous value and only the meaningful
+ * bits are stored, so an unchanged value costs one bit and slowly changing values a few.
+ *
+ * Bit layout after the first sample (64-bit timestamp, 64-bit value):
+ * <pre>
+ * delta-of-delta: '0' = 0 | '10' + 7 bits | '110' + 9 bits | '1110' + 12 bits | '1111' + 64 bits
+ * value:          '0' = same | '10' + bits in previous window | '11' + 5 bits leading zeros
+ *                 + 6 bits length + bits
+ * </pre>
+ */
+final class GorillaCodec {
+
+    private GorillaCodec() {
+    }
+
+    /**
+     * Appends samples to a growing block
+     */
+    static final class Encoder {
+        private final BitWriter out = new BitWriter();
+        private int count;
+        private long startTimestamp;
+        private long lastTimestamp;
+        private long lastDelta;
+        private long lastValueBits;
+        private int lastLeading = Integer.MAX_VALUE;
+        private int lastTrailing;
+
+        void append(long timestamp, double value) {
+            long valueBits = Double.doubleToRawLongBits(value);
+
+            if (count == 0) {
+                out.write(timestamp, 64);
+                out.write(valueBits, 64);
+                startTimestamp = timestamp;
+            } else {
+                long delta = timestamp - lastTimestamp;
+                writeDeltaOfDelta(delta - lastDelta);
+                writeValue(valueBits);
+                lastDelta = delta;
+            }
+
+            lastTimestamp = timestamp;
+            lastValueBits = valueBits;
+            count++;
+        }
+
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                out.write(0, 1);
+            } else if (dod >= -63 && dod <= 64) {
+                out.write(0x2, 2);
+                out.write(dod, 7);
+            } else if (dod >= -255 && dod <= 256) {
+                out.write(0x6, 3);
+                out.write(dod, 9);
+            } else if (dod >= -2047 && dod <= 2048) {
+                out.write(0xe, 4);
+                out.write(dod, 12);
+            } else {
+                out.write(0xf, 4);
+                out.write(dod, 64);
+            }
+        }
+
+        private void writeValue(long valueBits) {
+            long xor = valueBits ^ lastValueBits;
+            if (xor == 0) {
+                out.write(0, 1);
+                return;
+            }
+
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+
+            if (lastLeading != Integer.MAX_VALUE && leading >= lastLeading && trailing >= lastTrailing) {
+                // Meaningful bits fit in the previous window
+                out.write(0x2, 2);
+                out.write(xor >>> lastTrailing, 64 - lastLeading - lastTrailing);
+            } else {
+                int length = 64 - leading - trailing;
+                out.write(0x3, 2);
+                out.write(leading, 5);
+                // A length of 64 does not fit in 6 bits and is written as 0
+                out.write(length & 0x3f, 6);
+                out.write(xor >>> trailing, length);
+                lastLeading = leading;
+                lastTrailing = trailing;
+            }
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        long getStartTimestamp() {
+            return startTimestamp;
+        }
+
+        long getEndTimestamp() {
+            return lastTimestamp;
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Reads the samples of a block one at a time without materialising them
+     */
+    static final class Decoder {
+        private final BitReader in;
+        private final int count;
+        private int index;
+        private long timestamp;
+        private long delta;
+        private long valueBits;
+        private int leading;
+        private int trailing;
+
+        Decoder(byte[] data, int count) {
+            this.in = new BitReader(data);
+            this.count = count;
+        }
+
+        /**
+         * Advance to the next sample
+         *
+         * @return false when all samples have been read
+         */
+        boolean next() {
+            if (index >= count) {
+                return false;
+            }
+
+            if (index == 0) {
+                timestamp = in.read(64);
+                valueBits = in.read(64);
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+                readValue();
+            }
+            index++;
+            return true;
+        }
+
+        private long readDeltaOfDelta() {
+            if (in.read(1) == 0) {
+                return 0;
+            }
+            if (in.read(1) == 0) {
+                return signExtend(in.read(7), 7);
+            }
+            if (in.read(1) == 0) {
+                return signExtend(in.read(9), 9);
+            }
+            if (in.read(1) == 0) {
+                return signExtend(in.read(12), 12);
+            }
+            return in.read(64);
+        }
+
+        private void readValue() {
+            if (in.read(1) == 0) {
+                return;
+            }
+            if (in.read(1) == 1) {
+                leading = (int) in.read(5);
+                int length = (int) in.read(6);
+                if (length == 0) {
+                    length = 64;
+                }
+                trailing = 64 - leading - length;
+            }
+            long meaningful = in.read(64 - leading - trailing);
+            valueBits ^= meaningful << trailing;
+        }
+
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        double getValue() {
+            return Double.longBitsToDouble(valueBits);
+        }
+
+        /**
+         * Number of samples read so far
+         */
+        int getIndex() {
+            return index;
+        }
+    }
+
+    /**
+     * Interpret the low bits of a value as a two's complement number.
+     * Bucket ranges are asymmetric (e.g. -63..64), so the top positive value wraps and is
+     * mapped back here.
+     */
+    private static long signExtend(long value, int bits) {
+        long max = 1L << (bits - 1);
+        return value > max ? value - (1L << bits) : value;
+    }
+
+    private static final class BitWriter {
+        private byte[] bytes = new byte[64];
+        private int bitPosition;
+
+        /**
+         * Write the low count bits of value, most significant first
+         */
+        void write(long value, int count) {
+            ensureCapacity(bitPosition + count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    bytes[bitPosition >>> 3] |= (byte) (0x80 >>> (bitPosition & 7));
+                }
+                bitPosition++;
+            }
+        }
+
+        private void ensureCapacity(int bits) {
+            int needed = (bits + 7) >>> 3;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (bitPosition + 7) >>> 3);
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] bytes;
+        private int bitPosition;
+
+        BitReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        long read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (bytes[bitPosition >>> 3] >>> (7 - (bitPosition & 7))) & 1;
+                value = (value << 1) | bit;
+                bitPosition++;
+            }
+            return value;
+        }
+    }
+}
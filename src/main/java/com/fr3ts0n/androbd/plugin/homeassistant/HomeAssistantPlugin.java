@@ -10,8 +10,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiConfiguration;
@@ -22,45 +20,35 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.fr3ts0n.androbd.plugin.Plugin;
 import com.fr3ts0n.androbd.plugin.PluginInfo;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
-import okhttp3.Call;
-import okhttp3.Callback;
 import okhttp3.ConnectionPool;
 import okhttp3.Dns;
-import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.RequestBody;
-import okhttp3.Response;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.RequiresApi;
 
-import java.net.Socket;
 import java.util.Set;
-
-import javax.net.SocketFactory;
+import java.util.UUID;
 
 /**
  * Home Assistant plugin for AndrOBD
@@ -99,6 +87,31 @@ public class HomeAssistantPlugin extends Plugin
     public static final String PREF_HA_ENTITY_PREFIX = "ha_entity_prefix";
     public static final String PREF_HA_USE_MOBILE_DATA = "ha_use_mobile_data";
     public static final String PREF_HA_ENABLE_LOGGING = "ha_enable_logging";
+    public static final String PREF_HA_STORAGE_BACKEND = "ha_storage_backend";
+    public static final String PREF_HA_RETENTION_MAX_SIZE = "ha_retention_max_size";
+    public static final String PREF_HA_RETENTION_MAX_AGE = "ha_retention_max_age";
+    public static final String PREF_HA_RETENTION_MAX_PER_KEY = "ha_retention_max_per_key";
+    public static final String PREF_HA_RETENTION_POLICY = "ha_retention_policy";
+    public static final String PREF_HA_RETENTION_LOW_PRIORITY = "ha_retention_low_priority";
+    public static final String PREF_HA_ROLLUP_RESOLUTIONS = "ha_rollup_resolutions";
+    public static final String PREF_HA_UPLOAD_MODE = "ha_upload_mode";
+    public static final String PREF_HA_WEBHOOK_ID = "ha_webhook_id";
+    public static final String PREF_HA_TRANSPORT = "ha_transport";
+    public static final String PREF_HA_MQTT_BROKER = "ha_mqtt_broker";
+    public static final String PREF_HA_MQTT_USERNAME = "ha_mqtt_username";
+    public static final String PREF_HA_MQTT_PASSWORD = "ha_mqtt_password";
+    public static final String PREF_HA_MQTT_QOS = "ha_mqtt_qos";
+    public static final String PREF_HA_MQTT_DISCOVERY_PREFIX = "ha_mqtt_discovery_prefix";
+    public static final String PREF_HA_BACKFILL = "ha_backfill";
+    public static final String PREF_HA_MAX_IN_FLIGHT = "ha_max_in_flight";
+    public static final String PREF_HA_DISPATCH_ORDER = "ha_dispatch_order";
+    public static final String PREF_HA_SUPPRESS_UNCHANGED = "ha_suppress_unchanged";
+    public static final String PREF_HA_HEARTBEAT_INTERVAL = "ha_heartbeat_interval";
+    public static final String PREF_HA_CHANGE_TOLERANCE = "ha_change_tolerance";
+    public static final String PREF_HA_ADAPTIVE_INTERVAL = "ha_adaptive_interval";
+    public static final String PREF_HA_MIN_INTERVAL = "ha_min_interval";
+    public static final String PREF_HA_MAX_INTERVAL = "ha_max_interval";
+    public static final String MQTT_CLIENT_ID = "mqtt_client_id";
     public static final String ITEMS_SELECTED = "items_selected";
     public static final String ITEMS_KNOWN = "items_known";
 
@@ -109,17 +122,58 @@ public class HomeAssistantPlugin extends Plugin
     private HashSet<String> mSelectedItems = new HashSet<>();
     private WifiManager wifiManager;
     private ConnectivityManager connectivityManager;
+    private NetworkClientCache networkClients;
     private NotificationManager notificationManager;
     private LogManager logManager;
-    private DataDbHelper dbHelper;
+    private volatile SampleStore sampleStore;
+    private volatile IngestPipeline ingestPipeline;
+    private volatile AckQueue ackQueue;
+    // Held while a sample is queued and while the store is switched
+    private final Object storeLock = new Object();
+    private volatile Transport transport;
+    // Built from the preferences when they change, not on every send cycle
+    private volatile Transport.Endpoint endpoint;
+    private final RequestScheduler requestScheduler = new RequestScheduler();
+    private final LastValueCache lastValues = new LastValueCache();
+    private final AdaptiveInterval sendInterval = new AdaptiveInterval();
+    private CircuitBreaker circuitBreaker;
+    private RetentionEngine retentionEngine;
+    private BackfillEngine backfillEngine;
 
     // Data storage
     private final Map<String, String> dataCache = new HashMap<>();
+    // Description and units by key from the data list
+    private final Map<String, String[]> itemInfo = new ConcurrentHashMap<>();
     private static final int MSG_SEND_UPDATE = 1;
     private static final int MSG_CHECK_WIFI = 2;
     private static final int MSG_SWITCH_TO_HOME = 3;
     private static final int MSG_SWITCH_TO_OBD = 4;
     private static final int MSG_CLEANUP_OLD_DATA = 5;
+    
+    // Ingest pipeline sizing
+    private static final int INGEST_QUEUE_CAPACITY = 4096;
+    private static final int INGEST_BATCH_SIZE = 256;
+    private static final long INGEST_BATCH_DELAY_MS = 500;
+    
+    // Storage backends
+    private static final String STORAGE_SQLITE = "sqlite";
+    private static final String STORAGE_JOURNAL = "journal";
+    private static final String STORAGE_MEMORY = "memory";
+    
+    // Retention eviction policies
+    private static final String RETENTION_OLDEST_FIRST = "oldest_first";
+    private static final String RETENTION_DOWNSAMPLE = "downsample";
+    private static final String RETENTION_LOW_PRIORITY = "low_priority";
+    private static final long RETENTION_DOWNSAMPLE_INTERVAL_MS = 60 * 1000;
+    
+    // Transports: REST requests, one persistent WebSocket connection, or an MQTT broker
+    private static final String TRANSPORT_REST = "rest";
+    private static final String TRANSPORT_WEBSOCKET = "websocket";
+    private static final String TRANSPORT_MQTT = "mqtt";
+    
+    // Order of queued REST requests
+    private static final String DISPATCH_FIFO = "fifo";
+    private static final String DISPATCH_PRIORITY = "priority";
     private long updateInterval = 5000; // Default 5 seconds
     private long wifiCheckInterval = 30000; // Check WiFi every 30 seconds
     private long switchDelay = 5000; // Wait 5 seconds for stable connection after switch
@@ -165,9 +219,16 @@ public class HomeAssistantPlugin extends Plugin
         logManager.setLoggingEnabled(prefs.getBoolean(PREF_HA_ENABLE_LOGGING, false));
         logManager.logInfo("Plugin onCreate - initializing");
         
-        // Initialize database helper
-        dbHelper = new DataDbHelper(this);
-        logManager.logInfo("Database initialized");
+        // Retention runs on its own thread and is pointed at the store once it is open
+        retentionEngine = new RetentionEngine(logManager);
+        retentionEngine.start();
+        
+        // Backfill imports history into long-term statistics when enabled
+        backfillEngine = new BackfillEngine(clientProvider, logManager, prefs, itemInfo);
+        backfillEngine.start();
+        
+        // Initialize sample store and asynchronous ingest so data callbacks never wait on storage
+        openSampleStore();
         
         // Load all preferences (includes update interval, transmission mode, SSIDs, etc.)
         onSharedPreferenceChanged(prefs, null);
@@ -175,6 +236,7 @@ public class HomeAssistantPlugin extends Plugin
         // Initialize WiFi and connectivity managers
         wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        networkClients = new NetworkClientCache(connectivityManager, logManager);
 
         // Log warning if critical services are unavailable
         if (wifiManager == null) {
@@ -192,10 +254,24 @@ public class HomeAssistantPlugin extends Plugin
                 .retryOnConnectionFailure(true)        // Retry on connection failures
                 .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))  // Connection pooling
                 .dns(new DualStackDns())               // Better DNS resolution with IPv4/IPv6 fallback
+                .eventListener(networkClients)         // Count new and reused connections
                 .build();
+        networkClients.start(httpClient);
         
         logManager.logInfo("HTTP client initialized with extended timeouts");
         
+        // Outages hold REST requests back until a probe finds Home Assistant again
+        circuitBreaker = new CircuitBreaker(logManager, new CircuitBreaker.Listener() {
+            @Override
+            public void onRetryDue(String endpoint) {
+                // Probe or drain the backlog now instead of waiting for new data
+                handler.removeMessages(MSG_SEND_UPDATE);
+                handler.sendEmptyMessage(MSG_SEND_UPDATE);
+            }
+        });
+        
+        openTransport();
+        
         // Log Android version and system information for debugging
         logManager.logInfo("Android version: " + Build.VERSION.SDK_INT + 
             " (" + Build.VERSION.RELEASE + "), Device: " + Build.MANUFACTURER + " " + Build.MODEL);
@@ -211,7 +287,8 @@ public class HomeAssistantPlugin extends Plugin
         // Start WiFi monitoring if needed
         scheduleWifiCheck();
         
-        // Schedule periodic cleanup of old sent data
+        // Apply retention limits now and then periodically
+        retentionEngine.requestPass();
         scheduleDataCleanup();
         
         logManager.logInfo("Plugin initialization complete");
@@ -284,6 +361,13 @@ public class HomeAssistantPlugin extends Plugin
             notificationText = getString(R.string.notification_text_disconnected);
         }
 
+        // Backlog counters are kept in memory, so this is cheap on every notification update
+        SampleStore store = sampleStore;
+        long unsentCount = store != null ? store.getUnsentRecordCount() : 0;
+        if (unsentCount > 0) {
+            notificationText = getString(R.string.notification_text_backlog, notificationText, unsentCount);
+        }
+        
         Notification.Builder builder;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             builder = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID);
@@ -313,108 +397,13 @@ public class HomeAssistantPlugin extends Plugin
         }
     }
     
-    /**
-     * Get mobile network if available (Android 5.0+)
-     * Returns null on older Android versions or if mobile network is not available
-     */
-    private Network getMobileNetwork() {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            return null;
-        }
-        
-        if (connectivityManager == null) {
-            return null;
-        }
-        
-        try {
-            Network[] networks = connectivityManager.getAllNetworks();
-            for (Network network : networks) {
-                NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(network);
-                if (capabilities != null) {
-                    // Check if this is a cellular network with internet capability
-                    if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR) &&
-                        capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)) {
-                        logManager.logDebug("Found mobile network: " + network);
-                        return network;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            logManager.logError("Error detecting mobile network", e);
-        }
-        
-        return null;
-    }
-    
     /**
      * Get OkHttpClient configured for the current network settings
      * If useMobileData is enabled and mobile network is available, binds to mobile network
      */
     private OkHttpClient getConfiguredHttpClient() {
-        // If mobile data routing is disabled, use default client
-        if (!useMobileData) {
-            return httpClient;
-        }
-        
-        // Try to get mobile network
-        Network mobileNetwork = getMobileNetwork();
-        if (mobileNetwork == null) {
-            logManager.logDebug("Mobile data requested but not available, using default network");
-            return httpClient;
-        }
-        
-        // Build client with mobile network binding (Android 5.0+)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            try {
-                logManager.logInfo("Creating HTTP client bound to mobile network");
-                return httpClient.newBuilder()
-                        .socketFactory(new NetworkBoundSocketFactory(mobileNetwork))
-                        .build();
-            } catch (Exception e) {
-                logManager.logError("Failed to create network-bound client", e);
-                return httpClient;
-            }
-        }
-        
-        return httpClient;
-    }
-    
-    /**
-     * SocketFactory that binds sockets to a specific network
-     * Requires Android 5.0+ (API 21+)
-     */
-    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
-    private static class NetworkBoundSocketFactory extends SocketFactory {
-        private final Network network;
-        
-        NetworkBoundSocketFactory(Network network) {
-            this.network = network;
-        }
-        
-        @Override
-        public Socket createSocket() throws IOException {
-            return network.getSocketFactory().createSocket();
-        }
-        
-        @Override
-        public Socket createSocket(String host, int port) throws IOException {
-            return network.getSocketFactory().createSocket(host, port);
-        }
-        
-        @Override
-        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
-            return network.getSocketFactory().createSocket(host, port, localHost, localPort);
-        }
-        
-        @Override
-        public Socket createSocket(InetAddress host, int port) throws IOException {
-            return network.getSocketFactory().createSocket(host, port);
-        }
-        
-        @Override
-        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
-            return network.getSocketFactory().createSocket(address, port, localAddress, localPort);
-        }
+        // Bound clients are cached per mobile network so their connections are kept alive
+        return networkClients.getClient(useMobileData);
     }
 
     @Override
@@ -439,8 +428,39 @@ public class HomeAssistantPlugin extends Plugin
             prefs.unregisterOnSharedPreferenceChangeListener(this);
         }
         
-        if (dbHelper != null) {
-            dbHelper.close();
+        // Commit queued samples before closing the database
+        if (ingestPipeline != null) {
+            ingestPipeline.stop();
+        }
+        
+        // Unanswered records stay unsent in the store
+        if (transport != null) {
+            transport.close();
+        }
+        
+        // Apply acknowledgements still collected
+        if (ackQueue != null) {
+            ackQueue.stop();
+        }
+        
+        if (backfillEngine != null) {
+            backfillEngine.stop();
+        }
+        
+        if (networkClients != null) {
+            networkClients.stop();
+        }
+        
+        if (circuitBreaker != null) {
+            circuitBreaker.stop();
+        }
+        
+        if (retentionEngine != null) {
+            retentionEngine.stop();
+        }
+        
+        if (sampleStore != null) {
+            sampleStore.close();
         }
     }
 
@@ -471,12 +491,17 @@ public class HomeAssistantPlugin extends Plugin
         }
         
         if (shouldCache) {
-            // Store in database with timestamp
+            // Queue for batched storage with timestamp
             long timestamp = System.currentTimeMillis();
-            DataRecord record = new DataRecord(key, value, timestamp);
-            long recordId = dbHelper.insertRecord(record);
-            
-            logManager.logDebug("Data received: " + key + " = " + value + " (id=" + recordId + ", ts=" + timestamp + ")");
+            boolean queued;
+            synchronized (storeLock) {
+                queued = ingestPipeline.submit(key, value, timestamp);
+            }
+            if (!queued) {
+                logManager.logWarning("Ingest queue full - dropped " + key + " (ts=" + timestamp + ")");
+            } else {
+                logManager.logDebug("Data received: " + key + " = " + value + " (ts=" + timestamp + ")");
+            }
             
             // Also keep in cache for backwards compatibility
             synchronized (dataCache) {
@@ -486,7 +511,7 @@ public class HomeAssistantPlugin extends Plugin
             // Schedule update if not already scheduled
             if (handler != null) {
                 if (!handler.hasMessages(MSG_SEND_UPDATE)) {
-                    handler.sendEmptyMessageDelayed(MSG_SEND_UPDATE, updateInterval);
+                    handler.sendEmptyMessageDelayed(MSG_SEND_UPDATE, sendInterval.getInterval());
                 }
             }
         }
@@ -498,6 +523,9 @@ public class HomeAssistantPlugin extends Plugin
     @Override
     public boolean handleMessage(@NonNull Message msg) {
         if (msg.what == MSG_SEND_UPDATE) {
+            // Adjust the interval to the next cycle from how the link coped since the last one
+            boolean backlog = sampleStore.getUnsentRecordCount() > 0;
+            sendInterval.nextInterval(backlog, System.currentTimeMillis());
             sendDataToHomeAssistant();
             return true;
         } else if (msg.what == MSG_CHECK_WIFI) {
@@ -519,7 +547,182 @@ public class HomeAssistantPlugin extends Plugin
     }
     
     /**
-     * Schedule periodic cleanup of old sent data
+     * Open the sample store selected in settings and start the ingest pipeline writing to it
+     */
+    private void openSampleStore() {
+        String backend = prefs.getString(PREF_HA_STORAGE_BACKEND, STORAGE_SQLITE);
+        sampleStore = null;
+        if (STORAGE_MEMORY.equals(backend)) {
+            sampleStore = new MemoryStore();
+        } else if (STORAGE_JOURNAL.equals(backend)) {
+            try {
+                sampleStore = new JournalStore(this);
+            } catch (IOException e) {
+                logManager.logError("Cannot open journal store, falling back to SQLite", e);
+            }
+        }
+        if (sampleStore == null) {
+            backend = STORAGE_SQLITE;
+            sampleStore = new DataDbHelper(this);
+        }
+        logManager.logInfo("Sample store initialized: " + backend);
+        applyRollupSettings(prefs);
+        openStorageInBackground();
+        
+        ingestPipeline = new IngestPipeline(sampleStore, logManager,
+                INGEST_QUEUE_CAPACITY, INGEST_BATCH_SIZE, INGEST_BATCH_DELAY_MS);
+        ingestPipeline.start();
+        ackQueue = new AckQueue(sampleStore, logManager);
+        ackQueue.start();
+        retentionEngine.setSampleStore(sampleStore);
+        backfillEngine.setSampleStore(sampleStore);
+    }
+    
+    /**
+     * Switch to the storage backend selected in settings.
+     * Queued samples are committed to the old store first; records already buffered there
+     * stay in it and are sent once that backend is selected again. Key ids differ between
+     * stores, so records still in flight are acknowledged in the new store by key name.
+     */
+    private void switchSampleStore() {
+        synchronized (storeLock) {
+            ingestPipeline.stop();
+            ackQueue.stop();
+            retentionEngine.setSampleStore(null);
+            backfillEngine.setSampleStore(null);
+            sampleStore.close();
+            openSampleStore();
+        }
+    }
+    
+    /**
+     * Create the transport selected in settings, closing the previous one
+     */
+    private void openTransport() {
+        Transport previous = transport;
+        String selected = prefs.getString(PREF_HA_TRANSPORT, TRANSPORT_REST);
+        if (TRANSPORT_WEBSOCKET.equals(selected)) {
+            transport = new WebSocketTransport(clientProvider, logManager, deliveryListener);
+        } else if (TRANSPORT_MQTT.equals(selected)) {
+            MqttTransport mqtt = new MqttTransport(clientProvider, logManager, deliveryListener,
+                    prefs.getString(PREF_HA_MQTT_BROKER, ""),
+                    prefs.getString(PREF_HA_MQTT_USERNAME, ""),
+                    prefs.getString(PREF_HA_MQTT_PASSWORD, ""),
+                    (int) parseLongPreference(prefs, PREF_HA_MQTT_QOS, 1),
+                    prefs.getString(PREF_HA_MQTT_DISCOVERY_PREFIX, MqttTransport.DEFAULT_DISCOVERY_PREFIX),
+                    getMqttClientId());
+            for (Map.Entry<String, String[]> entry : itemInfo.entrySet()) {
+                mqtt.describe(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            transport = mqtt;
+        } else {
+            transport = new RestTransport(clientProvider, requestScheduler, circuitBreaker,
+                    logManager, deliveryListener,
+                    prefs.getString(PREF_HA_UPLOAD_MODE, RestTransport.UPLOAD_PER_ENTITY),
+                    prefs.getString(PREF_HA_WEBHOOK_ID, ""));
+        }
+        if (previous != null) {
+            previous.close();
+            // The new transport may reach other entities, e.g. MQTT instead of REST
+            lastValues.clear();
+            sendInterval.clearOutstanding();
+        }
+        logManager.logInfo("Transport initialized: " + transport.getName());
+    }
+    
+    /**
+     * Client id for the MQTT broker, created once per installation
+     */
+    private String getMqttClientId() {
+        String clientId = prefs.getString(MQTT_CLIENT_ID, "");
+        if (clientId.isEmpty()) {
+            // Brokers need only accept 23 characters
+            clientId = "androbd_" + UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+            prefs.edit().putString(MQTT_CLIENT_ID, clientId).apply();
+        }
+        return clientId;
+    }
+    
+    private final Transport.ClientProvider clientProvider = new Transport.ClientProvider() {
+        @Override
+        public OkHttpClient getClient() {
+            // Use configured HTTP client (may be bound to mobile network)
+            return getConfiguredHttpClient();
+        }
+    };
+    
+    private final Transport.Listener deliveryListener = new Transport.Listener() {
+        @Override
+        public void onDelivered(DataRecord record) {
+            // This record and every older unsent sample of the key are marked as sent
+            // with the next batch of acknowledgements; by name, as the record may come
+            // from the store used before a backend switch
+            ackQueue.acknowledge(record.getKey(), record.getTimestamp());
+            lastValues.onDelivered(record);
+            sendInterval.onDelivered(record);
+            logManager.logDebug("Delivered " + record.getKey() + " (id=" + record.getId() + 
+                ", ts=" + record.getTimestamp() + ")");
+        }
+        
+        @Override
+        public void onFailed(DataRecord record, String error) {
+            // Data will remain unsent and retry on next update cycle
+            sendInterval.onFailed(record);
+            logManager.logDebug("Not delivered " + record.getKey() + ": " + error);
+        }
+    };
+    
+    /**
+     * Open the store's files off the main thread and log its size. Opening may run a schema
+     * migration, and it loads the in-memory counters the first send cycle checks.
+     */
+    private void openStorageInBackground() {
+        final SampleStore store = sampleStore;
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                synchronized (storeLock) {
+                    // Skip a store that was switched away from in the meantime
+                    if (store == sampleStore) {
+                        logStorageSize();
+                    }
+                }
+            }
+        }, "HA-StoreOpen");
+        opener.setDaemon(true);
+        opener.start();
+    }
+    
+    /**
+     * Log storage size and average bytes per stored record.
+     * The size is read first, as that opens a database that is not open yet.
+     */
+    private void logStorageSize() {
+        try {
+            long bytes = sampleStore.getStorageSizeBytes();
+            long records = sampleStore.getRecordCount();
+            logManager.logInfo("Storage size: " + records + " records, " + bytes + " bytes" +
+                (records > 0 ? " (" + (bytes / records) + " bytes/record)" : "") + ", " + getBacklogSummary());
+        } catch (Exception e) {
+            logManager.logError("Error reading database size", e);
+        }
+    }
+    
+    /**
+     * Describe the unsent backlog for logging, from the in-memory counters
+     */
+    private String getBacklogSummary() {
+        long unsent = sampleStore.getUnsentRecordCount();
+        if (unsent == 0) {
+            return "no unsent records";
+        }
+        long oldest = sampleStore.getOldestUnsentTimestamp();
+        return unsent + " unsent, oldest " + ((System.currentTimeMillis() - oldest) / 1000) + "s ago";
+    }
+    
+    /**
+     * Schedule periodic retention passes
      */
     private void scheduleDataCleanup() {
         if (handler != null) {
@@ -530,17 +733,107 @@ public class HomeAssistantPlugin extends Plugin
     }
     
     /**
-     * Clean up old sent data (older than 24 hours)
+     * Clean up old data: sent records older than 24 hours and anything over the retention limits.
+     * The retention engine works in small slices on its own thread and logs what it reclaimed.
      */
     private void cleanupOldData() {
-        try {
-            long cutoffTime = System.currentTimeMillis() - (24 * 60 * 60 * 1000); // 24 hours ago
-            int deletedCount = dbHelper.deleteOldSentRecords(cutoffTime);
-            if (deletedCount > 0) {
-                logManager.logInfo("Cleaned up " + deletedCount + " old sent records");
+        retentionEngine.requestPass();
+    }
+    
+    /**
+     * Apply the retention limits and eviction policy from settings
+     */
+    private void applyRetentionSettings(SharedPreferences sharedPreferences) {
+        long maxSizeMb = parseLongPreference(sharedPreferences, PREF_HA_RETENTION_MAX_SIZE, 200);
+        long maxAgeDays = parseLongPreference(sharedPreferences, PREF_HA_RETENTION_MAX_AGE, 7);
+        long maxPerKey = parseLongPreference(sharedPreferences, PREF_HA_RETENTION_MAX_PER_KEY, 0);
+        retentionEngine.setLimits(maxSizeMb * 1024 * 1024, maxAgeDays * 24 * 60 * 60 * 1000, maxPerKey);
+        
+        String policy = sharedPreferences.getString(PREF_HA_RETENTION_POLICY, RETENTION_OLDEST_FIRST);
+        if (RETENTION_DOWNSAMPLE.equals(policy)) {
+            retentionEngine.setEvictionPolicy(new RetentionEngine.DownsamplePolicy(RETENTION_DOWNSAMPLE_INTERVAL_MS));
+        } else if (RETENTION_LOW_PRIORITY.equals(policy)) {
+            Set<String> lowPriority = sharedPreferences.getStringSet(PREF_HA_RETENTION_LOW_PRIORITY, new HashSet<String>());
+            retentionEngine.setEvictionPolicy(new RetentionEngine.LowPriorityKeysPolicy(lowPriority));
+        } else {
+            retentionEngine.setEvictionPolicy(new RetentionEngine.OldestFirstPolicy());
+        }
+        logManager.logInfo("Retention settings: " + retentionEngine.getConfiguration());
+    }
+    
+    /**
+     * Apply the request limit and dispatch order from settings to the request scheduler
+     */
+    private void applyDispatchSettings(SharedPreferences sharedPreferences) {
+        int maxInFlight = (int) Math.max(1, Math.min(64, parseLongPreference(sharedPreferences,
+                PREF_HA_MAX_IN_FLIGHT, RequestScheduler.DEFAULT_MAX_IN_FLIGHT)));
+        String order = sharedPreferences.getString(PREF_HA_DISPATCH_ORDER, DISPATCH_FIFO);
+        Set<String> lowPriority = sharedPreferences.getStringSet(PREF_HA_RETENTION_LOW_PRIORITY, new HashSet<String>());
+        
+        requestScheduler.setMaxInFlight(maxInFlight);
+        requestScheduler.setPriorityOrder(DISPATCH_PRIORITY.equals(order), lowPriority);
+        logManager.logInfo("Dispatch settings: " + maxInFlight + " requests in flight, order " + order);
+    }
+    
+    /**
+     * Apply the rollup resolutions from settings (seconds) to the sample store
+     */
+    private void applyRollupSettings(SharedPreferences sharedPreferences) {
+        Set<String> defaults = new HashSet<>(Arrays.asList(
+            getResources().getStringArray(R.array.ha_rollup_resolutions_values)));
+        Set<String> selected = sharedPreferences.getStringSet(PREF_HA_ROLLUP_RESOLUTIONS, defaults);
+        
+        List<Long> resolutions = new ArrayList<>();
+        for (String seconds : selected) {
+            try {
+                resolutions.add(Long.parseLong(seconds) * 1000);
+            } catch (NumberFormatException e) {
+                logManager.logWarning("Ignoring invalid rollup resolution: " + seconds);
             }
-        } catch (Exception e) {
-            logManager.logError("Error cleaning up old data", e);
+        }
+        long[] resolutionsMs = new long[resolutions.size()];
+        for (int i = 0; i < resolutionsMs.length; i++) {
+            resolutionsMs[i] = resolutions.get(i);
+        }
+        sampleStore.setRollupResolutions(resolutionsMs);
+        logManager.logInfo("Rollup resolutions: " + selected);
+    }
+    
+    /**
+     * Apply the update interval and the bounds of the adaptive interval
+     */
+    private void applyIntervalSettings(SharedPreferences sharedPreferences) {
+        boolean adaptive = sharedPreferences.getBoolean(PREF_HA_ADAPTIVE_INTERVAL, false);
+        long minMs = parseLongPreference(sharedPreferences, PREF_HA_MIN_INTERVAL, AdaptiveInterval.DEFAULT_MIN_MS);
+        long maxMs = parseLongPreference(sharedPreferences, PREF_HA_MAX_INTERVAL, AdaptiveInterval.DEFAULT_MAX_MS);
+        sendInterval.configure(adaptive, updateInterval, minMs, maxMs);
+        logManager.logInfo("Send interval: " + sendInterval.getStats());
+    }
+    
+    /**
+     * Apply the settings for skipping unchanged values
+     */
+    private void applySuppressionSettings(SharedPreferences sharedPreferences) {
+        boolean enabled = sharedPreferences.getBoolean(PREF_HA_SUPPRESS_UNCHANGED, false);
+        long heartbeatSeconds = parseLongPreference(sharedPreferences, PREF_HA_HEARTBEAT_INTERVAL,
+            LastValueCache.DEFAULT_HEARTBEAT_MS / 1000);
+        lastValues.setEnabled(enabled);
+        lastValues.setHeartbeatInterval(heartbeatSeconds * 1000);
+        String invalid = lastValues.setTolerances(sharedPreferences.getString(PREF_HA_CHANGE_TOLERANCE, "0"));
+        if (!invalid.isEmpty()) {
+            logManager.logWarning("Ignoring invalid change tolerances: " + invalid);
+        }
+        logManager.logInfo("Skip unchanged values: " + enabled + ", heartbeat " + heartbeatSeconds + "s");
+    }
+    
+    /**
+     * Read a numeric text preference; 0 disables a limit
+     */
+    private long parseLongPreference(SharedPreferences sharedPreferences, String key, long defaultValue) {
+        try {
+            return Math.max(0, Long.parseLong(sharedPreferences.getString(key, String.valueOf(defaultValue)).trim()));
+        } catch (NumberFormatException e) {
+            return defaultValue;
         }
     }
 
@@ -769,14 +1062,16 @@ public class HomeAssistantPlugin extends Plugin
             return;
         }
         
-        // Check if we have buffered data to transmit
-        long unsentCount = dbHelper.getUnsentRecordCount();
+        // Check if we have buffered data to transmit (including samples not yet committed)
+        // Both counts are kept in memory, so this check does not query storage
+        long unsentCount = sampleStore.getUnsentRecordCount() + ingestPipeline.getQueueDepth();
         boolean hasDataToSend = unsentCount > 0;
         
         // Decision logic for automatic switching
         if (hasDataToSend && isHomeWifiInRange && !isConnectedToHomeWifi) {
             // We have data to send and home WiFi is in range but not connected
-            logManager.logInfo("Auto-switch: Switching to home WiFi to transmit " + unsentCount + " buffered records");
+            logManager.logInfo("Auto-switch: Switching to home WiFi to transmit " + unsentCount +
+                " buffered records (" + getBacklogSummary() + ")");
             hasPendingTransmission = true;
             handler.sendEmptyMessage(MSG_SWITCH_TO_HOME);
         } else if (hasPendingTransmission && isConnectedToHomeWifi) {
@@ -989,39 +1284,66 @@ public class HomeAssistantPlugin extends Plugin
             return;
         }
 
-        String url = prefs.getString(PREF_HA_URL, "");
-        String token = prefs.getString(PREF_HA_TOKEN, "");
-        String entityPrefix = prefs.getString(PREF_HA_ENTITY_PREFIX, "sensor.androbd_");
-
-        if (url.isEmpty() || token.isEmpty()) {
-            logManager.logWarning("Home Assistant URL or token not configured");
+        Transport transport = this.transport;
+        Transport.Endpoint endpoint = this.endpoint;
+        if (!transport.isConfigured(endpoint)) {
+            logManager.logWarning(transport.getName() + " transport not configured");
             return;
         }
 
-        // Get unsent records from database
-        List<DataRecord> unsentRecords = dbHelper.getUnsentRecords();
+        // Import complete hours of the buffered history into long-term statistics
+        if (prefs.getBoolean(PREF_HA_BACKFILL, false) && !endpoint.getBaseUrl().isEmpty() &&
+                !endpoint.getToken().isEmpty()) {
+            backfillEngine.requestPass(endpoint);
+            logManager.logDebug("Backfill: " + backfillEngine.getStats());
+        }
         
-        if (unsentRecords.isEmpty()) {
+        // Skip the query when the in-memory counters show nothing to send
+        if (sampleStore.getUnsentRecordCount() == 0) {
             logManager.logDebug("No unsent records to transmit");
             return;
         }
         
-        logManager.logInfo("Transmitting " + unsentRecords.size() + " unsent records to Home Assistant");
-
-        // Group records by key to send latest value for each key
-        Map<String, DataRecord> latestByKey = new HashMap<>();
-        for (DataRecord record : unsentRecords) {
-            String key = record.getKey();
-            if (!latestByKey.containsKey(key) || 
-                record.getTimestamp() > latestByKey.get(key).getTimestamp()) {
-                latestByKey.put(key, record);
+        // Get the latest unsent record for each key from the database
+        long cycleStart = System.currentTimeMillis();
+        List<DataRecord> latestRecords = sampleStore.getLatestUnsentRecords();
+        
+        if (latestRecords.isEmpty()) {
+            logManager.logDebug("No unsent records to transmit");
+            return;
+        }
+        
+        // Values Home Assistant already has are acknowledged here instead of sent
+        long now = System.currentTimeMillis();
+        List<DataRecord> changedRecords = new ArrayList<>(latestRecords.size());
+        for (DataRecord record : latestRecords) {
+            if (lastValues.isRedundant(record, now)) {
+                ackQueue.acknowledge(record.getKeyId(), record.getTimestamp());
+            } else {
+                changedRecords.add(record);
             }
         }
-
-        // Send each unique key's latest record
-        for (DataRecord record : latestByKey.values()) {
-            sendSensorUpdate(url, token, entityPrefix, record);
+        if (changedRecords.size() < latestRecords.size()) {
+            logManager.logDebug("Skipped " + (latestRecords.size() - changedRecords.size()) +
+                " unchanged values; last values: " + lastValues.getStats());
+        }
+        latestRecords = changedRecords;
+        if (latestRecords.isEmpty()) {
+            return;
         }
+        
+        logManager.logInfo("Transmitting latest values for " + latestRecords.size() + " keys to Home Assistant");
+        logManager.logDebug("Ingest pipeline: " + ingestPipeline.getStats());
+        logManager.logDebug("Ack queue: " + ackQueue.getStats());
+        logManager.logDebug(transport.getName() + " transport: " + transport.getStats());
+        logManager.logDebug("HTTP connections: " + networkClients.getStats());
+        logManager.logDebug("Send interval: " + sendInterval.getStats());
+
+        sendInterval.onSent(latestRecords, System.currentTimeMillis());
+        transport.send(endpoint, latestRecords);
+        
+        logManager.logDebug("Send cycle prepared " + latestRecords.size() + " updates in " + 
+            (System.currentTimeMillis() - cycleStart) + "ms");
     }
 
     @Override
@@ -1029,6 +1351,7 @@ public class HomeAssistantPlugin extends Plugin
         if (csvString == null || csvString.isEmpty()) return;
         
         // Parse CSV format: "key;description;value;units\nkey;description;value;units\n..."
+        List<String> keys = new ArrayList<>();
         synchronized (this) {
             for (String csvLine : csvString.split("\n")) {
                 String[] fields = csvLine.split(";");
@@ -1036,11 +1359,30 @@ public class HomeAssistantPlugin extends Plugin
                     String key = fields[0].trim();
                     if (!key.isEmpty()) {
                         mKnownItems.add(key);
+                        if (fields.length > 3) {
+                            itemInfo.put(key, new String[]{fields[1].trim(), fields[3].trim()});
+                        }
+                        keys.add(key);
                     }
                 }
             }
             // Persist known items
             prefs.edit().putStringSet(ITEMS_KNOWN, mKnownItems).apply();
+            
+            // Names and units for MQTT discovery
+            if (transport instanceof MqttTransport) {
+                for (Map.Entry<String, String[]> entry : itemInfo.entrySet()) {
+                    ((MqttTransport) transport).describe(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+                }
+            }
+        }
+        
+        // Register in the key dictionary ahead of the first data update; under the store
+        // lock so a backend switch cannot close the store in between
+        synchronized (storeLock) {
+            for (String key : keys) {
+                sampleStore.getKeyId(key);
+            }
         }
         
         // Clear data cache for fresh update cycle
@@ -1049,88 +1391,6 @@ public class HomeAssistantPlugin extends Plugin
         }
     }
 
-    /**
-     * Send individual sensor update to Home Assistant
-     */
-    private void sendSensorUpdate(String baseUrl, String token, String entityPrefix, DataRecord record) {
-        String key = record.getKey();
-        String value = record.getValue();
-        long timestamp = record.getTimestamp();
-        
-        // Clean up the key to make it a valid entity ID
-        String entityId = entityPrefix + key.toLowerCase()
-                .replaceAll("[^a-z0-9_]", "_")
-                .replaceAll("_+", "_");
-
-        String url = baseUrl + "/api/states/" + entityId;
-
-        try {
-            JSONObject json = new JSONObject();
-            json.put("state", value);
-
-            JSONObject attributes = new JSONObject();
-            attributes.put("friendly_name", key);
-            attributes.put("source", "AndrOBD");
-            attributes.put("timestamp", timestamp);
-            json.put("attributes", attributes);
-
-            RequestBody body = RequestBody.create(
-                    json.toString(),
-                    MediaType.parse("application/json")
-            );
-
-            Request.Builder requestBuilder = new Request.Builder()
-                    .url(url)
-                    .header("Authorization", "Bearer " + token)
-                    .header("Content-Type", "application/json")
-                    .post(body);
-            
-            Request request = requestBuilder.build();
-            
-            logManager.logDebug("Sending " + key + " = " + value + " (ts=" + timestamp + ") to " + entityId);
-
-            // Use configured HTTP client (may be bound to mobile network)
-            OkHttpClient clientToUse = getConfiguredHttpClient();
-            clientToUse.newCall(request).enqueue(new Callback() {
-                @Override
-                public void onFailure(@NonNull Call call, @NonNull IOException e) {
-                    logManager.logError("Network error sending update for " + key + ": " + e.getMessage());
-                    // Data will remain in cache and retry on next update cycle
-                }
-
-                @Override
-                public void onResponse(@NonNull Call call, @NonNull Response response) {
-                    try {
-                        if (response.isSuccessful()) {
-                            logManager.logInfo("Successfully sent " + key + " (id=" + record.getId() + ")");
-                            // Mark record as sent in database
-                            dbHelper.markAsSent(record.getId());
-                        } else {
-                            logManager.logError("HTTP error updating " + entityId + ": " + response.code() + " " + response.message());
-                            // Log response body for debugging if available
-                            if (response.body() != null) {
-                                try {
-                                    String responseBody = response.body().string();
-                                    if (responseBody != null && !responseBody.isEmpty()) {
-                                        logManager.logError("Response body: " + responseBody);
-                                    }
-                                } catch (IOException e) {
-                                    Log.e(TAG, "Could not read error response body", e);
-                                }
-                            }
-                        }
-                    } finally {
-                        response.close();
-                    }
-                }
-            });
-        } catch (JSONException e) {
-            logManager.logError("Error creating JSON for " + key, e);
-        } catch (Exception e) {
-            logManager.logError("Unexpected error sending update for " + key, e);
-        }
-    }
-
     @Override
     public void performAction() {
         Log.d(TAG, "Action requested - triggering manual update");
@@ -1166,6 +1426,13 @@ public class HomeAssistantPlugin extends Plugin
                 } catch (NumberFormatException e) {
                     updateInterval = 5000;
                 }
+                applyIntervalSettings(sharedPreferences);
+                break;
+            
+            case PREF_HA_ADAPTIVE_INTERVAL:
+            case PREF_HA_MIN_INTERVAL:
+            case PREF_HA_MAX_INTERVAL:
+                applyIntervalSettings(sharedPreferences);
                 break;
                 
             case PREF_HA_TRANSMISSION_MODE:
@@ -1204,6 +1471,42 @@ public class HomeAssistantPlugin extends Plugin
                 }
                 break;
                 
+            case PREF_HA_TRANSPORT:
+            case PREF_HA_UPLOAD_MODE:
+            case PREF_HA_WEBHOOK_ID:
+            case PREF_HA_MQTT_BROKER:
+            case PREF_HA_MQTT_USERNAME:
+            case PREF_HA_MQTT_PASSWORD:
+            case PREF_HA_MQTT_QOS:
+            case PREF_HA_MQTT_DISCOVERY_PREFIX:
+                // Transports keep their settings, so a change replaces the transport
+                if (transport != null) {
+                    logManager.logInfo("Transport setting changed: " + key);
+                    openTransport();
+                }
+                break;
+            
+            case PREF_HA_URL:
+            case PREF_HA_TOKEN:
+            case PREF_HA_ENTITY_PREFIX:
+                endpoint = new Transport.Endpoint(
+                        sharedPreferences.getString(PREF_HA_URL, ""),
+                        sharedPreferences.getString(PREF_HA_TOKEN, ""),
+                        sharedPreferences.getString(PREF_HA_ENTITY_PREFIX, "sensor.androbd_"));
+                lastValues.clear();
+                break;
+            
+            case PREF_HA_SUPPRESS_UNCHANGED:
+            case PREF_HA_HEARTBEAT_INTERVAL:
+            case PREF_HA_CHANGE_TOLERANCE:
+                applySuppressionSettings(sharedPreferences);
+                break;
+            
+            case PREF_HA_BACKFILL:
+                // Read on every send cycle; only logged here
+                logManager.logInfo("History backfill changed to: " + sharedPreferences.getBoolean(key, false));
+                break;
+            
             case PREF_HA_USE_MOBILE_DATA:
                 useMobileData = sharedPreferences.getBoolean(key, false);
                 logManager.logInfo("Use mobile data changed to: " + useMobileData);
@@ -1217,6 +1520,40 @@ public class HomeAssistantPlugin extends Plugin
                 }
                 break;
                 
+            case PREF_HA_STORAGE_BACKEND:
+                // Opened in onCreate; only react to changes made while running
+                if (sampleStore != null) {
+                    logManager.logInfo("Storage backend changed to: " +
+                        sharedPreferences.getString(key, STORAGE_SQLITE));
+                    switchSampleStore();
+                }
+                break;
+                
+            case PREF_HA_RETENTION_MAX_SIZE:
+            case PREF_HA_RETENTION_MAX_AGE:
+            case PREF_HA_RETENTION_MAX_PER_KEY:
+            case PREF_HA_RETENTION_POLICY:
+                applyRetentionSettings(sharedPreferences);
+                break;
+            
+            case PREF_HA_RETENTION_LOW_PRIORITY:
+                applyRetentionSettings(sharedPreferences);
+                // Low-priority items are also sent last with the priority dispatch order
+                applyDispatchSettings(sharedPreferences);
+                break;
+            
+            case PREF_HA_MAX_IN_FLIGHT:
+            case PREF_HA_DISPATCH_ORDER:
+                applyDispatchSettings(sharedPreferences);
+                break;
+            
+            case PREF_HA_ROLLUP_RESOLUTIONS:
+                // Applied in openSampleStore on startup
+                if (sampleStore != null) {
+                    applyRollupSettings(sharedPreferences);
+                }
+                break;
+            
             case ITEMS_SELECTED:
                 Set<String> selectedSet = sharedPreferences.getStringSet(key, new HashSet<>());
                 synchronized (this) {
@@ -1238,10 +1575,11 @@ public class HomeAssistantPlugin extends Plugin
     /**
      * Load all preferences on initialization
      * Note: Only loads preferences that require special processing on startup.
-     * Other preferences (PREF_HA_URL, PREF_HA_TOKEN, etc.) are 
+     * Other preferences (PREF_HA_UPLOAD_MODE, PREF_HA_BACKFILL, etc.) are 
      * accessed directly when needed and don't require initialization.
      */
     private void loadPreferences(SharedPreferences prefs) {
+        onSharedPreferenceChanged(prefs, PREF_HA_URL);
         onSharedPreferenceChanged(prefs, PREF_HA_UPDATE_INTERVAL);
         onSharedPreferenceChanged(prefs, PREF_HA_TRANSMISSION_MODE);
         onSharedPreferenceChanged(prefs, PREF_HA_SSID);
@@ -1249,6 +1587,9 @@ public class HomeAssistantPlugin extends Plugin
         onSharedPreferenceChanged(prefs, PREF_HA_AUTO_SWITCH);
         onSharedPreferenceChanged(prefs, PREF_HA_USE_MOBILE_DATA);
         onSharedPreferenceChanged(prefs, PREF_HA_ENABLE_LOGGING);
+        onSharedPreferenceChanged(prefs, PREF_HA_RETENTION_POLICY);
+        onSharedPreferenceChanged(prefs, PREF_HA_DISPATCH_ORDER);
+        onSharedPreferenceChanged(prefs, PREF_HA_SUPPRESS_UNCHANGED);
         onSharedPreferenceChanged(prefs, ITEMS_SELECTED);
         onSharedPreferenceChanged(prefs, ITEMS_KNOWN);
     }
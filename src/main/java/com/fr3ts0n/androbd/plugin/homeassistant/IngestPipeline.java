@@ -0,0 +1,302 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous ingest pipeline between AndrOBD data callbacks and the sample store.
+ *
+ * Samples are queued in a {@link SampleRingBuffer} without blocking the caller.
+ * A dedicated writer thread drains the buffer and commits samples in batches,
+ * one transaction per batch, when either the batch is full or the oldest queued
+ * sample has waited for the maximum batch delay. A batch that fails to commit is kept
+ * and retried a few times before its samples are dropped.
+ */
+public class IngestPipeline {
+    private static final String TAG = "IngestPipeline";
+
+    // Commit attempts for one batch, and the pause between them
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+    private static final long COMMIT_RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final SampleStore sampleStore;
+    private final LogManager logManager;
+    private final SampleRingBuffer ringBuffer;
+    private final int maxBatchSize;
+    private final long maxBatchDelayNanos;
+    private final DataRecord[] batch;
+
+    private volatile boolean running = false;
+    private Thread writerThread;
+
+    // Counters
+    private final AtomicLong ingestedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong committedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong commitNanos = new AtomicLong();
+    private volatile int maxQueueDepth = 0;
+
+    public IngestPipeline(SampleStore sampleStore, LogManager logManager,
+                          int capacity, int maxBatchSize, long maxBatchDelayMs) {
+        this.sampleStore = sampleStore;
+        this.logManager = logManager;
+        this.ringBuffer = new SampleRingBuffer(capacity);
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMs);
+
+        // Record holders are reused for every batch
+        this.batch = new DataRecord[maxBatchSize];
+        for (int i = 0; i < maxBatchSize; i++) {
+            batch[i] = new DataRecord();
+        }
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writerLoop();
+            }
+        }, "HA-IngestWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        logManager.logInfo("Ingest pipeline started (capacity=" + ringBuffer.capacity() +
+                ", batch=" + maxBatchSize + ", delay=" +
+                TimeUnit.NANOSECONDS.toMillis(maxBatchDelayNanos) + "ms)");
+    }
+
+    /**
+     * Stop the writer thread after committing everything still queued.
+     * Returns only once the writer has finished, as the caller closes the store next;
+     * a failing store holds this up for the retries of one batch, about a second.
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        logManager.logInfo("Ingest pipeline stopped - " + getStats());
+    }
+
+    /**
+     * Queue a sample for storage. Never blocks; returns false if the queue is full.
+     * The key id comes from the dictionary of this pipeline's store; only a new key touches storage.
+     */
+    public boolean submit(String key, String value, long timestamp) {
+        int keyId = sampleStore.getKeyId(key);
+        if (!ringBuffer.offer(keyId, value, timestamp)) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        ingestedCount.incrementAndGet();
+
+        int depth = ringBuffer.size();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+        // Wake the writer early once a full batch is waiting
+        if (depth >= maxBatchSize) {
+            Thread writer = writerThread;
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writer thread main loop
+     */
+    private void writerLoop() {
+        int pending = 0;
+        long batchStart = 0;
+        int attempts = 0;
+        long retryAt = 0;
+        // Set once a batch was dropped, until a commit succeeds again
+        boolean failing = false;
+
+        while (true) {
+            int drained = ringBuffer.drainTo(batch, pending, maxBatchSize - pending);
+            for (int i = pending; i < pending + drained; i++) {
+                batch[i].setKey(sampleStore.getKeyName(batch[i].getKeyId()));
+            }
+            if (drained > 0 && pending == 0) {
+                batchStart = System.nanoTime();
+            }
+            pending += drained;
+
+            boolean stopping = !running;
+            long now = System.nanoTime();
+            long waited = now - batchStart;
+
+            if ((pending >= maxBatchSize ||
+                    (pending > 0 && (waited >= maxBatchDelayNanos || stopping))) && now >= retryAt) {
+                if (commitBatch(pending)) {
+                    pending = 0;
+                    attempts = 0;
+                    failing = false;
+                } else if (++attempts >= MAX_COMMIT_ATTEMPTS || (stopping && failing)) {
+                    // When stopping on a failing store, later batches get one attempt each
+                    dropBatch(pending, attempts);
+                    pending = 0;
+                    attempts = 0;
+                    failing = true;
+                } else {
+                    // Keep the batch, still accepting samples into it, and try again shortly
+                    retriedCount.incrementAndGet();
+                    retryAt = System.nanoTime() + COMMIT_RETRY_DELAY_NANOS;
+                }
+                continue;
+            }
+
+            if (stopping && pending == 0 && ringBuffer.size() == 0) {
+                break;
+            }
+
+            long parkNanos;
+            if (attempts > 0) {
+                parkNanos = retryAt - now;
+            } else {
+                parkNanos = pending > 0 ? maxBatchDelayNanos - waited : maxBatchDelayNanos;
+            }
+            LockSupport.parkNanos(this, parkNanos);
+        }
+    }
+
+    /**
+     * Commit the first count records of the batch in one transaction.
+     * A failed transaction is rolled back by the store, so the batch can be committed again.
+     *
+     * @return true if the batch was committed
+     */
+    private boolean commitBatch(int count) {
+        try {
+            long start = System.nanoTime();
+            sampleStore.insertRecords(batch, count);
+            commitNanos.addAndGet(System.nanoTime() - start);
+            committedCount.addAndGet(count);
+            batchCount.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to commit batch of " + count + " records", e);
+            logManager.logError("Failed to commit batch of " + count + " records", e);
+            return false;
+        }
+    }
+
+    /**
+     * Give up on a batch that failed every commit attempt; dropping it keeps the writer alive
+     */
+    private void dropBatch(int count, int attempts) {
+        failedCount.addAndGet(count);
+        Log.e(TAG, "Dropped batch of " + count + " records after " + attempts + " failed commits");
+        logManager.logWarning("Dropped batch of " + count + " records after " + attempts + " failed commits");
+    }
+
+    /**
+     * Samples accepted into the queue
+     */
+    public long getIngestedCount() {
+        return ingestedCount.get();
+    }
+
+    /**
+     * Samples rejected because the queue was full
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Samples committed to the sample store
+     */
+    public long getCommittedCount() {
+        return committedCount.get();
+    }
+
+    /**
+     * Transactions committed
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Samples lost because their batch failed every commit attempt
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Failed commits that were retried
+     */
+    public long getRetriedCount() {
+        return retriedCount.get();
+    }
+
+    /**
+     * Insert throughput while committing, in records per second
+     */
+    public long getInsertRate() {
+        long nanos = commitNanos.get();
+        return nanos > 0 ? committedCount.get() * 1000000000L / nanos : 0;
+    }
+    
+    /**
+     * Samples currently waiting in the queue
+     */
+    public int getQueueDepth() {
+        return ringBuffer.size();
+    }
+
+    /**
+     * Highest queue depth observed since start
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Get a one-line summary of the pipeline counters for logging
+     */
+    public String getStats() {
+        return "ingested=" + getIngestedCount() +
+                ", committed=" + getCommittedCount() +
+                ", batches=" + getBatchCount() +
+                ", dropped=" + getDroppedCount() +
+                ", failed=" + getFailedCount() +
+                ", retries=" + getRetriedCount() +
+                ", insertRate=" + getInsertRate() + "/s" +
+                ", queue=" + getQueueDepth() +
+                ", maxQueue=" + getMaxQueueDepth();
+    }
+}
@@ -0,0 +1,1099 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only sample store backed by fixed-size memory-mapped segment files.
+ *
+ * Each batch is encoded into a compact binary layout and copied into the mapped active
+ * segment with a single bulk write, followed by a commit marker holding the CRC32 of the
+ * batch. Nothing is parsed or indexed per row as in SQLite, which makes this store suited
+ * to high-rate logging sessions.
+ *
+ * Segment file layout (big endian):
+ * <pre>
+ * header:  magic(4) version(4) baseTimestamp(8)
+ * numeric: kind=1(1) keyId(2) timestampDelta(4) value(8)
+ * text:    kind=2(1) keyId(2) timestampDelta(4) length(2) utf8(length)
+ * commit:  kind=3(1) crc32(4)
+ * </pre>
+ * Unwritten space is zero. On startup each segment is replayed up to the last commit whose
+ * CRC matches, so a torn batch after a crash or power loss is discarded as a whole.
+ *
+ * Acknowledgements are kept in a separate mapped cursor file holding, for each key id,
+ * the highest acknowledged timestamp. Key names are kept in an append-only text file,
+ * one name per line, the line number being the key id.
+ */
+public class JournalStore implements SampleStore {
+    private static final String TAG = "JournalStore";
+
+    private static final String DIRECTORY_NAME = "journal";
+    private static final String KEYS_FILE = "keys.txt";
+    private static final String ACK_FILE = "acks.bin";
+    private static final String SEGMENT_PREFIX = "seg_";
+    private static final String SEGMENT_SUFFIX = ".jnl";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Segment layout
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAGIC = 0x414f424a;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private static final byte KIND_NUMERIC = 1;
+    private static final byte KIND_TEXT = 2;
+    private static final byte KIND_COMMIT = 3;
+
+    private static final int RECORD_HEADER_SIZE = 7;
+    private static final int NUMERIC_RECORD_SIZE = RECORD_HEADER_SIZE + 8;
+    private static final int TEXT_HEADER_SIZE = RECORD_HEADER_SIZE + 2;
+    private static final int COMMIT_SIZE = 5;
+    private static final int MAX_TEXT_BYTES = 0xffff;
+
+    // Key ids are stored in two bytes and index the ack cursor file
+    private static final int MAX_KEYS = 4096;
+
+    // Mapped pages are written back at most this often. A process crash loses nothing,
+    // a power loss at most this much; recovery then stops at the last intact batch.
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    /**
+     * Per-key bookkeeping within one segment
+     */
+    private static class KeyGroup {
+        int count;
+        int acked;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+
+        // Timestamps of unacknowledged records; only kept for the active segment
+        long[] pending;
+        int pendingSize;
+
+        void addPending(long timestamp) {
+            if (pending == null) {
+                pending = new long[16];
+            } else if (pendingSize == pending.length) {
+                pending = Arrays.copyOf(pending, pendingSize * 2);
+            }
+            pending[pendingSize++] = timestamp;
+        }
+
+        /**
+         * Drop pending timestamps up to and including the watermark
+         *
+         * @return number of timestamps dropped
+         */
+        int ackPending(long watermark) {
+            int kept = 0;
+            for (int i = 0; i < pendingSize; i++) {
+                if (pending[i] > watermark) {
+                    pending[kept++] = pending[i];
+                }
+            }
+            int dropped = pendingSize - kept;
+            pendingSize = kept;
+            return dropped;
+        }
+    }
+
+    /**
+     * One segment file and its in-memory summary
+     */
+    private static class Segment {
+        final int number;
+        final File file;
+        long baseTimestamp;
+        volatile int committedEnd = HEADER_SIZE;
+        int count;
+        int unsentCount;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+        final SparseArray<KeyGroup> groups = new SparseArray<>();
+
+        // Only set while this is the active segment
+        RandomAccessFile raf;
+        MappedByteBuffer buffer;
+
+        Segment(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        boolean isActive() {
+            return buffer != null;
+        }
+
+        long recordId(int offset) {
+            return ((long) number << 32) | offset;
+        }
+
+        KeyGroup group(int keyId) {
+            KeyGroup group = groups.get(keyId);
+            if (group == null) {
+                group = new KeyGroup();
+                groups.put(keyId, group);
+            }
+            return group;
+        }
+    }
+
+    /**
+     * Receives decoded records during a segment scan
+     */
+    private interface ScanHandler {
+        /**
+         * @return true to continue, false to stop the scan
+         */
+        boolean handle(DataRecord record);
+    }
+
+    private final File directory;
+    private final Object lock = new Object();
+
+    // Guarded by lock; oldest first, the active segment (if any) last
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment activeSegment;
+    private int nextSegmentNumber = 1;
+
+    // Batch encoding buffer, guarded by lock
+    private ByteBuffer scratch = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private long lastForceTime = 0;
+    private boolean ackDirty = false;
+
+    // Key dictionary
+    private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private volatile String[] namesById = new String[64];
+    private int keyCount = 0;
+    private FileOutputStream keysOut;
+
+    // Ack cursor: highest acknowledged timestamp per key id
+    private final AtomicLongArray ackedUpTo = new AtomicLongArray(MAX_KEYS);
+    private RandomAccessFile ackFile;
+    private MappedByteBuffer ackBuffer;
+
+    // Newest record per key id, guarded by lock
+    private final DataRecord[] latestRecords = new DataRecord[MAX_KEYS];
+
+    // Record counts; rebuilt by replaying the segments at startup
+    private final BacklogCounters counters = new BacklogCounters();
+
+    public JournalStore(Context context) throws IOException {
+        this(new File(context.getFilesDir(), DIRECTORY_NAME));
+    }
+
+    JournalStore(File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        loadKeys();
+        openAckFile();
+        recoverSegments();
+    }
+
+    /**
+     * Read the key file; a partially written last line is discarded
+     */
+    private void loadKeys() throws IOException {
+        File file = new File(directory, KEYS_FILE);
+        byte[] content = readFully(file);
+
+        int start = 0;
+        int validLength = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] == '\n') {
+                String name = new String(content, start, i - start, UTF_8);
+                registerKey(++keyCount, name);
+                start = i + 1;
+                validLength = start;
+            }
+        }
+
+        if (validLength < content.length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        keysOut = new FileOutputStream(file, true);
+    }
+
+    private void openAckFile() throws IOException {
+        ackFile = new RandomAccessFile(new File(directory, ACK_FILE), "rw");
+        if (ackFile.length() < MAX_KEYS * 8L) {
+            ackFile.setLength(MAX_KEYS * 8L);
+        }
+        ackBuffer = ackFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, MAX_KEYS * 8L);
+        for (int i = 0; i < MAX_KEYS; i++) {
+            ackedUpTo.set(i, ackBuffer.getLong(i * 8));
+        }
+    }
+
+    /**
+     * Replay all segment files in order and reopen the newest one for appending if it has room
+     */
+    private void recoverSegments() throws IOException {
+        File[] files = directory.listFiles();
+        List<Integer> numbers = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        numbers.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Ignoring unexpected file " + name);
+                    }
+                }
+            }
+        }
+        Collections.sort(numbers);
+
+        for (int i = 0; i < numbers.size(); i++) {
+            int number = numbers.get(i);
+            boolean last = i == numbers.size() - 1;
+            Segment segment = recoverSegment(number, last);
+            if (segment != null) {
+                segments.add(segment);
+                if (segment.isActive()) {
+                    activeSegment = segment;
+                }
+            }
+            nextSegmentNumber = number + 1;
+        }
+
+        Log.d(TAG, "Recovered " + segments.size() + " segments, " + getRecordCount() + " records, " +
+                getUnsentRecordCount() + " unsent");
+    }
+
+    private Segment recoverSegment(int number, boolean last) throws IOException {
+        Segment segment = new Segment(number, segmentFile(number));
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        long length = raf.length();
+
+        if (length < HEADER_SIZE) {
+            // Crashed while creating the segment; nothing was committed to it
+            raf.close();
+            deleteFile(segment.file);
+            return null;
+        }
+
+        boolean reopen = last && length == SEGMENT_SIZE;
+        ByteBuffer buffer = raf.getChannel().map(
+                reopen ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, length);
+
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            raf.close();
+            if (reopen) {
+                // Header never made it to disk
+                deleteFile(segment.file);
+            } else {
+                Log.w(TAG, "Skipping segment with unknown format: " + segment.file.getName());
+            }
+            return null;
+        }
+
+        segment.baseTimestamp = buffer.getLong(8);
+        segment.committedEnd = findCommittedEnd(buffer, (int) length);
+
+        if (reopen) {
+            clearTail(segment, (MappedByteBuffer) buffer);
+            segment.raf = raf;
+            segment.buffer = (MappedByteBuffer) buffer;
+        } else {
+            if (length > segment.committedEnd) {
+                // Crashed between rolling and sealing, or a torn batch at the end
+                raf.setLength(segment.committedEnd);
+            }
+            raf.close();
+        }
+
+        final Segment target = segment;
+        scan(segment, buffer, segment.committedEnd, new ScanHandler() {
+            @Override
+            public boolean handle(DataRecord record) {
+                account(target, record);
+                return true;
+            }
+        });
+
+        if (segment.count == 0 && !reopen) {
+            deleteFile(segment.file);
+            return null;
+        }
+        return segment;
+    }
+
+    /**
+     * Walk batches from the header and return the end of the last batch whose CRC matches
+     */
+    private int findCommittedEnd(ByteBuffer buffer, int limit) {
+        int position = HEADER_SIZE;
+        int batchStart = HEADER_SIZE;
+        int committedEnd = HEADER_SIZE;
+        byte[] batchBytes = new byte[0];
+
+        while (position < limit) {
+            byte kind = buffer.get(position);
+            int size;
+            if (kind == KIND_NUMERIC) {
+                size = NUMERIC_RECORD_SIZE;
+            } else if (kind == KIND_TEXT) {
+                if (position + TEXT_HEADER_SIZE > limit) {
+                    break;
+                }
+                size = TEXT_HEADER_SIZE + (buffer.getShort(position + RECORD_HEADER_SIZE) & 0xffff);
+            } else if (kind == KIND_COMMIT) {
+                size = COMMIT_SIZE;
+            } else {
+                break;
+            }
+            if (position + size > limit) {
+                break;
+            }
+
+            if (kind == KIND_COMMIT) {
+                int length = position - batchStart;
+                if (batchBytes.length < length) {
+                    batchBytes = new byte[length];
+                }
+                ByteBuffer view = buffer.duplicate();
+                view.position(batchStart);
+                view.get(batchBytes, 0, length);
+                crc.reset();
+                crc.update(batchBytes, 0, length);
+                if ((int) crc.getValue() != buffer.getInt(position + 1)) {
+                    break;
+                }
+                committedEnd = position + size;
+                batchStart = committedEnd;
+            }
+            position += size;
+        }
+
+        return committedEnd;
+    }
+
+    /**
+     * Zero anything left behind the last commit so later appends start on clean space
+     */
+    private void clearTail(Segment segment, MappedByteBuffer buffer) {
+        int from = segment.committedEnd;
+        boolean dirty = false;
+        for (int i = from; i < SEGMENT_SIZE && !dirty; i++) {
+            dirty = buffer.get(i) != 0;
+        }
+        if (!dirty) {
+            return;
+        }
+
+        byte[] zeros = new byte[8192];
+        ByteBuffer view = buffer.duplicate();
+        view.position(from);
+        while (view.hasRemaining()) {
+            view.put(zeros, 0, Math.min(zeros.length, view.remaining()));
+        }
+        buffer.force();
+        Log.w(TAG, "Discarded uncommitted data after offset " + from + " in segment " + segment.number);
+    }
+
+    @Override
+    public int getKeyId(String key) {
+        Integer id = idsByName.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (idsByName) {
+            id = idsByName.get(key);
+            if (id != null) {
+                return id;
+            }
+            if (keyCount + 1 >= MAX_KEYS) {
+                throw new IllegalStateException("Journal key dictionary is full");
+            }
+            try {
+                keysOut.write((key + "\n").getBytes(UTF_8));
+                keysOut.getFD().sync();
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot write journal key file", e);
+            }
+            int newId = ++keyCount;
+            registerKey(newId, key);
+            return newId;
+        }
+    }
+
+    private void registerKey(int id, String name) {
+        String[] names = namesById;
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, Math.max(names.length * 2, id + 1));
+        }
+        names[id] = name;
+        namesById = names;
+        idsByName.put(name, id);
+    }
+
+    @Override
+    public String getKeyName(int keyId) {
+        String[] names = namesById;
+        return keyId >= 0 && keyId < names.length ? names[keyId] : null;
+    }
+
+    @Override
+    public void insertRecords(DataRecord[] records, int count) {
+        if (records == null || count <= 0) {
+            return;
+        }
+
+        synchronized (lock) {
+            try {
+                scratch.clear();
+                for (int i = 0; i < count; i++) {
+                    DataRecord record = records[i];
+                    byte[] text = null;
+                    int size = NUMERIC_RECORD_SIZE;
+                    if (!record.isNumeric()) {
+                        text = encodeText(record.getValue());
+                        size = TEXT_HEADER_SIZE + text.length;
+                    }
+
+                    if (!fits(record.getTimestamp(), size)) {
+                        commitBatch();
+                        rollSegment(record.getTimestamp());
+                    }
+
+                    Segment segment = activeSegment;
+                    int offset = segment.committedEnd + scratch.position();
+                    ensureScratch(size + COMMIT_SIZE);
+                    scratch.put(text == null ? KIND_NUMERIC : KIND_TEXT);
+                    scratch.putShort((short) record.getKeyId());
+                    scratch.putInt((int) (record.getTimestamp() - segment.baseTimestamp));
+                    if (text == null) {
+                        scratch.putDouble(record.getNumericValue());
+                    } else {
+                        scratch.putShort((short) text.length);
+                        scratch.put(text);
+                    }
+
+                    record.setId(segment.recordId(offset));
+                    account(segment, record);
+                }
+                commitBatch();
+                forceIfDue(false);
+            } catch (IOException e) {
+                throw new IllegalStateException("Journal write failed", e);
+            }
+        }
+    }
+
+    /**
+     * Whether a record of the given size and timestamp can go into the active segment
+     */
+    private boolean fits(long timestamp, int size) {
+        Segment segment = activeSegment;
+        if (segment == null) {
+            return false;
+        }
+        long delta = timestamp - segment.baseTimestamp;
+        return delta >= Integer.MIN_VALUE && delta <= Integer.MAX_VALUE &&
+                segment.committedEnd + scratch.position() + size + COMMIT_SIZE <= SEGMENT_SIZE;
+    }
+
+    private void ensureScratch(int size) {
+        if (scratch.remaining() < size) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + size));
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+    }
+
+    private static byte[] encodeText(String value) {
+        byte[] bytes = (value != null ? value : "").getBytes(UTF_8);
+        if (bytes.length > MAX_TEXT_BYTES) {
+            bytes = Arrays.copyOf(bytes, MAX_TEXT_BYTES);
+        }
+        return bytes;
+    }
+
+    /**
+     * Append the encoded records with their commit marker to the active segment and publish them
+     */
+    private void commitBatch() {
+        int length = scratch.position();
+        if (length == 0) {
+            return;
+        }
+
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+        scratch.put(KIND_COMMIT);
+        scratch.putInt((int) crc.getValue());
+
+        Segment segment = activeSegment;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.position(segment.committedEnd);
+        buffer.put(scratch.array(), 0, scratch.position());
+        // Readers only look at bytes below committedEnd
+        segment.committedEnd += scratch.position();
+        scratch.clear();
+    }
+
+    /**
+     * Seal the active segment and start a new one whose timestamps are relative to baseTimestamp
+     */
+    private void rollSegment(long baseTimestamp) throws IOException {
+        if (activeSegment != null) {
+            sealSegment(activeSegment);
+        }
+
+        int number = nextSegmentNumber++;
+        Segment segment = new Segment(number, segmentFile(number));
+        RandomAccessFile raf = new RandomAccessFile(segment.file, "rw");
+        raf.setLength(SEGMENT_SIZE);
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putLong(8, baseTimestamp);
+
+        segment.baseTimestamp = baseTimestamp;
+        segment.raf = raf;
+        segment.buffer = buffer;
+        segments.add(segment);
+        activeSegment = segment;
+    }
+
+    /**
+     * Flush the active segment, cut the file to its committed length and release the mapping
+     */
+    private void sealSegment(Segment segment) throws IOException {
+        segment.buffer.force();
+        segment.buffer = null;
+        segment.raf.setLength(segment.committedEnd);
+        segment.raf.close();
+        segment.raf = null;
+        for (int i = 0; i < segment.groups.size(); i++) {
+            KeyGroup group = segment.groups.valueAt(i);
+            group.pending = null;
+            group.pendingSize = 0;
+        }
+        if (activeSegment == segment) {
+            activeSegment = null;
+        }
+    }
+
+    /**
+     * Update the summaries for a record appended to (or replayed from) a segment
+     */
+    private void account(Segment segment, DataRecord record) {
+        int keyId = record.getKeyId();
+        long timestamp = record.getTimestamp();
+        KeyGroup group = segment.group(keyId);
+
+        group.count++;
+        group.minTimestamp = Math.min(group.minTimestamp, timestamp);
+        group.maxTimestamp = Math.max(group.maxTimestamp, timestamp);
+        segment.count++;
+        segment.minTimestamp = Math.min(segment.minTimestamp, timestamp);
+        segment.maxTimestamp = Math.max(segment.maxTimestamp, timestamp);
+
+        boolean sent = timestamp <= ackedUpTo.get(keyId);
+        counters.inserted(keyId, timestamp, sent);
+        if (sent) {
+            group.acked++;
+        } else {
+            segment.unsentCount++;
+            if (segment.isActive()) {
+                group.addPending(timestamp);
+            }
+        }
+
+        DataRecord latest = latestRecords[keyId];
+        if (latest == null) {
+            latest = new DataRecord();
+            latestRecords[keyId] = latest;
+        } else if (latest.getTimestamp() > timestamp) {
+            return;
+        }
+        latest.copyFrom(record);
+        latest.setKey(getKeyName(keyId));
+    }
+
+    /**
+     * Write mapped pages back to storage if the force interval has passed (or always)
+     */
+    private void forceIfDue(boolean always) {
+        long now = System.currentTimeMillis();
+        if (!always && now - lastForceTime < FORCE_INTERVAL_MS) {
+            return;
+        }
+        lastForceTime = now;
+        if (activeSegment != null) {
+            activeSegment.buffer.force();
+        }
+        if (ackDirty) {
+            ackBuffer.force();
+            ackDirty = false;
+        }
+    }
+
+    @Override
+    public List<DataRecord> getLatestUnsentRecords() {
+        List<DataRecord> records = new ArrayList<>();
+        synchronized (lock) {
+            for (int keyId = 0; keyId < MAX_KEYS; keyId++) {
+                DataRecord latest = latestRecords[keyId];
+                if (latest != null && latest.getTimestamp() > ackedUpTo.get(keyId)) {
+                    DataRecord copy = new DataRecord();
+                    copy.copyFrom(latest);
+                    records.add(copy);
+                }
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public long forEachUnsentRecord(final RecordVisitor visitor) {
+        final long[] visited = {0};
+        for (Segment segment : snapshotSegments()) {
+            if (segment.unsentCount <= 0) {
+                continue;
+            }
+            boolean completed = scan(segment, new ScanHandler() {
+                @Override
+                public boolean handle(DataRecord record) {
+                    if (record.isSent()) {
+                        return true;
+                    }
+                    visited[0]++;
+                    return visitor.visit(record);
+                }
+            });
+            if (!completed) {
+                break;
+            }
+        }
+        return visited[0];
+    }
+
+    @Override
+    public long forEachRecordInTimeRange(final long startTime, final long endTime, final RecordVisitor visitor) {
+        final long[] visited = {0};
+        for (Segment segment : snapshotSegments()) {
+            if (segment.maxTimestamp < startTime || segment.minTimestamp > endTime) {
+                continue;
+            }
+            boolean completed = scan(segment, new ScanHandler() {
+                @Override
+                public boolean handle(DataRecord record) {
+                    if (record.getTimestamp() < startTime || record.getTimestamp() > endTime) {
+                        return true;
+                    }
+                    visited[0]++;
+                    return visitor.visit(record);
+                }
+            });
+            if (!completed) {
+                break;
+            }
+        }
+        return visited[0];
+    }
+
+    /**
+     * The journal keeps no rollups; they are built from the records while reading
+     */
+    @Override
+    public long forEachRollupInTimeRange(long startTime, long endTime, long resolutionMs, RollupVisitor visitor) {
+        RollupTables.Aggregator aggregator = new RollupTables.Aggregator(resolutionMs, visitor);
+        forEachRecordInTimeRange(startTime, endTime, aggregator);
+        return aggregator.finish();
+    }
+
+    @Override
+    public void setRollupResolutions(long[] resolutionsMs) {
+        // Rollups are not stored
+    }
+
+    private List<Segment> snapshotSegments() {
+        synchronized (lock) {
+            return new ArrayList<>(segments);
+        }
+    }
+
+    /**
+     * Decode the committed records of a segment
+     *
+     * @return false if the handler stopped the scan
+     */
+    private boolean scan(Segment segment, ScanHandler handler) {
+        ByteBuffer buffer;
+        int limit = segment.committedEnd;
+        MappedByteBuffer active = segment.buffer;
+        try {
+            if (active != null) {
+                buffer = active.duplicate();
+            } else {
+                RandomAccessFile raf = new RandomAccessFile(segment.file, "r");
+                try {
+                    buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, limit);
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException e) {
+            // Segment was dropped while we were reading
+            return true;
+        }
+        return scan(segment, buffer, limit, handler);
+    }
+
+    private boolean scan(Segment segment, ByteBuffer source, int limit, ScanHandler handler) {
+        ByteBuffer buffer = source.duplicate();
+        buffer.limit(limit);
+        buffer.position(HEADER_SIZE);
+        DataRecord holder = new DataRecord();
+        byte[] text = new byte[256];
+
+        try {
+            while (buffer.hasRemaining()) {
+                int offset = buffer.position();
+                byte kind = buffer.get();
+                if (kind == KIND_COMMIT) {
+                    buffer.getInt();
+                    continue;
+                }
+
+                int keyId = buffer.getShort() & 0xffff;
+                long timestamp = segment.baseTimestamp + buffer.getInt();
+                if (kind == KIND_NUMERIC) {
+                    holder.setNumericValue(buffer.getDouble());
+                } else {
+                    int length = buffer.getShort() & 0xffff;
+                    if (text.length < length) {
+                        text = new byte[length];
+                    }
+                    buffer.get(text, 0, length);
+                    holder.setValue(new String(text, 0, length, UTF_8));
+                }
+
+                holder.setId(segment.recordId(offset));
+                holder.setKeyId(keyId);
+                holder.setKey(getKeyName(keyId));
+                holder.setTimestamp(timestamp);
+                holder.setSent(timestamp <= ackedUpTo.get(keyId));
+                if (!handler.handle(holder)) {
+                    return false;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Truncated record in segment " + segment.number);
+        }
+        return true;
+    }
+
+    @Override
+    public int markAsSentUpTo(int keyId, long timestamp) {
+        return markAsSentUpTo(new int[]{keyId}, new long[]{timestamp}, 1);
+    }
+
+    /**
+     * Acknowledgements move the per-key cursor forward; a record is sent once its timestamp
+     * is at or below the cursor of its key
+     */
+    @Override
+    public int markAsSentUpTo(int[] keyIds, long[] timestamps, int count) {
+        if (keyIds == null || timestamps == null || count <= 0) {
+            return 0;
+        }
+
+        int acknowledged = 0;
+        synchronized (lock) {
+            for (int i = 0; i < count; i++) {
+                int keyId = keyIds[i];
+                long timestamp = timestamps[i];
+                if (keyId < 0 || keyId >= MAX_KEYS || timestamp <= ackedUpTo.get(keyId)) {
+                    continue;
+                }
+                ackedUpTo.set(keyId, timestamp);
+                ackBuffer.putLong(keyId * 8, timestamp);
+                ackDirty = true;
+
+                int keyAcknowledged = 0;
+                for (Segment segment : segments) {
+                    keyAcknowledged += ackGroup(segment, keyId, timestamp);
+                }
+                counters.acknowledged(keyId, keyAcknowledged, timestamp);
+                acknowledged += keyAcknowledged;
+            }
+            forceIfDue(false);
+        }
+        return acknowledged;
+    }
+
+    /**
+     * Update the acknowledged count of one key in one segment after its cursor moved
+     */
+    private int ackGroup(Segment segment, final int keyId, final long watermark) {
+        KeyGroup group = segment.groups.get(keyId);
+        if (group == null || group.acked == group.count || group.minTimestamp > watermark) {
+            return 0;
+        }
+
+        int newlyAcked;
+        if (group.maxTimestamp <= watermark) {
+            newlyAcked = group.count - group.acked;
+            group.pendingSize = 0;
+        } else if (segment.isActive()) {
+            newlyAcked = group.ackPending(watermark);
+        } else {
+            // Partially acknowledged sealed segment: count exactly from the file
+            final int[] atOrBefore = {0};
+            scan(segment, new ScanHandler() {
+                @Override
+                public boolean handle(DataRecord record) {
+                    if (record.getKeyId() == keyId && record.getTimestamp() <= watermark) {
+                        atOrBefore[0]++;
+                    }
+                    return true;
+                }
+            });
+            newlyAcked = atOrBefore[0] - group.acked;
+        }
+
+        group.acked += newlyAcked;
+        segment.unsentCount -= newlyAcked;
+        return newlyAcked;
+    }
+
+    /**
+     * Delete segment files whose records all ended before the given timestamp and are
+     * acknowledged. Each segment costs one file deletion regardless of its size.
+     */
+    @Override
+    public int dropExpiredSegments(long olderThan) {
+        int dropped = 0;
+        synchronized (lock) {
+            for (int i = 0; i < segments.size(); ) {
+                Segment segment = segments.get(i);
+                if (segment.maxTimestamp >= olderThan || segment.unsentCount > 0) {
+                    i++;
+                    continue;
+                }
+                try {
+                    if (segment.isActive()) {
+                        sealSegment(segment);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to seal segment " + segment.number, e);
+                }
+                segments.remove(i);
+                deleteFile(segment.file);
+                countRemoved(segment);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Delete the oldest segment file if all its records are older than the given timestamp,
+     * whether or not they are acknowledged
+     */
+    @Override
+    public long evictOldestSegment(long endedBefore) {
+        synchronized (lock) {
+            if (segments.isEmpty()) {
+                return 0;
+            }
+            Segment segment = segments.get(0);
+            if (segment.maxTimestamp >= endedBefore) {
+                return 0;
+            }
+            try {
+                if (segment.isActive()) {
+                    sealSegment(segment);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to seal segment " + segment.number, e);
+            }
+            segments.remove(0);
+            deleteFile(segment.file);
+            countRemoved(segment);
+
+            // Forget latest unsent records that were stored in this segment
+            for (int i = 0; i < segment.groups.size(); i++) {
+                int keyId = segment.groups.keyAt(i);
+                DataRecord latest = latestRecords[keyId];
+                if (latest != null && latest.getTimestamp() <= segment.maxTimestamp) {
+                    latestRecords[keyId] = null;
+                }
+            }
+            return segment.count;
+        }
+    }
+
+    /**
+     * Update the record counters for a deleted segment
+     */
+    private void countRemoved(Segment segment) {
+        for (int i = 0; i < segment.groups.size(); i++) {
+            KeyGroup group = segment.groups.valueAt(i);
+            counters.removed(segment.groups.keyAt(i), group.count, group.count - group.acked, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Segment files are append-only, so records cannot be thinned in place
+     */
+    @Override
+    public long downsampleOldestSegment(long intervalMs) {
+        return -1;
+    }
+
+    /**
+     * Segment files hold all keys, so single keys cannot be removed; see {@link #evictOldestSegment(long)}
+     */
+    @Override
+    public long evictOldestRecordsOfKey(int keyId, long count) {
+        return 0;
+    }
+
+    @Override
+    public long[] getRecordCountsByKey() {
+        return counters.getTotalsByKey();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    @Override
+    public long getRecordCount() {
+        return counters.getTotal();
+    }
+
+    @Override
+    public long getUnsentRecordCount() {
+        return counters.getUnsent();
+    }
+
+    @Override
+    public long getUnsentRecordCount(int keyId) {
+        return counters.getUnsent(keyId);
+    }
+
+    @Override
+    public long getOldestUnsentTimestamp() {
+        return counters.getOldestUnsentTimestamp();
+    }
+
+    @Override
+    public long getStorageSizeBytes() {
+        long size = new File(directory, KEYS_FILE).length() + new File(directory, ACK_FILE).length();
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                size += segment.isActive() ? SEGMENT_SIZE : segment.committedEnd;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void clearAllRecords() {
+        synchronized (lock) {
+            for (Segment segment : segments) {
+                if (segment.isActive()) {
+                    try {
+                        sealSegment(segment);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to seal segment " + segment.number, e);
+                    }
+                }
+                deleteFile(segment.file);
+            }
+            segments.clear();
+            Arrays.fill(latestRecords, null);
+            counters.reset();
+        }
+        Log.d(TAG, "All records cleared");
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            forceIfDue(true);
+            try {
+                if (activeSegment != null) {
+                    activeSegment.raf.close();
+                }
+                ackFile.close();
+                keysOut.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing journal files", e);
+            }
+        }
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format(Locale.US, "%s%010d%s",
+                SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file.getName());
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        if (!file.exists()) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
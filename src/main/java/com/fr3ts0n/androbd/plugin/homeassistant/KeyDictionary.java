@@ -0,0 +1,126 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the persistent key dictionary, mapping OBD data item names
+ * to the small integer ids stored in data records.
+ *
+ * Lookups are lock-free and do not allocate; only the first sight of a new key
+ * takes the lock and writes to the database.
+ */
+class KeyDictionary {
+    static final String TABLE_KEYS = "data_keys";
+    static final String COLUMN_KEY_ID = "id";
+    static final String COLUMN_KEY_NAME = "name";
+
+    static final String CREATE_TABLE_KEYS =
+            "CREATE TABLE " + TABLE_KEYS + " (" +
+            COLUMN_KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            COLUMN_KEY_NAME + " TEXT NOT NULL UNIQUE)";
+
+    /** Returned by {@link #lookup(String)} for keys not in the dictionary */
+    static final int NO_ID = -1;
+
+    private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private volatile String[] namesById = new String[64];
+
+    /**
+     * Replace the in-memory dictionary with the contents of the keys table
+     */
+    synchronized void load(SQLiteDatabase db) {
+        idsByName.clear();
+        String[] names = new String[64];
+
+        Cursor cursor = db.query(TABLE_KEYS, new String[]{COLUMN_KEY_ID, COLUMN_KEY_NAME},
+                null, null, null, null, null);
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                int id = cursor.getInt(0);
+                String name = cursor.getString(1);
+                names = ensureCapacity(names, id);
+                names[id] = name;
+                idsByName.put(name, id);
+            }
+            cursor.close();
+        }
+
+        namesById = names;
+    }
+
+    /**
+     * Get the id of a known key without touching the database
+     *
+     * @return the key id, or {@link #NO_ID} if the key has not been seen yet
+     */
+    int lookup(String name) {
+        Integer id = idsByName.get(name);
+        return id != null ? id : NO_ID;
+    }
+
+    /**
+     * Get the id of a key, adding it to the dictionary table on first sight
+     */
+    int getOrCreate(SQLiteDatabase db, String name) {
+        int id = lookup(name);
+        if (id != NO_ID) {
+            return id;
+        }
+
+        synchronized (this) {
+            // Another thread may have added it while we waited for the lock
+            id = lookup(name);
+            if (id != NO_ID) {
+                return id;
+            }
+
+            SQLiteStatement insert = db.compileStatement(
+                    "INSERT INTO " + TABLE_KEYS + " (" + COLUMN_KEY_NAME + ") VALUES (?)");
+            try {
+                insert.bindString(1, name);
+                id = (int) insert.executeInsert();
+            } finally {
+                insert.close();
+            }
+
+            String[] names = ensureCapacity(namesById, id);
+            names[id] = name;
+            namesById = names;
+            idsByName.put(name, id);
+            return id;
+        }
+    }
+
+    /**
+     * Get the key name for an id
+     *
+     * @return the name, or null for an unknown id
+     */
+    String getName(int id) {
+        String[] names = namesById;
+        return id >= 0 && id < names.length ? names[id] : null;
+    }
+
+    /**
+     * Number of keys in the dictionary
+     */
+    int size() {
+        return idsByName.size();
+    }
+
+    private static String[] ensureCapacity(String[] names, int id) {
+        if (id < names.length) {
+            return names;
+        }
+        int length = names.length;
+        while (length <= id) {
+            length <<= 1;
+        }
+        return Arrays.copyOf(names, length);
+    }
+}
@@ -0,0 +1,166 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last value Home Assistant acknowledged per key, to skip sending values it already has.
+ *
+ * Home Assistant records a state write even when the value is the same, so a steady reading
+ * sent every cycle fills its database without adding information. A record is redundant when
+ * the last acknowledged value of its key is within the tolerance of the key (or equal, for
+ * values that are not numbers) and was acknowledged less than a heartbeat interval ago; the
+ * heartbeat keeps entities from looking stale. Redundant records are acknowledged locally
+ * instead of being sent.
+ *
+ * Tolerances are given as text: a bare number is the default, key=number sets a key, entries
+ * separated by ; or new lines, e.g. "0; ENGINE_RPM=50; COOLANT_TMP=0.5".
+ */
+public class LastValueCache {
+
+    public static final long DEFAULT_HEARTBEAT_MS = 5 * 60 * 1000;
+
+    private static final class Entry {
+        final String value;
+        // NaN when the value is not a number
+        final double number;
+        final long ackedAt;
+
+        Entry(String value, double number, long ackedAt) {
+            this.value = value;
+            this.number = number;
+            this.ackedAt = ackedAt;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> acked = new ConcurrentHashMap<>();
+
+    private volatile boolean enabled;
+    private volatile long heartbeatMs = DEFAULT_HEARTBEAT_MS;
+    private volatile double defaultTolerance;
+    private volatile Map<String, Double> tolerances = Collections.emptyMap();
+
+    // Counters
+    private final AtomicLong checkedCount = new AtomicLong();
+    private final AtomicLong suppressedCount = new AtomicLong();
+    private final AtomicLong heartbeatCount = new AtomicLong();
+
+    /**
+     * Turn suppression on or off; acknowledged values are remembered either way
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Longest time a key goes without sending; 0 sends every value
+     */
+    public void setHeartbeatInterval(long heartbeatMs) {
+        this.heartbeatMs = heartbeatMs;
+    }
+
+    /**
+     * Set the tolerances from their text form
+     *
+     * @return entries that could not be read, empty when all were valid
+     */
+    public String setTolerances(String text) {
+        double parsedDefault = 0;
+        Map<String, Double> parsed = new HashMap<>();
+        StringBuilder invalid = new StringBuilder();
+        for (String entry : text.split("[;\\n]")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int separator = entry.lastIndexOf('=');
+            try {
+                if (separator < 0) {
+                    parsedDefault = Math.abs(Double.parseDouble(entry));
+                } else {
+                    parsed.put(entry.substring(0, separator).trim(),
+                            Math.abs(Double.parseDouble(entry.substring(separator + 1).trim())));
+                }
+            } catch (NumberFormatException e) {
+                invalid.append(invalid.length() > 0 ? "; " : "").append(entry);
+            }
+        }
+        defaultTolerance = parsedDefault;
+        tolerances = parsed;
+        return invalid.toString();
+    }
+
+    /**
+     * Remember a value Home Assistant accepted
+     */
+    public void onDelivered(DataRecord record) {
+        acked.put(record.getKey(), new Entry(record.getValue(), parse(record.getValue()),
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * Forget all values, e.g. when sending to another Home Assistant
+     */
+    public void clear() {
+        acked.clear();
+    }
+
+    /**
+     * Whether Home Assistant already has the value of a record, within tolerance, from less
+     * than a heartbeat interval ago
+     */
+    public boolean isRedundant(DataRecord record, long now) {
+        if (!enabled) {
+            return false;
+        }
+        checkedCount.incrementAndGet();
+        Entry last = acked.get(record.getKey());
+        if (last == null || !isUnchanged(record, last)) {
+            return false;
+        }
+        if (now - last.ackedAt >= heartbeatMs) {
+            heartbeatCount.incrementAndGet();
+            return false;
+        }
+        suppressedCount.incrementAndGet();
+        return true;
+    }
+
+    private boolean isUnchanged(DataRecord record, Entry last) {
+        String value = record.getValue();
+        if (value.equals(last.value)) {
+            return true;
+        }
+        double number = parse(value);
+        if (Double.isNaN(number) || Double.isNaN(last.number)) {
+            return false;
+        }
+        Double tolerance = tolerances.get(record.getKey());
+        return Math.abs(number - last.number) <= (tolerance != null ? tolerance : defaultTolerance);
+    }
+
+    private static double parse(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * Get a one-line summary of the cache counters for logging
+     */
+    public String getStats() {
+        long checked = checkedCount.get();
+        long suppressed = suppressedCount.get();
+        return "enabled=" + enabled +
+                ", keys=" + acked.size() +
+                ", checked=" + checked +
+                ", saved=" + suppressed +
+                " (" + (checked > 0 ? suppressed * 100 / checked : 0) + "%)" +
+                ", heartbeats=" + heartbeatCount.get();
+    }
+}
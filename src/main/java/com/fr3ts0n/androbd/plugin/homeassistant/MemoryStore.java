@@ -0,0 +1,506 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sample store that keeps everything in memory, for realtime use where nothing needs to
+ * survive a restart.
+ *
+ * Records are appended to fixed-size chunks of parallel primitive arrays (timestamp,
+ * key id, value), so a numeric sample costs 20 bytes and no object. Text values are kept
+ * in a per-chunk array that is only allocated once a chunk holds one. At most
+ * {@link #MAX_CHUNKS} chunks are kept; when they are full the oldest chunk is dropped,
+ * sent or not.
+ *
+ * Acknowledgements move a per-key watermark as in {@link JournalStore}: a record is sent once
+ * its timestamp is at or below the watermark of its key. Readers walk a snapshot of the
+ * chunks without holding the lock, reading only rows published before the snapshot.
+ */
+public class MemoryStore implements SampleStore {
+    private static final String TAG = "MemoryStore";
+
+    // Rows per chunk and chunks kept
+    static final int CHUNK_SIZE = 8192;
+    static final int MAX_CHUNKS = 32;
+
+    // Bytes per numeric row: timestamp, key id, value
+    private static final int ROW_BYTES = 8 + 4 + 8;
+
+    // Watermarks are kept in a fixed array indexed by key id
+    private static final int MAX_KEYS = 4096;
+
+    /**
+     * A fixed-size run of records in insertion order
+     */
+    private static class Chunk {
+        final long firstId;
+        final long[] timestamps = new long[CHUNK_SIZE];
+        final int[] keyIds = new int[CHUNK_SIZE];
+        final double[] values = new double[CHUNK_SIZE];
+
+        // Text values by row; null until the chunk holds one
+        volatile String[] texts;
+
+        // Rows written; rows below it are never changed again
+        volatile int count;
+
+        // Guarded by the store lock
+        int unsentCount;
+        long minTimestamp = Long.MAX_VALUE;
+        long maxTimestamp = Long.MIN_VALUE;
+
+        Chunk(long firstId) {
+            this.firstId = firstId;
+        }
+
+        /**
+         * Copy one row into a record holder
+         */
+        void read(int row, DataRecord holder, String key, boolean sent) {
+            holder.setId(firstId + row);
+            holder.setKeyId(keyIds[row]);
+            holder.setKey(key);
+            String[] rowTexts = texts;
+            if (rowTexts != null && rowTexts[row] != null) {
+                holder.setValue(rowTexts[row]);
+            } else {
+                holder.setNumericValue(values[row]);
+            }
+            holder.setTimestamp(timestamps[row]);
+            holder.setSent(sent);
+        }
+    }
+
+    private final Object lock = new Object();
+
+    // Oldest first; guarded by lock
+    private final List<Chunk> chunks = new ArrayList<>();
+    private Chunk activeChunk;
+    private long nextId = 1;
+
+    // Highest acknowledged timestamp per key id
+    private final AtomicLongArray ackedUpTo = new AtomicLongArray(MAX_KEYS);
+
+    // Newest record per key id; guarded by lock
+    private final DataRecord[] latestRecords = new DataRecord[MAX_KEYS];
+
+    // Per-key scratch counts for dropping a chunk; guarded by lock
+    private final int[] dropTotals = new int[MAX_KEYS];
+    private final int[] dropUnsent = new int[MAX_KEYS];
+
+    private final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+    private volatile String[] namesById = new String[64];
+    private volatile int keyCount;
+
+    private final BacklogCounters counters = new BacklogCounters();
+
+    public MemoryStore() {
+        for (int i = 0; i < MAX_KEYS; i++) {
+            ackedUpTo.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    @Override
+    public int getKeyId(String key) {
+        Integer id = idsByName.get(key);
+        if (id != null) {
+            return id;
+        }
+
+        synchronized (idsByName) {
+            id = idsByName.get(key);
+            if (id != null) {
+                return id;
+            }
+            if (keyCount + 1 >= MAX_KEYS) {
+                throw new IllegalStateException("Memory store key dictionary is full");
+            }
+            int newId = ++keyCount;
+            String[] names = namesById;
+            if (newId >= names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, newId + 1));
+            }
+            names[newId] = key;
+            namesById = names;
+            idsByName.put(key, newId);
+            return newId;
+        }
+    }
+
+    @Override
+    public String getKeyName(int keyId) {
+        String[] names = namesById;
+        return keyId >= 0 && keyId < names.length ? names[keyId] : null;
+    }
+
+    @Override
+    public void insertRecords(DataRecord[] records, int count) {
+        if (records == null || count <= 0) {
+            return;
+        }
+
+        synchronized (lock) {
+            for (int i = 0; i < count; i++) {
+                DataRecord record = records[i];
+                int keyId = record.getKeyId();
+                long timestamp = record.getTimestamp();
+
+                Chunk chunk = activeChunk;
+                if (chunk == null || chunk.count == CHUNK_SIZE) {
+                    chunk = startChunk();
+                }
+
+                int row = chunk.count;
+                chunk.timestamps[row] = timestamp;
+                chunk.keyIds[row] = keyId;
+                if (record.isNumeric()) {
+                    chunk.values[row] = record.getNumericValue();
+                } else {
+                    if (chunk.texts == null) {
+                        chunk.texts = new String[CHUNK_SIZE];
+                    }
+                    chunk.texts[row] = record.getValue();
+                }
+                // Publishes the row to readers
+                chunk.count = row + 1;
+
+                boolean sent = timestamp <= ackedUpTo.get(keyId);
+                if (!sent) {
+                    chunk.unsentCount++;
+                }
+                chunk.minTimestamp = Math.min(chunk.minTimestamp, timestamp);
+                chunk.maxTimestamp = Math.max(chunk.maxTimestamp, timestamp);
+                record.setId(chunk.firstId + row);
+                record.setSent(sent);
+                counters.inserted(keyId, timestamp, sent);
+
+                DataRecord latest = latestRecords[keyId];
+                if (latest == null) {
+                    latest = new DataRecord();
+                    latestRecords[keyId] = latest;
+                    latest.copyFrom(record);
+                } else if (timestamp >= latest.getTimestamp()) {
+                    latest.copyFrom(record);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a new active chunk, dropping the oldest one if all chunks are in use.
+     * Must be called under lock.
+     */
+    private Chunk startChunk() {
+        if (chunks.size() >= MAX_CHUNKS) {
+            Chunk oldest = chunks.get(0);
+            if (oldest.unsentCount > 0) {
+                Log.w(TAG, "Memory store full, dropping " + oldest.unsentCount + " unsent records");
+            }
+            removeChunk(0);
+        }
+        Chunk chunk = new Chunk(nextId);
+        nextId += CHUNK_SIZE;
+        chunks.add(chunk);
+        activeChunk = chunk;
+        return chunk;
+    }
+
+    /**
+     * Remove a chunk and update the counters and latest records. Must be called under lock.
+     */
+    private void removeChunk(int index) {
+        Chunk chunk = chunks.remove(index);
+        if (chunk == activeChunk) {
+            activeChunk = null;
+        }
+
+        int rows = chunk.count;
+        for (int row = 0; row < rows; row++) {
+            int keyId = chunk.keyIds[row];
+            dropTotals[keyId]++;
+            if (chunk.timestamps[row] > ackedUpTo.get(keyId)) {
+                dropUnsent[keyId]++;
+            }
+        }
+        for (int keyId = 0; keyId <= keyCount && keyId < MAX_KEYS; keyId++) {
+            if (dropTotals[keyId] == 0) {
+                continue;
+            }
+            counters.removed(keyId, dropTotals[keyId], dropUnsent[keyId], Long.MIN_VALUE);
+            dropTotals[keyId] = 0;
+            dropUnsent[keyId] = 0;
+
+            // Forget latest records that were stored in this chunk
+            DataRecord latest = latestRecords[keyId];
+            if (latest != null && latest.getId() >= chunk.firstId && latest.getId() < chunk.firstId + rows) {
+                latestRecords[keyId] = null;
+            }
+        }
+    }
+
+    private List<Chunk> snapshotChunks() {
+        synchronized (lock) {
+            return new ArrayList<>(chunks);
+        }
+    }
+
+    @Override
+    public List<DataRecord> getLatestUnsentRecords() {
+        List<DataRecord> records = new ArrayList<>();
+        synchronized (lock) {
+            for (int keyId = 0; keyId <= keyCount && keyId < MAX_KEYS; keyId++) {
+                DataRecord latest = latestRecords[keyId];
+                if (latest != null && latest.getTimestamp() > ackedUpTo.get(keyId)) {
+                    DataRecord copy = new DataRecord();
+                    copy.copyFrom(latest);
+                    records.add(copy);
+                }
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public long forEachUnsentRecord(RecordVisitor visitor) {
+        return scan(Long.MIN_VALUE, Long.MAX_VALUE, true, visitor);
+    }
+
+    @Override
+    public long forEachRecordInTimeRange(long startTime, long endTime, RecordVisitor visitor) {
+        return scan(startTime, endTime, false, visitor);
+    }
+
+    /**
+     * Visit the matching rows of all chunks in insertion order
+     */
+    private long scan(long startTime, long endTime, boolean unsentOnly, RecordVisitor visitor) {
+        DataRecord holder = new DataRecord();
+        long visited = 0;
+
+        for (Chunk chunk : snapshotChunks()) {
+            int rows = chunk.count;
+            for (int row = 0; row < rows; row++) {
+                long timestamp = chunk.timestamps[row];
+                if (timestamp < startTime || timestamp > endTime) {
+                    continue;
+                }
+                int keyId = chunk.keyIds[row];
+                boolean sent = timestamp <= ackedUpTo.get(keyId);
+                if (unsentOnly && sent) {
+                    continue;
+                }
+                chunk.read(row, holder, getKeyName(keyId), sent);
+                visited++;
+                if (!visitor.visit(holder)) {
+                    return visited;
+                }
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * No rollups are stored; they are built from the records while reading
+     */
+    @Override
+    public long forEachRollupInTimeRange(long startTime, long endTime, long resolutionMs, RollupVisitor visitor) {
+        RollupTables.Aggregator aggregator = new RollupTables.Aggregator(resolutionMs, visitor);
+        forEachRecordInTimeRange(startTime, endTime, aggregator);
+        return aggregator.finish();
+    }
+
+    @Override
+    public void setRollupResolutions(long[] resolutionsMs) {
+        // Rollups are not stored
+    }
+
+    @Override
+    public int markAsSentUpTo(int keyId, long timestamp) {
+        return markAsSentUpTo(new int[]{keyId}, new long[]{timestamp}, 1);
+    }
+
+    /**
+     * Move the watermarks of all keys, then count the newly acknowledged rows
+     * in a single pass over the chunks that still hold unsent rows
+     */
+    @Override
+    public int markAsSentUpTo(int[] keyIds, long[] timestamps, int count) {
+        if (keyIds == null || timestamps == null || count <= 0) {
+            return 0;
+        }
+
+        synchronized (lock) {
+            // Previous watermark of each moved key; the rest keep Long.MAX_VALUE so no row matches
+            long[] previous = new long[keyCount + 1];
+            Arrays.fill(previous, Long.MAX_VALUE);
+            long lowest = Long.MAX_VALUE;
+            long highest = Long.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                int keyId = keyIds[i];
+                long timestamp = timestamps[i];
+                if (keyId < 0 || keyId >= previous.length || timestamp <= ackedUpTo.get(keyId)) {
+                    continue;
+                }
+                previous[keyId] = Math.min(previous[keyId], ackedUpTo.get(keyId));
+                ackedUpTo.set(keyId, timestamp);
+                lowest = Math.min(lowest, previous[keyId]);
+                highest = Math.max(highest, timestamp);
+            }
+            if (highest == Long.MIN_VALUE) {
+                return 0;
+            }
+
+            int[] keyAcknowledged = new int[previous.length];
+            int acknowledged = 0;
+            for (Chunk chunk : chunks) {
+                if (chunk.unsentCount == 0 || chunk.minTimestamp > highest || chunk.maxTimestamp <= lowest) {
+                    continue;
+                }
+                int rows = chunk.count;
+                for (int row = 0; row < rows; row++) {
+                    int keyId = chunk.keyIds[row];
+                    long timestamp = chunk.timestamps[row];
+                    if (keyId < previous.length && timestamp > previous[keyId] &&
+                            timestamp <= ackedUpTo.get(keyId)) {
+                        keyAcknowledged[keyId]++;
+                        chunk.unsentCount--;
+                        acknowledged++;
+                    }
+                }
+            }
+
+            for (int keyId = 0; keyId < previous.length; keyId++) {
+                if (previous[keyId] != Long.MAX_VALUE) {
+                    counters.acknowledged(keyId, keyAcknowledged[keyId], ackedUpTo.get(keyId));
+                }
+            }
+            return acknowledged;
+        }
+    }
+
+    /**
+     * Drop chunks whose records all ended before the given timestamp and are acknowledged
+     */
+    @Override
+    public int dropExpiredSegments(long olderThan) {
+        int dropped = 0;
+        synchronized (lock) {
+            for (int i = 0; i < chunks.size(); ) {
+                Chunk chunk = chunks.get(i);
+                if (chunk.maxTimestamp >= olderThan || chunk.unsentCount > 0) {
+                    i++;
+                    continue;
+                }
+                removeChunk(i);
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Drop the oldest chunk if all its records are older than the given timestamp,
+     * whether or not they are acknowledged
+     */
+    @Override
+    public long evictOldestSegment(long endedBefore) {
+        synchronized (lock) {
+            if (chunks.isEmpty() || chunks.get(0).maxTimestamp >= endedBefore) {
+                return 0;
+            }
+            int rows = chunks.get(0).count;
+            removeChunk(0);
+            return rows;
+        }
+    }
+
+    /**
+     * Chunks are append-only, so records cannot be thinned in place
+     */
+    @Override
+    public long downsampleOldestSegment(long intervalMs) {
+        return -1;
+    }
+
+    /**
+     * Chunks hold all keys, so single keys cannot be removed; see {@link #evictOldestSegment(long)}
+     */
+    @Override
+    public long evictOldestRecordsOfKey(int keyId, long count) {
+        return 0;
+    }
+
+    @Override
+    public long[] getRecordCountsByKey() {
+        return counters.getTotalsByKey();
+    }
+
+    @Override
+    public int getSegmentCount() {
+        synchronized (lock) {
+            return chunks.size();
+        }
+    }
+
+    @Override
+    public long getRecordCount() {
+        return counters.getTotal();
+    }
+
+    @Override
+    public long getUnsentRecordCount() {
+        return counters.getUnsent();
+    }
+
+    @Override
+    public long getUnsentRecordCount(int keyId) {
+        return counters.getUnsent(keyId);
+    }
+
+    @Override
+    public long getOldestUnsentTimestamp() {
+        return counters.getOldestUnsentTimestamp();
+    }
+
+    /**
+     * Memory held by the chunk arrays
+     */
+    @Override
+    public long getStorageSizeBytes() {
+        long size = 0;
+        synchronized (lock) {
+            for (Chunk chunk : chunks) {
+                size += (long) CHUNK_SIZE * ROW_BYTES;
+                if (chunk.texts != null) {
+                    size += (long) CHUNK_SIZE * 4;
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void clearAllRecords() {
+        synchronized (lock) {
+            chunks.clear();
+            activeChunk = null;
+            Arrays.fill(latestRecords, null);
+            counters.reset();
+        }
+        Log.d(TAG, "All records cleared");
+    }
+
+    /**
+     * Nothing to flush; records are lost when the store is closed
+     */
+    @Override
+    public void close() {
+        clearAllRecords();
+    }
+}
@@ -0,0 +1,202 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Encoding of the MQTT 3.1.1 packets a publishing client needs: CONNECT, PUBLISH, PUBACK,
+ * PINGREQ and DISCONNECT out, CONNACK, PUBACK and PINGRESP in.
+ *
+ * Every packet is a fixed header (type and flags in one byte, then the remaining length in
+ * 7-bit groups) followed by the variable header and payload. Strings are UTF-8 with a 16-bit
+ * length prefix.
+ */
+final class MqttCodec {
+
+    static final int CONNECT = 1;
+    static final int CONNACK = 2;
+    static final int PUBLISH = 3;
+    static final int PUBACK = 4;
+    static final int PINGREQ = 12;
+    static final int PINGRESP = 13;
+    static final int DISCONNECT = 14;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Largest remaining length of a packet, 4 length bytes
+    private static final int MAX_REMAINING_LENGTH = 268435455;
+
+    private MqttCodec() {
+    }
+
+    /**
+     * An incoming packet: type, flags of the fixed header and the rest
+     */
+    static final class Packet {
+        final int type;
+        final int flags;
+        final byte[] body;
+
+        Packet(int type, int flags, byte[] body) {
+            this.type = type;
+            this.flags = flags;
+            this.body = body;
+        }
+
+        /**
+         * Packet identifier at the start of the body (PUBACK)
+         */
+        int packetId() {
+            return ((body[0] & 0xFF) << 8) | (body[1] & 0xFF);
+        }
+    }
+
+    /**
+     * CONNECT with a clean session and an optional retained will and credentials
+     */
+    static byte[] connect(String clientId, int keepAliveSeconds, String willTopic, String willMessage,
+                          int willQos, String username, String password) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(64);
+        writeString(body, "MQTT");
+        body.write(4); // protocol level 3.1.1
+
+        int flags = 0x02; // clean session
+        if (willTopic != null) {
+            flags |= 0x04 | (willQos << 3) | 0x20; // will, QoS, retain
+        }
+        boolean hasUsername = username != null && !username.isEmpty();
+        if (hasUsername) {
+            flags |= 0x80;
+            if (password != null && !password.isEmpty()) {
+                flags |= 0x40;
+            }
+        }
+        body.write(flags);
+        body.write(keepAliveSeconds >> 8);
+        body.write(keepAliveSeconds);
+
+        writeString(body, clientId);
+        if (willTopic != null) {
+            writeString(body, willTopic);
+            writeBytes(body, willMessage.getBytes(UTF_8));
+        }
+        if ((flags & 0x80) != 0) {
+            writeString(body, username);
+        }
+        if ((flags & 0x40) != 0) {
+            writeString(body, password);
+        }
+        return packet(CONNECT << 4, body);
+    }
+
+    /**
+     * PUBLISH; the packet identifier is only written for QoS 1 and 2
+     */
+    static byte[] publish(String topic, byte[] payload, int qos, boolean retain, int packetId) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(topic.length() + payload.length + 4);
+        writeString(body, topic);
+        if (qos > 0) {
+            body.write(packetId >> 8);
+            body.write(packetId);
+        }
+        body.write(payload, 0, payload.length);
+        return packet((PUBLISH << 4) | (qos << 1) | (retain ? 1 : 0), body);
+    }
+
+    static byte[] pingreq() {
+        return new byte[]{(byte) (PINGREQ << 4), 0};
+    }
+
+    static byte[] disconnect() {
+        return new byte[]{(byte) (DISCONNECT << 4), 0};
+    }
+
+    /**
+     * Read one packet, blocking until it is complete
+     *
+     * @throws EOFException when the broker closed the connection
+     */
+    static Packet read(InputStream in) throws IOException {
+        int header = in.read();
+        if (header < 0) {
+            throw new EOFException("Connection closed by broker");
+        }
+
+        int length = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = in.read();
+            if (digit < 0) {
+                throw new EOFException("Connection closed by broker");
+            }
+            if (shift > 21) {
+                throw new IOException("Malformed remaining length");
+            }
+            length |= (digit & 0x7F) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) {
+                throw new EOFException("Connection closed by broker");
+            }
+            read += n;
+        }
+        return new Packet(header >> 4 & 0x0F, header & 0x0F, body);
+    }
+
+    /**
+     * Text for a CONNACK return code
+     */
+    static String connackReason(int code) {
+        switch (code) {
+            case 0:
+                return "accepted";
+            case 1:
+                return "unacceptable protocol version";
+            case 2:
+                return "client identifier rejected";
+            case 3:
+                return "server unavailable";
+            case 4:
+                return "bad user name or password";
+            case 5:
+                return "not authorized";
+            default:
+                return "return code " + code;
+        }
+    }
+
+    private static byte[] packet(int header, ByteArrayOutputStream body) {
+        int length = body.size();
+        if (length > MAX_REMAINING_LENGTH) {
+            throw new IllegalArgumentException("Packet too large: " + length + " bytes");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 5);
+        out.write(header);
+        do {
+            int digit = length & 0x7F;
+            length >>>= 7;
+            out.write(length > 0 ? digit | 0x80 : digit);
+        } while (length > 0);
+        out.write(body.toByteArray(), 0, body.size());
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        writeBytes(out, value.getBytes(UTF_8));
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, byte[] bytes) {
+        out.write(bytes.length >> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,518 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Delivers records to an MQTT broker, where Home Assistant picks them up through MQTT discovery.
+ *
+ * One connection is kept open on the transport's own thread. On every new connection the
+ * plugin's availability topic is set to online (the broker sets it to offline through the will
+ * when the connection is lost), and each key gets a retained discovery config the first time a
+ * record of it is published on that connection, named and with the unit AndrOBD reported in its
+ * data list. States are published as the bare value to androbd/&lt;object id&gt;/state.
+ *
+ * With QoS 1 a record is delivered when the broker acknowledged it, with QoS 0 when it was
+ * written. Records are never queued here: while the broker cannot be reached they fail at once
+ * and stay unsent in the sample store, which is drained with the latest value of each key once
+ * a send cycle reconnects. Connection attempts back off from one second to one minute.
+ */
+public class MqttTransport implements Transport, Handler.Callback {
+    private static final String TAG = "MqttTransport";
+
+    public static final String DEFAULT_DISCOVERY_PREFIX = "homeassistant";
+
+    // Base of the state and availability topics
+    private static final String TOPIC_BASE = "androbd";
+    private static final String AVAILABILITY_TOPIC = TOPIC_BASE + "/status";
+    private static final String ONLINE = "online";
+    private static final String OFFLINE = "offline";
+
+    private static final int DEFAULT_PORT = 1883;
+    private static final int DEFAULT_TLS_PORT = 8883;
+
+    private static final int KEEP_ALIVE_SECONDS = 60;
+    private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+    private static final long RECONNECT_MIN_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 60 * 1000;
+
+    private static final int MSG_SEND = 1;
+    private static final int MSG_PING = 2;
+    private static final int MSG_CONNECTION_LOST = 3;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ClientProvider clientProvider;
+    private final LogManager logManager;
+    private final Listener listener;
+    private final String host;
+    private final int port;
+    private final boolean tls;
+    private final String username;
+    private final String password;
+    private final int qos;
+    private final String discoveryPrefix;
+    private final String clientId;
+
+    // Display name and unit by key, from the data list
+    private final Map<String, String[]> itemInfo = new ConcurrentHashMap<>();
+
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Connection state; owned by the transport thread
+    private Socket socket;
+    private OutputStream out;
+    private long nextConnectAt;
+    private long reconnectDelay = RECONNECT_MIN_DELAY_MS;
+    private String lastError;
+    private int nextPacketId = 1;
+    private volatile String entityPrefix = "";
+    private final Map<String, String> publishedConfigs = new HashMap<>();
+
+    // QoS 1 records waiting for PUBACK by packet id; guarded by itself
+    private final SparseArray<DataRecord> inFlight = new SparseArray<>();
+
+    // Counters
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong discoveryCount = new AtomicLong();
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * @param brokerUrl broker as tcp://host:port or ssl://host:port (mqtt:// and mqtts:// too);
+     *                  a bare host name uses tcp on port 1883
+     */
+    public MqttTransport(ClientProvider clientProvider, LogManager logManager, Listener listener,
+                         String brokerUrl, String username, String password, int qos,
+                         String discoveryPrefix, String clientId) {
+        this.clientProvider = clientProvider;
+        this.logManager = logManager;
+        this.listener = listener;
+        this.username = username;
+        this.password = password;
+        this.qos = qos > 0 ? 1 : 0;
+        this.discoveryPrefix = discoveryPrefix == null || discoveryPrefix.trim().isEmpty()
+                ? DEFAULT_DISCOVERY_PREFIX : discoveryPrefix.trim();
+        this.clientId = clientId;
+
+        String parsedHost = null;
+        int parsedPort = DEFAULT_PORT;
+        boolean parsedTls = false;
+        String url = brokerUrl != null ? brokerUrl.trim() : "";
+        if (!url.isEmpty()) {
+            try {
+                URI uri = new URI(url.contains("://") ? url : "tcp://" + url);
+                String scheme = uri.getScheme().toLowerCase();
+                parsedTls = scheme.equals("ssl") || scheme.equals("mqtts");
+                parsedHost = uri.getHost();
+                parsedPort = uri.getPort() > 0 ? uri.getPort() : (parsedTls ? DEFAULT_TLS_PORT : DEFAULT_PORT);
+            } catch (URISyntaxException e) {
+                logManager.logError("Invalid MQTT broker URL: " + url);
+            }
+        }
+        host = parsedHost;
+        port = parsedPort;
+        tls = parsedTls;
+
+        thread = new HandlerThread("HA-Mqtt", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper(), this);
+    }
+
+    @Override
+    public String getName() {
+        return "MQTT (" + (tls ? "ssl://" : "tcp://") + host + ":" + port + ", QoS " + qos + ")";
+    }
+
+    /**
+     * Needs only the broker; Home Assistant URL and token are not used
+     */
+    @Override
+    public boolean isConfigured(Endpoint endpoint) {
+        return host != null;
+    }
+
+    /**
+     * Set the display name and unit used in the discovery config of a key
+     */
+    public void describe(String key, String name, String unit) {
+        itemInfo.put(key, new String[]{name != null ? name : "", unit != null ? unit : ""});
+    }
+
+    @Override
+    public void send(Endpoint endpoint, List<DataRecord> records) {
+        entityPrefix = endpoint.getEntityPrefix();
+        handler.obtainMessage(MSG_SEND, records).sendToTarget();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_SEND:
+                publish((List<DataRecord>) msg.obj);
+                return true;
+            case MSG_PING:
+                ping();
+                return true;
+            case MSG_CONNECTION_LOST:
+                Object[] lost = (Object[]) msg.obj;
+                connectionLost((Socket) lost[0], (String) lost[1]);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Publish discovery configs where needed and the states of all records in one write
+     */
+    private void publish(List<DataRecord> records) {
+        if (!ensureConnected()) {
+            failAll(records, 0, lastError);
+            return;
+        }
+
+        int written = 0;
+        int packetId = 0;
+        try {
+            for (DataRecord record : records) {
+                String objectId = toObjectId(record.getKey());
+                publishDiscovery(objectId, record);
+
+                byte[] payload = record.getValue().getBytes(UTF_8);
+                String topic = TOPIC_BASE + "/" + objectId + "/state";
+                if (qos > 0) {
+                    packetId = allocatePacketId();
+                    synchronized (inFlight) {
+                        inFlight.put(packetId, record);
+                    }
+                }
+                out.write(MqttCodec.publish(topic, payload, qos, false, packetId));
+                packetId = 0;
+                written++;
+            }
+            out.flush();
+            publishedCount.addAndGet(written);
+        } catch (IOException | JSONException e) {
+            if (packetId != 0) {
+                synchronized (inFlight) {
+                    inFlight.remove(packetId);
+                }
+            }
+            // Written QoS 1 records fail with the connection; QoS 0 ones may not have left the buffer
+            failAll(records, qos > 0 ? written : 0, e.getMessage());
+            connectionLost(socket, e.getMessage());
+            return;
+        }
+
+        if (qos == 0) {
+            deliveredCount.addAndGet(records.size());
+            for (DataRecord record : records) {
+                listener.onDelivered(record);
+            }
+        }
+        logManager.logDebug("Published " + records.size() + " states to MQTT");
+    }
+
+    /**
+     * Publish the retained discovery config of a key unless this connection already has it
+     */
+    private void publishDiscovery(String objectId, DataRecord record) throws IOException, JSONException {
+        String key = record.getKey();
+        String[] info = itemInfo.get(key);
+        String name = info != null && !info[0].isEmpty() ? info[0] : key;
+        String unit = info != null ? info[1] : "";
+
+        JSONObject config = new JSONObject();
+        config.put("name", name);
+        config.put("unique_id", objectId);
+        config.put("object_id", objectId);
+        config.put("state_topic", TOPIC_BASE + "/" + objectId + "/state");
+        config.put("availability_topic", AVAILABILITY_TOPIC);
+        if (!unit.isEmpty()) {
+            config.put("unit_of_measurement", unit);
+            if (record.isNumeric()) {
+                config.put("state_class", "measurement");
+            }
+        }
+        JSONObject device = new JSONObject();
+        device.put("identifiers", new JSONArray().put(clientId));
+        device.put("name", "AndrOBD");
+        device.put("manufacturer", "AndrOBD");
+        config.put("device", device);
+
+        String text = config.toString();
+        if (text.equals(publishedConfigs.get(key))) {
+            return;
+        }
+        String topic = discoveryPrefix + "/sensor/" + objectId + "/config";
+        out.write(MqttCodec.publish(topic, text.getBytes(UTF_8), qos, true, qos > 0 ? allocatePacketId() : 0));
+        publishedConfigs.put(key, text);
+        discoveryCount.incrementAndGet();
+    }
+
+    /**
+     * Object id of a key: the entity id the REST API would use, without its domain
+     */
+    private String toObjectId(String key) {
+        String entityId = RestTransport.toEntityId(entityPrefix, key);
+        return entityId.substring(entityId.indexOf('.') + 1);
+    }
+
+    /**
+     * Connect unless connected or still backing off from a failed attempt
+     */
+    private boolean ensureConnected() {
+        if (socket != null) {
+            return true;
+        }
+        if (System.currentTimeMillis() < nextConnectAt) {
+            return false;
+        }
+
+        Socket s = null;
+        try {
+            // Sockets come from the configured HTTP client, which may be bound to mobile data
+            OkHttpClient client = clientProvider.getClient();
+            s = client.socketFactory().createSocket();
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            if (tls) {
+                SSLSocket sslSocket = (SSLSocket) client.sslSocketFactory().createSocket(s, host, port, true);
+                s = sslSocket;
+                sslSocket.startHandshake();
+                if (!client.hostnameVerifier().verify(host, sslSocket.getSession())) {
+                    throw new IOException("Broker certificate does not match " + host);
+                }
+            }
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(CONNECT_TIMEOUT_MS);
+
+            OutputStream output = new BufferedOutputStream(s.getOutputStream());
+            InputStream input = new BufferedInputStream(s.getInputStream());
+            output.write(MqttCodec.connect(clientId, KEEP_ALIVE_SECONDS, AVAILABILITY_TOPIC, OFFLINE, qos,
+                    username, password));
+            output.flush();
+
+            MqttCodec.Packet connack = MqttCodec.read(input);
+            if (connack.type != MqttCodec.CONNACK || connack.body.length < 2) {
+                throw new IOException("Unexpected packet type " + connack.type);
+            }
+            int code = connack.body[1] & 0xFF;
+            if (code != 0) {
+                throw new IOException("Connection refused: " + MqttCodec.connackReason(code));
+            }
+
+            // A broker silent for 1.5 keep-alive periods is gone
+            s.setSoTimeout(KEEP_ALIVE_SECONDS * 1500);
+            socket = s;
+            out = output;
+            publishedConfigs.clear();
+            startReader(s, input);
+
+            out.write(MqttCodec.publish(AVAILABILITY_TOPIC, ONLINE.getBytes(UTF_8), qos, true,
+                    qos > 0 ? allocatePacketId() : 0));
+            out.flush();
+
+            connectCount.incrementAndGet();
+            reconnectDelay = RECONNECT_MIN_DELAY_MS;
+            handler.sendEmptyMessageDelayed(MSG_PING, KEEP_ALIVE_SECONDS * 1000 / 2);
+            logManager.logInfo("Connected to MQTT broker " + host + ":" + port);
+            return true;
+        } catch (Exception e) {
+            closeQuietly(s);
+            socket = null;
+            out = null;
+            lastError = e.getMessage();
+            nextConnectAt = System.currentTimeMillis() + reconnectDelay;
+            logManager.logError("MQTT connection to " + host + ":" + port + " failed: " + lastError +
+                    " (retry in " + reconnectDelay + "ms)");
+            reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_MAX_DELAY_MS);
+            return false;
+        }
+    }
+
+    /**
+     * Read acknowledgements until the connection ends, then hand the loss to the transport thread
+     */
+    private void startReader(final Socket s, final InputStream input) {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        MqttCodec.Packet packet = MqttCodec.read(input);
+                        if (packet.type == MqttCodec.PUBACK) {
+                            onPuback(packet.packetId());
+                        }
+                    }
+                } catch (IOException e) {
+                    handler.obtainMessage(MSG_CONNECTION_LOST, new Object[]{s, e.getMessage()}).sendToTarget();
+                }
+            }
+        }, "HA-MqttReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void onPuback(int packetId) {
+        DataRecord record;
+        synchronized (inFlight) {
+            record = inFlight.get(packetId);
+            if (record == null) {
+                // Discovery config or availability
+                return;
+            }
+            inFlight.remove(packetId);
+        }
+        deliveredCount.incrementAndGet();
+        listener.onDelivered(record);
+    }
+
+    private void ping() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            out.write(MqttCodec.pingreq());
+            out.flush();
+            handler.sendEmptyMessageDelayed(MSG_PING, KEEP_ALIVE_SECONDS * 1000 / 2);
+        } catch (IOException e) {
+            connectionLost(socket, e.getMessage());
+        }
+    }
+
+    /**
+     * Drop the connection; records waiting for PUBACK fail and stay unsent
+     */
+    private void connectionLost(Socket lost, String error) {
+        if (lost == null || lost != socket) {
+            return;
+        }
+        closeQuietly(socket);
+        socket = null;
+        out = null;
+        handler.removeMessages(MSG_PING);
+        logManager.logWarning("MQTT connection lost: " + error);
+
+        DataRecord[] unacknowledged;
+        synchronized (inFlight) {
+            unacknowledged = new DataRecord[inFlight.size()];
+            for (int i = 0; i < unacknowledged.length; i++) {
+                unacknowledged[i] = inFlight.valueAt(i);
+            }
+            inFlight.clear();
+        }
+        failedCount.addAndGet(unacknowledged.length);
+        for (DataRecord record : unacknowledged) {
+            listener.onFailed(record, "Connection lost");
+        }
+    }
+
+    /**
+     * Fail records from an index on that were not handed to the broker
+     */
+    private void failAll(List<DataRecord> records, int from, String error) {
+        failedCount.addAndGet(records.size() - from);
+        for (int i = from; i < records.size(); i++) {
+            listener.onFailed(records.get(i), error);
+        }
+    }
+
+    private int allocatePacketId() {
+        synchronized (inFlight) {
+            int id;
+            do {
+                id = nextPacketId;
+                nextPacketId = nextPacketId == 0xFFFF ? 1 : nextPacketId + 1;
+            } while (inFlight.get(id) != null);
+            return id;
+        }
+    }
+
+    private static void closeQuietly(Socket s) {
+        if (s == null) {
+            return;
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing MQTT socket", e);
+        }
+    }
+
+    @Override
+    public String getStats() {
+        int pending;
+        synchronized (inFlight) {
+            pending = inFlight.size();
+        }
+        return "connects=" + connectCount.get() +
+                ", published=" + publishedCount.get() +
+                ", discovery=" + discoveryCount.get() +
+                ", delivered=" + deliveredCount.get() +
+                ", failed=" + failedCount.get() +
+                ", inFlight=" + pending;
+    }
+
+    /**
+     * Mark the plugin offline and disconnect cleanly; sends not yet started are dropped
+     */
+    @Override
+    public void close() {
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (socket != null) {
+                    Socket s = socket;
+                    try {
+                        out.write(MqttCodec.publish(AVAILABILITY_TOPIC, OFFLINE.getBytes(UTF_8), 0, true, 0));
+                        out.write(MqttCodec.disconnect());
+                        out.flush();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Error disconnecting from MQTT broker", e);
+                    }
+                    socket = null;
+                    out = null;
+                    closeQuietly(s);
+                }
+                synchronized (inFlight) {
+                    inFlight.clear();
+                }
+                thread.quit();
+                logManager.logInfo("MQTT transport closed - " + getStats());
+            }
+        });
+    }
+}
@@ -0,0 +1,300 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.SocketFactory;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.Dns;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Keeps one HTTP client per mobile network, so keep-alive connections over mobile data are
+ * reused between sends instead of paying a new TCP and TLS handshake each time.
+ *
+ * Mobile networks are tracked with a network callback; a client bound to a network is built
+ * the first time it is asked for and dropped when the network is lost. Bound clients share
+ * the dispatcher and connection pool of the base client. Each has a DNS of its own that
+ * resolves over its network, which also keeps its pooled connections apart from the others,
+ * since the pool does not tell clients apart by socket factory.
+ *
+ * The cache is also the event listener of the base client and counts the connections made
+ * by all clients: each one is a TCP handshake, and a TLS handshake for https. Reused
+ * connections are counted as well.
+ */
+public class NetworkClientCache extends EventListener {
+
+    private static final long MINUTE_MS = 60 * 1000;
+
+    private final ConnectivityManager connectivityManager;
+    private final LogManager logManager;
+
+    private OkHttpClient baseClient;
+    private ConnectivityManager.NetworkCallback networkCallback;
+
+    // Available mobile networks, most recent last, and their clients; guarded by this
+    private final LinkedHashSet<Network> mobileNetworks = new LinkedHashSet<>();
+    private final Map<Network, OkHttpClient> clients = new HashMap<>();
+
+    // Counters; guarded by this
+    private long clientsBuilt;
+    private long connectCount;
+    private long tlsHandshakeCount;
+    private long connectFailedCount;
+    private long acquiredCount;
+    private long minuteStart;
+    private int handshakesThisMinute;
+    private int handshakesLastMinute;
+
+    public NetworkClientCache(ConnectivityManager connectivityManager, LogManager logManager) {
+        this.connectivityManager = connectivityManager;
+        this.logManager = logManager;
+    }
+
+    /**
+     * Set the client used without mobile data and start tracking mobile networks
+     *
+     * @param baseClient client with this cache as its event listener
+     */
+    public void start(OkHttpClient baseClient) {
+        synchronized (this) {
+            this.baseClient = baseClient;
+            if (networkCallback != null || connectivityManager == null ||
+                    Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                return;
+            }
+            networkCallback = createNetworkCallback();
+        }
+        try {
+            NetworkRequest request = new NetworkRequest.Builder()
+                    .addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR)
+                    .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                    .build();
+            connectivityManager.registerNetworkCallback(request, networkCallback);
+        } catch (Exception e) {
+            logManager.logError("Could not watch mobile networks", e);
+            synchronized (this) {
+                networkCallback = null;
+            }
+        }
+    }
+
+    /**
+     * Stop tracking mobile networks and drop the bound clients
+     */
+    public void stop() {
+        ConnectivityManager.NetworkCallback callback;
+        synchronized (this) {
+            callback = networkCallback;
+            networkCallback = null;
+            mobileNetworks.clear();
+            clients.clear();
+        }
+        if (callback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                connectivityManager.unregisterNetworkCallback(callback);
+            } catch (Exception e) {
+                logManager.logError("Could not stop watching mobile networks", e);
+            }
+        }
+    }
+
+    /**
+     * Get the client to send with
+     *
+     * @param mobileData bind to mobile data when a mobile network is available
+     */
+    public synchronized OkHttpClient getClient(boolean mobileData) {
+        if (!mobileData || mobileNetworks.isEmpty() || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return baseClient;
+        }
+
+        Network network = null;
+        for (Network candidate : mobileNetworks) {
+            network = candidate;
+        }
+        OkHttpClient client = clients.get(network);
+        if (client == null) {
+            client = baseClient.newBuilder()
+                    .socketFactory(new NetworkBoundSocketFactory(network))
+                    .dns(new NetworkDns(network))
+                    .build();
+            clients.put(network, client);
+            clientsBuilt++;
+            logManager.logInfo("Created HTTP client bound to mobile network " + network);
+        }
+        return client;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private ConnectivityManager.NetworkCallback createNetworkCallback() {
+        return new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                synchronized (NetworkClientCache.this) {
+                    mobileNetworks.remove(network);
+                    mobileNetworks.add(network);
+                }
+                logManager.logDebug("Mobile network available: " + network);
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                synchronized (NetworkClientCache.this) {
+                    mobileNetworks.remove(network);
+                    clients.remove(network);
+                }
+                logManager.logInfo("Mobile network lost: " + network);
+            }
+        };
+    }
+
+    @Override
+    public void connectEnd(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                           @NonNull Proxy proxy, Protocol protocol) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            connectCount++;
+            rollMinute(now);
+            handshakesThisMinute++;
+        }
+    }
+
+    @Override
+    public void connectFailed(@NonNull Call call, @NonNull InetSocketAddress inetSocketAddress,
+                              @NonNull Proxy proxy, Protocol protocol, @NonNull IOException ioe) {
+        synchronized (this) {
+            connectFailedCount++;
+        }
+    }
+
+    @Override
+    public void secureConnectEnd(@NonNull Call call, Handshake handshake) {
+        synchronized (this) {
+            tlsHandshakeCount++;
+        }
+    }
+
+    @Override
+    public void connectionAcquired(@NonNull Call call, @NonNull Connection connection) {
+        synchronized (this) {
+            acquiredCount++;
+        }
+    }
+
+    private void rollMinute(long now) {
+        if (now - minuteStart >= MINUTE_MS) {
+            // A gap of more than a minute leaves nothing for the last one
+            handshakesLastMinute = now - minuteStart < 2 * MINUTE_MS ? handshakesThisMinute : 0;
+            handshakesThisMinute = 0;
+            minuteStart = now - (now - minuteStart) % MINUTE_MS;
+        }
+    }
+
+    /**
+     * Get a one-line summary of the client counters for logging
+     */
+    public synchronized String getStats() {
+        rollMinute(System.currentTimeMillis());
+        long reused = Math.max(0, acquiredCount - connectCount);
+        return "mobileNetworks=" + mobileNetworks.size() +
+                ", clientsBuilt=" + clientsBuilt +
+                ", connects=" + connectCount +
+                ", connectFailed=" + connectFailedCount +
+                ", tlsHandshakes=" + tlsHandshakeCount +
+                ", handshakesLastMinute=" + handshakesLastMinute +
+                ", reused=" + (acquiredCount > 0 ? reused * 100 / acquiredCount : 0) + "%";
+    }
+
+    /**
+     * SocketFactory that binds sockets to a specific network
+     * Requires Android 5.0+ (API 21+)
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static class NetworkBoundSocketFactory extends SocketFactory {
+        private final Network network;
+
+        NetworkBoundSocketFactory(Network network) {
+            this.network = network;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return network.getSocketFactory().createSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return network.getSocketFactory().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return network.getSocketFactory().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return network.getSocketFactory().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return network.getSocketFactory().createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    /**
+     * Resolves host names over a specific network, IPv4 addresses first
+     */
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static class NetworkDns implements Dns {
+        private final Network network;
+
+        NetworkDns(Network network) {
+            this.network = network;
+        }
+
+        @NonNull
+        @Override
+        public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
+            List<InetAddress> result = new ArrayList<>(Arrays.asList(network.getAllByName(hostname)));
+            List<InetAddress> ipv6 = new ArrayList<>();
+            for (int i = result.size() - 1; i >= 0; i--) {
+                if (!(result.get(i) instanceof Inet4Address)) {
+                    ipv6.add(0, result.remove(i));
+                }
+            }
+            result.addAll(ipv6);
+            if (result.isEmpty()) {
+                throw new UnknownHostException("No addresses found for: " + hostname);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Limits the HTTP calls in flight per host and queues the rest.
+ *
+ * Requests are queued per host and started when a slot is free, so a slow Home Assistant is
+ * never faced with more than the configured number of calls, and queued requests do not use
+ * up their call timeout while they wait. Each request carries a key; a request submitted
+ * while one with the same key is still queued replaces it in its place in the queue, and the
+ * replaced one is reported as dropped. A call already started is left to complete, since
+ * Home Assistant may have applied it, and the newer value follows it. The queued requests of a
+ * host can also be dropped at once, e.g. while it is known to be down.
+ *
+ * Queues are first in, first out; with priority order, requests of low-priority keys start
+ * only when no other request of the host is waiting.
+ */
+public class RequestScheduler {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    /**
+     * Receives the outcome of a scheduled request, on OkHttp threads
+     */
+    public interface ScheduledCallback extends Callback {
+        /**
+         * The request was removed from the queue before it started, e.g. replaced by a newer
+         * request with the same key
+         */
+        void onDropped(String reason);
+    }
+
+    private static final class Pending {
+        final Request request;
+        final OkHttpClient client;
+        final ScheduledCallback callback;
+        final long queuedAt;
+
+        Pending(Request request, OkHttpClient client, ScheduledCallback callback) {
+            this.request = request;
+            this.client = client;
+            this.callback = callback;
+            this.queuedAt = System.currentTimeMillis();
+        }
+    }
+
+    private static final class HostQueue {
+        final LinkedHashMap<String, Pending> normal = new LinkedHashMap<>();
+        final LinkedHashMap<String, Pending> low = new LinkedHashMap<>();
+        int inFlight;
+
+        int size() {
+            return normal.size() + low.size();
+        }
+    }
+
+    // Queues by host; guarded by this
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private boolean priorityOrder;
+    private Set<String> lowPriorityKeys = Collections.emptySet();
+
+    // Counters; guarded by this
+    private long submittedCount;
+    private long startedCount;
+    private long supersededCount;
+    private long cancelledCount;
+    private long completedCount;
+    private long failedCount;
+    private long waitTotalMs;
+    private long waitMaxMs;
+    private int queueDepthMax;
+
+    /**
+     * Set the number of calls in flight per host; raising it starts waiting requests
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        synchronized (this) {
+            this.maxInFlight = Math.max(1, maxInFlight);
+        }
+        startAll();
+    }
+
+    /**
+     * Start requests of the given keys only when nothing else of the host is waiting;
+     * false or no keys queue all requests in order
+     */
+    public synchronized void setPriorityOrder(boolean priorityOrder, Set<String> lowPriorityKeys) {
+        this.priorityOrder = priorityOrder;
+        this.lowPriorityKeys = lowPriorityKeys != null ? new HashSet<>(lowPriorityKeys) : Collections.<String>emptySet();
+    }
+
+    /**
+     * Queue a request and start it once its host has a free slot
+     *
+     * @param key requests with equal keys supersede each other while queued
+     */
+    public void submit(String key, Request request, OkHttpClient client, ScheduledCallback callback) {
+        Pending superseded;
+        synchronized (this) {
+            String host = request.url().host();
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                queue = new HostQueue();
+                hosts.put(host, queue);
+            }
+            Pending pending = new Pending(request, client, callback);
+            boolean low = priorityOrder && lowPriorityKeys.contains(key);
+            superseded = (low ? queue.normal : queue.low).remove(key);
+            Pending replaced = (low ? queue.low : queue.normal).put(key, pending);
+            if (replaced != null) {
+                superseded = replaced;
+            }
+            submittedCount++;
+            if (superseded != null) {
+                supersededCount++;
+            }
+            queueDepthMax = Math.max(queueDepthMax, queue.size());
+        }
+        if (superseded != null) {
+            superseded.callback.onDropped("Superseded");
+        }
+        startAll();
+    }
+
+    /**
+     * Drop all requests of a host that have not started yet
+     *
+     * @return number of requests dropped
+     */
+    public int cancelQueued(String host, String reason) {
+        List<Pending> dropped = new ArrayList<>();
+        synchronized (this) {
+            HostQueue queue = hosts.get(host);
+            if (queue == null) {
+                return 0;
+            }
+            dropped.addAll(queue.normal.values());
+            dropped.addAll(queue.low.values());
+            queue.normal.clear();
+            queue.low.clear();
+            cancelledCount += dropped.size();
+        }
+        for (Pending pending : dropped) {
+            pending.callback.onDropped(reason);
+        }
+        return dropped.size();
+    }
+
+    /**
+     * Start waiting requests on every host with free slots
+     */
+    private void startAll() {
+        while (true) {
+            Pending next = null;
+            synchronized (this) {
+                for (HostQueue queue : hosts.values()) {
+                    if (queue.inFlight < maxInFlight) {
+                        next = poll(queue);
+                        if (next != null) {
+                            queue.inFlight++;
+                            break;
+                        }
+                    }
+                }
+                if (next == null) {
+                    return;
+                }
+                long waited = System.currentTimeMillis() - next.queuedAt;
+                startedCount++;
+                waitTotalMs += waited;
+                waitMaxMs = Math.max(waitMaxMs, waited);
+            }
+            start(next);
+        }
+    }
+
+    private static Pending poll(HostQueue queue) {
+        LinkedHashMap<String, Pending> source = !queue.normal.isEmpty() ? queue.normal : queue.low;
+        Iterator<Pending> it = source.values().iterator();
+        if (!it.hasNext()) {
+            return null;
+        }
+        Pending next = it.next();
+        it.remove();
+        return next;
+    }
+
+    private void start(final Pending pending) {
+        pending.client.newCall(pending.request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                finished(pending, false);
+                pending.callback.onFailure(call, e);
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) throws IOException {
+                finished(pending, response.isSuccessful());
+                pending.callback.onResponse(call, response);
+            }
+        });
+    }
+
+    private void finished(Pending pending, boolean success) {
+        synchronized (this) {
+            HostQueue queue = hosts.get(pending.request.url().host());
+            if (queue != null) {
+                queue.inFlight--;
+            }
+            if (success) {
+                completedCount++;
+            } else {
+                failedCount++;
+            }
+        }
+        startAll();
+    }
+
+    /**
+     * Requests waiting for a slot, on all hosts
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (HostQueue queue : hosts.values()) {
+            depth += queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Calls in flight, on all hosts
+     */
+    public synchronized int getInFlightCount() {
+        int inFlight = 0;
+        for (HostQueue queue : hosts.values()) {
+            inFlight += queue.inFlight;
+        }
+        return inFlight;
+    }
+
+    /**
+     * Get a one-line summary of the scheduler counters for logging
+     */
+    public synchronized String getStats() {
+        return "maxInFlight=" + maxInFlight +
+                ", inFlight=" + getInFlightCount() +
+                ", queued=" + getQueueDepth() +
+                ", queuedMax=" + queueDepthMax +
+                ", submitted=" + submittedCount +
+                ", superseded=" + supersededCount +
+                ", cancelled=" + cancelledCount +
+                ", completed=" + completedCount +
+                ", failed=" + failedCount +
+                ", waitAvg=" + (startedCount > 0 ? waitTotalMs / startedCount : 0) + "ms" +
+                ", waitMax=" + waitMaxMs + "ms";
+    }
+}
@@ -0,0 +1,415 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Delivers records over the Home Assistant REST API, either as one state request per
+ * record or as one batch request per send call (event or webhook).
+ *
+ * Network errors and server errors count towards the circuit breaker of the endpoint. While
+ * it is open, send calls hold their records back and queued requests are dropped; a due probe
+ * is a GET of /api/ instead.
+ */
+public class RestTransport implements Transport {
+    private static final String TAG = "RestTransport";
+
+    // Upload modes: one state request per key, or all keys of a cycle in one request
+    public static final String UPLOAD_PER_ENTITY = "per_entity";
+    public static final String UPLOAD_EVENT = "event";
+    public static final String UPLOAD_WEBHOOK = "webhook";
+
+    static final String BATCH_EVENT_TYPE = "androbd_batch";
+
+    // Key of batch requests; a newer batch supersedes a queued one
+    private static final String BATCH_KEY = "\u0000batch";
+
+    private static final String UNREACHABLE = "Home Assistant unreachable";
+
+    private static final long PROBE_TIMEOUT_SECONDS = 10;
+
+    private final ClientProvider clientProvider;
+    private final RequestScheduler scheduler;
+    private final CircuitBreaker breaker;
+    private final LogManager logManager;
+    private final Listener listener;
+    private final String uploadMode;
+    private final String webhookId;
+
+    // Counters
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failedRequestCount = new AtomicLong();
+    private final AtomicLong heldRecordCount = new AtomicLong();
+
+    // Templates of the state API; per-entity mode only
+    private volatile StateEncoder encoder;
+
+    public RestTransport(ClientProvider clientProvider, RequestScheduler scheduler, CircuitBreaker breaker,
+                         LogManager logManager, Listener listener, String uploadMode, String webhookId) {
+        this.clientProvider = clientProvider;
+        this.scheduler = scheduler;
+        this.breaker = breaker;
+        this.logManager = logManager;
+        this.listener = listener;
+        this.uploadMode = uploadMode;
+        this.webhookId = webhookId != null ? webhookId.trim() : "";
+    }
+
+    @Override
+    public String getName() {
+        return "REST (" + uploadMode + ")";
+    }
+
+    /**
+     * Whether the configured mode needs the access token
+     */
+    private boolean needsToken() {
+        // Webhooks are not authenticated
+        return !UPLOAD_WEBHOOK.equals(uploadMode);
+    }
+
+    @Override
+    public boolean isConfigured(Endpoint endpoint) {
+        return !endpoint.getBaseUrl().isEmpty() && (!endpoint.getToken().isEmpty() || !needsToken());
+    }
+
+    @Override
+    public void send(Endpoint endpoint, List<DataRecord> records) {
+        String baseUrl = endpoint.getBaseUrl();
+        if (!breaker.allowsRequests(baseUrl)) {
+            if (breaker.startProbe(baseUrl)) {
+                sendProbe(endpoint);
+            }
+            // Records stay unsent until the probe found Home Assistant again
+            heldRecordCount.addAndGet(records.size());
+            failAll(records, UNREACHABLE);
+            return;
+        }
+
+        if (UPLOAD_PER_ENTITY.equals(uploadMode)) {
+            StateEncoder encoder;
+            try {
+                encoder = getEncoder(endpoint);
+            } catch (IllegalArgumentException e) {
+                logManager.logError("Invalid Home Assistant URL: " + baseUrl);
+                failAll(records, e.getMessage());
+                return;
+            }
+            // Send each unique key's latest record
+            for (DataRecord record : records) {
+                sendSensorUpdate(encoder, endpoint, record);
+            }
+        } else {
+            sendBatchUpdate(endpoint, records);
+        }
+    }
+
+    /**
+     * Encoder of the endpoint; a changed endpoint starts with new templates
+     */
+    private StateEncoder getEncoder(Endpoint endpoint) {
+        StateEncoder current = encoder;
+        if (current == null || current.getEndpoint() != endpoint) {
+            current = new StateEncoder(endpoint);
+            encoder = current;
+        }
+        return current;
+    }
+
+    /**
+     * Send individual sensor update to Home Assistant
+     */
+    private void sendSensorUpdate(StateEncoder encoder, Endpoint endpoint, final DataRecord record) {
+        final String baseUrl = endpoint.getBaseUrl();
+        final String key = record.getKey();
+        String value = record.getValue();
+        long timestamp = record.getTimestamp();
+
+        StateEncoder.Template template = encoder.template(key);
+        final String entityId = template.entityId;
+
+        try {
+            Request request = new Request.Builder()
+                    .url(template.url)
+                    .header("Authorization", endpoint.getAuthorization())
+                    .post(StateEncoder.encode(template, value, timestamp))
+                    .build();
+
+            if (logManager.isLoggingEnabled()) {
+                logManager.logDebug("Sending " + key + " = " + value + " (ts=" + timestamp + ") to " + entityId);
+            }
+            requestCount.incrementAndGet();
+
+            // Use configured HTTP client (may be bound to mobile network)
+            OkHttpClient clientToUse = clientProvider.getClient();
+            scheduler.submit(key, request, clientToUse, new RequestScheduler.ScheduledCallback() {
+                @Override
+                public void onDropped(String reason) {
+                    // A superseded record is covered by the newer record's acknowledgement
+                    listener.onFailed(record, reason);
+                }
+
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    failedRequestCount.incrementAndGet();
+                    logManager.logError("Network error sending update for " + key + ": " + e.getMessage());
+                    // Data will remain unsent and retry on next update cycle
+                    listener.onFailed(record, e.getMessage());
+                    reportFailure(baseUrl, call, e.getMessage());
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    try {
+                        reportResponse(baseUrl, call, response);
+                        if (response.isSuccessful()) {
+                            listener.onDelivered(record);
+                        } else {
+                            failedRequestCount.incrementAndGet();
+                            logManager.logError("HTTP error updating " + entityId + ": " + response.code() + " " + response.message());
+                            // Log response body for debugging if available
+                            if (response.body() != null) {
+                                try {
+                                    String responseBody = response.body().string();
+                                    if (responseBody != null && !responseBody.isEmpty()) {
+                                        logManager.logError("Response body: " + responseBody);
+                                    }
+                                } catch (IOException e) {
+                                    Log.e(TAG, "Could not read error response body", e);
+                                }
+                            }
+                            listener.onFailed(record, "HTTP " + response.code());
+                        }
+                    } finally {
+                        response.close();
+                    }
+                }
+            });
+        } catch (Exception e) {
+            logManager.logError("Unexpected error sending update for " + key, e);
+            listener.onFailed(record, e.getMessage());
+        }
+    }
+
+    /**
+     * Send the latest records of all keys in a single request, either as one
+     * androbd_batch event or to a webhook. Home Assistant fans the batch out to
+     * template sensors (see README). All records are delivered once the request succeeds.
+     */
+    private void sendBatchUpdate(Endpoint endpoint, final List<DataRecord> records) {
+        final String baseUrl = endpoint.getBaseUrl();
+        String url;
+        if (UPLOAD_WEBHOOK.equals(uploadMode)) {
+            if (webhookId.isEmpty()) {
+                logManager.logWarning("Webhook upload selected but no webhook ID configured");
+                failAll(records, "No webhook ID");
+                return;
+            }
+            url = endpoint.getBaseUrl() + "/api/webhook/" + webhookId;
+        } else {
+            url = endpoint.getBaseUrl() + "/api/events/" + BATCH_EVENT_TYPE;
+        }
+
+        try {
+            RequestBody body = RequestBody.create(
+                    createBatchPayload(endpoint.getEntityPrefix(), records).toString(),
+                    StateEncoder.JSON
+            );
+
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(url)
+                    .post(body);
+            if (needsToken()) {
+                requestBuilder.header("Authorization", endpoint.getAuthorization());
+            }
+
+            final int count = records.size();
+            logManager.logDebug("Sending batch of " + count + " states (" + uploadMode + ")");
+            requestCount.incrementAndGet();
+
+            OkHttpClient clientToUse = clientProvider.getClient();
+            scheduler.submit(BATCH_KEY, requestBuilder.build(), clientToUse, new RequestScheduler.ScheduledCallback() {
+                @Override
+                public void onDropped(String reason) {
+                    failAll(records, reason);
+                }
+
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    failedRequestCount.incrementAndGet();
+                    logManager.logError("Network error sending batch of " + count + " states: " + e.getMessage());
+                    // Records stay unsent and are retried on the next update cycle
+                    failAll(records, e.getMessage());
+                    reportFailure(baseUrl, call, e.getMessage());
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    try {
+                        reportResponse(baseUrl, call, response);
+                        if (response.isSuccessful()) {
+                            for (DataRecord record : records) {
+                                listener.onDelivered(record);
+                            }
+                            logManager.logInfo("Successfully sent batch of " + count + " states");
+                        } else {
+                            failedRequestCount.incrementAndGet();
+                            logManager.logError("HTTP error sending batch: " + response.code() + " " + response.message());
+                            failAll(records, "HTTP " + response.code());
+                        }
+                    } finally {
+                        response.close();
+                    }
+                }
+            });
+        } catch (JSONException e) {
+            logManager.logError("Error creating batch JSON", e);
+            failAll(records, e.getMessage());
+        } catch (Exception e) {
+            logManager.logError("Unexpected error sending batch", e);
+            failAll(records, e.getMessage());
+        }
+    }
+
+    /**
+     * Ask Home Assistant whether it is back, with a short timeout
+     */
+    private void sendProbe(Endpoint endpoint) {
+        final String baseUrl = endpoint.getBaseUrl();
+        logManager.logInfo("Probing Home Assistant at " + baseUrl);
+        try {
+            Request.Builder requestBuilder = new Request.Builder()
+                    .url(baseUrl + "/api/")
+                    .get();
+            if (!endpoint.getToken().isEmpty()) {
+                requestBuilder.header("Authorization", endpoint.getAuthorization());
+            }
+            OkHttpClient probeClient = clientProvider.getClient().newBuilder()
+                    .callTimeout(PROBE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .build();
+            probeClient.newCall(requestBuilder.build()).enqueue(new Callback() {
+                @Override
+                public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                    breaker.onProbeResult(baseUrl, false, e.getMessage());
+                }
+
+                @Override
+                public void onResponse(@NonNull Call call, @NonNull Response response) {
+                    // Any answer but an outage shows Home Assistant is up, even 401
+                    breaker.onProbeResult(baseUrl, !isOutage(response.code()), "HTTP " + response.code());
+                    response.close();
+                }
+            });
+        } catch (Exception e) {
+            breaker.onProbeResult(baseUrl, false, e.getMessage());
+        }
+    }
+
+    /**
+     * Count a response towards the circuit breaker
+     */
+    private void reportResponse(String baseUrl, Call call, Response response) {
+        if (isOutage(response.code())) {
+            reportFailure(baseUrl, call, "HTTP " + response.code());
+        } else {
+            breaker.onSuccess(baseUrl);
+        }
+    }
+
+    private void reportFailure(String baseUrl, Call call, String error) {
+        if (breaker.onFailure(baseUrl, error)) {
+            // Requests still waiting would only wait out their timeouts
+            int dropped = scheduler.cancelQueued(call.request().url().host(), UNREACHABLE);
+            if (dropped > 0) {
+                logManager.logInfo("Dropped " + dropped + " queued requests, records stay unsent");
+            }
+        }
+    }
+
+    /**
+     * Whether a status means Home Assistant is down or overloaded rather than refusing the request
+     */
+    static boolean isOutage(int code) {
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    private void failAll(List<DataRecord> records, String error) {
+        for (DataRecord record : records) {
+            listener.onFailed(record, error);
+        }
+    }
+
+    /**
+     * Build the body of a batch: entity id, key, state and timestamp per record
+     */
+    static JSONObject createBatchPayload(String entityPrefix, List<DataRecord> records) throws JSONException {
+        JSONArray states = new JSONArray();
+        for (DataRecord record : records) {
+            JSONObject state = new JSONObject();
+            state.put("entity_id", toEntityId(entityPrefix, record.getKey()));
+            state.put("key", record.getKey());
+            state.put("state", record.getValue());
+            state.put("timestamp", record.getTimestamp());
+            states.put(state);
+        }
+        JSONObject json = new JSONObject();
+        json.put("source", "AndrOBD");
+        json.put("sent_at", System.currentTimeMillis());
+        json.put("states", states);
+        return json;
+    }
+
+    /**
+     * Clean up a key to make it a valid entity ID: lower case, every run of characters
+     * other than a-z, 0-9 and _ becomes a single _
+     */
+    static String toEntityId(String entityPrefix, String key) {
+        String lower = key.toLowerCase();
+        StringBuilder id = new StringBuilder(entityPrefix.length() + lower.length());
+        id.append(entityPrefix);
+        boolean underscore = false;
+        for (int i = 0; i < lower.length(); i++) {
+            char c = lower.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                id.append(c);
+                underscore = false;
+            } else if (!underscore) {
+                id.append('_');
+                underscore = true;
+            }
+        }
+        return id.toString();
+    }
+
+    @Override
+    public String getStats() {
+        return "requests=" + requestCount.get() + ", failed=" + failedRequestCount.get() +
+                ", held=" + heldRecordCount.get() +
+                ", scheduler: " + scheduler.getStats() +
+                ", breaker: " + breaker.getStats();
+    }
+
+    /**
+     * Calls in progress complete on the shared client
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,396 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Keeps the sample store within configured limits.
+ *
+ * A retention pass runs on its own background thread in small slices, one storage unit
+ * (segment, block or batch of key records) per slice, with a short pause between slices
+ * so ingest and sending are never blocked for long. Each pass applies in order:
+ * <ol>
+ * <li>drop acknowledged segments older than {@link #SENT_RETENTION_MS}</li>
+ * <li>maximum age: evict the oldest segments, sent or not</li>
+ * <li>maximum records per key: evict the oldest records of keys above the limit</li>
+ * <li>maximum size: evict with the configured {@link EvictionPolicy}, falling back to
+ *     oldest-first once the policy has nothing left</li>
+ * </ol>
+ * What was reclaimed is logged as a {@link Report} at the end of each pass.
+ */
+public class RetentionEngine implements Handler.Callback {
+    private static final String TAG = "RetentionEngine";
+
+    // Acknowledged records are kept this long before their segment is dropped
+    static final long SENT_RETENTION_MS = 24 * 60 * 60 * 1000;
+
+    // Records of one key evicted per slice
+    private static final long KEY_SLICE_RECORDS = 10000;
+
+    // Pause between slices
+    private static final long SLICE_DELAY_MS = 100;
+
+    private static final int MSG_START_PASS = 1;
+    private static final int MSG_RUN_SLICE = 2;
+
+    private static final int PHASE_EXPIRED = 0;
+    private static final int PHASE_AGE = 1;
+    private static final int PHASE_KEY_COUNT = 2;
+    private static final int PHASE_SIZE = 3;
+    private static final int PHASE_DONE = 4;
+
+    /**
+     * Order in which records are evicted when the size limit is exceeded
+     */
+    public interface EvictionPolicy {
+        /**
+         * Name for logging
+         */
+        String getName();
+
+        /**
+         * Reclaim one slice of storage
+         *
+         * @return number of records removed, 0 if this policy has nothing left to remove
+         */
+        long evictSlice(SampleStore store);
+    }
+
+    /**
+     * Evict whole segments, oldest first, whether sent or not
+     */
+    public static class OldestFirstPolicy implements EvictionPolicy {
+        @Override
+        public String getName() {
+            return "oldest-first";
+        }
+
+        @Override
+        public long evictSlice(SampleStore store) {
+            return store.evictOldestSegment(Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Thin old segments to one record per key and interval before anything is evicted
+     */
+    public static class DownsamplePolicy implements EvictionPolicy {
+        private final long intervalMs;
+
+        public DownsamplePolicy(long intervalMs) {
+            this.intervalMs = intervalMs;
+        }
+
+        @Override
+        public String getName() {
+            return "downsample (" + (intervalMs / 1000) + "s)";
+        }
+
+        @Override
+        public long evictSlice(SampleStore store) {
+            return Math.max(0, store.downsampleOldestSegment(intervalMs));
+        }
+    }
+
+    /**
+     * Evict all records of the given data items, oldest first, before anything else
+     */
+    public static class LowPriorityKeysPolicy implements EvictionPolicy {
+        private final Set<String> keys;
+
+        public LowPriorityKeysPolicy(Set<String> keys) {
+            this.keys = Collections.unmodifiableSet(new HashSet<>(keys));
+        }
+
+        @Override
+        public String getName() {
+            return "low-priority keys (" + keys.size() + ")";
+        }
+
+        @Override
+        public long evictSlice(SampleStore store) {
+            if (keys.isEmpty()) {
+                return 0;
+            }
+            long[] counts = store.getRecordCountsByKey();
+            for (int keyId = 1; keyId < counts.length; keyId++) {
+                if (counts[keyId] > 0 && keys.contains(store.getKeyName(keyId))) {
+                    long removed = store.evictOldestRecordsOfKey(keyId, KEY_SLICE_RECORDS);
+                    if (removed > 0) {
+                        return removed;
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * What one retention pass reclaimed
+     */
+    public static class Report {
+        public int expiredSegments;
+        public long ageRecords;
+        public long keyLimitRecords;
+        public long sizeRecords;
+        public long bytesBefore;
+        public long bytesAfter;
+        public int slices;
+        public long durationMs;
+
+        public long getTotalRecords() {
+            return ageRecords + keyLimitRecords + sizeRecords;
+        }
+
+        @Override
+        public String toString() {
+            return "expiredSegments=" + expiredSegments +
+                    ", ageRecords=" + ageRecords +
+                    ", keyLimitRecords=" + keyLimitRecords +
+                    ", sizeRecords=" + sizeRecords +
+                    ", bytes=" + bytesBefore + "->" + bytesAfter +
+                    ", slices=" + slices +
+                    ", duration=" + durationMs + "ms";
+        }
+    }
+
+    private final LogManager logManager;
+    private final EvictionPolicy fallbackPolicy = new OldestFirstPolicy();
+
+    private HandlerThread thread;
+    private Handler handler;
+
+    // Limits; 0 disables a limit
+    private volatile long maxBytes;
+    private volatile long maxAgeMs;
+    private volatile long maxRecordsPerKey;
+    private volatile EvictionPolicy evictionPolicy = fallbackPolicy;
+
+    // Pass state; only used on the engine thread under this object's lock
+    private SampleStore sampleStore;
+    private int phase = PHASE_DONE;
+    private long passStart;
+    private long[] keyCounts;
+    private int keyCursor;
+    private Report report;
+    private volatile Report lastReport;
+
+    public RetentionEngine(LogManager logManager) {
+        this.logManager = logManager;
+    }
+
+    /**
+     * Start the engine thread
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new HandlerThread("HA-Retention", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper(), this);
+    }
+
+    /**
+     * Stop the engine thread. A slice in progress is completed first.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        handler.removeCallbacksAndMessages(null);
+        thread.quit();
+        thread = null;
+        handler = null;
+        phase = PHASE_DONE;
+    }
+
+    /**
+     * Set the store to keep within limits. A pass running against the previous store
+     * is abandoned; pass null before closing a store.
+     */
+    public synchronized void setSampleStore(SampleStore store) {
+        sampleStore = store;
+        phase = PHASE_DONE;
+        if (handler != null) {
+            handler.removeMessages(MSG_RUN_SLICE);
+        }
+    }
+
+    /**
+     * Set the limits; 0 disables a limit
+     */
+    public void setLimits(long maxBytes, long maxAgeMs, long maxRecordsPerKey) {
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        this.maxRecordsPerKey = maxRecordsPerKey;
+    }
+
+    /**
+     * Set the order in which records are evicted when the size limit is exceeded
+     */
+    public void setEvictionPolicy(EvictionPolicy policy) {
+        evictionPolicy = policy != null ? policy : fallbackPolicy;
+    }
+
+    /**
+     * Run a retention pass unless one is already running
+     */
+    public synchronized void requestPass() {
+        if (handler != null && !handler.hasMessages(MSG_START_PASS)) {
+            handler.sendEmptyMessage(MSG_START_PASS);
+        }
+    }
+
+    /**
+     * Report of the last completed pass, or null
+     */
+    public Report getLastReport() {
+        return lastReport;
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        boolean more;
+        synchronized (this) {
+            if (msg.what == MSG_START_PASS) {
+                if (phase != PHASE_DONE || sampleStore == null || handler == null) {
+                    return true;
+                }
+                startPass();
+            } else if (msg.what != MSG_RUN_SLICE) {
+                return false;
+            } else if (phase == PHASE_DONE) {
+                // Pass was abandoned
+                return true;
+            }
+
+            try {
+                more = runSlice();
+            } catch (Exception e) {
+                Log.e(TAG, "Retention slice failed", e);
+                logManager.logError("Retention slice failed", e);
+                more = false;
+            }
+            report.slices++;
+
+            if (more) {
+                handler.sendEmptyMessageDelayed(MSG_RUN_SLICE, SLICE_DELAY_MS);
+                return true;
+            }
+            finishPass();
+        }
+        return true;
+    }
+
+    private void startPass() {
+        phase = PHASE_EXPIRED;
+        passStart = System.currentTimeMillis();
+        keyCounts = null;
+        keyCursor = 1;
+        report = new Report();
+        report.bytesBefore = sampleStore.getStorageSizeBytes();
+    }
+
+    private void finishPass() {
+        phase = PHASE_DONE;
+        keyCounts = null;
+        report.bytesAfter = sampleStore.getStorageSizeBytes();
+        report.durationMs = System.currentTimeMillis() - passStart;
+        lastReport = report;
+
+        if (report.expiredSegments > 0 || report.getTotalRecords() > 0) {
+            logManager.logInfo("Retention pass reclaimed " + report.getTotalRecords() + " records and " +
+                    report.expiredSegments + " sent segments (" + report + ")");
+        } else {
+            logManager.logDebug("Retention pass: nothing to reclaim (" + report + ")");
+        }
+    }
+
+    /**
+     * Run one unit of work of the current phase
+     *
+     * @return true if the pass has more work
+     */
+    private boolean runSlice() {
+        SampleStore store = sampleStore;
+        long now = System.currentTimeMillis();
+
+        switch (phase) {
+            case PHASE_EXPIRED:
+                report.expiredSegments = store.dropExpiredSegments(now - SENT_RETENTION_MS);
+                phase = PHASE_AGE;
+                return true;
+
+            case PHASE_AGE:
+                if (maxAgeMs > 0) {
+                    long removed = store.evictOldestSegment(now - maxAgeMs);
+                    if (removed > 0) {
+                        report.ageRecords += removed;
+                        return true;
+                    }
+                }
+                phase = PHASE_KEY_COUNT;
+                return true;
+
+            case PHASE_KEY_COUNT:
+                long limit = maxRecordsPerKey;
+                if (limit > 0) {
+                    if (keyCounts == null) {
+                        keyCounts = store.getRecordCountsByKey();
+                    }
+                    for (; keyCursor < keyCounts.length; keyCursor++) {
+                        long excess = keyCounts[keyCursor] - limit;
+                        if (excess <= 0) {
+                            continue;
+                        }
+                        long removed = store.evictOldestRecordsOfKey(keyCursor, Math.min(excess, KEY_SLICE_RECORDS));
+                        if (removed <= 0) {
+                            // The store cannot evict single keys
+                            break;
+                        }
+                        keyCounts[keyCursor] -= removed;
+                        report.keyLimitRecords += removed;
+                        return true;
+                    }
+                }
+                phase = PHASE_SIZE;
+                return true;
+
+            case PHASE_SIZE:
+                if (maxBytes > 0 && store.getStorageSizeBytes() > maxBytes) {
+                    long removed = evictionPolicy.evictSlice(store);
+                    if (removed <= 0 && evictionPolicy != fallbackPolicy) {
+                        removed = fallbackPolicy.evictSlice(store);
+                    }
+                    if (removed > 0) {
+                        report.sizeRecords += removed;
+                        return true;
+                    }
+                    logManager.logWarning("Storage above " + maxBytes + " bytes but nothing left to evict");
+                }
+                phase = PHASE_DONE;
+                return false;
+
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get a one-line description of the configuration for logging
+     */
+    public String getConfiguration() {
+        return "maxBytes=" + maxBytes +
+                ", maxAge=" + (maxAgeMs / 1000) + "s" +
+                ", maxRecordsPerKey=" + maxRecordsPerKey +
+                ", policy=" + evictionPolicy.getName();
+    }
+}
@@ -0,0 +1,158 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+/**
+ * Aggregate of the numeric samples of one key within one interval:
+ * sample count, minimum, maximum, sum (for the average) and the last value.
+ */
+public class Rollup {
+    private int keyId;
+    private String key;
+    private long resolutionMs;
+    private long startTime;
+    private long count;
+    private double min;
+    private double max;
+    private double sum;
+    private double last;
+    private long lastTimestamp;
+
+    public Rollup() {
+    }
+
+    /**
+     * Start an empty aggregate for an interval
+     */
+    public void reset(int keyId, String key, long resolutionMs, long startTime) {
+        this.keyId = keyId;
+        this.key = key;
+        this.resolutionMs = resolutionMs;
+        this.startTime = startTime;
+        this.count = 0;
+        this.min = Double.POSITIVE_INFINITY;
+        this.max = Double.NEGATIVE_INFINITY;
+        this.sum = 0;
+        this.last = 0;
+        this.lastTimestamp = Long.MIN_VALUE;
+    }
+
+    /**
+     * Add one sample
+     */
+    public void add(long timestamp, double value) {
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sum += value;
+        if (timestamp >= lastTimestamp) {
+            last = value;
+            lastTimestamp = timestamp;
+        }
+    }
+
+    /**
+     * Add the samples of a finer aggregate of the same key
+     */
+    public void merge(Rollup other) {
+        if (other.count == 0) {
+            return;
+        }
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        sum += other.sum;
+        if (other.lastTimestamp >= lastTimestamp) {
+            last = other.last;
+            lastTimestamp = other.lastTimestamp;
+        }
+    }
+
+    /**
+     * Set all aggregate values at once, as read from storage
+     */
+    public void set(long count, double min, double max, double sum, double last, long lastTimestamp) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.last = last;
+        this.lastTimestamp = lastTimestamp;
+    }
+
+    /**
+     * Interval start for a timestamp at a resolution
+     */
+    public static long intervalStart(long timestamp, long resolutionMs) {
+        long start = timestamp - timestamp % resolutionMs;
+        return timestamp < 0 && start != timestamp ? start - resolutionMs : start;
+    }
+
+    public int getKeyId() {
+        return keyId;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public long getResolutionMs() {
+        return resolutionMs;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * End of the interval (exclusive)
+     */
+    public long getEndTime() {
+        return startTime + resolutionMs;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getAverage() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    public double getLast() {
+        return last;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "Rollup{" +
+                "keyId=" + keyId +
+                ", key='" + key + '\'' +
+                ", start=" + startTime +
+                ", resolution=" + resolutionMs +
+                ", count=" + count +
+                ", min=" + min +
+                ", max=" + max +
+                ", avg=" + getAverage() +
+                ", last=" + last +
+                '}';
+    }
+}
@@ -0,0 +1,370 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.SparseArray;
+
+import java.util.Arrays;
+
+/**
+ * Per-key, per-interval aggregates (count, min, max, sum, last) of numeric samples,
+ * stored at a few fixed resolutions in one table.
+ *
+ * Samples are aggregated as they are inserted. Each batch merges its aggregates into the
+ * stored rows within the insert transaction, so rollups stay consistent with the records
+ * and an interval that is still filling up is never lost. Rollups are kept independently
+ * of the raw records, so history remains readable after records were thinned or evicted.
+ */
+class RollupTables {
+    static final String TABLE_ROLLUPS = "data_rollups";
+
+    static final String CREATE_TABLE_ROLLUPS =
+            "CREATE TABLE " + TABLE_ROLLUPS + " (" +
+            "resolution INTEGER NOT NULL, " +
+            "key_id INTEGER NOT NULL, " +
+            "start_ts INTEGER NOT NULL, " +
+            "sample_count INTEGER NOT NULL, " +
+            "min_value REAL NOT NULL, " +
+            "max_value REAL NOT NULL, " +
+            "sum_value REAL NOT NULL, " +
+            "last_value REAL NOT NULL, " +
+            "last_ts INTEGER NOT NULL, " +
+            "PRIMARY KEY (resolution, key_id, start_ts))";
+
+    // Retention
+    static final String CREATE_INDEX_START =
+            "CREATE INDEX idx_rollups_start ON " + TABLE_ROLLUPS + "(start_ts)";
+
+    // Resolutions maintained unless configured otherwise
+    static final long[] DEFAULT_RESOLUTIONS = {10 * 1000, 60 * 1000, 5 * 60 * 1000};
+
+    // Rollups fetched per query when streaming
+    private static final int STREAM_PAGE_SIZE = 500;
+
+    private static final String MERGE_SQL =
+            "UPDATE " + TABLE_ROLLUPS + " SET " +
+            "sample_count = sample_count + ?, " +
+            "min_value = MIN(min_value, ?), " +
+            "max_value = MAX(max_value, ?), " +
+            "sum_value = sum_value + ?, " +
+            "last_value = CASE WHEN ? >= last_ts THEN ? ELSE last_value END, " +
+            "last_ts = MAX(last_ts, ?) " +
+            "WHERE resolution = ? AND key_id = ? AND start_ts = ?";
+
+    private static final String INSERT_SQL =
+            "INSERT INTO " + TABLE_ROLLUPS + " (resolution, key_id, start_ts, sample_count, " +
+            "min_value, max_value, sum_value, last_value, last_ts) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Combines samples or finer rollups into rollups of one resolution and hands each
+     * completed interval to a visitor. Input must be in time order per key.
+     */
+    static final class Aggregator implements SampleStore.RecordVisitor {
+        private final long resolutionMs;
+        private final SampleStore.RollupVisitor visitor;
+
+        // Interval being filled, by key id
+        private final SparseArray<Rollup> open = new SparseArray<>();
+        private long emitted;
+        private boolean stopped;
+
+        Aggregator(long resolutionMs, SampleStore.RollupVisitor visitor) {
+            this.resolutionMs = resolutionMs;
+            this.visitor = visitor;
+        }
+
+        @Override
+        public boolean visit(DataRecord record) {
+            if (!record.isNumeric()) {
+                return true;
+            }
+            Rollup rollup = intervalOf(record.getKeyId(), record.getKey(), record.getTimestamp());
+            if (rollup != null) {
+                rollup.add(record.getTimestamp(), record.getNumericValue());
+            }
+            return !stopped;
+        }
+
+        /**
+         * Add a rollup of a resolution that divides this aggregator's resolution
+         *
+         * @return false once the visitor asked to stop
+         */
+        boolean merge(Rollup fine) {
+            Rollup rollup = intervalOf(fine.getKeyId(), fine.getKey(), fine.getStartTime());
+            if (rollup != null) {
+                rollup.merge(fine);
+            }
+            return !stopped;
+        }
+
+        /**
+         * Get the open interval of a key for a timestamp, emitting the previous one first
+         *
+         * @return null once the visitor asked to stop
+         */
+        private Rollup intervalOf(int keyId, String key, long timestamp) {
+            if (stopped) {
+                return null;
+            }
+            long start = Rollup.intervalStart(timestamp, resolutionMs);
+            Rollup rollup = open.get(keyId);
+            if (rollup == null) {
+                rollup = new Rollup();
+                open.put(keyId, rollup);
+            } else if (rollup.getStartTime() == start) {
+                return rollup;
+            } else if (!emit(rollup)) {
+                return null;
+            }
+            rollup.reset(keyId, key, resolutionMs, start);
+            return rollup;
+        }
+
+        private boolean emit(Rollup rollup) {
+            if (rollup.getCount() == 0) {
+                return true;
+            }
+            emitted++;
+            stopped = !visitor.visit(rollup);
+            return !stopped;
+        }
+
+        /**
+         * Emit the intervals still open
+         *
+         * @return number of rollups visited
+         */
+        long finish() {
+            for (int i = 0; i < open.size() && !stopped; i++) {
+                emit(open.valueAt(i));
+            }
+            open.clear();
+            return emitted;
+        }
+    }
+
+    private final KeyDictionary keyDictionary;
+
+    private volatile long[] resolutions = DEFAULT_RESOLUTIONS;
+
+    // Aggregates of the current batch by key id, one per resolution in batchResolutions;
+    // only used by the inserting thread
+    private final SparseArray<Rollup[]> pending = new SparseArray<>();
+    private long[] batchResolutions = DEFAULT_RESOLUTIONS;
+
+    // Compiled per database; only used by the inserting thread
+    private SQLiteStatement mergeStatement;
+    private SQLiteStatement insertStatement;
+
+    RollupTables(KeyDictionary keyDictionary) {
+        this.keyDictionary = keyDictionary;
+    }
+
+    /**
+     * Set the resolutions to maintain from the next batch on.
+     * Rollups of other resolutions stay readable until retention removes them.
+     */
+    void setResolutions(long[] resolutionsMs) {
+        long[] sorted = Arrays.copyOf(resolutionsMs, resolutionsMs.length);
+        Arrays.sort(sorted);
+        resolutions = sorted;
+    }
+
+    long[] getResolutions() {
+        return Arrays.copyOf(resolutions, resolutions.length);
+    }
+
+    /**
+     * Add a numeric sample to the aggregates of the current batch.
+     * Must be called by the inserting thread within the insert transaction.
+     */
+    void append(SQLiteDatabase db, DataRecord record) {
+        if (pending.size() == 0) {
+            batchResolutions = resolutions;
+        }
+        if (batchResolutions.length == 0) {
+            return;
+        }
+
+        int keyId = record.getKeyId();
+        long timestamp = record.getTimestamp();
+        Rollup[] slots = pending.get(keyId);
+        if (slots == null) {
+            slots = new Rollup[batchResolutions.length];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new Rollup();
+                slots[i].reset(keyId, null, batchResolutions[i], Rollup.intervalStart(timestamp, batchResolutions[i]));
+            }
+            pending.put(keyId, slots);
+        }
+
+        for (Rollup rollup : slots) {
+            long start = Rollup.intervalStart(timestamp, rollup.getResolutionMs());
+            if (start != rollup.getStartTime()) {
+                // Batch crossed into another interval
+                write(db, rollup);
+                rollup.reset(keyId, null, rollup.getResolutionMs(), start);
+            }
+            rollup.add(timestamp, record.getNumericValue());
+        }
+    }
+
+    /**
+     * Merge the aggregates of the current batch into the stored rollups.
+     * Must be called by the inserting thread before the insert transaction is committed.
+     */
+    void flush(SQLiteDatabase db) {
+        for (int i = 0; i < pending.size(); i++) {
+            for (Rollup rollup : pending.valueAt(i)) {
+                write(db, rollup);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Forget the aggregates of a batch that was rolled back
+     */
+    void discard() {
+        pending.clear();
+    }
+
+    /**
+     * Merge one aggregate into its stored row, creating the row if needed
+     */
+    private void write(SQLiteDatabase db, Rollup rollup) {
+        if (rollup.getCount() == 0) {
+            return;
+        }
+        if (mergeStatement == null) {
+            mergeStatement = db.compileStatement(MERGE_SQL);
+            insertStatement = db.compileStatement(INSERT_SQL);
+        }
+
+        SQLiteStatement merge = mergeStatement;
+        merge.bindLong(1, rollup.getCount());
+        merge.bindDouble(2, rollup.getMin());
+        merge.bindDouble(3, rollup.getMax());
+        merge.bindDouble(4, rollup.getSum());
+        merge.bindLong(5, rollup.getLastTimestamp());
+        merge.bindDouble(6, rollup.getLast());
+        merge.bindLong(7, rollup.getLastTimestamp());
+        merge.bindLong(8, rollup.getResolutionMs());
+        merge.bindLong(9, rollup.getKeyId());
+        merge.bindLong(10, rollup.getStartTime());
+        if (merge.executeUpdateDelete() > 0) {
+            return;
+        }
+
+        SQLiteStatement insert = insertStatement;
+        insert.bindLong(1, rollup.getResolutionMs());
+        insert.bindLong(2, rollup.getKeyId());
+        insert.bindLong(3, rollup.getStartTime());
+        insert.bindLong(4, rollup.getCount());
+        insert.bindDouble(5, rollup.getMin());
+        insert.bindDouble(6, rollup.getMax());
+        insert.bindDouble(7, rollup.getSum());
+        insert.bindDouble(8, rollup.getLast());
+        insert.bindLong(9, rollup.getLastTimestamp());
+        insert.executeInsert();
+    }
+
+    /**
+     * Release compiled statements before the database is closed.
+     * Must be called by the inserting thread or while it is excluded.
+     */
+    void closeStatements() {
+        if (mergeStatement != null) {
+            mergeStatement.close();
+            insertStatement.close();
+            mergeStatement = null;
+            insertStatement = null;
+        }
+    }
+
+    /**
+     * Get the coarsest maintained resolution from which rollups of the requested
+     * resolution can be built, or 0 if there is none
+     */
+    long getSourceResolution(long resolutionMs) {
+        long source = 0;
+        for (long resolution : resolutions) {
+            if (resolution <= resolutionMs && resolutionMs % resolution == 0) {
+                source = resolution;
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Stream the stored rollups of one resolution overlapping a time range into an aggregator,
+     * key by key in time order
+     *
+     * @return false if the aggregator's visitor asked to stop
+     */
+    boolean forEachInTimeRange(SQLiteDatabase db, long resolutionMs, long startTime, long endTime,
+                               Aggregator aggregator) {
+        String sql = "SELECT key_id, start_ts, sample_count, min_value, max_value, sum_value, " +
+                "last_value, last_ts FROM " + TABLE_ROLLUPS +
+                " WHERE resolution = ? AND start_ts > ? AND start_ts <= ?" +
+                " AND (key_id > ? OR (key_id = ? AND start_ts > ?))" +
+                " ORDER BY key_id, start_ts LIMIT " + STREAM_PAGE_SIZE;
+        String[] args = {String.valueOf(resolutionMs), String.valueOf(startTime - resolutionMs),
+                String.valueOf(endTime), null, null, null};
+        Rollup rollup = new Rollup();
+
+        int lastKeyId = -1;
+        long lastStart = Long.MIN_VALUE;
+
+        while (true) {
+            args[3] = String.valueOf(lastKeyId);
+            args[4] = String.valueOf(lastKeyId);
+            args[5] = String.valueOf(lastStart);
+            Cursor cursor = db.rawQuery(sql, args);
+            if (cursor == null) {
+                return true;
+            }
+
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastKeyId = cursor.getInt(0);
+                    lastStart = cursor.getLong(1);
+                    rollup.reset(lastKeyId, keyDictionary.getName(lastKeyId), resolutionMs, lastStart);
+                    rollup.set(cursor.getLong(2), cursor.getDouble(3), cursor.getDouble(4),
+                            cursor.getDouble(5), cursor.getDouble(6), cursor.getLong(7));
+                    if (!aggregator.merge(rollup)) {
+                        return false;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (rows < STREAM_PAGE_SIZE) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Delete rollups whose interval ended at or before a timestamp
+     *
+     * @return number of rollups deleted
+     */
+    int deleteEndedBefore(SQLiteDatabase db, long timestamp) {
+        String bound = String.valueOf(timestamp);
+        return db.delete(TABLE_ROLLUPS, "start_ts < ? AND start_ts + resolution <= ?",
+                new String[]{bound, bound});
+    }
+
+    /**
+     * Delete all rollups
+     */
+    void clear(SQLiteDatabase db) {
+        db.delete(TABLE_ROLLUPS, null, null);
+    }
+}
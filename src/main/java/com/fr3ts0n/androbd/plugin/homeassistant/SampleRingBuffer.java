@@ -0,0 +1,124 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer for incoming OBD samples.
+ *
+ * Producers (AndrOBD callback threads) claim a slot with a single CAS and never block;
+ * when the buffer is full the sample is rejected and the caller decides what to do.
+ * Samples are stored in parallel arrays so that offering a sample does not allocate.
+ * Only one thread may call {@link #drainTo(DataRecord[], int, int)}.
+ */
+class SampleRingBuffer {
+    private final int capacity;
+    private final int mask;
+    private final int[] keyIds;
+    private final String[] values;
+    private final long[] timestamps;
+
+    // Per-slot sequence: slot is writable when sequence == position,
+    // readable when sequence == position + 1
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head = 0;
+
+    /**
+     * @param requestedCapacity minimum capacity, rounded up to the next power of two
+     */
+    SampleRingBuffer(int requestedCapacity) {
+        int size = 1;
+        while (size < requestedCapacity) {
+            size <<= 1;
+        }
+        capacity = size;
+        mask = size - 1;
+        keyIds = new int[size];
+        values = new String[size];
+        timestamps = new long[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Offer a sample to the buffer (safe to call from any thread)
+     *
+     * @return false if the buffer is full and the sample was not stored
+     */
+    boolean offer(int keyId, String value, long timestamp) {
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    keyIds[index] = keyId;
+                    values[index] = value;
+                    timestamps[index] = timestamp;
+                    // Publish slot to the consumer
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // Consumer has not freed this slot yet - buffer is full
+                return false;
+            }
+            // Another producer claimed this position, retry with fresh tail
+        }
+    }
+
+    /**
+     * Move up to maxCount published samples into the given record holders,
+     * starting at records[offset]. Only the key id is set; the key name is left to the caller.
+     * Must only be called from the consumer thread.
+     *
+     * @return number of samples drained
+     */
+    int drainTo(DataRecord[] records, int offset, int maxCount) {
+        long position = head;
+        int drained = 0;
+
+        while (drained < maxCount) {
+            int index = (int) (position & mask);
+            if (sequences.get(index) != position + 1) {
+                // Empty, or the producer holding this slot has not published yet
+                break;
+            }
+
+            DataRecord record = records[offset + drained];
+            record.setId(0);
+            record.setKeyId(keyIds[index]);
+            record.setValue(values[index]);
+            record.setTimestamp(timestamps[index]);
+            record.setSent(false);
+
+            values[index] = null;
+            // Hand the slot back to producers for the next lap
+            sequences.lazySet(index, position + capacity);
+            position++;
+            drained++;
+        }
+
+        head = position;
+        return drained;
+    }
+
+    /**
+     * Approximate number of samples waiting to be drained
+     */
+    int size() {
+        long depth = tail.get() - head;
+        if (depth < 0) {
+            return 0;
+        }
+        return (int) Math.min(depth, capacity);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,184 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.List;
+
+/**
+ * Buffer for OBD samples waiting to be sent to Home Assistant.
+ *
+ * Implemented by {@link DataDbHelper} (SQLite), {@link JournalStore} (memory-mapped files)
+ * and {@link MemoryStore} (in memory only); the plugin and ingest pipeline only use this
+ * interface, so the backend is chosen in settings.
+ *
+ * Implementations must be safe to use from the ingest writer thread, the main looper
+ * and HTTP callback threads at the same time.
+ */
+public interface SampleStore {
+
+    /**
+     * Callback for streaming record reads
+     */
+    interface RecordVisitor {
+        /**
+         * Called for each record. The record instance is reused between calls.
+         *
+         * @return true to continue, false to stop reading
+         */
+        boolean visit(DataRecord record);
+    }
+
+    /**
+     * Callback for streaming rollup reads
+     */
+    interface RollupVisitor {
+        /**
+         * Called for each rollup. The rollup instance may be reused between calls.
+         *
+         * @return true to continue, false to stop reading
+         */
+        boolean visit(Rollup rollup);
+    }
+
+    /**
+     * Get the dictionary id for a key, adding the key on first sight
+     */
+    int getKeyId(String key);
+
+    /**
+     * Get the key name for a dictionary id
+     */
+    String getKeyName(int keyId);
+
+    /**
+     * Insert the first count records of the array as one atomic batch.
+     * Each record's key id must be set; the assigned record id is stored back into the record.
+     */
+    void insertRecords(DataRecord[] records, int count);
+
+    /**
+     * Get the newest unsent record for each key
+     */
+    List<DataRecord> getLatestUnsentRecords();
+
+    /**
+     * Stream all unsent records. Records of one key are visited in insertion order, which is
+     * time order for samples reported in order;
+     * records read from compressed storage may have no record id (0).
+     *
+     * @return number of records visited
+     */
+    long forEachUnsentRecord(RecordVisitor visitor);
+
+    /**
+     * Stream all records within a time range, per key in insertion order
+     *
+     * @return number of records visited
+     */
+    long forEachRecordInTimeRange(long startTime, long endTime, RecordVisitor visitor);
+
+    /**
+     * Stream per-key aggregates of the numeric samples within a time range, one per interval
+     * of the given resolution, in time order per key. Built from the coarsest stored rollups
+     * that fit the resolution, or from the records if there are none; intervals at the edges
+     * of the range may then include samples just outside it.
+     *
+     * @return number of rollups visited
+     */
+    long forEachRollupInTimeRange(long startTime, long endTime, long resolutionMs, RollupVisitor visitor);
+
+    /**
+     * Set the rollup resolutions to maintain while inserting. Stores that keep no rollups
+     * ignore this and build rollups from the records when read.
+     */
+    void setRollupResolutions(long[] resolutionsMs);
+
+    /**
+     * Mark every unsent record of a key up to and including the given timestamp as sent
+     *
+     * @return number of records acknowledged
+     */
+    int markAsSentUpTo(int keyId, long timestamp);
+
+    /**
+     * Apply several per-key acknowledgements at once
+     *
+     * @return total number of records acknowledged
+     */
+    int markAsSentUpTo(int[] keyIds, long[] timestamps, int count);
+
+    /**
+     * Remove stored segments that ended before the given timestamp and are fully acknowledged
+     *
+     * @return number of segments removed
+     */
+    int dropExpiredSegments(long olderThan);
+
+    /**
+     * Remove the oldest segment, including unsent records, if it ended before the given timestamp
+     *
+     * @return number of records removed, 0 if no segment qualifies
+     */
+    long evictOldestSegment(long endedBefore);
+
+    /**
+     * Thin the oldest segment that has not been thinned yet to one record per key and interval.
+     * The newest segment is never thinned.
+     *
+     * @return number of records removed, or -1 if nothing is left to thin or the store cannot thin
+     */
+    long downsampleOldestSegment(long intervalMs);
+
+    /**
+     * Remove about count of the oldest records of a key, including unsent ones.
+     * Stores may remove whole storage units and so remove somewhat more than requested.
+     *
+     * @return number of records removed, 0 if the store holds none or cannot remove single keys
+     */
+    long evictOldestRecordsOfKey(int keyId, long count);
+
+    /**
+     * Get the number of stored records per key, indexed by key id.
+     * Kept in memory; does not query storage.
+     */
+    long[] getRecordCountsByKey();
+
+    /**
+     * Get the number of stored segments
+     */
+    int getSegmentCount();
+
+    /**
+     * Get total record count. Kept in memory; does not query storage.
+     */
+    long getRecordCount();
+
+    /**
+     * Get unsent record count. Kept in memory; does not query storage.
+     */
+    long getUnsentRecordCount();
+
+    /**
+     * Get the unsent record count of a key. Kept in memory; does not query storage.
+     */
+    long getUnsentRecordCount(int keyId);
+
+    /**
+     * Get the timestamp of the oldest unsent record, or 0 if there is none.
+     * After acknowledgements this may be a lower bound of the exact value.
+     */
+    long getOldestUnsentTimestamp();
+
+    /**
+     * Get the space used on disk in bytes
+     */
+    long getStorageSizeBytes();
+
+    /**
+     * Remove all records
+     */
+    void clearAllRecords();
+
+    /**
+     * Flush pending writes and release resources
+     */
+    void close();
+}
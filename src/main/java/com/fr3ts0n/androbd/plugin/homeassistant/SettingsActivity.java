@@ -239,6 +239,7 @@ public class SettingsActivity extends Activity {
         
         private SharedPreferences prefs;
         private MultiSelectListPreference dataItemsPref;
+        private MultiSelectListPreference lowPriorityItemsPref;
         private Preference showLogsPref;
         
         @Override
@@ -252,6 +253,7 @@ public class SettingsActivity extends Activity {
             
             // Setup data items preference
             dataItemsPref = (MultiSelectListPreference) findPreference(HomeAssistantPlugin.ITEMS_SELECTED);
+            lowPriorityItemsPref = (MultiSelectListPreference) findPreference(HomeAssistantPlugin.PREF_HA_RETENTION_LOW_PRIORITY);
             updateDataItemsList();
             
             // Setup show logs preference click handler
@@ -313,6 +315,9 @@ public class SettingsActivity extends Activity {
                 // No items discovered yet
                 dataItemsPref.setEnabled(false);
                 dataItemsPref.setSummary("No OBD data items discovered yet. Connect to vehicle to discover items.");
+                if (lowPriorityItemsPref != null) {
+                    lowPriorityItemsPref.setEnabled(false);
+                }
                 return;
             }
             
@@ -328,9 +333,15 @@ public class SettingsActivity extends Activity {
             dataItemsPref.setEntries(entries);
             dataItemsPref.setEntryValues(entryValues);
             dataItemsPref.setEnabled(true);
+            if (lowPriorityItemsPref != null) {
+                lowPriorityItemsPref.setEntries(entries);
+                lowPriorityItemsPref.setEntryValues(entryValues);
+                lowPriorityItemsPref.setEnabled(true);
+            }
             
             // Update summary
             updateSummary(dataItemsPref);
+            updateSummary(lowPriorityItemsPref);
         }
         
         /**
@@ -340,10 +351,31 @@ public class SettingsActivity extends Activity {
             updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_URL));
             updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_TOKEN));
             updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_TRANSMISSION_MODE));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_TRANSPORT));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_UPLOAD_MODE));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_WEBHOOK_ID));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MAX_IN_FLIGHT));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_DISPATCH_ORDER));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MQTT_BROKER));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MQTT_USERNAME));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MQTT_PASSWORD));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MQTT_QOS));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MQTT_DISCOVERY_PREFIX));
             updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_SSID));
             updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_OBD_SSID));
             updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_UPDATE_INTERVAL));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MIN_INTERVAL));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_MAX_INTERVAL));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_HEARTBEAT_INTERVAL));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_CHANGE_TOLERANCE));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_STORAGE_BACKEND));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_RETENTION_MAX_SIZE));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_RETENTION_MAX_AGE));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_RETENTION_MAX_PER_KEY));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_RETENTION_POLICY));
+            updateSummary(findPreference(HomeAssistantPlugin.PREF_HA_ROLLUP_RESOLUTIONS));
             updateSummary(dataItemsPref);
+            updateSummary(lowPriorityItemsPref);
         }
         
         /**
@@ -365,6 +397,12 @@ public class SettingsActivity extends Activity {
                     } else {
                         pref.setSummary(getString(R.string.ha_token_description));
                     }
+                } else if (HomeAssistantPlugin.PREF_HA_MQTT_PASSWORD.equals(pref.getKey())) {
+                    if (value != null && !value.isEmpty()) {
+                        pref.setSummary("••••••••");
+                    } else {
+                        pref.setSummary(getString(R.string.ha_mqtt_password_description));
+                    }
                 } else {
                     if (value != null && !value.isEmpty()) {
                         pref.setSummary(value);
@@ -377,7 +415,19 @@ public class SettingsActivity extends Activity {
                 MultiSelectListPreference multiPref = (MultiSelectListPreference) pref;
                 Set<String> values = multiPref.getValues();
                 
-                if (values == null || values.isEmpty()) {
+                if (HomeAssistantPlugin.PREF_HA_RETENTION_LOW_PRIORITY.equals(pref.getKey())) {
+                    if (values == null || values.isEmpty()) {
+                        pref.setSummary(getString(R.string.ha_retention_low_priority_description));
+                    } else {
+                        pref.setSummary(values.size() + " items evicted first");
+                    }
+                } else if (HomeAssistantPlugin.PREF_HA_ROLLUP_RESOLUTIONS.equals(pref.getKey())) {
+                    if (values == null || values.isEmpty()) {
+                        pref.setSummary("No rollups kept");
+                    } else {
+                        pref.setSummary(values.size() + " resolutions kept");
+                    }
+                } else if (values == null || values.isEmpty()) {
                     pref.setSummary("All items (none selected = publish all)");
                 } else {
                     pref.setSummary(values.size() + " items selected");
@@ -0,0 +1,137 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.ByteString;
+
+/**
+ * Request bodies for the state API of one endpoint, from templates kept per key.
+ *
+ * A template holds the entity id, the parsed state URL and the constant attributes, with
+ * friendly name and source; a body only adds the escaped value and the timestamp. The bytes
+ * are those Android's JSONObject writes for the same update:
+ * {"state":"&lt;value&gt;","attributes":{"friendly_name":"&lt;key&gt;","source":"AndrOBD","timestamp":&lt;ts&gt;}}
+ */
+final class StateEncoder {
+
+    static final MediaType JSON = MediaType.get("application/json");
+
+    private static final ByteString STATE = ByteString.encodeUtf8("{\"state\":\"");
+    private static final ByteString END = ByteString.encodeUtf8("}}");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * What stays the same in every update of a key
+     */
+    static final class Template {
+        final String entityId;
+        final HttpUrl url;
+        final ByteString attributes;
+
+        Template(String entityId, HttpUrl url, ByteString attributes) {
+            this.entityId = entityId;
+            this.url = url;
+            this.attributes = attributes;
+        }
+    }
+
+    private final Transport.Endpoint endpoint;
+    private final HttpUrl statesUrl;
+    private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+
+    /**
+     * @throws IllegalArgumentException when the base URL of the endpoint is not a valid URL
+     */
+    StateEncoder(Transport.Endpoint endpoint) {
+        this.endpoint = endpoint;
+        statesUrl = HttpUrl.get(endpoint.getBaseUrl() + "/api/states/");
+    }
+
+    Transport.Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Template of a key, created on first use
+     */
+    Template template(String key) {
+        Template template = templates.get(key);
+        if (template == null) {
+            String entityId = RestTransport.toEntityId(endpoint.getEntityPrefix(), key);
+            ByteString attributes = ByteString.encodeUtf8("\",\"attributes\":{\"friendly_name\":" +
+                    JSONObject.quote(key) + ",\"source\":\"AndrOBD\",\"timestamp\":");
+            template = new Template(entityId, statesUrl.newBuilder().addPathSegment(entityId).build(), attributes);
+            Template existing = templates.putIfAbsent(key, template);
+            if (existing != null) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Body of a state update
+     */
+    static RequestBody encode(Template template, String value, long timestamp) {
+        Buffer buffer = new Buffer();
+        buffer.write(STATE);
+        writeEscaped(buffer, value);
+        buffer.write(template.attributes);
+        buffer.writeDecimalLong(timestamp);
+        buffer.write(END);
+        // Reading the buffer out returns its segment to the pool for the next update
+        return RequestBody.create(buffer.readByteString(), JSON);
+    }
+
+    /**
+     * Write the content of a JSON string, escaped as JSONObject.quote() does; values are
+     * usually plain numbers and written as they are
+     */
+    static void writeEscaped(Buffer buffer, String value) {
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '/') {
+                continue;
+            }
+            buffer.writeUtf8(value, start, i);
+            buffer.writeByte('\\');
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    buffer.writeByte(c);
+                    break;
+                case '\t':
+                    buffer.writeByte('t');
+                    break;
+                case '\b':
+                    buffer.writeByte('b');
+                    break;
+                case '\n':
+                    buffer.writeByte('n');
+                    break;
+                case '\r':
+                    buffer.writeByte('r');
+                    break;
+                case '\f':
+                    buffer.writeByte('f');
+                    break;
+                default:
+                    buffer.writeByte('u').writeByte('0').writeByte('0')
+                            .writeByte(HEX[c >> 4]).writeByte(HEX[c & 0xF]);
+                    break;
+            }
+            start = i + 1;
+        }
+        buffer.writeUtf8(value, start, length);
+    }
+}
@@ -0,0 +1,106 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import java.util.List;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Way of delivering records to Home Assistant.
+ *
+ * Sending is asynchronous; the transport reports every record of a send call back through
+ * its {@link Listener}, as delivered or failed, except when it is closed first. Records are
+ * acknowledged in the sample store only when delivered.
+ */
+public interface Transport {
+
+    /**
+     * Receives the outcome of each record passed to {@link #send(Endpoint, List)}.
+     * Called on transport threads.
+     */
+    interface Listener {
+        /**
+         * Home Assistant accepted the record
+         */
+        void onDelivered(DataRecord record);
+
+        /**
+         * The record could not be delivered and stays unsent
+         */
+        void onFailed(DataRecord record, String error);
+    }
+
+    /**
+     * Supplies the HTTP client to use for new connections, e.g. bound to the mobile network
+     */
+    interface ClientProvider {
+        OkHttpClient getClient();
+    }
+
+    /**
+     * Connection settings of one send cycle
+     */
+    final class Endpoint {
+        private final String baseUrl;
+        private final String token;
+        private final String entityPrefix;
+        private final String authorization;
+
+        public Endpoint(String baseUrl, String token, String entityPrefix) {
+            this.baseUrl = baseUrl;
+            this.token = token;
+            this.entityPrefix = entityPrefix;
+            this.authorization = "Bearer " + token;
+        }
+
+        public String getBaseUrl() {
+            return baseUrl;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public String getEntityPrefix() {
+            return entityPrefix;
+        }
+
+        /**
+         * Value of the Authorization header
+         */
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        /**
+         * Whether a connection opened for the other endpoint can be reused for this one
+         */
+        boolean sameConnection(Endpoint other) {
+            return other != null && baseUrl.equals(other.baseUrl) && token.equals(other.token);
+        }
+    }
+
+    /**
+     * Name for logging
+     */
+    String getName();
+
+    /**
+     * Whether the settings needed to send are present
+     */
+    boolean isConfigured(Endpoint endpoint);
+
+    /**
+     * Start delivering records; returns without waiting for Home Assistant
+     */
+    void send(Endpoint endpoint, List<DataRecord> records);
+
+    /**
+     * Get a one-line summary of the transport counters for logging
+     */
+    String getStats();
+
+    /**
+     * Release connections. Records still in flight are not reported and stay unsent.
+     */
+    void close();
+}
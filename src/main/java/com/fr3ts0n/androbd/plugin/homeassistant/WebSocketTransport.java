@@ -0,0 +1,486 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Delivers records over one authenticated connection to the Home Assistant WebSocket API.
+ *
+ * Each send call becomes one fire_event message of type androbd_batch, the same payload the
+ * REST event mode posts, so the template sensors of the README work for both. Messages are
+ * pipelined: they are written as soon as the connection is authenticated, and the result
+ * message carrying the same id delivers or fails their records.
+ *
+ * Message ids are only valid on the connection they were sent on. When the connection drops,
+ * messages still in flight are put back at the front of the queue and sent again with new ids
+ * once a new connection is authenticated; reconnects back off from one second to one minute.
+ * Records of a message sent twice are acknowledged twice, which the per-key watermarks of the
+ * ack queue absorb.
+ *
+ * Other WebSocket API commands can be sent with {@link #call(Endpoint, JSONObject, ResultCallback)};
+ * they share the queue, ids and reconnect handling with the record batches.
+ */
+public class WebSocketTransport extends WebSocketListener implements Transport {
+    private static final String TAG = "WebSocketTransport";
+
+    // Messages written but not yet answered
+    private static final int MAX_IN_FLIGHT = 16;
+
+    // Messages waiting for a connection; the oldest is failed when full
+    private static final int MAX_QUEUED = 32;
+
+    private static final long PING_INTERVAL_MS = 30 * 1000;
+    private static final long RECONNECT_MIN_DELAY_MS = 1000;
+    private static final long RECONNECT_MAX_DELAY_MS = 60 * 1000;
+
+    private static final int CLOSE_NORMAL = 1000;
+
+    /**
+     * Receives the outcome of a command sent with {@link #call(Endpoint, JSONObject, ResultCallback)}.
+     * Called on transport threads.
+     */
+    public interface ResultCallback {
+        /**
+         * @param error reason of the failure, null on success
+         */
+        void onResult(boolean success, String error);
+    }
+
+    /**
+     * One message: a fire_event carrying records, or a command with a callback
+     */
+    private static final class Message {
+        final List<DataRecord> records;
+        final ResultCallback callback;
+        // Message text after the id, i.e. without its opening brace
+        final String body;
+        long sentAt;
+
+        Message(List<DataRecord> records, ResultCallback callback, String body) {
+            this.records = records;
+            this.callback = callback;
+            this.body = body;
+        }
+    }
+
+    private final ClientProvider clientProvider;
+    private final LogManager logManager;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Connection state; guarded by this
+    private WebSocket webSocket;
+    private Endpoint endpoint;
+    private HttpUrl url;
+    private Endpoint rejectedEndpoint;
+    private boolean authenticated;
+    private boolean reconnectScheduled;
+    private boolean closed;
+    private int nextId = 1;
+    private long reconnectDelay = RECONNECT_MIN_DELAY_MS;
+    private final ArrayDeque<Message> queue = new ArrayDeque<>();
+    private final LinkedHashMap<Integer, Message> inFlight = new LinkedHashMap<>();
+
+    // Counters; guarded by this
+    private long connectCount;
+    private long sentCount;
+    private long resentCount;
+    private long deliveredCount;
+    private long failedCount;
+    private long droppedCount;
+    private long rttCount;
+    private long rttTotalMs;
+    private long rttMaxMs;
+
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (WebSocketTransport.this) {
+                reconnectScheduled = false;
+                if (!closed && webSocket == null && !queue.isEmpty()) {
+                    connect();
+                }
+            }
+        }
+    };
+
+    public WebSocketTransport(ClientProvider clientProvider, LogManager logManager, Listener listener) {
+        this.clientProvider = clientProvider;
+        this.logManager = logManager;
+        this.listener = listener;
+    }
+
+    @Override
+    public String getName() {
+        return "WebSocket";
+    }
+
+    @Override
+    public boolean isConfigured(Endpoint endpoint) {
+        return !endpoint.getBaseUrl().isEmpty() && !endpoint.getToken().isEmpty();
+    }
+
+    @Override
+    public void send(Endpoint endpoint, List<DataRecord> records) {
+        String eventData;
+        try {
+            eventData = RestTransport.createBatchPayload(endpoint.getEntityPrefix(), records).toString();
+        } catch (JSONException e) {
+            logManager.logError("Error creating batch JSON", e);
+            failRecords(records, e.getMessage());
+            return;
+        }
+        enqueue(endpoint, new Message(records, null,
+                "\"type\":\"fire_event\",\"event_type\":\"" + RestTransport.BATCH_EVENT_TYPE +
+                        "\",\"event_data\":" + eventData + "}"));
+    }
+
+    /**
+     * Send a WebSocket API command, e.g. {"type": "recorder/import_statistics", ...}; the id
+     * is added when it is written. The callback receives its result, or the reason it could
+     * not be sent, except when the transport is closed first.
+     */
+    public void call(Endpoint endpoint, JSONObject command, ResultCallback callback) {
+        enqueue(endpoint, new Message(null, callback, command.toString().substring(1)));
+    }
+
+    private void enqueue(Endpoint endpoint, Message message) {
+        // OkHttp upgrades http(s) URLs to ws(s) itself
+        HttpUrl url = HttpUrl.parse(endpoint.getBaseUrl() + "/api/websocket");
+        if (url == null) {
+            logManager.logError("Invalid Home Assistant URL: " + endpoint.getBaseUrl());
+            fail(message, "Invalid URL");
+            return;
+        }
+
+        List<Message> dropped = new ArrayList<>();
+        boolean rejected;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            rejected = endpoint.sameConnection(rejectedEndpoint);
+            if (!rejected) {
+                if (!endpoint.sameConnection(this.endpoint)) {
+                    // URL or token changed: start over on a new connection
+                    disconnect("Endpoint changed");
+                    handler.removeCallbacks(reconnect);
+                    reconnectScheduled = false;
+                    reconnectDelay = RECONNECT_MIN_DELAY_MS;
+                }
+                this.endpoint = endpoint;
+                this.url = url;
+                rejectedEndpoint = null;
+
+                queue.addLast(message);
+                while (queue.size() > MAX_QUEUED) {
+                    dropped.add(queue.removeFirst());
+                    droppedCount++;
+                }
+
+                if (authenticated) {
+                    transmit();
+                } else if (webSocket == null && !reconnectScheduled) {
+                    connect();
+                }
+            }
+        }
+
+        if (rejected) {
+            // Do not retry a token Home Assistant refused; a changed token is a new endpoint
+            fail(message, "Authentication rejected");
+            return;
+        }
+        for (Message m : dropped) {
+            fail(m, "Send queue full");
+        }
+    }
+
+    /**
+     * Open a new connection to the configured endpoint; called with the lock held
+     */
+    private void connect() {
+        Request request = new Request.Builder()
+                .url(url)
+                .build();
+        OkHttpClient client = clientProvider.getClient().newBuilder()
+                .pingInterval(PING_INTERVAL_MS, TimeUnit.MILLISECONDS)
+                .build();
+        authenticated = false;
+        connectCount++;
+        logManager.logDebug("Connecting WebSocket to " + endpoint.getBaseUrl());
+        webSocket = client.newWebSocket(request, this);
+    }
+
+    /**
+     * Close the current connection and queue its unanswered messages again; called with the lock held
+     */
+    private void disconnect(String reason) {
+        if (webSocket != null) {
+            webSocket.close(CLOSE_NORMAL, reason);
+        }
+        connectionLost();
+    }
+
+    /**
+     * Forget the current connection and put its unanswered messages back at the front of
+     * the queue in their original order; called with the lock held
+     */
+    private void connectionLost() {
+        webSocket = null;
+        authenticated = false;
+        if (!inFlight.isEmpty()) {
+            List<Message> unanswered = new ArrayList<>(inFlight.values());
+            inFlight.clear();
+            for (int i = unanswered.size() - 1; i >= 0; i--) {
+                queue.addFirst(unanswered.get(i));
+            }
+            resentCount += unanswered.size();
+        }
+    }
+
+    /**
+     * Write queued messages up to the in-flight limit; called with the lock held
+     */
+    private void transmit() {
+        while (authenticated && inFlight.size() < MAX_IN_FLIGHT && !queue.isEmpty()) {
+            Message message = queue.peekFirst();
+            int id = nextId++;
+            String text = "{\"id\":" + id + "," + message.body;
+            if (!webSocket.send(text)) {
+                // Connection is closing; the message is sent again after reconnecting
+                return;
+            }
+            queue.removeFirst();
+            message.sentAt = System.currentTimeMillis();
+            inFlight.put(id, message);
+            sentCount++;
+        }
+    }
+
+    private void scheduleReconnect() {
+        if (closed || reconnectScheduled || queue.isEmpty()) {
+            return;
+        }
+        reconnectScheduled = true;
+        logManager.logDebug("Reconnecting WebSocket in " + reconnectDelay + "ms");
+        handler.postDelayed(reconnect, reconnectDelay);
+        reconnectDelay = Math.min(reconnectDelay * 2, RECONNECT_MAX_DELAY_MS);
+    }
+
+    @Override
+    public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
+        JSONObject json;
+        try {
+            json = new JSONObject(text);
+        } catch (JSONException e) {
+            Log.w(TAG, "Ignoring malformed message: " + text);
+            return;
+        }
+
+        String type = json.optString("type");
+        switch (type) {
+            case "auth_required":
+                onAuthRequired(webSocket);
+                break;
+            case "auth_ok":
+                onAuthOk(webSocket, json.optString("ha_version"));
+                break;
+            case "auth_invalid":
+                onAuthInvalid(webSocket, json.optString("message"));
+                break;
+            case "result":
+                onResult(webSocket, json);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onAuthRequired(WebSocket webSocket) {
+        String token;
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            token = endpoint.getToken();
+        }
+        try {
+            JSONObject auth = new JSONObject();
+            auth.put("type", "auth");
+            auth.put("access_token", token);
+            webSocket.send(auth.toString());
+        } catch (JSONException e) {
+            logManager.logError("Error creating auth JSON", e);
+        }
+    }
+
+    private synchronized void onAuthOk(WebSocket webSocket, String version) {
+        if (webSocket != this.webSocket) {
+            return;
+        }
+        authenticated = true;
+        reconnectDelay = RECONNECT_MIN_DELAY_MS;
+        logManager.logInfo("WebSocket connected to Home Assistant " + version +
+                " (" + queue.size() + " messages queued)");
+        transmit();
+    }
+
+    private void onAuthInvalid(WebSocket webSocket, String message) {
+        List<Message> failed;
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            logManager.logError("WebSocket authentication failed: " + message);
+            rejectedEndpoint = endpoint;
+            connectionLost();
+            failed = new ArrayList<>(queue);
+            queue.clear();
+        }
+        webSocket.close(CLOSE_NORMAL, "Authentication failed");
+        for (Message m : failed) {
+            fail(m, "Authentication rejected");
+        }
+    }
+
+    private void onResult(WebSocket webSocket, JSONObject json) {
+        Message message;
+        boolean success = json.optBoolean("success");
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            message = inFlight.remove(json.optInt("id", -1));
+            if (message == null) {
+                return;
+            }
+            long rtt = System.currentTimeMillis() - message.sentAt;
+            rttCount++;
+            rttTotalMs += rtt;
+            rttMaxMs = Math.max(rttMaxMs, rtt);
+            if (success) {
+                deliveredCount++;
+            }
+            transmit();
+        }
+
+        if (success) {
+            if (message.callback != null) {
+                message.callback.onResult(true, null);
+            } else {
+                for (DataRecord record : message.records) {
+                    listener.onDelivered(record);
+                }
+            }
+        } else {
+            JSONObject error = json.optJSONObject("error");
+            String reason = error != null ? error.optString("message") : "Request failed";
+            if (message.records != null) {
+                logManager.logError("Home Assistant rejected batch of " + message.records.size() + " states: " + reason);
+            }
+            fail(message, reason);
+        }
+    }
+
+    @Override
+    public void onClosing(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+        webSocket.close(CLOSE_NORMAL, null);
+    }
+
+    @Override
+    public void onClosed(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            logManager.logWarning("WebSocket closed by Home Assistant: " + code + " " + reason);
+            connectionLost();
+            scheduleReconnect();
+        }
+    }
+
+    @Override
+    public void onFailure(@NonNull WebSocket webSocket, @NonNull Throwable t, Response response) {
+        synchronized (this) {
+            if (webSocket != this.webSocket) {
+                return;
+            }
+            logManager.logError("WebSocket connection failed: " + t.getMessage());
+            connectionLost();
+            scheduleReconnect();
+        }
+    }
+
+    private void fail(Message message, String error) {
+        if (message.callback == null) {
+            failRecords(message.records, error);
+            return;
+        }
+        synchronized (this) {
+            failedCount++;
+        }
+        message.callback.onResult(false, error);
+    }
+
+    private void failRecords(List<DataRecord> records, String error) {
+        synchronized (this) {
+            failedCount++;
+        }
+        for (DataRecord record : records) {
+            listener.onFailed(record, error);
+        }
+    }
+
+    @Override
+    public synchronized String getStats() {
+        return "connects=" + connectCount +
+                ", sent=" + sentCount +
+                ", resent=" + resentCount +
+                ", delivered=" + deliveredCount +
+                ", failed=" + failedCount +
+                ", dropped=" + droppedCount +
+                ", queued=" + queue.size() +
+                ", inFlight=" + inFlight.size() +
+                ", rttAvg=" + (rttCount > 0 ? rttTotalMs / rttCount : 0) + "ms" +
+                ", rttMax=" + rttMaxMs + "ms";
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            handler.removeCallbacks(reconnect);
+            if (webSocket != null) {
+                webSocket.close(CLOSE_NORMAL, "Plugin stopped");
+                webSocket = null;
+            }
+            authenticated = false;
+            queue.clear();
+            inFlight.clear();
+        }
+        logManager.logInfo("WebSocket transport closed - " + getStats());
+    }
+}
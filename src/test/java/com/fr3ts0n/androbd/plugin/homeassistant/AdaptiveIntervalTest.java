@@ -0,0 +1,185 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AIMD decisions of AdaptiveInterval. Round trips are simulated by back-dating the send time.
+ */
+public class AdaptiveIntervalTest {
+
+    private static final long BASE_MS = 5000;
+    private static final long MIN_MS = 1000;
+    private static final long MAX_MS = 30000;
+
+    private AdaptiveInterval interval;
+
+    @Before
+    public void setUp() {
+        interval = new AdaptiveInterval();
+        interval.configure(true, BASE_MS, MIN_MS, MAX_MS);
+    }
+
+    @Test
+    public void disabledKeepsConfiguredInterval() {
+        interval.configure(false, 7000, MIN_MS, 3000);
+        deliver(4, 0, 100);
+
+        assertEquals(7000, interval.nextInterval(true, System.currentTimeMillis()));
+        assertTrue(interval.getStats().startsWith("disabled"));
+    }
+
+    @Test
+    public void configureClampsBaseAndBounds() {
+        interval.configure(true, 500, MIN_MS, MAX_MS);
+        assertEquals(MIN_MS, interval.getInterval());
+        interval.configure(true, 60000, MIN_MS, MAX_MS);
+        assertEquals(MAX_MS, interval.getInterval());
+        interval.configure(true, 5000, 8000, 2000);
+        assertEquals(2000, interval.getInterval());
+    }
+
+    @Test
+    public void healthyLinkWithBacklogSpeedsUpByStep() {
+        deliver(4, 0, 100);
+        assertEquals(4500, interval.nextInterval(true, System.currentTimeMillis()));
+        assertTrue(interval.getStats().contains("last=speed up"));
+
+        deliver(4, 0, 100);
+        assertEquals(4000, interval.nextInterval(true, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void speedUpStopsAtMinimum() {
+        for (int i = 0; i < 20; i++) {
+            deliver(2, 0, 10);
+            interval.nextInterval(true, System.currentTimeMillis());
+        }
+        assertEquals(MIN_MS, interval.getInterval());
+        assertTrue(interval.getStats().contains("at bound"));
+    }
+
+    @Test
+    public void withoutBacklogIntervalHolds() {
+        deliver(4, 0, 100);
+        assertEquals(BASE_MS, interval.nextInterval(false, System.currentTimeMillis()));
+        assertTrue(interval.getStats().endsWith("last=hold"));
+    }
+
+    @Test
+    public void withoutOutcomesIntervalHolds() {
+        assertEquals(BASE_MS, interval.nextInterval(true, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void moderateRoundTripHolds() {
+        // Above a quarter of the interval, below half
+        deliver(4, 0, 2000);
+        assertEquals(BASE_MS, interval.nextInterval(true, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void slowRoundTripBacksOff() {
+        deliver(4, 0, 3000);
+        assertEquals(10000, interval.nextInterval(true, System.currentTimeMillis()));
+        assertTrue(interval.getStats().contains("back off (rtt"));
+    }
+
+    @Test
+    public void errorsBackOff() {
+        deliver(3, 1, 100);
+        assertEquals(10000, interval.nextInterval(true, System.currentTimeMillis()));
+        assertTrue(interval.getStats().contains("back off (errors 25%)"));
+    }
+
+    @Test
+    public void fewErrorsDoNotSpeedUp() {
+        deliver(9, 1, 100);
+        assertEquals(BASE_MS, interval.nextInterval(true, System.currentTimeMillis()));
+    }
+
+    @Test
+    public void backOffStopsAtMaximum() {
+        for (int i = 0; i < 10; i++) {
+            deliver(0, 2, 100);
+            interval.nextInterval(true, System.currentTimeMillis());
+        }
+        assertEquals(MAX_MS, interval.getInterval());
+        assertTrue(interval.getStats().contains("at bound"));
+    }
+
+    @Test
+    public void outstandingRecordBacksOff() {
+        long now = System.currentTimeMillis();
+        interval.onSent(records("engine_rpm"), now - BASE_MS - 1000);
+
+        assertEquals(10000, interval.nextInterval(true, now));
+        assertTrue(interval.getStats().contains("back off (stalled)"));
+    }
+
+    @Test
+    public void resendKeepsEarlierSendTime() {
+        long now = System.currentTimeMillis();
+        interval.onSent(records("engine_rpm"), now - BASE_MS - 1000);
+        interval.onSent(records("engine_rpm"), now);
+
+        assertEquals(10000, interval.nextInterval(true, now));
+    }
+
+    @Test
+    public void unreportedRecordsCountAsFailed() {
+        long now = System.currentTimeMillis();
+        interval.onSent(records("engine_rpm"), now - 2 * MAX_MS - 1);
+
+        assertEquals(10000, interval.nextInterval(true, now));
+        assertTrue(interval.getStats().contains("outstanding=0"));
+        assertTrue(interval.getStats().contains("back off (errors 100%)"));
+    }
+
+    @Test
+    public void clearOutstandingForgetsRecords() {
+        long now = System.currentTimeMillis();
+        interval.onSent(records("engine_rpm"), now - BASE_MS - 1000);
+        interval.clearOutstanding();
+
+        assertEquals(BASE_MS, interval.nextInterval(true, now));
+    }
+
+    @Test
+    public void outcomeWithoutSendIsIgnored() {
+        interval.onFailed(new DataRecord("engine_rpm", "800", 0));
+        assertEquals(BASE_MS, interval.nextInterval(true, System.currentTimeMillis()));
+    }
+
+    /**
+     * Report delivered and failed records of distinct keys, sent rttMs ago
+     */
+    private void deliver(int delivered, int failed, long rttMs) {
+        List<DataRecord> records = new ArrayList<>();
+        for (int i = 0; i < delivered + failed; i++) {
+            records.add(new DataRecord("key_" + i, "1", 0));
+        }
+        interval.onSent(records, System.currentTimeMillis() - rttMs);
+        for (int i = 0; i < records.size(); i++) {
+            if (i < delivered) {
+                interval.onDelivered(records.get(i));
+            } else {
+                interval.onFailed(records.get(i));
+            }
+        }
+    }
+
+    private static List<DataRecord> records(String... keys) {
+        List<DataRecord> records = new ArrayList<>();
+        for (String key : keys) {
+            records.add(new DataRecord(key, "1", 0));
+        }
+        return records;
+    }
+}
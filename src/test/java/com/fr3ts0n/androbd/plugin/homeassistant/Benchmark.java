@@ -0,0 +1,8 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+/**
+ * JUnit category of tests that measure rather than check. They print their figures and are
+ * left out of the unit test run; run them with {@code ./gradlew testDebugUnitTest -Pbenchmarks}.
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,188 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades of databases written by earlier versions, built here with the literal schema of
+ * their version
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DataDbHelperMigrationTest {
+
+    private static final String DATABASE_NAME = "androbd_ha_data.db";
+    private static final long T0 = SampleStoreConformanceTest.T0;
+    private static final long HOUR = SampleStoreConformanceTest.HOUR;
+
+    // Values as AndrOBD reported them; only the first five are canonical numbers
+    private static final String[] VALUES = {
+            "90", "-40", "12.5", "-0.25", "0.00001",
+            "90.0", "12.50", "1e5", "007", "+5", "2d", ".5", "NaN", "Infinity", "ON", "", " 90"
+    };
+    private static final int NUMERIC_VALUES = 5;
+
+    private Context context;
+    private DataDbHelper helper;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        if (helper != null) {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion1KeepsEveryValueAsReported() {
+        SQLiteDatabase db = createDatabase(1);
+        db.execSQL("CREATE TABLE data_records (id INTEGER PRIMARY KEY AUTOINCREMENT, key TEXT NOT NULL, " +
+                "value TEXT NOT NULL, timestamp INTEGER NOT NULL, sent INTEGER DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_timestamp ON data_records(timestamp)");
+        db.execSQL("CREATE INDEX idx_sent ON data_records(sent)");
+        // Two hours, so the records land in two segment tables; the first value of each key is sent
+        for (int i = 0; i < VALUES.length; i++) {
+            for (int hour = 0; hour < 2; hour++) {
+                db.execSQL("INSERT INTO data_records (key, value, timestamp, sent) VALUES (?, ?, ?, ?)",
+                        new Object[]{"value_" + i, VALUES[i], T0 + hour * HOUR + i, hour == 0 ? 1 : 0});
+            }
+        }
+        db.close();
+
+        helper = openHelper();
+
+        assertEquals(2 * VALUES.length, helper.getRecordCount());
+        assertEquals(VALUES.length, helper.getUnsentRecordCount());
+        final Map<String, String> read = new HashMap<>();
+        helper.forEachRecordInTimeRange(0, Long.MAX_VALUE, new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                String name = record.getKey() + "@" + (record.getTimestamp() - T0) / HOUR + "/" + record.isSent();
+                assertNull(name, read.put(name, record.getValue()));
+                return true;
+            }
+        });
+        for (int i = 0; i < VALUES.length; i++) {
+            assertEquals(VALUES[i], read.get("value_" + i + "@0/true"));
+            assertEquals(VALUES[i], read.get("value_" + i + "@1/false"));
+        }
+        assertEquals(2 * VALUES.length, read.size());
+    }
+
+    @Test
+    public void upgradeToTypedValuesStoresOnlyCanonicalNumbersAsReal() {
+        SQLiteDatabase db = createDatabase(3);
+        db.execSQL("CREATE TABLE data_keys (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL UNIQUE)");
+        db.execSQL("CREATE TABLE data_records (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "key_id INTEGER NOT NULL, value TEXT NOT NULL, timestamp INTEGER NOT NULL, " +
+                "sent INTEGER DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_sent_key_timestamp ON data_records(sent, key_id, timestamp)");
+        db.execSQL("INSERT INTO data_keys (name) VALUES ('engine_rpm')");
+        for (int i = 0; i < VALUES.length; i++) {
+            db.execSQL("INSERT INTO data_records (key_id, value, timestamp) VALUES (1, ?, ?)",
+                    new Object[]{VALUES[i], T0 + i});
+        }
+        db.close();
+
+        helper = openHelper();
+
+        Cursor cursor = helper.getReadableDatabase().rawQuery("SELECT timestamp, value_num, value_text FROM " +
+                "data_seg_" + (T0 / HOUR) + " ORDER BY timestamp", null);
+        try {
+            assertEquals(VALUES.length, cursor.getCount());
+            while (cursor.moveToNext()) {
+                int i = (int) (cursor.getLong(0) - T0);
+                if (i < NUMERIC_VALUES) {
+                    assertEquals(VALUES[i], DataRecord.formatNumber(cursor.getDouble(1)));
+                    assertTrue(VALUES[i], cursor.isNull(2));
+                } else {
+                    assertTrue(VALUES[i], cursor.isNull(1));
+                    assertEquals(VALUES[i], cursor.getString(2));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromVersion6AddsRollupsAndKeepsRecords() {
+        long bucket = T0 / HOUR;
+        SQLiteDatabase db = createDatabase(6);
+        db.execSQL("CREATE TABLE data_keys (id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL UNIQUE)");
+        db.execSQL("CREATE TABLE data_seg_" + bucket + " (id INTEGER PRIMARY KEY, " +
+                "key_id INTEGER NOT NULL, value_num REAL, value_text TEXT, " +
+                "timestamp INTEGER NOT NULL, sent INTEGER DEFAULT 0)");
+        db.execSQL("CREATE INDEX idx_data_seg_" + bucket + " ON data_seg_" + bucket + "(sent, key_id, timestamp)");
+        db.execSQL("CREATE TABLE data_blocks (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                "key_id INTEGER NOT NULL, start_ts INTEGER NOT NULL, end_ts INTEGER NOT NULL, " +
+                "sample_count INTEGER NOT NULL, unsent_count INTEGER NOT NULL, " +
+                "acked_to INTEGER NOT NULL, data BLOB NOT NULL)");
+        db.execSQL("CREATE INDEX idx_blocks_key_unsent ON data_blocks(key_id, unsent_count, end_ts)");
+        db.execSQL("CREATE INDEX idx_blocks_end ON data_blocks(end_ts)");
+        db.execSQL("INSERT INTO data_keys (name) VALUES ('engine_rpm')");
+        db.execSQL("INSERT INTO data_seg_" + bucket + " (id, key_id, value_num, value_text, timestamp) " +
+                "VALUES (1, 1, 800, NULL, ?), (2, 1, NULL, 'ON', ?)", new Object[]{T0, T0 + 1000});
+        db.close();
+
+        helper = openHelper();
+
+        assertEquals(1, DatabaseUtils.longForQuery(helper.getReadableDatabase(),
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'data_rollups'", null));
+        assertEquals(2, helper.getUnsentRecordCount());
+        assertEquals("ON", helper.getLatestUnsentRecords().get(0).getValue());
+
+        // Rollups start with the records inserted after the upgrade
+        DataRecord record = new DataRecord("engine_rpm", "900", T0 + 2000);
+        record.setKeyId(helper.getKeyId("engine_rpm"));
+        helper.insertRecords(new DataRecord[]{record}, 1);
+        final long[] samples = new long[1];
+        helper.forEachRollupInTimeRange(T0, T0 + HOUR - 1, HOUR, new SampleStore.RollupVisitor() {
+            @Override
+            public boolean visit(Rollup rollup) {
+                samples[0] += rollup.getCount();
+                return true;
+            }
+        });
+        assertEquals(1, samples[0]);
+        assertEquals(1, helper.getKeyId("engine_rpm"));
+    }
+
+    /**
+     * Create the database file as an earlier version left it
+     */
+    private SQLiteDatabase createDatabase(int version) {
+        File file = context.getDatabasePath(DATABASE_NAME);
+        file.getParentFile().mkdirs();
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        db.setVersion(version);
+        return db;
+    }
+
+    private DataDbHelper openHelper() {
+        DataDbHelper opened = new DataDbHelper(context);
+        opened.getWritableDatabase();
+        return opened;
+    }
+}
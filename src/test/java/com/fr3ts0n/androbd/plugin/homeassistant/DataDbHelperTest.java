@@ -0,0 +1,35 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * SampleStore conformance for the SQLite backend
+ */
+public class DataDbHelperTest extends SampleStoreConformanceTest {
+
+    @Override
+    protected SampleStore openStore() {
+        DataDbHelper helper = new DataDbHelper(RuntimeEnvironment.getApplication());
+        // Opened lazily; the plugin opens it on a background thread before reading counters
+        helper.getWritableDatabase();
+        return helper;
+    }
+
+    @Override
+    protected long expectedFirstHourEviction() {
+        // The hour 0 segment table
+        return 20;
+    }
+
+    @Override
+    protected long expectedKeyEviction() {
+        // All engine_rpm rows of the oldest segment holding the key
+        return 10;
+    }
+
+    @Override
+    protected long expectedDownsampling() {
+        // Ten samples a second apart per key become one per key
+        return 18;
+    }
+}
@@ -0,0 +1,106 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * IngestPipeline against a memory store that fails a given number of commits
+ */
+@RunWith(RobolectricTestRunner.class)
+public class IngestPipelineTest {
+
+    /**
+     * Fails the next failures inserts, then works; a failed insert stores nothing
+     */
+    private static final class FailingStore extends MemoryStore {
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger attempts = new AtomicInteger();
+        volatile boolean closed;
+
+        @Override
+        public void insertRecords(DataRecord[] records, int count) {
+            attempts.incrementAndGet();
+            if (closed) {
+                throw new IllegalStateException("Store closed");
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("Disk I/O error");
+            }
+            super.insertRecords(records, count);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            super.close();
+        }
+    }
+
+    private FailingStore store;
+    private LogManager logManager;
+
+    @Before
+    public void setUp() {
+        store = new FailingStore();
+        logManager = new LogManager(RuntimeEnvironment.getApplication());
+    }
+
+    @Test
+    public void stopCommitsEverythingQueued() {
+        IngestPipeline pipeline = new IngestPipeline(store, logManager, 1024, 64, 60000);
+        pipeline.start();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(pipeline.submit("key_" + i % 8, String.valueOf(i), 1700000000000L + i));
+        }
+        pipeline.stop();
+        // The writer is done, so closing the store now loses nothing
+        store.close();
+
+        assertEquals(1000, pipeline.getCommittedCount());
+        assertEquals(0, pipeline.getFailedCount());
+        assertEquals(16, store.attempts.get());
+    }
+
+    @Test
+    public void failedBatchIsKeptAndRetried() {
+        store.failures.set(2);
+        IngestPipeline pipeline = new IngestPipeline(store, logManager, 1024, 64, 60000);
+        pipeline.start();
+        for (int i = 0; i < 10; i++) {
+            pipeline.submit("engine_rpm", String.valueOf(800 + i), 1700000000000L + i);
+        }
+        pipeline.stop();
+
+        assertEquals(3, store.attempts.get());
+        assertEquals(10, store.getRecordCount());
+        assertEquals(2, pipeline.getRetriedCount());
+        assertEquals(0, pipeline.getFailedCount());
+    }
+
+    @Test
+    public void batchIsDroppedAndCountedAfterLastAttempt() {
+        store.failures.set(Integer.MAX_VALUE);
+        IngestPipeline pipeline = new IngestPipeline(store, logManager, 1024, 64, 60000);
+        pipeline.start();
+        for (int i = 0; i < 100; i++) {
+            pipeline.submit("engine_rpm", String.valueOf(800 + i), 1700000000000L + i);
+        }
+        long start = System.currentTimeMillis();
+        pipeline.stop();
+
+        // The first batch gets every attempt, the rest one each once stopping
+        assertEquals(100, pipeline.getFailedCount());
+        assertEquals(0, pipeline.getCommittedCount());
+        assertEquals(4, store.attempts.get());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(pipeline.getStats().contains("failed=100, retries=2"));
+    }
+}
@@ -0,0 +1,42 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * SampleStore conformance for the memory-mapped journal
+ */
+public class JournalStoreTest extends SampleStoreConformanceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Override
+    protected SampleStore openStore() throws IOException {
+        if (directory == null) {
+            directory = folder.newFolder("journal");
+        }
+        return new JournalStore(directory);
+    }
+
+    @Override
+    protected long expectedFirstHourEviction() {
+        // One segment file holds both hours
+        return 0;
+    }
+
+    @Override
+    protected long expectedKeyEviction() {
+        return 0;
+    }
+
+    @Override
+    protected long expectedDownsampling() {
+        return -1;
+    }
+}
@@ -0,0 +1,33 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+/**
+ * SampleStore conformance for the in-memory backend
+ */
+public class MemoryStoreTest extends SampleStoreConformanceTest {
+
+    @Override
+    protected SampleStore openStore() {
+        return new MemoryStore();
+    }
+
+    @Override
+    protected boolean isPersistent() {
+        return false;
+    }
+
+    @Override
+    protected long expectedFirstHourEviction() {
+        // One chunk holds both hours
+        return 0;
+    }
+
+    @Override
+    protected long expectedKeyEviction() {
+        return 0;
+    }
+
+    @Override
+    protected long expectedDownsampling() {
+        return -1;
+    }
+}
@@ -0,0 +1,383 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MqttTransport against a scripted broker that speaks just enough MQTT 3.1.1:
+ * CONNECT/CONNACK, PUBLISH and PUBACK
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MqttTransportTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TIMEOUT_S = 5;
+    private static final String PREFIX = "sensor.obd_";
+
+    /**
+     * A packet the broker received. For CONNECT the topic, payload and retain flag are those of the will.
+     */
+    private static final class Received {
+        int type;
+        String clientId;
+        String topic;
+        String payload;
+        int qos;
+        boolean retain;
+        int packetId;
+    }
+
+    /**
+     * Accepts one connection at a time and records what the client sends
+     */
+    private static final class ScriptedBroker implements Runnable {
+        final ServerSocket serverSocket;
+        final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+        final AtomicInteger connections = new AtomicInteger();
+        volatile int connackCode;
+        volatile boolean holdAcks;
+        volatile Socket client;
+        volatile OutputStream out;
+
+        ScriptedBroker() throws IOException {
+            serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this, "ScriptedBroker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket s = serverSocket.accept();
+                    client = s;
+                    out = s.getOutputStream();
+                    connections.incrementAndGet();
+                    serve(new BufferedInputStream(s.getInputStream()));
+                } catch (IOException e) {
+                    // Connection ended; wait for the next one
+                }
+            }
+        }
+
+        private void serve(InputStream in) throws IOException {
+            while (true) {
+                MqttCodec.Packet packet = MqttCodec.read(in);
+                Received r = new Received();
+                r.type = packet.type;
+                if (packet.type == MqttCodec.CONNECT) {
+                    parseConnect(packet.body, r);
+                    received.add(r);
+                    write(new byte[] {0x20, 0x02, 0x00, (byte) connackCode});
+                } else if (packet.type == MqttCodec.PUBLISH) {
+                    parsePublish(packet, r);
+                    received.add(r);
+                    if (r.qos > 0 && !holdAcks) {
+                        puback(r.packetId);
+                    }
+                } else {
+                    received.add(r);
+                }
+            }
+        }
+
+        void puback(int packetId) throws IOException {
+            write(new byte[] {0x40, 0x02, (byte) (packetId >> 8), (byte) packetId});
+        }
+
+        synchronized void write(byte[] bytes) throws IOException {
+            out.write(bytes);
+            out.flush();
+        }
+
+        /**
+         * Drop the current connection without a DISCONNECT
+         */
+        void drop() throws IOException {
+            client.close();
+        }
+
+        void shutdown() throws IOException {
+            serverSocket.close();
+            Socket s = client;
+            if (s != null) {
+                s.close();
+            }
+        }
+
+        Received take() throws InterruptedException {
+            Received r = received.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            if (r == null) {
+                throw new AssertionError("Broker received nothing");
+            }
+            return r;
+        }
+
+        /**
+         * Next PUBLISH, skipping CONNECT and PINGREQ
+         */
+        Received takePublish() throws InterruptedException {
+            Received r;
+            do {
+                r = take();
+            } while (r.type == MqttCodec.CONNECT || r.type == MqttCodec.PINGREQ);
+            assertEquals(MqttCodec.PUBLISH, r.type);
+            return r;
+        }
+
+        private static void parseConnect(byte[] body, Received r) {
+            int[] pos = new int[] {0};
+            assertEquals("MQTT", readString(body, pos));
+            assertEquals(4, body[pos[0]++]);
+            int flags = body[pos[0]++] & 0xFF;
+            pos[0] += 2;
+            r.clientId = readString(body, pos);
+            if ((flags & 0x04) != 0) {
+                r.topic = readString(body, pos);
+                r.payload = readString(body, pos);
+                r.qos = flags >> 3 & 0x03;
+                r.retain = (flags & 0x20) != 0;
+            }
+        }
+
+        private static void parsePublish(MqttCodec.Packet packet, Received r) {
+            int[] pos = new int[] {0};
+            r.qos = packet.flags >> 1 & 0x03;
+            r.retain = (packet.flags & 0x01) != 0;
+            r.topic = readString(packet.body, pos);
+            if (r.qos > 0) {
+                r.packetId = (packet.body[pos[0]] & 0xFF) << 8 | packet.body[pos[0] + 1] & 0xFF;
+                pos[0] += 2;
+            }
+            r.payload = new String(packet.body, pos[0], packet.body.length - pos[0], UTF_8);
+        }
+
+        private static String readString(byte[] body, int[] pos) {
+            int length = (body[pos[0]] & 0xFF) << 8 | body[pos[0] + 1] & 0xFF;
+            String value = new String(body, pos[0] + 2, length, UTF_8);
+            pos[0] += 2 + length;
+            return value;
+        }
+    }
+
+    /**
+     * Records every outcome as "delivered key" or "failed key: error"
+     */
+    private static class RecordingListener implements Transport.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onDelivered(DataRecord record) {
+            events.add("delivered " + record.getKey());
+        }
+
+        @Override
+        public void onFailed(DataRecord record, String error) {
+            events.add("failed " + record.getKey() + ": " + error);
+        }
+
+        String take() throws InterruptedException {
+            String event = events.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            if (event == null) {
+                throw new AssertionError("No outcome reported");
+            }
+            return event;
+        }
+    }
+
+    private ScriptedBroker broker;
+    private RecordingListener listener;
+    private MqttTransport transport;
+    private final Transport.Endpoint endpoint = new Transport.Endpoint("", "", PREFIX);
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new ScriptedBroker();
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (transport != null) {
+            transport.close();
+        }
+        broker.shutdown();
+    }
+
+    @Test
+    public void connectsAndDeliversOnPuback() throws Exception {
+        open(1);
+        transport.describe("engine_rpm", "Engine RPM", "rpm");
+        broker.holdAcks = true;
+
+        transport.send(endpoint, records("engine_rpm"));
+
+        Received connect = broker.take();
+        assertEquals(MqttCodec.CONNECT, connect.type);
+        assertEquals("androbd-test", connect.clientId);
+        assertEquals("androbd/status", connect.topic);
+        assertEquals("offline", connect.payload);
+        assertTrue(connect.retain);
+
+        Received online = broker.takePublish();
+        assertEquals("androbd/status", online.topic);
+        assertEquals("online", online.payload);
+        assertTrue(online.retain);
+
+        String objectId = objectId("engine_rpm");
+        Received discovery = broker.takePublish();
+        assertEquals("homeassistant/sensor/" + objectId + "/config", discovery.topic);
+        assertTrue(discovery.retain);
+        JSONObject config = new JSONObject(discovery.payload);
+        assertEquals("Engine RPM", config.getString("name"));
+        assertEquals("rpm", config.getString("unit_of_measurement"));
+        assertEquals("androbd/" + objectId + "/state", config.getString("state_topic"));
+
+        Received state = broker.takePublish();
+        assertEquals("androbd/" + objectId + "/state", state.topic);
+        assertEquals("800", state.payload);
+        assertEquals(1, state.qos);
+        assertFalse(state.retain);
+
+        // Delivered only once the broker acknowledged the state
+        assertNull(listener.events.poll(200, TimeUnit.MILLISECONDS));
+        broker.puback(discovery.packetId);
+        assertNull(listener.events.poll(200, TimeUnit.MILLISECONDS));
+        broker.puback(state.packetId);
+        assertEquals("delivered engine_rpm", listener.take());
+    }
+
+    @Test
+    public void publishesDiscoveryOncePerConnection() throws Exception {
+        open(1);
+
+        transport.send(endpoint, records("engine_rpm", "vehicle_speed"));
+        assertEquals("delivered engine_rpm", listener.take());
+        assertEquals("delivered vehicle_speed", listener.take());
+        transport.send(endpoint, records("engine_rpm"));
+        assertEquals("delivered engine_rpm", listener.take());
+
+        List<String> topics = publishedTopics();
+        assertEquals(1, count(topics, "homeassistant/sensor/" + objectId("engine_rpm") + "/config"));
+        assertEquals(1, count(topics, "homeassistant/sensor/" + objectId("vehicle_speed") + "/config"));
+        assertEquals(2, count(topics, "androbd/" + objectId("engine_rpm") + "/state"));
+    }
+
+    @Test
+    public void connectionLossFailsUnacknowledgedRecords() throws Exception {
+        open(1);
+        broker.holdAcks = true;
+
+        transport.send(endpoint, records("engine_rpm"));
+        broker.takePublish();
+        broker.takePublish();
+        broker.takePublish();
+        broker.drop();
+        assertEquals("failed engine_rpm: Connection lost", listener.take());
+
+        // The next send reconnects and publishes the retained config again
+        broker.holdAcks = false;
+        transport.send(endpoint, records("engine_rpm"));
+        assertEquals("delivered engine_rpm", listener.take());
+        assertEquals(2, broker.connections.get());
+        assertEquals(1, count(publishedTopics(), "homeassistant/sensor/" + objectId("engine_rpm") + "/config"));
+    }
+
+    @Test
+    public void refusedConnectionFailsRecords() throws Exception {
+        open(1);
+        broker.connackCode = 5;
+
+        transport.send(endpoint, records("engine_rpm"));
+
+        assertEquals("failed engine_rpm: Connection refused: " + MqttCodec.connackReason(5), listener.take());
+    }
+
+    @Test
+    public void qos0DeliversWhenWritten() throws Exception {
+        open(0);
+        broker.holdAcks = true;
+
+        transport.send(endpoint, records("engine_rpm"));
+
+        assertEquals("delivered engine_rpm", listener.take());
+        List<String> topics = publishedTopics();
+        assertTrue(topics.contains("androbd/" + objectId("engine_rpm") + "/state"));
+    }
+
+    private void open(int qos) {
+        final OkHttpClient client = new OkHttpClient();
+        transport = new MqttTransport(new Transport.ClientProvider() {
+            @Override
+            public OkHttpClient getClient() {
+                return client;
+            }
+        }, new LogManager(RuntimeEnvironment.getApplication()), listener,
+                "tcp://127.0.0.1:" + broker.serverSocket.getLocalPort(), "", "", qos, "", "androbd-test");
+    }
+
+    /**
+     * Topics published since the last take, waiting briefly for stragglers
+     */
+    private List<String> publishedTopics() throws InterruptedException {
+        List<String> topics = new ArrayList<>();
+        Received r;
+        while ((r = broker.received.poll(200, TimeUnit.MILLISECONDS)) != null) {
+            if (r.type == MqttCodec.PUBLISH) {
+                topics.add(r.topic);
+            }
+        }
+        return topics;
+    }
+
+    private static int count(List<String> values, String value) {
+        int count = 0;
+        for (String v : values) {
+            if (v.equals(value)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static String objectId(String key) {
+        String entityId = RestTransport.toEntityId(PREFIX, key);
+        return entityId.substring(entityId.indexOf('.') + 1);
+    }
+
+    private static List<DataRecord> records(String... keys) {
+        List<DataRecord> records = new ArrayList<>();
+        for (String key : keys) {
+            records.add(new DataRecord(key, "800", 1700000000000L));
+        }
+        return records;
+    }
+}
@@ -0,0 +1,232 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RequestScheduler against a server that holds every call until released. The server is
+ * reached as localhost and as 127.0.0.1, which the scheduler treats as two hosts.
+ */
+public class RequestSchedulerTest {
+
+    private static final long TIMEOUT_S = 5;
+
+    /**
+     * Holds each request until a permit is released and tracks calls in progress per host
+     */
+    private static final class GatedDispatcher extends Dispatcher {
+        final Semaphore permits = new Semaphore(0);
+        final BlockingQueue<String> arrived = new LinkedBlockingQueue<>();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+            int now = active.incrementAndGet();
+            maxActive.set(Math.max(maxActive.get(), now));
+            arrived.add(request.getHeader("Host").split(":")[0] + request.getPath());
+            try {
+                permits.acquire();
+            } finally {
+                active.decrementAndGet();
+            }
+            return new MockResponse().setBody("ok");
+        }
+
+        String take() throws InterruptedException {
+            String path = arrived.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            if (path == null) {
+                throw new AssertionError("No request arrived");
+            }
+            return path;
+        }
+    }
+
+    private MockWebServer server;
+    private GatedDispatcher dispatcher;
+    private OkHttpClient client;
+    private RequestScheduler scheduler;
+    private final BlockingQueue<String> outcomes = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dispatcher = new GatedDispatcher();
+        server = new MockWebServer();
+        server.setDispatcher(dispatcher);
+        server.start();
+        client = new OkHttpClient();
+        scheduler = new RequestScheduler();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dispatcher.permits.release(1000);
+        server.shutdown();
+    }
+
+    @Test
+    public void limitsCallsInFlightPerHost() throws Exception {
+        scheduler.setMaxInFlight(2);
+        for (int i = 0; i < 5; i++) {
+            submit("localhost", "state" + i);
+        }
+        dispatcher.take();
+        dispatcher.take();
+        assertNull(dispatcher.arrived.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, scheduler.getInFlightCount());
+        assertEquals(3, scheduler.getQueueDepth());
+
+        // Another host is not held up by the full one
+        submit("127.0.0.1", "other");
+        assertEquals("127.0.0.1/other", dispatcher.take());
+
+        dispatcher.permits.release(6);
+        for (int i = 0; i < 6; i++) {
+            assertTrue(take().startsWith("response"));
+        }
+        assertEquals(3, dispatcher.maxActive.get());
+        assertEquals(0, scheduler.getInFlightCount());
+        assertEquals(0, scheduler.getQueueDepth());
+        assertTrue(scheduler.getStats().contains("completed=6"));
+    }
+
+    @Test
+    public void raisingTheLimitStartsWaitingRequests() throws Exception {
+        scheduler.setMaxInFlight(1);
+        submit("localhost", "a");
+        submit("localhost", "b");
+        dispatcher.take();
+        assertNull(dispatcher.arrived.poll(200, TimeUnit.MILLISECONDS));
+
+        scheduler.setMaxInFlight(2);
+        assertEquals("localhost/b", dispatcher.take());
+    }
+
+    @Test
+    public void newerRequestSupersedesQueuedOneInPlace() throws Exception {
+        scheduler.setMaxInFlight(1);
+        submit("localhost", "busy");
+        assertEquals("localhost/busy", dispatcher.take());
+
+        submit("localhost", "a", "a1");
+        submit("localhost", "b", "b1");
+        submit("localhost", "a", "a2");
+        assertEquals("dropped a1: Superseded", take());
+
+        dispatcher.permits.release(3);
+        assertEquals("localhost/a2", dispatcher.take());
+        assertEquals("localhost/b1", dispatcher.take());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(take().startsWith("response"));
+        }
+        assertTrue(scheduler.getStats().contains("superseded=1"));
+    }
+
+    @Test
+    public void startedCallIsNotSuperseded() throws Exception {
+        scheduler.setMaxInFlight(1);
+        submit("localhost", "a", "a1");
+        assertEquals("localhost/a1", dispatcher.take());
+
+        // The newer value follows the call already made
+        submit("localhost", "a", "a2");
+        dispatcher.permits.release(2);
+        assertEquals("localhost/a2", dispatcher.take());
+        assertEquals("response a1 200", take());
+        assertEquals("response a2 200", take());
+        assertTrue(scheduler.getStats().contains("superseded=0"));
+    }
+
+    @Test
+    public void cancelQueuedLeavesCallsInFlight() throws Exception {
+        scheduler.setMaxInFlight(1);
+        submit("localhost", "a");
+        submit("localhost", "b");
+        submit("localhost", "c");
+        dispatcher.take();
+
+        assertEquals(2, scheduler.cancelQueued("localhost", "Host down"));
+        assertEquals("dropped b: Host down", take());
+        assertEquals("dropped c: Host down", take());
+
+        dispatcher.permits.release(1);
+        assertEquals("response a 200", take());
+        assertNull(dispatcher.arrived.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void lowPriorityKeysWaitForOthers() throws Exception {
+        scheduler.setMaxInFlight(1);
+        scheduler.setPriorityOrder(true, Collections.singleton("history"));
+        submit("localhost", "busy");
+        dispatcher.take();
+        submit("localhost", "history");
+        submit("localhost", "state1");
+        submit("localhost", "state2");
+
+        dispatcher.permits.release(4);
+        assertEquals("localhost/state1", dispatcher.take());
+        assertEquals("localhost/state2", dispatcher.take());
+        assertEquals("localhost/history", dispatcher.take());
+    }
+
+    private void submit(String host, String key) {
+        submit(host, key, key);
+    }
+
+    /**
+     * Submit a GET of /path under a key; the outcome is queued as "response path code" or
+     * "dropped path: reason"
+     */
+    private void submit(String host, String key, final String path) {
+        HttpUrl url = server.url("/" + path).newBuilder().host(host).build();
+        scheduler.submit(key, new Request.Builder().url(url).build(), client, new RequestScheduler.ScheduledCallback() {
+            @Override
+            public void onDropped(String reason) {
+                outcomes.add("dropped " + path + ": " + reason);
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                outcomes.add("failure " + path + ": " + e.getMessage());
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                outcomes.add("response " + path + " " + response.code());
+                response.close();
+            }
+        });
+    }
+
+    private String take() throws InterruptedException {
+        String outcome = outcomes.poll(TIMEOUT_S, TimeUnit.SECONDS);
+        if (outcome == null) {
+            throw new AssertionError("No outcome reported");
+        }
+        return outcome;
+    }
+}
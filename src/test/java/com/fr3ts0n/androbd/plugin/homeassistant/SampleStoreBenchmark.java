@@ -0,0 +1,133 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The same workload against every SampleStore backend: batched inserts, streaming the unsent
+ * records, hourly aggregation as the history backfill reads it, latest per key and
+ * acknowledging everything. The figures compare backends on one
+ * JVM under Robolectric; device numbers differ.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Category(Benchmark.class)
+public class SampleStoreBenchmark {
+
+    private static final long HOUR = 3600000L;
+    private static final long T0 = 472222L * HOUR;
+    private static final int KEYS = 16;
+    private static final int RECORDS = 64 * 1024;
+    private static final int BATCH_SIZE = 256;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compareBackends() throws Exception {
+        double sqlite = 0;
+        double journal = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            DataDbHelper helper = new DataDbHelper(RuntimeEnvironment.getApplication());
+            helper.getWritableDatabase();
+            helper.clearAllRecords();
+            sqlite = Math.max(sqlite, run("SQLite", helper));
+            journal = Math.max(journal, run("Journal", new JournalStore(folder.newFolder())));
+            run("Memory", new MemoryStore());
+        }
+        System.out.println(String.format(Locale.US,
+                "Best insert rate: journal %.0f rec/s, SQLite %.0f rec/s (%.1fx)",
+                journal, sqlite, journal / sqlite));
+    }
+
+    /**
+     * Run the workload against an empty store and close it
+     *
+     * @return insert rate in records per second
+     */
+    private static double run(String name, SampleStore store) {
+        try {
+            DataRecord[] batch = new DataRecord[BATCH_SIZE];
+            int[] keyIds = new int[KEYS];
+            long[] lastTimestamp = new long[KEYS];
+            for (int k = 0; k < KEYS; k++) {
+                keyIds[k] = store.getKeyId("key_" + k);
+            }
+
+            long start = System.nanoTime();
+            int filled = 0;
+            long numeric = 0;
+            for (int i = 0; i < RECORDS; i++) {
+                int k = i % KEYS;
+                long ts = T0 + (i / KEYS) * 100L;
+                String value = i % 97 == 0 ? "ON" : DataRecord.formatNumber(i % 5000 / 10.0);
+                if (i % 97 != 0) {
+                    numeric++;
+                }
+                DataRecord record = new DataRecord("key_" + k, value, ts);
+                record.setKeyId(keyIds[k]);
+                batch[filled++] = record;
+                lastTimestamp[k] = ts;
+                if (filled == BATCH_SIZE) {
+                    store.insertRecords(batch, filled);
+                    filled = 0;
+                }
+            }
+            store.insertRecords(batch, filled);
+            long insertNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long streamed = store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+                @Override
+                public boolean visit(DataRecord record) {
+                    return true;
+                }
+            });
+            long streamNanos = System.nanoTime() - start;
+
+            final long[] aggregated = new long[1];
+            start = System.nanoTime();
+            store.forEachRollupInTimeRange(T0, T0 + 24 * HOUR, HOUR, new SampleStore.RollupVisitor() {
+                @Override
+                public boolean visit(Rollup rollup) {
+                    aggregated[0] += rollup.getCount();
+                    return true;
+                }
+            });
+            long rollupNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int latest = store.getLatestUnsentRecords().size();
+            long latestNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int acked = store.markAsSentUpTo(keyIds, lastTimestamp, KEYS);
+            long ackNanos = System.nanoTime() - start;
+
+            assertEquals(RECORDS, store.getRecordCount());
+            assertEquals(RECORDS, streamed);
+            assertEquals(numeric, aggregated[0]);
+            assertEquals(KEYS, latest);
+            assertEquals(RECORDS, acked);
+
+            double insertRate = RECORDS * 1e9 / insertNanos;
+            System.out.println(String.format(Locale.US,
+                    "%s: insert %.0f rec/s, stream %.0f rec/s, hourly rollups %.0f samples/s, latest %.2f ms, "
+                            + "ack %.2f ms (%d records, %d keys)",
+                    name, insertRate, streamed * 1e9 / streamNanos, numeric * 1e9 / rollupNanos,
+                    latestNanos / 1e6, ackNanos / 1e6, RECORDS, KEYS));
+            return insertRate;
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,608 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Behaviour every {@link SampleStore} backend must share.
+ *
+ * Subclasses only open the store; the same cases then run against SQLite, the
+ * journal and memory. Runs under Robolectric because DataDbHelper needs SQLite.
+ */
+@RunWith(RobolectricTestRunner.class)
+public abstract class SampleStoreConformanceTest {
+
+    static final long HOUR = 3600000L;
+    /** Hour aligned, so hourly segments start exactly at T0 */
+    static final long T0 = 472222L * HOUR;
+
+    protected SampleStore store;
+
+    /**
+     * Open the store under test. Called again by {@link #reopenKeepsRecordsAndAcks()}
+     * after close, so persistent stores must reopen the same location.
+     */
+    protected abstract SampleStore openStore() throws Exception;
+
+    /**
+     * Whether records survive close and reopen
+     */
+    protected boolean isPersistent() {
+        return true;
+    }
+
+    /**
+     * Records evictOldestSegment(T0 + HOUR) removes after {@link #insertHours} of hours 0 and 2:
+     * the first hour for stores with hourly units, none where one unit holds both hours
+     */
+    protected abstract long expectedFirstHourEviction();
+
+    /**
+     * Records evictOldestRecordsOfKey(engine_rpm, 5) removes after {@link #insertHours} of
+     * hours 0 and 2, or 0 for stores that cannot remove single keys
+     */
+    protected abstract long expectedKeyEviction();
+
+    /**
+     * Records downsampleOldestSegment(10 s) removes after {@link #insertHours} of hours 0 and 2,
+     * or -1 for stores that cannot thin
+     */
+    protected abstract long expectedDownsampling();
+
+    @Before
+    public void setUp() throws Exception {
+        store = openStore();
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    @Test
+    public void keyDictionaryRoundTrip() {
+        int rpm = store.getKeyId("engine_rpm");
+        int speed = store.getKeyId("vehicle_speed");
+
+        assertNotEquals(rpm, speed);
+        assertEquals(rpm, store.getKeyId("engine_rpm"));
+        assertEquals("engine_rpm", store.getKeyName(rpm));
+        assertEquals("vehicle_speed", store.getKeyName(speed));
+    }
+
+    @Test
+    public void insertAssignsIdsAndCountsRecords() {
+        DataRecord[] batch = new DataRecord[] {
+                record("engine_rpm", "800", T0),
+                record("engine_rpm", "900", T0 + 1000),
+                record("vehicle_speed", "12", T0 + 1000)
+        };
+        insert(batch);
+
+        Set<Long> ids = new HashSet<>();
+        for (DataRecord record : batch) {
+            assertNotEquals(0, record.getId());
+            ids.add(record.getId());
+        }
+        assertEquals(batch.length, ids.size());
+
+        assertEquals(3, store.getRecordCount());
+        assertEquals(3, store.getUnsentRecordCount());
+        assertEquals(2, store.getUnsentRecordCount(store.getKeyId("engine_rpm")));
+        assertEquals(1, store.getUnsentRecordCount(store.getKeyId("vehicle_speed")));
+        assertEquals(T0, store.getOldestUnsentTimestamp());
+        assertTrue(store.getSegmentCount() >= 1);
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void insertHonoursCount() {
+        DataRecord[] batch = new DataRecord[] {
+                record("engine_rpm", "800", T0),
+                record("engine_rpm", "900", T0 + 1000)
+        };
+        for (DataRecord record : batch) {
+            record.setKeyId(store.getKeyId(record.getKey()));
+        }
+        store.insertRecords(batch, 1);
+
+        assertEquals(1, store.getRecordCount());
+        assertEquals(0, batch[1].getId());
+    }
+
+    @Test
+    public void valuesReadBackAsReported() {
+        String[] values = new String[] { "90", "90.0", "12.5", "-0.25", "ON", "" };
+        DataRecord[] batch = new DataRecord[values.length];
+        for (int i = 0; i < values.length; i++) {
+            batch[i] = record("value_" + i, values[i], T0 + i);
+        }
+        insert(batch);
+
+        final Map<String, String> read = new HashMap<>();
+        store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                read.put(store.getKeyName(record.getKeyId()), record.getValue());
+                return true;
+            }
+        });
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(values[i], read.get("value_" + i));
+        }
+    }
+
+    @Test
+    public void streamsUnsentRecordsInOrderPerKey() {
+        // Interleave keys within a batch
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            batch.add(record("engine_rpm", String.valueOf(800 + i), T0 + i * 1000L));
+            batch.add(record("coolant_temp", String.valueOf(60 + i % 30), T0 + i * 1000L + 500));
+        }
+        insert(batch);
+        insert(record("engine_rpm", "700", T0 + 99000), record("engine_rpm", "750", T0 + 100000));
+
+        final Map<Integer, Long> lastTimestamp = new HashMap<>();
+        final int[] visited = new int[1];
+        long count = store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                Long previous = lastTimestamp.get(record.getKeyId());
+                assertTrue(previous == null || previous <= record.getTimestamp());
+                assertFalse(record.isSent());
+                lastTimestamp.put(record.getKeyId(), record.getTimestamp());
+                visited[0]++;
+                return true;
+            }
+        });
+        assertEquals(102, count);
+        assertEquals(102, visited[0]);
+    }
+
+    @Test
+    public void visitorCanStopStreaming() {
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(record("engine_rpm", String.valueOf(800 + i), T0 + i * 1000L));
+        }
+        insert(batch);
+
+        final int[] visited = new int[1];
+        store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                return ++visited[0] < 5;
+            }
+        });
+        assertEquals(5, visited[0]);
+    }
+
+    @Test
+    public void timeRangeIsInclusive() {
+        insert(record("engine_rpm", "800", T0),
+                record("engine_rpm", "900", T0 + 1000),
+                record("engine_rpm", "1000", T0 + 2000),
+                record("engine_rpm", "1100", T0 + 3000));
+
+        assertEquals(2, countInRange(T0 + 1000, T0 + 2000));
+        assertEquals(4, countInRange(T0, T0 + 3000));
+        assertEquals(0, countInRange(T0 + 3001, T0 + HOUR));
+    }
+
+    @Test
+    public void latestUnsentPerKey() {
+        insert(record("engine_rpm", "800", T0),
+                record("engine_rpm", "900", T0 + 2000),
+                record("engine_rpm", "850", T0 + 1000),
+                record("vehicle_speed", "12", T0 + 500),
+                record("vehicle_speed", "14", T0 + 1500));
+
+        Map<String, DataRecord> latest = latestByKey();
+        assertEquals(2, latest.size());
+        assertEquals("900", latest.get("engine_rpm").getValue());
+        assertEquals(T0 + 2000, latest.get("engine_rpm").getTimestamp());
+        assertEquals("14", latest.get("vehicle_speed").getValue());
+
+        // A key without unsent records drops out
+        store.markAsSentUpTo(store.getKeyId("vehicle_speed"), T0 + 1500);
+        latest = latestByKey();
+        assertEquals(1, latest.size());
+        assertTrue(latest.containsKey("engine_rpm"));
+    }
+
+    @Test
+    public void watermarkAcknowledgesUpToTimestamp() {
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(record("engine_rpm", String.valueOf(800 + i), T0 + i * 1000L));
+            batch.add(record("vehicle_speed", String.valueOf(i), T0 + i * 1000L));
+        }
+        insert(batch);
+        int rpm = store.getKeyId("engine_rpm");
+        int speed = store.getKeyId("vehicle_speed");
+
+        assertEquals(5, store.markAsSentUpTo(rpm, T0 + 4000));
+        assertEquals(5, store.getUnsentRecordCount(rpm));
+        assertEquals(10, store.getUnsentRecordCount(speed));
+        assertEquals(15, store.getUnsentRecordCount());
+        assertEquals(20, store.getRecordCount());
+
+        // Repeating or lowering the watermark acknowledges nothing
+        assertEquals(0, store.markAsSentUpTo(rpm, T0 + 4000));
+        assertEquals(0, store.markAsSentUpTo(rpm, T0 + 1000));
+
+        final long[] oldestRpm = new long[] { Long.MAX_VALUE };
+        final int rpmId = rpm;
+        store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                if (record.getKeyId() == rpmId) {
+                    oldestRpm[0] = Math.min(oldestRpm[0], record.getTimestamp());
+                }
+                return true;
+            }
+        });
+        assertEquals(T0 + 5000, oldestRpm[0]);
+
+        // Lower bound once records are acknowledged
+        assertTrue(store.getOldestUnsentTimestamp() <= T0);
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void batchWatermarkAcknowledgesEachKey() {
+        List<DataRecord> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(record("engine_rpm", String.valueOf(800 + i), T0 + i * 1000L));
+            batch.add(record("vehicle_speed", String.valueOf(i), T0 + i * 1000L));
+            batch.add(record("coolant_temp", String.valueOf(60 + i), T0 + i * 1000L));
+        }
+        insert(batch);
+        int rpm = store.getKeyId("engine_rpm");
+        int speed = store.getKeyId("vehicle_speed");
+        int coolant = store.getKeyId("coolant_temp");
+
+        int acked = store.markAsSentUpTo(new int[] { rpm, speed, coolant, -1 },
+                new long[] { T0 + 9000, T0 + 2000, T0 - 1, T0 + 9000 }, 2);
+        assertEquals(13, acked);
+        assertEquals(0, store.getUnsentRecordCount(rpm));
+        assertEquals(7, store.getUnsentRecordCount(speed));
+        assertEquals(10, store.getUnsentRecordCount(coolant));
+        assertEquals(17, store.getUnsentRecordCount());
+        assertCountsMatchContents();
+    }
+
+    /**
+     * A send cycle reads the latest unsent record per key and acknowledges every key up to it.
+     * However long the trip, each cycle must see only the records added since the previous
+     * one, so its work does not grow with the stored history.
+     */
+    @Test
+    public void sendCycleWorkStaysFlatAsTripGrows() {
+        final int keys = 8;
+        final int samplesPerCycle = 5;
+        final int cycles = 200;
+        int[] keyIds = new int[keys];
+        long[] timestamps = new long[keys];
+
+        // One cycle a minute, so the trip spans several hourly segments
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            List<DataRecord> batch = new ArrayList<>();
+            for (int s = 0; s < samplesPerCycle; s++) {
+                long ts = T0 + cycle * 60000L + s * 1000L;
+                for (int k = 0; k < keys; k++) {
+                    batch.add(record("key_" + k, DataRecord.formatNumber(cycle + s * 0.5), ts));
+                }
+            }
+            insert(batch);
+
+            assertEquals(keys * samplesPerCycle, countUnsent());
+            List<DataRecord> latest = store.getLatestUnsentRecords();
+            assertEquals(keys, latest.size());
+            for (int i = 0; i < keys; i++) {
+                keyIds[i] = latest.get(i).getKeyId();
+                timestamps[i] = latest.get(i).getTimestamp();
+                assertEquals(T0 + cycle * 60000L + (samplesPerCycle - 1) * 1000L, timestamps[i]);
+            }
+            assertEquals(keys * samplesPerCycle, store.markAsSentUpTo(keyIds, timestamps, keys));
+            assertEquals(0, store.getUnsentRecordCount());
+        }
+        assertEquals(cycles * keys * samplesPerCycle, store.getRecordCount());
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void evictOldestSegmentRespectsBoundary() {
+        insertHours(0, 2);
+        assertEquals(40, store.getRecordCount());
+
+        // Nothing ended before the first record
+        assertEquals(0, store.evictOldestSegment(T0));
+        assertEquals(40, store.getRecordCount());
+
+        // Only the first hour may go; the third hour must survive
+        long removed = store.evictOldestSegment(T0 + HOUR);
+        assertEquals(expectedFirstHourEviction(), removed);
+        assertEquals(40 - removed, store.getRecordCount());
+        assertEquals(20, countInRange(T0 + 2 * HOUR, T0 + 3 * HOUR));
+        assertCountsMatchContents();
+
+        // Eviction past the end removes one unit per call until the store is empty
+        long rest = 0;
+        for (int i = 0; i < 100 && store.getRecordCount() > 0; i++) {
+            long evicted = store.evictOldestSegment(T0 + 3 * HOUR);
+            assertTrue(evicted > 0);
+            rest += evicted;
+        }
+        assertEquals(40 - removed, rest);
+        assertEquals(0, store.getRecordCount());
+        assertEquals(0, store.getUnsentRecordCount());
+        assertTrue(store.getLatestUnsentRecords().isEmpty());
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void dropExpiredSegmentsKeepsUnsentRecords() {
+        insertHours(0, 2);
+
+        store.dropExpiredSegments(T0 + 10 * HOUR);
+        assertEquals(40, store.getRecordCount());
+        assertEquals(40, store.getUnsentRecordCount());
+
+        // Half acknowledged: the unsent half must stay
+        store.markAsSentUpTo(store.getKeyId("engine_rpm"), T0 + 3 * HOUR);
+        store.dropExpiredSegments(T0 + 10 * HOUR);
+        assertEquals(20, store.getUnsentRecordCount());
+        assertEquals(20, countUnsent());
+        assertCountsMatchContents();
+
+        store.markAsSentUpTo(store.getKeyId("vehicle_speed"), T0 + 3 * HOUR);
+        store.dropExpiredSegments(T0 + 10 * HOUR);
+        assertEquals(0, store.getRecordCount());
+        assertEquals(0, store.getUnsentRecordCount());
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void evictOldestRecordsOfKeyKeepsNewest() {
+        insertHours(0, 2);
+        int rpm = store.getKeyId("engine_rpm");
+
+        // Stores may remove whole storage units, so more than asked for
+        long removed = store.evictOldestRecordsOfKey(rpm, 5);
+        assertEquals(expectedKeyEviction(), removed);
+        assertEquals(40 - removed, store.getRecordCount());
+        assertEquals(20 - removed, store.getRecordCountsByKey()[rpm]);
+        assertEquals(20, store.getRecordCountsByKey()[store.getKeyId("vehicle_speed")]);
+
+        // The newest record of the key is never the one evicted
+        assertEquals(T0 + 2 * HOUR + 9000, latestByKey().get("engine_rpm").getTimestamp());
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void downsampleKeepsCountersConsistent() {
+        insertHours(0, 2);
+
+        long removed = store.downsampleOldestSegment(10000);
+        assertEquals(expectedDownsampling(), removed);
+        assertEquals(40 - Math.max(removed, 0), store.getRecordCount());
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void clearAllRecordsEmptiesStore() {
+        insertHours(0, 2);
+        store.clearAllRecords();
+
+        assertEquals(0, store.getRecordCount());
+        assertEquals(0, store.getUnsentRecordCount());
+        assertEquals(0, countInRange(0, Long.MAX_VALUE));
+        assertTrue(store.getLatestUnsentRecords().isEmpty());
+
+        // Still usable afterwards
+        insert(record("engine_rpm", "800", T0));
+        assertEquals(1, store.getRecordCount());
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void reopenKeepsRecordsAndAcks() throws Exception {
+        if (!isPersistent()) {
+            return;
+        }
+        insertHours(0, 2);
+        store.markAsSentUpTo(store.getKeyId("engine_rpm"), T0 + 2 * HOUR + 4000);
+        long unsent = store.getUnsentRecordCount();
+
+        store.close();
+        store = openStore();
+
+        assertEquals(40, store.getRecordCount());
+        assertEquals(unsent, store.getUnsentRecordCount());
+        assertEquals(unsent, countUnsent());
+        assertEquals("engine_rpm", store.getKeyName(store.getKeyId("engine_rpm")));
+        assertCountsMatchContents();
+    }
+
+    @Test
+    public void hourlyRollupsAggregateRecords() {
+        assertHourlyRollups();
+    }
+
+    @Test
+    public void hourlyRollupsFromMinuteRollupsMatch() {
+        store.setRollupResolutions(new long[] { 60000L, HOUR });
+        assertHourlyRollups();
+    }
+
+    static DataRecord record(String key, String value, long timestamp) {
+        return new DataRecord(key, value, timestamp);
+    }
+
+    void insert(DataRecord... records) {
+        for (DataRecord record : records) {
+            record.setKeyId(store.getKeyId(record.getKey()));
+        }
+        store.insertRecords(records, records.length);
+    }
+
+    void insert(List<DataRecord> records) {
+        insert(records.toArray(new DataRecord[0]));
+    }
+
+    /**
+     * Ten samples each of engine_rpm and vehicle_speed at the start of every given hour
+     */
+    void insertHours(int... hours) {
+        List<DataRecord> batch = new ArrayList<>();
+        for (int hour : hours) {
+            for (int i = 0; i < 10; i++) {
+                long ts = T0 + hour * HOUR + i * 1000L;
+                batch.add(record("engine_rpm", String.valueOf(800 + i), ts));
+                batch.add(record("vehicle_speed", String.valueOf(i), ts));
+            }
+        }
+        insert(batch);
+    }
+
+    /**
+     * Two keys sampled every 50 s over three hours plus text records, checked against
+     * hourly aggregates computed here
+     */
+    private void assertHourlyRollups() {
+        List<DataRecord> batch = new ArrayList<>();
+        Map<String, double[]> expected = new HashMap<>();
+        for (long ts = T0; ts < T0 + 3 * HOUR; ts += 50000) {
+            double rpm = 800 + (ts - T0) / 50000 % 37 * 25;
+            double speed = (ts - T0) / 50000 % 11 * 0.5;
+            batch.add(record("engine_rpm", DataRecord.formatNumber(rpm), ts));
+            batch.add(record("vehicle_speed", DataRecord.formatNumber(speed), ts));
+            batch.add(record("gear", "N", ts));
+            long hour = Rollup.intervalStart(ts, HOUR);
+            accumulate(expected, "engine_rpm@" + hour, rpm);
+            accumulate(expected, "vehicle_speed@" + hour, speed);
+        }
+        insert(batch);
+
+        final Map<String, double[]> actual = new HashMap<>();
+        store.forEachRollupInTimeRange(T0, T0 + 3 * HOUR - 1, HOUR, new SampleStore.RollupVisitor() {
+            @Override
+            public boolean visit(Rollup rollup) {
+                assertEquals(HOUR, rollup.getResolutionMs());
+                String name = store.getKeyName(rollup.getKeyId()) + "@" + rollup.getStartTime();
+                assertFalse(name, actual.containsKey(name));
+                actual.put(name, new double[] { rollup.getCount(), rollup.getMin(), rollup.getMax(), rollup.getSum() });
+                return true;
+            }
+        });
+
+        assertEquals(expected.keySet(), actual.keySet());
+        for (Map.Entry<String, double[]> entry : expected.entrySet()) {
+            double[] want = entry.getValue();
+            double[] got = actual.get(entry.getKey());
+            for (int i = 0; i < want.length; i++) {
+                assertEquals(entry.getKey(), want[i], got[i], 1e-9);
+            }
+        }
+    }
+
+    private static void accumulate(Map<String, double[]> aggregates, String name, double value) {
+        double[] aggregate = aggregates.get(name);
+        if (aggregate == null) {
+            aggregates.put(name, new double[] { 1, value, value, value });
+            return;
+        }
+        aggregate[0]++;
+        aggregate[1] = Math.min(aggregate[1], value);
+        aggregate[2] = Math.max(aggregate[2], value);
+        aggregate[3] += value;
+    }
+
+    long countUnsent() {
+        return store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                return true;
+            }
+        });
+    }
+
+    long countInRange(long startTime, long endTime) {
+        return store.forEachRecordInTimeRange(startTime, endTime, new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                return true;
+            }
+        });
+    }
+
+    Map<String, DataRecord> latestByKey() {
+        Map<String, DataRecord> latest = new HashMap<>();
+        for (DataRecord record : store.getLatestUnsentRecords()) {
+            assertFalse(latest.containsKey(store.getKeyName(record.getKeyId())));
+            latest.put(store.getKeyName(record.getKeyId()), record);
+        }
+        return latest;
+    }
+
+    /**
+     * The counters must agree with what the store actually returns
+     */
+    void assertCountsMatchContents() {
+        final Map<Integer, Long> byKey = new HashMap<>();
+        final Map<Integer, Long> unsentByKey = new HashMap<>();
+        long total = store.forEachRecordInTimeRange(0, Long.MAX_VALUE, new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                Long count = byKey.get(record.getKeyId());
+                byKey.put(record.getKeyId(), count == null ? 1 : count + 1);
+                return true;
+            }
+        });
+        long unsent = store.forEachUnsentRecord(new SampleStore.RecordVisitor() {
+            @Override
+            public boolean visit(DataRecord record) {
+                Long count = unsentByKey.get(record.getKeyId());
+                unsentByKey.put(record.getKeyId(), count == null ? 1 : count + 1);
+                return true;
+            }
+        });
+
+        assertEquals(total, store.getRecordCount());
+        assertEquals(unsent, store.getUnsentRecordCount());
+
+        long[] counts = store.getRecordCountsByKey();
+        long sum = 0;
+        for (int keyId = 0; keyId < counts.length; keyId++) {
+            Long expected = byKey.get(keyId);
+            assertEquals("key " + keyId, expected == null ? 0 : expected, counts[keyId]);
+            sum += counts[keyId];
+        }
+        assertEquals(total, sum);
+        for (Map.Entry<Integer, Long> entry : unsentByKey.entrySet()) {
+            assertEquals(entry.getValue().longValue(), store.getUnsentRecordCount(entry.getKey()));
+        }
+        if (unsent > 0) {
+            assertTrue(store.getOldestUnsentTimestamp() > 0);
+        }
+    }
+}
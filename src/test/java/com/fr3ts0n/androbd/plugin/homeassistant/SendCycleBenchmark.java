@@ -0,0 +1,90 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cost of the send cycle's store work, latest unsent per key and the acknowledgement, as a
+ * trip's stored history grows. Prints the average cycle time over windows early, midway and
+ * late in the trip; flat figures mean the cycle does not scan acknowledged history. The
+ * figures are for a desktop JVM under Robolectric; device numbers differ.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Category(Benchmark.class)
+public class SendCycleBenchmark {
+
+    private static final long T0 = 472222L * 3600000L;
+    private static final int KEYS = 16;
+    private static final int SAMPLES_PER_CYCLE = 10;
+    private static final int CYCLES = 1200;
+    private static final int WINDOW = 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void cycleCostAsTripGrows() throws Exception {
+        DataDbHelper helper = new DataDbHelper(RuntimeEnvironment.getApplication());
+        helper.getWritableDatabase();
+        run("SQLite", helper);
+        run("Journal", new JournalStore(folder.newFolder()));
+        run("Memory", new MemoryStore());
+    }
+
+    private static void run(String name, SampleStore store) {
+        try {
+            int[] keyIds = new int[KEYS];
+            long[] timestamps = new long[KEYS];
+            for (int k = 0; k < KEYS; k++) {
+                keyIds[k] = store.getKeyId("key_" + k);
+            }
+            DataRecord[] batch = new DataRecord[KEYS * SAMPLES_PER_CYCLE];
+            StringBuilder line = new StringBuilder(name).append(':');
+            long windowNanos = 0;
+
+            // A cycle every 5 s with samples every 500 ms, about 1.7 hours of trip
+            for (int cycle = 0; cycle < CYCLES; cycle++) {
+                for (int s = 0; s < SAMPLES_PER_CYCLE; s++) {
+                    long ts = T0 + cycle * 5000L + s * 500L;
+                    for (int k = 0; k < KEYS; k++) {
+                        DataRecord record = new DataRecord("key_" + k, DataRecord.formatNumber(cycle % 700 + k), ts);
+                        record.setKeyId(keyIds[k]);
+                        batch[s * KEYS + k] = record;
+                    }
+                }
+                store.insertRecords(batch, batch.length);
+
+                long start = System.nanoTime();
+                List<DataRecord> latest = store.getLatestUnsentRecords();
+                for (int i = 0; i < latest.size(); i++) {
+                    keyIds[i] = latest.get(i).getKeyId();
+                    timestamps[i] = latest.get(i).getTimestamp();
+                }
+                int acked = store.markAsSentUpTo(keyIds, timestamps, latest.size());
+                windowNanos += System.nanoTime() - start;
+
+                assertEquals(KEYS, latest.size());
+                assertEquals(batch.length, acked);
+                if ((cycle + 1) % WINDOW == 0) {
+                    line.append(String.format(Locale.US, " %.2f ms at %dk rows,",
+                            windowNanos / 1e6 / WINDOW, store.getRecordCount() / 1000));
+                    windowNanos = 0;
+                }
+            }
+            assertEquals(0, store.getUnsentRecordCount());
+            System.out.println(line.substring(0, line.length() - 1));
+        } finally {
+            store.close();
+        }
+    }
+}
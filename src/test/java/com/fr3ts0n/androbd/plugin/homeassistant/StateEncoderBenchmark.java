@@ -0,0 +1,109 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation and time per update of request building and body writing, the JSONObject path
+ * against StateEncoder. Runs under Robolectric so the old path uses Android's org.json; the
+ * figures are for a desktop JVM, not a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Category(Benchmark.class)
+public class StateEncoderBenchmark {
+
+    private static final String BASE_URL = "http://homeassistant.local:8123";
+    private static final int UPDATES = 100000;
+
+    @Test
+    public void allocationPerUpdate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+
+        final String[] keys = new String[8];
+        for (int k = 0; k < keys.length; k++) {
+            keys[k] = "Sensor " + k;
+        }
+        Transport.Endpoint endpoint = new Transport.Endpoint(BASE_URL, "token", "sensor.obd_");
+
+        // Warm up both paths
+        runOld(endpoint, keys, UPDATES / 10);
+        runNew(endpoint, keys, UPDATES / 10);
+
+        long thread = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        long oldSink = runOld(endpoint, keys, UPDATES);
+        long oldNanos = System.nanoTime() - start;
+        long oldBytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+        bytes = threads.getThreadAllocatedBytes(thread);
+        start = System.nanoTime();
+        long newSink = runNew(endpoint, keys, UPDATES);
+        long newNanos = System.nanoTime() - start;
+        long newBytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+        assertEquals(oldSink, newSink);
+        assertTrue(newBytes < oldBytes);
+        System.out.println(String.format(Locale.US,
+                "StateEncoder: old %d B/update %.2f us, new %d B/update %.2f us (%d updates, %d keys)",
+                oldBytes / UPDATES, oldNanos / 1e3 / UPDATES,
+                newBytes / UPDATES, newNanos / 1e3 / UPDATES, UPDATES, keys.length));
+    }
+
+    /**
+     * Request building as RestTransport did it before StateEncoder
+     */
+    private static long runOld(Transport.Endpoint endpoint, String[] keys, int updates) throws Exception {
+        long sink = 0;
+        for (int i = 0; i < updates; i++) {
+            String key = keys[i % keys.length];
+            String entityId = StateEncoderTest.oldEntityId(endpoint.getEntityPrefix(), key);
+            String url = endpoint.getBaseUrl() + "/api/states/" + entityId;
+            RequestBody body = RequestBody.create(
+                    StateEncoderTest.oldBody(key, String.valueOf(i % 7000), 1700000000000L + i),
+                    MediaType.parse("application/json"));
+            Request request = new Request.Builder()
+                    .url(url)
+                    .header("Authorization", "Bearer " + endpoint.getToken())
+                    .header("Content-Type", "application/json")
+                    .post(body)
+                    .build();
+            sink += request.body().contentLength();
+        }
+        return sink;
+    }
+
+    /**
+     * Request building as RestTransport does it now
+     */
+    private static long runNew(Transport.Endpoint endpoint, String[] keys, int updates) throws Exception {
+        StateEncoder encoder = new StateEncoder(endpoint);
+        long sink = 0;
+        for (int i = 0; i < updates; i++) {
+            StateEncoder.Template template = encoder.template(keys[i % keys.length]);
+            Request request = new Request.Builder()
+                    .url(template.url)
+                    .header("Authorization", endpoint.getAuthorization())
+                    .post(StateEncoder.encode(template, String.valueOf(i % 7000), 1700000000000L + i))
+                    .build();
+            sink += request.body().contentLength();
+        }
+        return sink;
+    }
+}
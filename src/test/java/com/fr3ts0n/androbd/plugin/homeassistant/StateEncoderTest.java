@@ -0,0 +1,103 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+
+import okhttp3.HttpUrl;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * StateEncoder against the JSONObject path it replaced. Runs under Robolectric so the old
+ * path uses Android's org.json, which is what went out on devices.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class StateEncoderTest {
+
+    private static final String BASE_URL = "http://homeassistant.local:8123";
+    private static final String TOKEN = "token";
+
+    private static final String[] KEYS = {
+            "engine_rpm", "Engine RPM", "Vehicle Speed (km/h)", "Coolant \"temp\"", "Öltemperatur",
+            "tab\tkey", "a__b--c", "_lead_", "back\\slash", "", "日本語"
+    };
+
+    private static final String[] VALUES = {
+            "800", "12.5", "-0.25", "", "ON", "km/h", "quote\"back\\slash", "ctl\u0001\u001f\u007f",
+            "line\nbreak\r\t\b\f", "µs °C", "emoji 😀", "</script>", "  "
+    };
+
+    @Test
+    public void bodiesMatchJsonObject() throws Exception {
+        Transport.Endpoint endpoint = new Transport.Endpoint(BASE_URL, TOKEN, "sensor.obd_");
+        StateEncoder encoder = new StateEncoder(endpoint);
+        for (String key : KEYS) {
+            StateEncoder.Template template = encoder.template(key);
+            for (String value : VALUES) {
+                for (long timestamp : new long[] {0, 1700000000123L, -1}) {
+                    assertEquals(key + " = " + value, oldBody(key, value, timestamp),
+                            bodyOf(StateEncoder.encode(template, value, timestamp)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void urlsAndEntityIdsMatchOldPath() {
+        for (String prefix : new String[] {"sensor.obd_", "sensor.", "sensor.my car_"}) {
+            Transport.Endpoint endpoint = new Transport.Endpoint(BASE_URL, TOKEN, prefix);
+            StateEncoder encoder = new StateEncoder(endpoint);
+            for (String key : KEYS) {
+                String entityId = oldEntityId(prefix, key);
+                StateEncoder.Template template = encoder.template(key);
+                assertEquals(entityId, RestTransport.toEntityId(prefix, key));
+                assertEquals(entityId, template.entityId);
+                assertEquals(HttpUrl.get(BASE_URL + "/api/states/" + entityId), template.url);
+            }
+        }
+    }
+
+    @Test
+    public void templatesAreKeptPerKey() {
+        StateEncoder encoder = new StateEncoder(new Transport.Endpoint(BASE_URL, TOKEN, "sensor.obd_"));
+        assertTrue(encoder.template("engine_rpm") == encoder.template("engine_rpm"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBaseUrlIsRejected() {
+        new StateEncoder(new Transport.Endpoint("homeassistant.local:8123", TOKEN, "sensor.obd_"));
+    }
+
+    static String oldBody(String key, String value, long timestamp) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("state", value);
+
+        JSONObject attributes = new JSONObject();
+        attributes.put("friendly_name", key);
+        attributes.put("source", "AndrOBD");
+        attributes.put("timestamp", timestamp);
+        json.put("attributes", attributes);
+        return json.toString();
+    }
+
+    static String oldEntityId(String entityPrefix, String key) {
+        return entityPrefix + key.toLowerCase()
+                .replaceAll("[^a-z0-9_]", "_")
+                .replaceAll("_+", "_");
+    }
+
+    private static String bodyOf(RequestBody body) throws IOException {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals("application/json", body.contentType().type() + "/" + body.contentType().subtype());
+        return buffer.readUtf8();
+    }
+}
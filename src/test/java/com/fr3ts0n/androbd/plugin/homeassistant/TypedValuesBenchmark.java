@@ -0,0 +1,131 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Row size and insert rate of the record table before and after the typed value columns
+ * (database version 3 against 4), with the same rows, index and batched inserts. The
+ * figures are for a desktop JVM under Robolectric; device numbers differ.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Category(Benchmark.class)
+public class TypedValuesBenchmark {
+
+    private static final int KEYS = 16;
+    private static final int RECORDS = 100000;
+    private static final int BATCH_SIZE = 256;
+    private static final int ROUNDS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void textAgainstTypedValues() throws Exception {
+        String[] values = values();
+        for (int round = 0; round < ROUNDS; round++) {
+            run("TEXT value (v3)", false, values);
+            run("REAL/TEXT values (v4)", true, values);
+        }
+    }
+
+    /**
+     * Insert the values into a fresh table of either layout and print bytes per row and rate
+     */
+    private void run(String name, boolean typed, String[] values) throws Exception {
+        File file = new File(folder.newFolder(), "records.db");
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(file, null);
+        try {
+            db.execSQL("CREATE TABLE data_records (id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "key_id INTEGER NOT NULL, " +
+                    (typed ? "value_num REAL, value_text TEXT, " : "value TEXT NOT NULL, ") +
+                    "timestamp INTEGER NOT NULL, sent INTEGER DEFAULT 0)");
+            db.execSQL("CREATE INDEX idx_sent_key_timestamp ON data_records(sent, key_id, timestamp)");
+            long emptyBytes = usedBytes(db);
+            SQLiteStatement insert = db.compileStatement(typed
+                    ? "INSERT INTO data_records (key_id, value_num, value_text, timestamp, sent) VALUES (?, ?, ?, ?, 0)"
+                    : "INSERT INTO data_records (key_id, value, timestamp, sent) VALUES (?, ?, ?, 0)");
+
+            DataRecord record = new DataRecord();
+            long start = System.nanoTime();
+            for (int from = 0; from < RECORDS; from += BATCH_SIZE) {
+                db.beginTransaction();
+                try {
+                    for (int i = from; i < Math.min(from + BATCH_SIZE, RECORDS); i++) {
+                        long timestamp = 1700000000000L + (i / KEYS) * 100L;
+                        insert.bindLong(1, i % KEYS + 1);
+                        if (typed) {
+                            // Values are parsed once at ingest
+                            record.setValue(values[i]);
+                            if (record.isNumeric()) {
+                                insert.bindDouble(2, record.getNumericValue());
+                                insert.bindNull(3);
+                            } else {
+                                insert.bindNull(2);
+                                insert.bindString(3, values[i]);
+                            }
+                            insert.bindLong(4, timestamp);
+                        } else {
+                            insert.bindString(2, values[i]);
+                            insert.bindLong(3, timestamp);
+                        }
+                        insert.executeInsert();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            insert.close();
+
+            assertEquals(RECORDS, DatabaseUtils.queryNumEntries(db, "data_records"));
+            System.out.println(String.format(Locale.US, "%s: %.1f bytes/row, insert %.0f rec/s (%d records)",
+                    name, (usedBytes(db) - emptyBytes) / (double) RECORDS, RECORDS * 1e9 / nanos, RECORDS));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Values of a typical trip: whole-number RPM and temperatures, one-decimal speed and
+     * voltage, and a few text states
+     */
+    private static String[] values() {
+        String[] values = new String[RECORDS];
+        for (int i = 0; i < RECORDS; i++) {
+            int k = i % KEYS;
+            int step = i / KEYS;
+            if (k == 0) {
+                values[i] = step % 50 == 0 ? "ON" : "OFF";
+            } else if (k < 6) {
+                values[i] = Integer.toString(800 + (step * 37 + k * 101) % 3200);
+            } else if (k < 11) {
+                values[i] = DataRecord.formatNumber(60 + (step + k) % 400 / 10.0);
+            } else {
+                values[i] = DataRecord.formatNumber(12 + (step * 7 + k) % 300 / 100.0);
+            }
+        }
+        return values;
+    }
+
+    private static long usedBytes(SQLiteDatabase db) {
+        long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+        long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        long pageSize = DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+        return (pageCount - freePages) * pageSize;
+    }
+}
@@ -0,0 +1,264 @@
+package com.fr3ts0n.androbd.plugin.homeassistant;
+
+import android.os.Looper;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * WebSocketTransport against MockWebServer's WebSocket upgrade, scripted like the
+ * Home Assistant WebSocket API
+ */
+@RunWith(RobolectricTestRunner.class)
+public class WebSocketTransportTest {
+
+    private static final String TOKEN = "good-token";
+    private static final long TIMEOUT_S = 5;
+
+    /**
+     * Server side of one connection: asks for auth, accepts TOKEN, and answers each
+     * message unless told to hold them
+     */
+    private static class HomeAssistantSocket extends WebSocketListener {
+        final BlockingQueue<JSONObject> received = new LinkedBlockingQueue<>();
+        volatile boolean answer = true;
+        volatile WebSocket socket;
+
+        @Override
+        public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
+            socket = webSocket;
+            webSocket.send("{\"type\":\"auth_required\",\"ha_version\":\"2024.4.0\"}");
+        }
+
+        @Override
+        public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
+            try {
+                JSONObject json = new JSONObject(text);
+                received.add(json);
+                if ("auth".equals(json.getString("type"))) {
+                    if (TOKEN.equals(json.getString("access_token"))) {
+                        webSocket.send("{\"type\":\"auth_ok\",\"ha_version\":\"2024.4.0\"}");
+                    } else {
+                        webSocket.send("{\"type\":\"auth_invalid\",\"message\":\"Invalid access token\"}");
+                    }
+                } else if (answer) {
+                    webSocket.send(result(json.getInt("id"), true));
+                }
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public void onClosing(@NonNull WebSocket webSocket, int code, @NonNull String reason) {
+            webSocket.close(1000, null);
+        }
+
+        JSONObject take() throws InterruptedException {
+            JSONObject json = received.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            if (json == null) {
+                throw new AssertionError("No message received");
+            }
+            return json;
+        }
+    }
+
+    /**
+     * Records every outcome as "delivered key" or "failed key: error"
+     */
+    private static class RecordingListener implements Transport.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onDelivered(DataRecord record) {
+            events.add("delivered " + record.getKey());
+        }
+
+        @Override
+        public void onFailed(DataRecord record, String error) {
+            events.add("failed " + record.getKey() + ": " + error);
+        }
+
+        String take() throws InterruptedException {
+            String event = events.poll(TIMEOUT_S, TimeUnit.SECONDS);
+            if (event == null) {
+                throw new AssertionError("No outcome reported");
+            }
+            return event;
+        }
+    }
+
+    private MockWebServer server;
+    private RecordingListener listener;
+    private WebSocketTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new MockWebServer();
+        server.start();
+        listener = new RecordingListener();
+        final OkHttpClient client = new OkHttpClient();
+        transport = new WebSocketTransport(new Transport.ClientProvider() {
+            @Override
+            public OkHttpClient getClient() {
+                return client;
+            }
+        }, new LogManager(RuntimeEnvironment.getApplication()), listener);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void authOkDeliversRecords() throws Exception {
+        HomeAssistantSocket ha = upgrade();
+
+        transport.send(endpoint(TOKEN), records("engine_rpm", "vehicle_speed"));
+
+        JSONObject auth = ha.take();
+        assertEquals("auth", auth.getString("type"));
+        assertEquals(TOKEN, auth.getString("access_token"));
+        JSONObject event = ha.take();
+        assertEquals("fire_event", event.getString("type"));
+        assertEquals(RestTransport.BATCH_EVENT_TYPE, event.getString("event_type"));
+        assertEquals(2, event.getJSONObject("event_data").getJSONArray("states").length());
+
+        assertEquals("delivered engine_rpm", listener.take());
+        assertEquals("delivered vehicle_speed", listener.take());
+        assertEquals("/api/websocket", server.takeRequest().getPath());
+        assertTrue(transport.getStats().contains("delivered=1"));
+    }
+
+    @Test
+    public void authInvalidFailsQueuedAndLaterSends() throws Exception {
+        upgrade();
+
+        transport.send(endpoint("wrong-token"), records("engine_rpm"));
+        assertEquals("failed engine_rpm: Authentication rejected", listener.take());
+
+        // The refused token is not tried again
+        transport.send(endpoint("wrong-token"), records("vehicle_speed"));
+        assertEquals("failed vehicle_speed: Authentication rejected", listener.take());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void resultsAreMatchedById() throws Exception {
+        HomeAssistantSocket ha = upgrade();
+        ha.answer = false;
+        final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+
+        transport.call(endpoint(TOKEN), new JSONObject("{\"type\":\"first\"}"), callback("first", results));
+        transport.call(endpoint(TOKEN), new JSONObject("{\"type\":\"second\"}"), callback("second", results));
+        ha.take();
+        int first = ha.take().getInt("id");
+        int second = ha.take().getInt("id");
+
+        // Answer out of order, with an unknown id in between
+        ha.socket.send("{\"id\":" + second + ",\"type\":\"result\",\"success\":false," +
+                "\"error\":{\"code\":\"unknown_command\",\"message\":\"Unknown command.\"}}");
+        ha.socket.send(result(first + second + 100, true));
+        ha.socket.send(result(first, true));
+
+        assertEquals("second: false Unknown command.", results.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals("first: true null", results.poll(TIMEOUT_S, TimeUnit.SECONDS));
+        assertNull(results.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void requeuesUnansweredMessagesAfterDrop() throws Exception {
+        HomeAssistantSocket dropped = upgrade();
+        dropped.answer = false;
+        HomeAssistantSocket restarted = upgrade();
+
+        transport.send(endpoint(TOKEN), records("engine_rpm"));
+        dropped.take();
+        JSONObject unanswered = dropped.take();
+
+        // Home Assistant restarts before answering
+        dropped.socket.close(1001, "Going away");
+        long deadline = System.currentTimeMillis() + TIMEOUT_S * 1000;
+        while (!transport.getStats().contains("resent=1")) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        shadowOf(Looper.getMainLooper()).idleFor(Duration.ofSeconds(1));
+
+        restarted.take();
+        JSONObject resent = restarted.take();
+        assertEquals(unanswered.getJSONObject("event_data").getJSONArray("states").toString(),
+                resent.getJSONObject("event_data").getJSONArray("states").toString());
+        assertEquals("delivered engine_rpm", listener.take());
+        assertNull(listener.events.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void invalidUrlFailsWithoutConnecting() throws Exception {
+        transport.send(new Transport.Endpoint("homeassistant.local:8123", TOKEN, "sensor.obd_"),
+                records("engine_rpm"));
+
+        assertEquals("failed engine_rpm: Invalid URL", listener.take());
+        assertEquals(0, server.getRequestCount());
+    }
+
+    private HomeAssistantSocket upgrade() {
+        HomeAssistantSocket socket = new HomeAssistantSocket();
+        server.enqueue(new MockResponse().withWebSocketUpgrade(socket));
+        return socket;
+    }
+
+    private Transport.Endpoint endpoint(String token) {
+        return new Transport.Endpoint("http://" + server.getHostName() + ":" + server.getPort(),
+                token, "sensor.obd_");
+    }
+
+    private static List<DataRecord> records(String... keys) {
+        List<DataRecord> records = new ArrayList<>();
+        for (String key : keys) {
+            records.add(new DataRecord(key, "42", 1700000000000L));
+        }
+        return records;
+    }
+
+    private static String result(int id, boolean success) {
+        return "{\"id\":" + id + ",\"type\":\"result\",\"success\":" + success + ",\"result\":null}";
+    }
+
+    private static WebSocketTransport.ResultCallback callback(final String name, final BlockingQueue<String> results) {
+        return new WebSocketTransport.ResultCallback() {
+            @Override
+            public void onResult(boolean success, String error) {
+                results.add(name + ": " + success + " " + error);
+            }
+        };
+    }
+}